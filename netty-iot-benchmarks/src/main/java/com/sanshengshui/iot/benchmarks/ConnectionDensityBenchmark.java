@@ -0,0 +1,171 @@
+package com.sanshengshui.iot.benchmarks;
+
+import com.sanshengshui.iot.cluster.LocalClusterServiceImpl;
+import com.sanshengshui.iot.common.auth.GrozaAuthService;
+import com.sanshengshui.iot.metrics.ProtocolMetrics;
+import com.sanshengshui.iot.protocol.ProtocolProcess;
+import com.sanshengshui.iot.server.MqttTransportHandler;
+import com.sanshengshui.iot.store.message.MessageIdServiceImpl;
+import com.sanshengshui.iot.store.offline.OfflineMessageStoreServiceImpl;
+import com.sanshengshui.iot.store.session.GrozaSessionStoreServiceImpl;
+import com.sanshengshui.iot.trace.MessageTracer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author james
+ * 空闲连接密度: 在回环地址上启动与MqttServer相同的处理链, 建立N个带遗嘱消息的空闲MQTT连接,
+ * 统计每个连接常驻的堆内存和直接内存. 客户端用阻塞的java.nio SocketChannel, 其对象也计入堆内存(每个约几百字节).
+ * 不是JMH基准, 运行方式: java -cp target/benchmarks.jar com.sanshengshui.iot.benchmarks.ConnectionDensityBenchmark [连接数]
+ */
+public final class ConnectionDensityBenchmark {
+
+    private ConnectionDensityBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        ProtocolProcess protocolProcess = protocolProcess();
+        // 与MqttServer一样, 所有连接共用一个协议处理实例
+        MqttTransportHandler handler = new MqttTransportHandler(protocolProcess, new ProtocolMetrics(), null);
+        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        List<SocketChannel> clients = new ArrayList<>(connections);
+        try {
+            Channel server = new ServerBootstrap()
+                    .group(bossGroup, workerGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast("decoder", new MqttDecoder());
+                            channel.pipeline().addLast("encoder", MqttEncoder.INSTANCE);
+                            channel.pipeline().addLast(handler);
+                        }
+                    })
+                    .bind(InetAddress.getLoopbackAddress(), 0).sync().channel();
+            InetSocketAddress address = (InetSocketAddress) server.localAddress();
+
+            // 预热: 初始化事件循环、内存池和各处理类
+            connect(address, "warmup").close();
+            long heapBefore = usedHeap();
+            long pooledDirectBefore = PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory();
+            long directBefore = PlatformDependent.usedDirectMemory();
+
+            for (int i = 0; i < connections; i++) {
+                clients.add(connect(address, "device-" + i));
+            }
+
+            long heap = usedHeap() - heapBefore;
+            long pooledDirect = PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory() - pooledDirectBefore;
+            long direct = PlatformDependent.usedDirectMemory() - directBefore;
+            System.out.printf("connections: %d%n", connections);
+            System.out.printf("heap per connection: %d bytes%n", heap / connections);
+            System.out.printf("pooled direct per connection: %d bytes%n", pooledDirect / connections);
+            if (directBefore >= 0) {
+                System.out.printf("direct per connection: %d bytes%n", direct / connections);
+            }
+            System.out.printf("keepalive: %s%n", protocolProcess.getKeepAliveManager().snapshot());
+            server.close().sync();
+        } finally {
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+            protocolProcess.shutdown();
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 建立连接并等待CONNACK
+     */
+    private static SocketChannel connect(InetSocketAddress address, String clientId) throws IOException {
+        EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.writeOutbound(MqttMessageBuilders.connect()
+                .clientId(clientId)
+                .cleanSession(true)
+                .keepAlive(60)
+                .willFlag(true)
+                .willTopic("devices/" + clientId + "/status")
+                .willMessage(new byte[64])
+                .willQoS(MqttQoS.AT_LEAST_ONCE)
+                .build());
+        ByteBuf packet = encoder.readOutbound();
+        ByteBuffer request = ByteBuffer.allocate(packet.readableBytes());
+        packet.readBytes(request);
+        packet.release();
+        request.flip();
+
+        SocketChannel client = SocketChannel.open(address);
+        while (request.hasRemaining()) {
+            client.write(request);
+        }
+        ByteBuffer connAck = ByteBuffer.allocate(4);
+        while (connAck.hasRemaining()) {
+            if (client.read(connAck) < 0) {
+                throw new IOException("Connection closed before CONNACK: " + clientId);
+            }
+        }
+        return client;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * 使用内存存储的协议处理, 只覆盖CONNECT和空闲连接用到的部分
+     */
+    private static ProtocolProcess protocolProcess() {
+        MessageTracer messageTracer = new MessageTracer();
+        ProtocolProcess protocolProcess = new ProtocolProcess();
+        InMemoryStores.setField(protocolProcess, "grozaSessionStoreService", new GrozaSessionStoreServiceImpl());
+        InMemoryStores.setField(protocolProcess, "grozaSubscribeStoreService", new InMemoryStores.SubscribeStoreService());
+        InMemoryStores.setField(protocolProcess, "grozaAuthService", (GrozaAuthService) (username, password) -> true);
+        InMemoryStores.setField(protocolProcess, "grozaMessageIdService", new MessageIdServiceImpl());
+        InMemoryStores.setField(protocolProcess, "grozaRetainMessageStoreService",
+                InMemoryStores.retainMessageStoreService(new InMemoryStores.RetainMessageCache()));
+        InMemoryStores.setField(protocolProcess, "grozaDupPublishMessageStoreService", new InMemoryStores.DupPublishMessageStoreService());
+        InMemoryStores.setField(protocolProcess, "grozaOfflineMessageStoreService", new OfflineMessageStoreServiceImpl());
+        InMemoryStores.setField(protocolProcess, "grozaClusterService", new LocalClusterServiceImpl());
+        InMemoryStores.setField(protocolProcess, "protocolMetrics", new ProtocolMetrics());
+        InMemoryStores.setField(protocolProcess, "messageTracer", messageTracer);
+        // 与application.yml的默认值一致
+        InMemoryStores.setField(protocolProcess, "retryIntervalMillis", 10000L);
+        InMemoryStores.setField(protocolProcess, "maxPending", 1000);
+        InMemoryStores.setField(protocolProcess, "drainBatch", 100);
+        InMemoryStores.setField(protocolProcess, "sharedStrategy", "round_robin");
+        InMemoryStores.setField(protocolProcess, "slowConsumerPolicy", "drop_oldest");
+        InMemoryStores.setField(protocolProcess, "slowConsumerQueueSize", 100);
+        InMemoryStores.setField(protocolProcess, "keepAliveTickMillis", 1000L);
+        InMemoryStores.setField(protocolProcess, "keepAliveWheelSize", 512);
+        protocolProcess.init();
+        return protocolProcess;
+    }
+}
@@ -0,0 +1,138 @@
+package com.sanshengshui.iot.benchmarks;
+
+import com.sanshengshui.iot.common.message.DupPublishMessageStore;
+import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
+import com.sanshengshui.iot.common.message.RetainMessageStore;
+import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.store.cache.GrozaRetainMessageCache;
+import com.sanshengshui.iot.store.message.RetainMessageStoreServiceImpl;
+import com.sanshengshui.iot.store.subscribe.SubscribeStoreServiceImpl;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * @author james
+ * 基准测试用的内存存储: 保留各存储服务自身的主题树索引, 只把Redis读写换成内存或空操作
+ */
+public final class InMemoryStores {
+
+    private InMemoryStores() {
+    }
+
+    /**
+     * 订阅存储, 只写主题树, 不写Redis
+     */
+    public static class SubscribeStoreService extends SubscribeStoreServiceImpl {
+
+        @Override
+        protected void persist(String topicFilter, SubscribeStore subscribeStore) {
+        }
+
+        @Override
+        protected void unpersist(String topicFilter, String clientId) {
+        }
+
+        @Override
+        protected void unpersistClient(String clientId, Set<String> topicFilters) {
+        }
+    }
+
+    /**
+     * retain消息缓存, 存在内存Map中
+     */
+    public static class RetainMessageCache extends GrozaRetainMessageCache {
+
+        private final Map<String, RetainMessageStore> messages = new ConcurrentHashMap<>();
+
+        @Override
+        public RetainMessageStore put(String topic, RetainMessageStore retainMessageStore) {
+            messages.put(topic, retainMessageStore);
+            return retainMessageStore;
+        }
+
+        @Override
+        public RetainMessageStore get(String topic) {
+            return messages.get(topic);
+        }
+
+        @Override
+        public boolean containsKey(String topic) {
+            return messages.containsKey(topic);
+        }
+
+        @Override
+        public void remove(String topic) {
+            messages.remove(topic);
+        }
+
+        @Override
+        public Map<String, RetainMessageStore> all() {
+            return new ConcurrentHashMap<>(messages);
+        }
+
+        @Override
+        public void scanTopics(Consumer<String> consumer) {
+            messages.keySet().forEach(consumer);
+        }
+
+        @Override
+        public List<RetainMessageStore> get(Collection<String> topics) {
+            List<RetainMessageStore> list = new ArrayList<>(topics.size());
+            for (String topic : topics) {
+                RetainMessageStore retainMessageStore = messages.get(topic);
+                if (retainMessageStore != null) {
+                    list.add(retainMessageStore);
+                }
+            }
+            return list;
+        }
+    }
+
+    public static RetainMessageStoreServiceImpl retainMessageStoreService(RetainMessageCache retainMessageCache) {
+        RetainMessageStoreServiceImpl retainMessageStoreService = new RetainMessageStoreServiceImpl();
+        setField(retainMessageStoreService, "grozaRetainMessageCache", retainMessageCache);
+        retainMessageStoreService.init();
+        return retainMessageStoreService;
+    }
+
+    /**
+     * 重发消息存储, 空操作
+     */
+    public static class DupPublishMessageStoreService implements GrozaDupPublishMessageStoreService {
+
+        @Override
+        public void put(String clientId, DupPublishMessageStore dupPublishMessageStore) {
+        }
+
+        @Override
+        public List<DupPublishMessageStore> get(String clientId) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void remove(String clientId, int messageId) {
+        }
+
+        @Override
+        public void removeByClient(String clientId) {
+        }
+    }
+
+    public static void setField(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.sanshengshui.iot.benchmarks;
+
+import cn.hutool.core.util.StrUtil;
+
+import java.util.List;
+
+/**
+ * @author james
+ * 改用主题树之前search/retain查询中逐个过滤器拆分字符串比较的匹配方式, 作为对照基线
+ */
+public final class LegacyTopicMatcher {
+
+    private LegacyTopicMatcher() {
+    }
+
+    public static boolean matches(String topic, String topicFilter) {
+        if (StrUtil.split(topic, '/').size() >= StrUtil.split(topicFilter, '/').size()) {
+            List<String> splitTopics = StrUtil.split(topic, '/');
+            List<String> spliteTopicFilters = StrUtil.split(topicFilter, '/');
+            String newTopicFilter = "";
+            for (int i = 0; i < spliteTopicFilters.size(); i++) {
+                String value = spliteTopicFilters.get(i);
+                if (value.equals("+")) {
+                    newTopicFilter = newTopicFilter + "+/";
+                } else if (value.equals("#")) {
+                    newTopicFilter = newTopicFilter + "#/";
+                    break;
+                } else {
+                    newTopicFilter = newTopicFilter + splitTopics.get(i) + "/";
+                }
+            }
+            newTopicFilter = StrUtil.removeSuffix(newTopicFilter, "/");
+            return topicFilter.equals(newTopicFilter);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,104 @@
+package com.sanshengshui.iot.benchmarks;
+
+import com.sanshengshui.iot.codec.PublishPacketEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * PUBLISH编解码吞吐: netty的MqttEncoder/MqttDecoder, 以及转发时使用的PublishPacketEncoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MqttCodecBenchmark {
+
+    private static final String TOPIC = "devices/device-0001/telemetry";
+
+    @Param({"64", "1024", "16384"})
+    private int payloadSize;
+
+    private EmbeddedChannel encoderChannel;
+
+    private EmbeddedChannel decoderChannel;
+
+    private ByteBuf payload;
+
+    private ByteBuf encoded;
+
+    private byte[] topicBytes;
+
+    @Setup
+    public void setUp() {
+        encoderChannel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        decoderChannel = new EmbeddedChannel(new MqttDecoder(payloadSize + 1024));
+        payload = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize).writeZero(payloadSize);
+        topicBytes = TOPIC.getBytes(CharsetUtil.UTF_8);
+        encoded = PublishPacketEncoder.encode(PooledByteBufAllocator.DEFAULT, topicBytes, MqttQoS.AT_LEAST_ONCE, false, false, 1, payload);
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoded.release();
+        payload.release();
+        encoderChannel.finishAndReleaseAll();
+        decoderChannel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int mqttEncoder() {
+        MqttPublishMessage message = new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttPublishVariableHeader(TOPIC, 1), payload.retainedDuplicate());
+        encoderChannel.writeOutbound(message);
+        ByteBuf buf = encoderChannel.readOutbound();
+        int length = buf.readableBytes();
+        buf.release();
+        return length;
+    }
+
+    @Benchmark
+    public int publishPacketEncoder() {
+        ByteBuf buf = PublishPacketEncoder.encode(PooledByteBufAllocator.DEFAULT, topicBytes, MqttQoS.AT_LEAST_ONCE, false, false, 1, payload);
+        int length = buf.readableBytes();
+        buf.release();
+        return length;
+    }
+
+    @Benchmark
+    public int mqttDecoder() {
+        decoderChannel.writeInbound(encoded.retainedDuplicate());
+        MqttMessage message = decoderChannel.readInbound();
+        int packetId = ((MqttPublishMessage) message).variableHeader().packetId();
+        ReferenceCountUtil.release(message);
+        return packetId;
+    }
+}
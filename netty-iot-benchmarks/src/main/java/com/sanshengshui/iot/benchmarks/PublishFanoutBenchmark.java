@@ -0,0 +1,117 @@
+package com.sanshengshui.iot.benchmarks;
+
+import com.sanshengshui.iot.cluster.LocalClusterServiceImpl;
+import com.sanshengshui.iot.common.session.SessionStore;
+import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.metrics.ProtocolMetrics;
+import com.sanshengshui.iot.protocol.InFlight;
+import com.sanshengshui.iot.protocol.InboundQos2;
+import com.sanshengshui.iot.protocol.Publish;
+import com.sanshengshui.iot.protocol.SharedSubscriptionSelector;
+import com.sanshengshui.iot.protocol.SlowConsumer;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.store.message.MessageIdServiceImpl;
+import com.sanshengshui.iot.store.offline.OfflineMessageStoreServiceImpl;
+import com.sanshengshui.iot.store.session.GrozaSessionStoreServiceImpl;
+import com.sanshengshui.iot.trace.MessageTracer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * 一条QoS0 PUBLISH经Publish.processPublish投递给N个EmbeddedChannel订阅者, 含每个订阅者出站报文的释放
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishFanoutBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int subscribers;
+
+    @Param({"256"})
+    private int payloadSize;
+
+    private EmbeddedChannel[] channels;
+
+    private EmbeddedChannel publisher;
+
+    private InFlight inFlight;
+
+    private Publish publish;
+
+    private ByteBuf payload;
+
+    @Setup
+    public void setUp() {
+        GrozaSessionStoreServiceImpl sessionStoreService = new GrozaSessionStoreServiceImpl();
+        InMemoryStores.SubscribeStoreService subscribeStoreService = new InMemoryStores.SubscribeStoreService();
+        MessageIdServiceImpl messageIdService = new MessageIdServiceImpl();
+        InMemoryStores.DupPublishMessageStoreService dupPublishMessageStoreService = new InMemoryStores.DupPublishMessageStoreService();
+        OfflineMessageStoreServiceImpl offlineMessageStoreService = new OfflineMessageStoreServiceImpl();
+        // 未配置跟踪规则, 与默认部署一致
+        MessageTracer messageTracer = new MessageTracer();
+        inFlight = new InFlight(sessionStoreService, messageIdService, dupPublishMessageStoreService,
+                offlineMessageStoreService, messageTracer, 10000, 0, 1000, 100);
+        publish = new Publish(sessionStoreService, subscribeStoreService, messageIdService,
+                InMemoryStores.retainMessageStoreService(new InMemoryStores.RetainMessageCache()), dupPublishMessageStoreService,
+                internalMessage -> { }, offlineMessageStoreService, new LocalClusterServiceImpl(), inFlight,
+                new SlowConsumer(SlowConsumer.Policy.DROP_OLDEST, 100), new InboundQos2(), SharedSubscriptionSelector.of("round_robin", inFlight), new ProtocolMetrics(), messageTracer);
+
+        channels = new EmbeddedChannel[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            String clientId = "subscriber-" + i;
+            channels[i] = new EmbeddedChannel();
+            sessionStoreService.put(clientId, new SessionStore(clientId, channels[i], true, null));
+            subscribeStoreService.put("devices/+/telemetry", new SubscribeStore(clientId, "devices/+/telemetry", 0));
+        }
+        publisher = new EmbeddedChannel();
+        ConnectionContext.of(publisher).setClientId("publisher");
+        payload = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize).writeZero(payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        inFlight.shutdown();
+        payload.release();
+        publisher.finishAndReleaseAll();
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Benchmark
+    public void fanout() {
+        MqttPublishMessage message = new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttPublishVariableHeader("devices/device-0001/telemetry", 0), payload.retainedDuplicate());
+        publish.processPublish(publisher, message);
+        message.release();
+        for (EmbeddedChannel channel : channels) {
+            channel.releaseOutbound();
+        }
+    }
+}
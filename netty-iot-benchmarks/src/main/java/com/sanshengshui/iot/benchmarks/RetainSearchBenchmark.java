@@ -0,0 +1,69 @@
+package com.sanshengshui.iot.benchmarks;
+
+import com.sanshengshui.iot.common.message.RetainMessageStore;
+import com.sanshengshui.iot.store.message.RetainMessageStoreServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * 订阅时的retain消息查询: 主题树(RetainMessageStoreServiceImpl.search) 对比 遍历全部retain主题
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetainSearchBenchmark {
+
+    @Param({"1000", "100000"})
+    private int retained;
+
+    @Param({"devices/+/telemetry", "devices/42/#", "site/7/+/alarm"})
+    private String topicFilter;
+
+    private InMemoryStores.RetainMessageCache retainMessageCache;
+
+    private RetainMessageStoreServiceImpl retainMessageStoreService;
+
+    @Setup
+    public void setUp() {
+        retainMessageCache = new InMemoryStores.RetainMessageCache();
+        byte[] payload = new byte[64];
+        for (int i = 0; i < retained; i++) {
+            String topic = i % 2 == 0 ? "devices/" + i + "/telemetry" : "site/" + (i % 100) + "/room-" + i + "/alarm";
+            retainMessageCache.put(topic, new RetainMessageStore().setTopic(topic).setMqttQoS(1).setMessageBytes(payload));
+        }
+        retainMessageStoreService = InMemoryStores.retainMessageStoreService(retainMessageCache);
+    }
+
+    @Benchmark
+    public List<RetainMessageStore> trie() {
+        return retainMessageStoreService.search(topicFilter);
+    }
+
+    @Benchmark
+    public List<RetainMessageStore> legacyScan() {
+        List<RetainMessageStore> retainMessageStores = new ArrayList<>();
+        retainMessageCache.all().forEach((topic, retainMessageStore) -> {
+            if (LegacyTopicMatcher.matches(topic, topicFilter)) {
+                retainMessageStores.add(retainMessageStore);
+            }
+        });
+        return retainMessageStores;
+    }
+}
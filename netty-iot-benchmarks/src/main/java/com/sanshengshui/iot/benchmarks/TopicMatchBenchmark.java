@@ -0,0 +1,115 @@
+package com.sanshengshui.iot.benchmarks;
+
+import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.common.topic.TopicUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * 订阅匹配: 主题树(SubscribeStoreServiceImpl.search) 对比 逐个通配过滤器拆分字符串比较
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicMatchBenchmark {
+
+    @Param({"1000", "10000"})
+    private int subscriptions;
+
+    private InMemoryStores.SubscribeStoreService subscribeStoreService;
+
+    private Map<String, Map<String, SubscribeStore>> wildcardFilters;
+
+    private Map<String, Map<String, SubscribeStore>> exactFilters;
+
+    private String[] topics;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        subscribeStoreService = new InMemoryStores.SubscribeStoreService();
+        wildcardFilters = new HashMap<>();
+        exactFilters = new HashMap<>();
+        for (int i = 0; i < subscriptions; i++) {
+            String clientId = "client-" + i;
+            String topicFilter;
+            switch (i % 4) {
+                case 0:
+                    topicFilter = "devices/" + i + "/telemetry";
+                    break;
+                case 1:
+                    topicFilter = "devices/+/status/" + (i % 50);
+                    break;
+                case 2:
+                    topicFilter = "site/" + (i % 100) + "/#";
+                    break;
+                default:
+                    topicFilter = "site/" + (i % 100) + "/+/alarm";
+                    break;
+            }
+            SubscribeStore subscribeStore = new SubscribeStore(clientId, topicFilter, 0);
+            subscribeStoreService.put(topicFilter, subscribeStore);
+            (TopicUtil.isWildcard(topicFilter) ? wildcardFilters : exactFilters)
+                    .computeIfAbsent(topicFilter, k -> new HashMap<>()).put(clientId, subscribeStore);
+        }
+        topics = new String[1024];
+        for (int i = 0; i < topics.length; i++) {
+            switch (i % 3) {
+                case 0:
+                    topics[i] = "devices/" + (i * 4) + "/telemetry";
+                    break;
+                case 1:
+                    topics[i] = "devices/" + i + "/status/" + (i % 50);
+                    break;
+                default:
+                    topics[i] = "site/" + (i % 100) + "/room-" + i + "/alarm";
+                    break;
+            }
+        }
+    }
+
+    private String nextTopic() {
+        return topics[next++ & (topics.length - 1)];
+    }
+
+    @Benchmark
+    public List<SubscribeStore> trie() {
+        return subscribeStoreService.search(this.nextTopic());
+    }
+
+    @Benchmark
+    public List<SubscribeStore> legacyScan() {
+        String topic = this.nextTopic();
+        List<SubscribeStore> subscribeStores = new ArrayList<>();
+        Map<String, SubscribeStore> exact = exactFilters.get(topic);
+        if (exact != null) {
+            subscribeStores.addAll(exact.values());
+        }
+        wildcardFilters.forEach((topicFilter, map) -> {
+            if (LegacyTopicMatcher.matches(topic, topicFilter)) {
+                subscribeStores.addAll(map.values());
+            }
+        });
+        return subscribeStores;
+    }
+}
@@ -1,38 +1,28 @@
 package com.sanshengshui.iot.auth.service;
 
-import cn.hutool.core.io.IoUtil;
-import cn.hutool.crypto.asymmetric.KeyType;
-import cn.hutool.crypto.asymmetric.RSA;
-import com.sanshengshui.iot.common.auth.GrozaAuthService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
-import org.springframework.util.StringUtils;
-
-import javax.annotation.PostConstruct;
-import java.security.interfaces.RSAPrivateKey;
 
 /**
  * 用户名和密码认证服务
+ * 密码为用户名经RSA私钥加密后的BCD串, 验证通过的凭证缓存一段时间, 未命中时在认证线程池中验证
  * @author 穆书伟
  */
 @Service
-public class AuthServiceImpl implements GrozaAuthService {
-    private RSAPrivateKey privateKey;
+@ConditionalOnProperty(name = "mqtt.auth.mode", havingValue = "rsa", matchIfMissing = true)
+public class AuthServiceImpl extends CachedAuthService {
+
+    @Autowired
+    private RsaCredentialSigner rsaCredentialSigner;
 
     @Override
-    public boolean checkValid(String username, String password) {
-        if (StringUtils.isEmpty(username)){
-            return false;
-        }
-        if (StringUtils.isEmpty(password)){
-            return false;
-        }
-        RSA rsa = new RSA(privateKey,null);
-        String value = rsa.encryptBcd(username, KeyType.PrivateKey);
-        return value.equals(password) ? true : false;
+    protected long verify(String username, String password) {
+        return rsaCredentialSigner.verify(username, password) ? Long.MAX_VALUE : 0;
     }
 
-    @PostConstruct
-    public void init() {
-        privateKey = IoUtil.readObj(AuthServiceImpl.class.getClassLoader().getResourceAsStream("keystore/auth-private.key"));
+    @Override
+    protected boolean isExpensive(String password) {
+        return true;
     }
 }
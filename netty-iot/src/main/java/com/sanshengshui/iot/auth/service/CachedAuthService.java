@@ -0,0 +1,103 @@
+package com.sanshengshui.iot.auth.service;
+
+import com.sanshengshui.iot.common.auth.GrozaAuthService;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * 带已验证凭证缓存的认证服务基类.
+ * 缓存命中和廉价的验证直接返回; 开销大的验证(如RSA)交给认证线程池, 不占用netty的IO线程和协议处理线程
+ */
+@Slf4j
+public abstract class CachedAuthService implements GrozaAuthService {
+
+    @Value("${mqtt.auth.cache.max_size:100000}")
+    private int cacheMaxSize;
+    @Value("${mqtt.auth.cache.ttl_ms:300000}")
+    private long cacheTtlMillis;
+    @Value("${mqtt.auth.verify_threads:2}")
+    private int verifyThreads;
+    @Value("${mqtt.auth.verify_queue:10000}")
+    private int verifyQueue;
+
+    private CredentialCache credentialCache;
+
+    private ThreadPoolExecutor verifyExecutor;
+
+    @PostConstruct
+    public void init() {
+        credentialCache = new CredentialCache(cacheMaxSize, cacheTtlMillis);
+        verifyExecutor = new ThreadPoolExecutor(verifyThreads, verifyThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(verifyQueue), new DefaultThreadFactory("groza-auth", true));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        verifyExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean checkValid(String username, String password) {
+        if (StringUtils.isEmpty(username) || StringUtils.isEmpty(password)) {
+            return false;
+        }
+        if (credentialCache.contains(username, password, System.currentTimeMillis())) {
+            return true;
+        }
+        return this.verifyAndCache(username, password);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> checkValidAsync(String username, String password) {
+        if (StringUtils.isEmpty(username) || StringUtils.isEmpty(password)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (credentialCache.contains(username, password, System.currentTimeMillis())) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (!this.isExpensive(password)) {
+            return CompletableFuture.completedFuture(this.verifyAndCache(username, password));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> this.verifyAndCache(username, password), verifyExecutor);
+        } catch (RejectedExecutionException e) {
+            // 认证队列已满, 拒绝连接, 客户端稍后重连
+            log.warn("Auth verification queue is full, rejecting username: {}", username);
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    private boolean verifyAndCache(String username, String password) {
+        long expiresAt = this.verify(username, password);
+        if (expiresAt <= 0) {
+            return false;
+        }
+        credentialCache.put(username, password, expiresAt, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * 验证凭证, 返回凭证的过期时间(毫秒时间戳), 不会过期时返回Long.MAX_VALUE, 验证失败返回0
+     */
+    protected abstract long verify(String username, String password);
+
+    /**
+     * 验证开销是否大到需要离开调用线程
+     */
+    protected abstract boolean isExpensive(String password);
+}
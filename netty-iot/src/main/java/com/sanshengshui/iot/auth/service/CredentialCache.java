@@ -0,0 +1,78 @@
+package com.sanshengshui.iot.auth.service;
+
+import cn.hutool.crypto.digest.DigestUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author james
+ * 已验证凭证缓存, 按访问顺序淘汰, 超过容量时淘汰最久未使用的凭证, 过期的凭证需要重新验证
+ */
+public class CredentialCache {
+
+    private final long ttlMillis;
+
+    private final LruMap entries;
+
+    public CredentialCache(int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LruMap(maxSize);
+    }
+
+    public synchronized boolean contains(String username, String password, long now) {
+        String key = key(username, password);
+        Long expiresAt = entries.get(key);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt <= now) {
+            entries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 缓存验证通过的凭证, 有效期取缓存TTL和凭证自身有效期中较早者
+     */
+    public synchronized void put(String username, String password, long credentialExpiresAt, long now) {
+        long expiresAt = Math.min(credentialExpiresAt, now + ttlMillis);
+        if (expiresAt > now) {
+            entries.put(key(username, password), expiresAt);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 以用户名和密码的SHA-256摘要作为键, 缓存中不保留明文密码.
+     * MQTT字符串中不允许出现U+0000, 用作分隔符
+     */
+    private static String key(String username, String password) {
+        return DigestUtil.sha256Hex(username + '\u0000' + password);
+    }
+
+    private static final class LruMap extends LinkedHashMap<String, Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
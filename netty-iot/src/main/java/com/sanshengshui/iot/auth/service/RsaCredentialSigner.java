@@ -0,0 +1,35 @@
+package com.sanshengshui.iot.auth.service;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.crypto.asymmetric.KeyType;
+import cn.hutool.crypto.asymmetric.RSA;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.security.interfaces.RSAPrivateKey;
+
+/**
+ * @author james
+ * RSA密码方案: 密码为用户名经私钥加密后的BCD串.
+ * 私钥启动时只读取一次; hutool的RSA对象内部加锁, 每个线程持有一个实例, 避免相互等待
+ */
+@Component
+public class RsaCredentialSigner {
+
+    private RSAPrivateKey privateKey;
+
+    private final ThreadLocal<RSA> rsa = ThreadLocal.withInitial(() -> new RSA(privateKey, null));
+
+    @PostConstruct
+    public void init() {
+        privateKey = IoUtil.readObj(RsaCredentialSigner.class.getClassLoader().getResourceAsStream("keystore/auth-private.key"));
+    }
+
+    public String sign(String username) {
+        return rsa.get().encryptBcd(username, KeyType.PrivateKey);
+    }
+
+    public boolean verify(String username, String password) {
+        return sign(username).equals(password);
+    }
+}
@@ -0,0 +1,96 @@
+package com.sanshengshui.iot.auth.service;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * @author james
+ * 令牌认证服务: 密码为{过期时间秒}.{HMAC-SHA256(用户名.过期时间秒)的base64url}, 验证只需一次HMAC, 无需查询外部存储.
+ * 开启rsa_fallback时, 不是令牌格式的密码按RSA方案验证
+ */
+@Service
+@ConditionalOnProperty(name = "mqtt.auth.mode", havingValue = "token")
+public class TokenAuthServiceImpl extends CachedAuthService {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    @Value("${mqtt.auth.token.secret:}")
+    private String secret;
+    @Value("${mqtt.auth.token.ttl_seconds:86400}")
+    private long ttlSeconds;
+    @Value("${mqtt.auth.token.rsa_fallback:true}")
+    private boolean rsaFallback;
+
+    @Autowired(required = false)
+    private RsaCredentialSigner rsaCredentialSigner;
+
+    private ThreadLocal<Mac> mac;
+
+    @Override
+    @PostConstruct
+    public void init() {
+        if (StrUtil.isBlank(secret)) {
+            throw new IllegalStateException("mqtt.auth.token.secret must be set when mqtt.auth.mode=token");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac instance = Mac.getInstance(ALGORITHM);
+                instance.init(key);
+                return instance;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        super.init();
+    }
+
+    /**
+     * 签发令牌
+     */
+    public String issue(String username) {
+        long expiresAt = System.currentTimeMillis() / 1000 + ttlSeconds;
+        return expiresAt + "." + this.signature(username, expiresAt);
+    }
+
+    @Override
+    protected long verify(String username, String password) {
+        int index = password.indexOf('.');
+        if (index < 0) {
+            return rsaFallback && rsaCredentialSigner != null && rsaCredentialSigner.verify(username, password) ? Long.MAX_VALUE : 0;
+        }
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(password.substring(0, index));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        if (expiresAt * 1000 <= System.currentTimeMillis()) {
+            return 0;
+        }
+        byte[] expected = this.signature(username, expiresAt).getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = password.substring(index + 1).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, actual) ? expiresAt * 1000 : 0;
+    }
+
+    @Override
+    protected boolean isExpensive(String password) {
+        return password.indexOf('.') < 0;
+    }
+
+    private String signature(String username, long expiresAt) {
+        byte[] digest = mac.get().doFinal((username + "." + expiresAt).getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    }
+}
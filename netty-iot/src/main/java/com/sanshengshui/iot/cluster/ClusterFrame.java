@@ -0,0 +1,137 @@
+package com.sanshengshui.iot.cluster;
+
+import com.sanshengshui.iot.internal.InternalMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author james
+ * 节点间报文
+ */
+public class ClusterFrame {
+
+    /**
+     * 握手: 节点ID和集群监听地址
+     */
+    public static final byte HELLO = 1;
+
+    /**
+     * 本节点的全部订阅主题过滤器, 替换对端之前记录的订阅
+     */
+    public static final byte SUB_SNAPSHOT = 2;
+
+    public static final byte SUB_ADD = 3;
+
+    public static final byte SUB_REMOVE = 4;
+
+    /**
+     * 批量转发的PUBLISH, 由对端投递给其本地订阅者
+     */
+    public static final byte PUBLISH_BATCH = 5;
+
+    /**
+     * 客户端已连接到发送方, 对端关闭该客户端的旧连接
+     */
+    public static final byte TAKEOVER = 6;
+
+    /**
+     * 接管后旧节点移交的订阅
+     */
+    public static final byte TRANSFER = 7;
+
+    /**
+     * 接管后旧节点移交的离线消息, 只投递给指定客户端
+     */
+    public static final byte DELIVER = 8;
+
+    private byte type;
+
+    private String nodeId;
+
+    private String address;
+
+    private String clientId;
+
+    /**
+     * TAKEOVER: 新连接是否清理会话, 为true时旧节点不移交订阅和离线消息
+     */
+    private boolean cleanSession;
+
+    private List<String> topicFilters = new ArrayList<>();
+
+    private List<Integer> mqttQoSList = new ArrayList<>();
+
+    private List<InternalMessage> messages = new ArrayList<>();
+
+    public ClusterFrame(byte type) {
+        this.type = type;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public ClusterFrame setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public ClusterFrame setAddress(String address) {
+        this.address = address;
+        return this;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public ClusterFrame setClientId(String clientId) {
+        this.clientId = clientId;
+        return this;
+    }
+
+    public boolean isCleanSession() {
+        return cleanSession;
+    }
+
+    public ClusterFrame setCleanSession(boolean cleanSession) {
+        this.cleanSession = cleanSession;
+        return this;
+    }
+
+    public List<String> getTopicFilters() {
+        return topicFilters;
+    }
+
+    public ClusterFrame setTopicFilters(List<String> topicFilters) {
+        this.topicFilters = topicFilters;
+        return this;
+    }
+
+    public List<Integer> getMqttQoSList() {
+        return mqttQoSList;
+    }
+
+    public ClusterFrame setMqttQoSList(List<Integer> mqttQoSList) {
+        this.mqttQoSList = mqttQoSList;
+        return this;
+    }
+
+    public List<InternalMessage> getMessages() {
+        return messages;
+    }
+
+    public ClusterFrame setMessages(List<InternalMessage> messages) {
+        this.messages = messages;
+        return this;
+    }
+}
@@ -0,0 +1,105 @@
+package com.sanshengshui.iot.cluster;
+
+import com.sanshengshui.iot.internal.InternalMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author james
+ * 节点间报文编解码, 报文边界由前置的LengthFieldBasedFrameDecoder/LengthFieldPrepender处理.
+ * 格式: type(1) | 字符串字段(2字节长度+UTF-8): nodeId, address, clientId | cleanSession(1) | 过滤器数(4) [过滤器, qos(1)]... | 消息数(4) [clientId, topic, qos(1), retain(1), payload长度(4)+payload]...
+ */
+@ChannelHandler.Sharable
+public class ClusterFrameCodec extends MessageToMessageCodec<ByteBuf, ClusterFrame> {
+
+    public static final ClusterFrameCodec INSTANCE = new ClusterFrameCodec();
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ClusterFrame frame, List<Object> out) {
+        ByteBuf buf = ctx.alloc().buffer();
+        encode(frame, buf);
+        out.add(buf);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) {
+        out.add(decode(buf));
+    }
+
+    public static void encode(ClusterFrame frame, ByteBuf buf) {
+        buf.writeByte(frame.getType());
+        writeString(buf, frame.getNodeId());
+        writeString(buf, frame.getAddress());
+        writeString(buf, frame.getClientId());
+        buf.writeBoolean(frame.isCleanSession());
+        buf.writeInt(frame.getTopicFilters().size());
+        for (int i = 0; i < frame.getTopicFilters().size(); i++) {
+            writeString(buf, frame.getTopicFilters().get(i));
+            buf.writeByte(i < frame.getMqttQoSList().size() ? frame.getMqttQoSList().get(i) : 0);
+        }
+        buf.writeInt(frame.getMessages().size());
+        for (InternalMessage message : frame.getMessages()) {
+            writeString(buf, message.getClientId());
+            writeString(buf, message.getTopic());
+            buf.writeByte(message.getMqttQoS());
+            buf.writeBoolean(message.isRetain());
+            buf.writeInt(message.getMessageBytes().length);
+            buf.writeBytes(message.getMessageBytes());
+        }
+    }
+
+    public static ClusterFrame decode(ByteBuf buf) {
+        ClusterFrame frame = new ClusterFrame(buf.readByte())
+                .setNodeId(readString(buf))
+                .setAddress(readString(buf))
+                .setClientId(readString(buf))
+                .setCleanSession(buf.readBoolean());
+        int filterCount = buf.readInt();
+        List<String> topicFilters = new ArrayList<>(filterCount);
+        List<Integer> mqttQoSList = new ArrayList<>(filterCount);
+        for (int i = 0; i < filterCount; i++) {
+            topicFilters.add(readString(buf));
+            mqttQoSList.add((int) buf.readByte());
+        }
+        int messageCount = buf.readInt();
+        List<InternalMessage> messages = new ArrayList<>(messageCount);
+        for (int i = 0; i < messageCount; i++) {
+            // 消息的clientId为发布者, 缺省时取报文的clientId
+            String clientId = readString(buf);
+            InternalMessage message = new InternalMessage()
+                    .setClientId(clientId == null ? frame.getClientId() : clientId)
+                    .setTopic(readString(buf))
+                    .setMqttQoS(buf.readByte())
+                    .setRetain(buf.readBoolean())
+                    .setDup(false);
+            byte[] messageBytes = new byte[buf.readInt()];
+            buf.readBytes(messageBytes);
+            messages.add(message.setMessageBytes(messageBytes));
+        }
+        return frame.setTopicFilters(topicFilters).setMqttQoSList(mqttQoSList).setMessages(messages);
+    }
+
+    private static void writeString(ByteBuf buf, String value) {
+        if (value == null) {
+            buf.writeShort(0xFFFF);
+            return;
+        }
+        byte[] bytes = value.getBytes(CharsetUtil.UTF_8);
+        buf.writeShort(bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuf buf) {
+        int length = buf.readUnsignedShort();
+        if (length == 0xFFFF) {
+            return null;
+        }
+        return buf.readCharSequence(length, CharsetUtil.UTF_8).toString();
+    }
+}
@@ -0,0 +1,585 @@
+package com.sanshengshui.iot.cluster;
+
+import com.sanshengshui.iot.common.topic.TopicTrie;
+import com.sanshengshui.iot.common.topic.TopicUtil;
+import com.sanshengshui.iot.internal.InternalMessage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * 集群节点.
+ * 每个节点向所有对端建立一条出站连接用于发送, 对端建立的入站连接用于接收.
+ * 节点只通告本地客户端的订阅(按主题过滤器去重), PUBLISH只转发给有匹配订阅的节点, 同一对端的转发合并成批量报文.
+ * 不依赖Spring, 同一JVM中可以启动多个节点
+ */
+@Slf4j
+public class ClusterNode {
+
+    private static final AttributeKey<String> NODE_ID = AttributeKey.valueOf("clusterNodeId");
+
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * 接收对端报文的回调
+     */
+    public interface Listener {
+
+        /**
+         * 对端转发的PUBLISH, 投递给本地订阅者
+         */
+        void onPublish(InternalMessage message);
+
+        /**
+         * 对端移交的消息, 只投递给指定客户端
+         */
+        void onDeliver(String clientId, List<InternalMessage> messages);
+
+        /**
+         * 客户端已连接到对端nodeId, 关闭本地的旧连接
+         */
+        void onTakeover(String nodeId, String clientId, boolean cleanSession);
+
+        /**
+         * 旧节点移交的订阅
+         */
+        void onTransfer(String clientId, List<String> topicFilters, List<Integer> mqttQoSList);
+
+        /**
+         * 对端到本节点的连接已建立(含重连), 连接断开期间对端转发的retain消息可能已丢失
+         */
+        void onPeerConnected(String nodeId);
+    }
+
+    private final String nodeId;
+
+    private final String host;
+
+    private final int port;
+
+    /**
+     * 通告给对端的地址, 须与对端peers配置中本节点的地址一致
+     */
+    private final String advertiseAddress;
+
+    private final List<String> peers;
+
+    private final Listener listener;
+
+    private final int batchMax;
+
+    private final long batchDelayMicros;
+
+    private final long reconnectMillis;
+
+    private EventLoopGroup group;
+
+    private Channel serverChannel;
+
+    private volatile boolean running;
+
+    /**
+     * 对端地址 -> 出站连接
+     */
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+
+    /**
+     * 对端nodeId -> 对端通告的地址
+     */
+    private final Map<String, String> nodeAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * 对端通告的订阅, key和值都是nodeId
+     */
+    private final TopicTrie<String> remoteTrie = new TopicTrie<>();
+
+    private final Map<String, Set<String>> remoteFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 本地订阅: 通告的主题过滤器 -> 订阅成员(clientId和原始过滤器), clientId -> 原始主题过滤器.
+     * 共享订阅按去掉$share/{group}/前缀后的过滤器通告
+     */
+    private final Map<String, Set<String>> localFilterClients = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> localClientFilters = new ConcurrentHashMap<>();
+
+    private final Object localLock = new Object();
+
+    private final LongAdder forwarded = new LongAdder();
+
+    private final LongAdder received = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param advertiseAddress 通告给对端的host:port, 为空时使用host:port; 监听0.0.0.0或对端用其他主机名配置本节点时必须设置
+     */
+    public ClusterNode(String nodeId, String host, int port, String advertiseAddress, List<String> peers, Listener listener,
+                       int batchMax, long batchDelayMicros, long reconnectMillis) {
+        this.nodeId = nodeId;
+        this.host = host;
+        this.port = port;
+        this.advertiseAddress = advertiseAddress == null || advertiseAddress.isEmpty() ? host + ":" + port : advertiseAddress;
+        this.peers = peers;
+        this.listener = listener;
+        this.batchMax = batchMax;
+        this.batchDelayMicros = batchDelayMicros;
+        this.reconnectMillis = reconnectMillis;
+    }
+
+    public void start() throws InterruptedException {
+        running = true;
+        group = new NioEventLoopGroup(2, new DefaultThreadFactory("groza-cluster-" + nodeId, true));
+        ServerBootstrap serverBootstrap = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        initPipeline(ch).addLast(new InboundHandler());
+                    }
+                });
+        serverChannel = serverBootstrap.bind(host, port).sync().channel();
+        for (String peer : peers) {
+            if (!peer.equals(this.address())) {
+                PeerLink link = new PeerLink(peer);
+                links.put(peer, link);
+                link.connect();
+            }
+        }
+        log.info("Cluster node {} listening on {}:{}, advertised as {}, peers: {}", nodeId, host, port, this.address(), peers);
+    }
+
+    public void stop() {
+        running = false;
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        if (group != null) {
+            group.shutdownGracefully(0, 2, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String address() {
+        return advertiseAddress;
+    }
+
+    /**
+     * 本地客户端订阅, 主题过滤器首次出现时通告给对端
+     */
+    public void subscribe(String clientId, String topicFilter) {
+        boolean added;
+        synchronized (localLock) {
+            localClientFilters.computeIfAbsent(clientId, k -> ConcurrentHashMap.newKeySet()).add(topicFilter);
+            Set<String> clients = localFilterClients.computeIfAbsent(TopicUtil.shareFilter(topicFilter), k -> ConcurrentHashMap.newKeySet());
+            added = clients.isEmpty();
+            clients.add(member(clientId, topicFilter));
+        }
+        if (added) {
+            this.broadcast(new ClusterFrame(ClusterFrame.SUB_ADD).setTopicFilters(Collections.singletonList(TopicUtil.shareFilter(topicFilter))));
+        }
+    }
+
+    /**
+     * 本地客户端取消订阅, 主题过滤器不再有本地订阅者时通知对端
+     */
+    public void unsubscribe(String clientId, String topicFilter) {
+        List<String> removed = new ArrayList<>(1);
+        synchronized (localLock) {
+            this.unsubscribeLocked(clientId, topicFilter, removed);
+        }
+        if (!removed.isEmpty()) {
+            this.broadcast(new ClusterFrame(ClusterFrame.SUB_REMOVE).setTopicFilters(removed));
+        }
+    }
+
+    /**
+     * 删除本地客户端的全部订阅通告
+     */
+    public void removeClient(String clientId) {
+        List<String> removed = new ArrayList<>();
+        synchronized (localLock) {
+            Set<String> topicFilters = localClientFilters.get(clientId);
+            if (topicFilters != null) {
+                for (String topicFilter : new ArrayList<>(topicFilters)) {
+                    this.unsubscribeLocked(clientId, topicFilter, removed);
+                }
+            }
+        }
+        if (!removed.isEmpty()) {
+            this.broadcast(new ClusterFrame(ClusterFrame.SUB_REMOVE).setTopicFilters(removed));
+        }
+    }
+
+    private void unsubscribeLocked(String clientId, String topicFilter, List<String> removed) {
+        Set<String> topicFilters = localClientFilters.get(clientId);
+        if (topicFilters != null && topicFilters.remove(topicFilter) && topicFilters.isEmpty()) {
+            localClientFilters.remove(clientId);
+        }
+        String routeFilter = TopicUtil.shareFilter(topicFilter);
+        Set<String> clients = localFilterClients.get(routeFilter);
+        if (clients != null && clients.remove(member(clientId, topicFilter)) && clients.isEmpty()) {
+            localFilterClients.remove(routeFilter);
+            removed.add(routeFilter);
+        }
+    }
+
+    private static String member(String clientId, String topicFilter) {
+        // MQTT字符串中不允许出现U+0000, 用作分隔符
+        return clientId + '\u0000' + topicFilter;
+    }
+
+    /**
+     * 转发PUBLISH给有匹配订阅的对端; retain消息转发给所有对端, 以便各节点更新保留消息
+     */
+    public void publish(InternalMessage message) {
+        if (message.isRetain()) {
+            for (PeerLink link : links.values()) {
+                link.enqueue(message);
+            }
+            return;
+        }
+        for (String target : this.route(message.getTopic())) {
+            String address = nodeAddresses.get(target);
+            PeerLink link = address == null ? null : links.get(address);
+            if (link != null) {
+                link.enqueue(message);
+            } else {
+                dropped.increment();
+                log.debug("Cluster peer {} advertised as {} has no outbound link, PUBLISH dropped - topic: {}", target, address, message.getTopic());
+            }
+        }
+    }
+
+    /**
+     * 有匹配订阅的对端nodeId
+     */
+    public Set<String> route(String topic) {
+        return new LinkedHashSet<>(remoteTrie.match(topic));
+    }
+
+    /**
+     * 通知所有对端客户端已连接到本节点
+     */
+    public void takeover(String clientId, boolean cleanSession) {
+        this.broadcast(new ClusterFrame(ClusterFrame.TAKEOVER).setClientId(clientId).setCleanSession(cleanSession));
+    }
+
+    /**
+     * 向接管节点移交订阅
+     */
+    public void transfer(String targetNodeId, String clientId, List<String> topicFilters, List<Integer> mqttQoSList) {
+        this.send(targetNodeId, new ClusterFrame(ClusterFrame.TRANSFER).setClientId(clientId)
+                .setTopicFilters(topicFilters).setMqttQoSList(mqttQoSList));
+    }
+
+    /**
+     * 向接管节点移交消息
+     */
+    public void deliver(String targetNodeId, String clientId, List<InternalMessage> messages) {
+        for (int from = 0; from < messages.size(); from += batchMax) {
+            this.send(targetNodeId, new ClusterFrame(ClusterFrame.DELIVER).setClientId(clientId)
+                    .setMessages(new ArrayList<>(messages.subList(from, Math.min(messages.size(), from + batchMax)))));
+        }
+    }
+
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public Set<String> connectedPeers() {
+        Set<String> connected = new HashSet<>();
+        for (PeerLink link : links.values()) {
+            if (link.channel != null && link.channel.isActive()) {
+                connected.add(link.address);
+            }
+        }
+        return connected;
+    }
+
+    private void send(String targetNodeId, ClusterFrame frame) {
+        String address = nodeAddresses.get(targetNodeId);
+        PeerLink link = address == null ? null : links.get(address);
+        Channel channel = link == null ? null : link.channel;
+        if (link == null) {
+            log.warn("Cluster peer {} advertised as {} has no outbound link, frame {} dropped", targetNodeId, address, frame.getType());
+            return;
+        }
+        if (channel == null || !channel.isActive()) {
+            log.warn("Cluster peer {} is not connected, frame {} dropped", targetNodeId, frame.getType());
+            return;
+        }
+        channel.writeAndFlush(frame);
+    }
+
+    private void broadcast(ClusterFrame frame) {
+        for (PeerLink link : links.values()) {
+            Channel channel = link.channel;
+            if (channel != null && channel.isActive()) {
+                channel.writeAndFlush(frame);
+            }
+        }
+    }
+
+    private ClusterFrame snapshot() {
+        List<String> topicFilters;
+        synchronized (localLock) {
+            topicFilters = new ArrayList<>(localFilterClients.keySet());
+        }
+        return new ClusterFrame(ClusterFrame.SUB_SNAPSHOT).setTopicFilters(topicFilters);
+    }
+
+    private io.netty.channel.ChannelPipeline initPipeline(Channel ch) {
+        return ch.pipeline()
+                .addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4))
+                .addLast(new LengthFieldPrepender(4))
+                .addLast(ClusterFrameCodec.INSTANCE);
+    }
+
+    private void onFrame(Channel channel, ClusterFrame frame) {
+        if (frame.getType() == ClusterFrame.HELLO) {
+            channel.attr(NODE_ID).set(frame.getNodeId());
+            nodeAddresses.put(frame.getNodeId(), frame.getAddress());
+            if (!links.containsKey(frame.getAddress())) {
+                log.warn("Cluster peer {} advertises {} which matches no configured peer, frames to it cannot be routed; "
+                        + "check its mqtt.cluster.advertise_address", frame.getNodeId(), frame.getAddress());
+            }
+            listener.onPeerConnected(frame.getNodeId());
+            return;
+        }
+        String peerId = channel.attr(NODE_ID).get();
+        if (peerId == null) {
+            log.warn("Cluster frame {} received before HELLO from {}", frame.getType(), channel.remoteAddress());
+            return;
+        }
+        switch (frame.getType()) {
+            case ClusterFrame.SUB_SNAPSHOT:
+                this.removeRemote(peerId);
+                this.addRemote(peerId, frame.getTopicFilters());
+                break;
+            case ClusterFrame.SUB_ADD:
+                this.addRemote(peerId, frame.getTopicFilters());
+                break;
+            case ClusterFrame.SUB_REMOVE:
+                Set<String> topicFilters = remoteFilters.get(peerId);
+                for (String topicFilter : frame.getTopicFilters()) {
+                    remoteTrie.remove(topicFilter, peerId);
+                    if (topicFilters != null) {
+                        topicFilters.remove(topicFilter);
+                    }
+                }
+                break;
+            case ClusterFrame.PUBLISH_BATCH:
+                for (InternalMessage message : frame.getMessages()) {
+                    received.increment();
+                    listener.onPublish(message);
+                }
+                break;
+            case ClusterFrame.TAKEOVER:
+                listener.onTakeover(peerId, frame.getClientId(), frame.isCleanSession());
+                break;
+            case ClusterFrame.TRANSFER:
+                listener.onTransfer(frame.getClientId(), frame.getTopicFilters(), frame.getMqttQoSList());
+                break;
+            case ClusterFrame.DELIVER:
+                listener.onDeliver(frame.getClientId(), frame.getMessages());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addRemote(String peerId, List<String> topicFilters) {
+        Set<String> filters = remoteFilters.computeIfAbsent(peerId, k -> ConcurrentHashMap.newKeySet());
+        for (String topicFilter : topicFilters) {
+            remoteTrie.put(topicFilter, peerId, peerId);
+            filters.add(topicFilter);
+        }
+    }
+
+    private void removeRemote(String peerId) {
+        Set<String> topicFilters = remoteFilters.remove(peerId);
+        if (topicFilters != null) {
+            for (String topicFilter : topicFilters) {
+                remoteTrie.remove(topicFilter, peerId);
+            }
+        }
+    }
+
+    private class InboundHandler extends SimpleChannelInboundHandler<ClusterFrame> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ClusterFrame frame) {
+            try {
+                onFrame(ctx.channel(), frame);
+            } catch (Exception e) {
+                log.error("Cluster frame {} handling failed", frame.getType(), e);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            String peerId = ctx.channel().attr(NODE_ID).get();
+            if (peerId != null) {
+                // 对端重连后会重新发送订阅快照
+                removeRemote(peerId);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn("Cluster inbound connection {} failed: {}", ctx.channel().remoteAddress(), cause.toString());
+            ctx.close();
+        }
+    }
+
+    /**
+     * 到一个对端的出站连接, 断开后定时重连; PUBLISH在此排队, 按批发送
+     */
+    private class PeerLink {
+
+        private final String address;
+
+        private volatile Channel channel;
+
+        private final Queue<InternalMessage> queue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger queued = new AtomicInteger();
+
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        PeerLink(String address) {
+            this.address = address;
+        }
+
+        void connect() {
+            if (!running) {
+                return;
+            }
+            int index = address.lastIndexOf(':');
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            initPipeline(ch);
+                        }
+                    });
+            ChannelFuture future = bootstrap.connect(address.substring(0, index), Integer.parseInt(address.substring(index + 1)));
+            future.addListener((ChannelFuture f) -> {
+                if (!f.isSuccess()) {
+                    this.scheduleReconnect();
+                    return;
+                }
+                Channel ch = f.channel();
+                ch.writeAndFlush(new ClusterFrame(ClusterFrame.HELLO).setNodeId(nodeId).setAddress(address()));
+                ch.writeAndFlush(snapshot());
+                channel = ch;
+                log.info("Cluster node {} connected to peer {}", nodeId, address);
+                ch.closeFuture().addListener(c -> {
+                    channel = null;
+                    this.scheduleReconnect();
+                });
+            });
+        }
+
+        void scheduleReconnect() {
+            if (running) {
+                group.schedule(this::connect, reconnectMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void enqueue(InternalMessage message) {
+            Channel ch = channel;
+            if (ch == null) {
+                dropped.increment();
+                return;
+            }
+            queue.add(message);
+            if (queued.incrementAndGet() >= batchMax) {
+                ch.eventLoop().execute(this::flush);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                ch.eventLoop().schedule(this::flush, batchDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        void flush() {
+            flushScheduled.set(false);
+            Channel ch = channel;
+            while (!queue.isEmpty()) {
+                List<InternalMessage> batch = new ArrayList<>(Math.min(batchMax, queued.get()));
+                InternalMessage message;
+                while (batch.size() < batchMax && (message = queue.poll()) != null) {
+                    batch.add(message);
+                }
+                queued.addAndGet(-batch.size());
+                if (ch == null || !ch.isActive()) {
+                    dropped.add(batch.size());
+                    continue;
+                }
+                forwarded.add(batch.size());
+                ch.write(new ClusterFrame(ClusterFrame.PUBLISH_BATCH).setMessages(batch));
+            }
+            if (ch != null) {
+                ch.flush();
+            }
+        }
+
+        void close() {
+            Channel ch = channel;
+            if (ch != null) {
+                ch.close().syncUninterruptibly();
+            }
+        }
+    }
+}
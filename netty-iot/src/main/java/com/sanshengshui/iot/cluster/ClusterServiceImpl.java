@@ -0,0 +1,228 @@
+package com.sanshengshui.iot.cluster;
+
+import cn.hutool.core.util.StrUtil;
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
+import com.sanshengshui.iot.common.message.GrozaOfflineMessageStoreService;
+import com.sanshengshui.iot.common.message.GrozaRetainMessageStoreService;
+import com.sanshengshui.iot.common.session.GrozaSessionStoreService;
+import com.sanshengshui.iot.common.session.SessionStore;
+import com.sanshengshui.iot.common.subscribe.GrozaSubscribeStoreService;
+import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.internal.InternalMessage;
+import com.sanshengshui.iot.protocol.ProtocolProcess;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author james
+ * 集群服务, 节点间的订阅通告、PUBLISH转发和会话接管
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "mqtt.cluster.enabled", havingValue = "true")
+public class ClusterServiceImpl implements GrozaClusterService, ClusterNode.Listener {
+
+    @Value("${mqtt.cluster.node_id:}")
+    private String nodeId;
+    @Value("${mqtt.cluster.bind_address:127.0.0.1}")
+    private String bindAddress;
+    @Value("${mqtt.cluster.port:1884}")
+    private int port;
+    @Value("${mqtt.cluster.advertise_address:}")
+    private String advertiseAddress;
+    @Value("${mqtt.cluster.peers:}")
+    private String peers;
+    @Value("${mqtt.cluster.batch_max:256}")
+    private int batchMax;
+    @Value("${mqtt.cluster.batch_delay_us:500}")
+    private long batchDelayMicros;
+    @Value("${mqtt.cluster.reconnect_ms:1000}")
+    private long reconnectMillis;
+    @Value("${mqtt.offline.drain_batch:100}")
+    private int drainBatch;
+
+    @Autowired
+    private ProtocolProcess protocolProcess;
+    @Autowired
+    private GrozaSessionStoreService grozaSessionStoreService;
+    @Autowired
+    private GrozaSubscribeStoreService grozaSubscribeStoreService;
+    @Autowired
+    private GrozaOfflineMessageStoreService grozaOfflineMessageStoreService;
+    @Autowired
+    private GrozaRetainMessageStoreService grozaRetainMessageStoreService;
+
+    private volatile ClusterNode clusterNode;
+
+    /**
+     * 对端重连后在此线程中与Redis同步retain主题索引, 不占用集群IO线程; 同步期间再次重连的对端合并为一次同步
+     */
+    private final ExecutorService retainResync = Executors.newSingleThreadExecutor(new DefaultThreadFactory("groza-cluster-resync", true));
+
+    private final AtomicBoolean retainResyncPending = new AtomicBoolean();
+
+    /**
+     * 协议处理就绪后再加入集群, 避免对端报文先于协议处理初始化到达
+     */
+    @EventListener(ContextRefreshedEvent.class)
+    public void start() throws InterruptedException {
+        if (clusterNode != null) {
+            return;
+        }
+        List<String> peerList = new ArrayList<>();
+        for (String peer : StrUtil.split(peers, ',')) {
+            if (StrUtil.isNotBlank(peer)) {
+                peerList.add(peer.trim());
+            }
+        }
+        String id = StrUtil.isBlank(nodeId) ? UUID.randomUUID().toString() : nodeId;
+        ClusterNode node = new ClusterNode(id, bindAddress, port, advertiseAddress, peerList, this, batchMax, batchDelayMicros, reconnectMillis);
+        node.start();
+        clusterNode = node;
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (clusterNode != null) {
+            clusterNode.stop();
+        }
+        retainResync.shutdownNow();
+    }
+
+    @Override
+    public void subscribe(String clientId, String topicFilter) {
+        clusterNode.subscribe(clientId, topicFilter);
+    }
+
+    @Override
+    public void unsubscribe(String clientId, String topicFilter) {
+        clusterNode.unsubscribe(clientId, topicFilter);
+    }
+
+    @Override
+    public void removeClient(String clientId) {
+        clusterNode.removeClient(clientId);
+    }
+
+    @Override
+    public void publish(InternalMessage internalMessage) {
+        clusterNode.publish(internalMessage);
+    }
+
+    @Override
+    public void takeover(String clientId, boolean cleanSession) {
+        clusterNode.takeover(clientId, cleanSession);
+    }
+
+    /**
+     * 各节点只在本地成员中选择共享订阅的接收者, 同一条消息会在每个有成员的节点各投递一次, 集群模式下不支持共享订阅
+     */
+    @Override
+    public boolean isSharedSubscriptionSupported() {
+        return false;
+    }
+
+    @Override
+    public void onPublish(InternalMessage message) {
+        protocolProcess.publish().processRemotePublish(message);
+    }
+
+    @Override
+    public void onDeliver(String clientId, List<InternalMessage> messages) {
+        SessionStore sessionStore = grozaSessionStoreService.get(clientId);
+        Channel channel = sessionStore == null ? null : sessionStore.getChannel();
+        for (InternalMessage message : messages) {
+            if (channel != null && channel.isActive()) {
+                protocolProcess.getInFlight().publish(channel, clientId, message.getTopic(), MqttQoS.valueOf(message.getMqttQoS()),
+                        false, Unpooled.wrappedBuffer(message.getMessageBytes()), message.getMessageBytes());
+            } else {
+                grozaOfflineMessageStoreService.put(clientId, message.getTopic(), message.getMqttQoS(), message.getMessageBytes());
+            }
+        }
+    }
+
+    @Override
+    public void onTakeover(String fromNodeId, String clientId, boolean cleanSession) {
+        SessionStore sessionStore = grozaSessionStoreService.get(clientId);
+        boolean persistent = grozaOfflineMessageStoreService.isPersistent(clientId);
+        List<SubscribeStore> subscribeStores = grozaSubscribeStoreService.searchByClient(clientId);
+        if (sessionStore == null && !persistent && subscribeStores.isEmpty()) {
+            return;
+        }
+        log.info("TAKEOVER - clientId: {}, node: {}, cleanSession: {}", clientId, fromNodeId, cleanSession);
+        if (sessionStore != null) {
+            grozaSessionStoreService.remove(clientId);
+            sessionStore.getChannel().close();
+        }
+        // 重发存储在Redis中, 新节点连接时自行重发; 在途窗口、内存等待队列和入站QoS2状态只属于本节点, 在此丢弃
+        protocolProcess.getInFlight().removeByClient(clientId);
+        protocolProcess.getInboundQos2().removeByClient(clientId);
+        clusterNode.removeClient(clientId);
+        // Redis中的订阅由各节点共享, 新节点可能已按相同过滤器重写, 这里只清理本节点的内存索引
+        grozaSubscribeStoreService.evictForClient(clientId);
+        if (cleanSession) {
+            grozaOfflineMessageStoreService.unregister(clientId);
+            return;
+        }
+        if (!subscribeStores.isEmpty()) {
+            List<String> topicFilters = new ArrayList<>(subscribeStores.size());
+            List<Integer> mqttQoSList = new ArrayList<>(subscribeStores.size());
+            for (SubscribeStore subscribeStore : subscribeStores) {
+                topicFilters.add(subscribeStore.getTopicFilter());
+                mqttQoSList.add(subscribeStore.getMqttQoS());
+            }
+            clusterNode.transfer(fromNodeId, clientId, topicFilters, mqttQoSList);
+        }
+        List<InternalMessage> messages;
+        while (!(messages = grozaOfflineMessageStoreService.poll(clientId, drainBatch)).isEmpty()) {
+            clusterNode.deliver(fromNodeId, clientId, messages);
+        }
+        grozaOfflineMessageStoreService.unregister(clientId);
+    }
+
+    @Override
+    public void onTransfer(String clientId, List<String> topicFilters, List<Integer> mqttQoSList) {
+        for (int i = 0; i < topicFilters.size(); i++) {
+            String topicFilter = topicFilters.get(i);
+            grozaSubscribeStoreService.put(topicFilter, new SubscribeStore(clientId, topicFilter, mqttQoSList.get(i)));
+            clusterNode.subscribe(clientId, topicFilter);
+        }
+        log.info("TRANSFER - clientId: {}, topicFilters: {}", clientId, topicFilters);
+    }
+
+    @Override
+    public void onPeerConnected(String peerNodeId) {
+        if (!retainResyncPending.compareAndSet(false, true)) {
+            return;
+        }
+        retainResync.execute(() -> {
+            retainResyncPending.set(false);
+            try {
+                grozaRetainMessageStoreService.reload();
+            } catch (RuntimeException e) {
+                log.warn("Failed to resync retained topics after peer {} connected", peerNodeId, e);
+            }
+        });
+    }
+
+    public ClusterNode getClusterNode() {
+        return clusterNode;
+    }
+}
@@ -0,0 +1,35 @@
+package com.sanshengshui.iot.cluster;
+
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
+import com.sanshengshui.iot.internal.InternalMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * @author james
+ * 单节点部署, 不做任何转发
+ */
+@Service
+@ConditionalOnProperty(name = "mqtt.cluster.enabled", havingValue = "false", matchIfMissing = true)
+public class LocalClusterServiceImpl implements GrozaClusterService {
+
+    @Override
+    public void subscribe(String clientId, String topicFilter) {
+    }
+
+    @Override
+    public void unsubscribe(String clientId, String topicFilter) {
+    }
+
+    @Override
+    public void removeClient(String clientId) {
+    }
+
+    @Override
+    public void publish(InternalMessage internalMessage) {
+    }
+
+    @Override
+    public void takeover(String clientId, boolean cleanSession) {
+    }
+}
@@ -0,0 +1,357 @@
+package com.sanshengshui.iot.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttConnectPayload;
+import io.netty.handler.codec.mqtt.MqttConnectVariableHeader;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.handler.codec.mqtt.MqttSubscribePayload;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import io.netty.handler.codec.mqtt.MqttUnsubscribeMessage;
+import io.netty.handler.codec.mqtt.MqttUnsubscribePayload;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author james
+ * MQTT 5报文解码, 转换为MQTT 3.1.1的消息对象交给原有的协议处理器.
+ * 在解码时完成主题别名还原、Maximum Packet Size和Receive Maximum检查, 违反时回复DISCONNECT并断开连接
+ */
+public class Mqtt5Decoder extends ByteToMessageDecoder {
+
+    static final int MALFORMED_PACKET = 0x81;
+
+    static final int PROTOCOL_ERROR = 0x82;
+
+    static final int RECEIVE_MAXIMUM_EXCEEDED = 0x93;
+
+    static final int TOPIC_ALIAS_INVALID = 0x94;
+
+    static final int PACKET_TOO_LARGE = 0x95;
+
+    private static final int MESSAGE_EXPIRY_INTERVAL = 0x02;
+
+    private static final int RECEIVE_MAXIMUM = 0x21;
+
+    private static final int TOPIC_ALIAS_MAXIMUM = 0x22;
+
+    private static final int TOPIC_ALIAS = 0x23;
+
+    private static final int MAXIMUM_PACKET_SIZE = 0x27;
+
+    private final Mqtt5Session session;
+
+    private boolean failed;
+
+    public Mqtt5Decoder(Mqtt5Session session) {
+        this.session = session;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (failed) {
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+        while (in.isReadable()) {
+            int start = in.readerIndex();
+            int remainingLength = peekRemainingLength(in, start + 1);
+            if (remainingLength == -1) {
+                return;
+            }
+            if (remainingLength == -2) {
+                this.fail(ctx, in, MALFORMED_PACKET);
+                return;
+            }
+            int headerLength = 1 + variableLengthSize(remainingLength);
+            if ((long) headerLength + remainingLength > session.getMaximumPacketSize()) {
+                this.fail(ctx, in, PACKET_TOO_LARGE);
+                return;
+            }
+            if (in.readableBytes() < headerLength + remainingLength) {
+                return;
+            }
+            int firstByte = in.getUnsignedByte(start);
+            in.skipBytes(headerLength);
+            ByteBuf packet = in.readSlice(remainingLength);
+            int reasonCode;
+            try {
+                // 报文类型0(保留)和QoS位为3都是格式错误, valueOf抛出IllegalArgumentException
+                MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.valueOf(firstByte >> 4), (firstByte & 0x08) == 0x08,
+                        MqttQoS.valueOf((firstByte & 0x06) >> 1), (firstByte & 0x01) == 0x01, remainingLength);
+                reasonCode = this.decodePacket(fixedHeader, packet, out);
+            } catch (IndexOutOfBoundsException | IllegalArgumentException | DecoderException e) {
+                reasonCode = MALFORMED_PACKET;
+            }
+            if (reasonCode != 0) {
+                this.fail(ctx, in, reasonCode);
+                return;
+            }
+        }
+    }
+
+    private int decodePacket(MqttFixedHeader fixedHeader, ByteBuf packet, List<Object> out) {
+        switch (fixedHeader.messageType()) {
+            case CONNECT:
+                out.add(this.decodeConnect(fixedHeader, packet));
+                return 0;
+            case PUBLISH:
+                return this.decodePublish(fixedHeader, packet, out);
+            case PUBACK:
+            case PUBREC:
+            case PUBREL:
+            case PUBCOMP:
+                // 原因码和属性对处理器没有意义, 只取报文标识符
+                out.add(new MqttMessage(fixedHeader, MqttMessageIdVariableHeader.from(packet.readUnsignedShort())));
+                return 0;
+            case SUBSCRIBE:
+                out.add(this.decodeSubscribe(fixedHeader, packet));
+                return 0;
+            case UNSUBSCRIBE:
+                out.add(this.decodeUnsubscribe(fixedHeader, packet));
+                return 0;
+            case PINGREQ:
+            case DISCONNECT:
+                out.add(new MqttMessage(fixedHeader));
+                return 0;
+            default:
+                return PROTOCOL_ERROR;
+        }
+    }
+
+    private MqttConnectMessage decodeConnect(MqttFixedHeader fixedHeader, ByteBuf packet) {
+        String protocolName = readString(packet);
+        int protocolLevel = packet.readUnsignedByte();
+        int flags = packet.readUnsignedByte();
+        int keepAlive = packet.readUnsignedShort();
+        int propertiesEnd = readPropertiesEnd(packet);
+        while (packet.readerIndex() < propertiesEnd) {
+            int id = packet.readUnsignedByte();
+            switch (id) {
+                case RECEIVE_MAXIMUM:
+                    int receiveMaximum = packet.readUnsignedShort();
+                    if (receiveMaximum == 0) {
+                        throw new DecoderException("Receive Maximum is 0");
+                    }
+                    session.setClientReceiveMaximum(receiveMaximum);
+                    break;
+                case MAXIMUM_PACKET_SIZE:
+                    long maximumPacketSize = packet.readUnsignedInt();
+                    if (maximumPacketSize == 0) {
+                        throw new DecoderException("Maximum Packet Size is 0");
+                    }
+                    session.setClientMaximumPacketSize((int) Math.min(maximumPacketSize, Mqtt5Session.MAXIMUM_PACKET_SIZE_LIMIT));
+                    break;
+                case TOPIC_ALIAS_MAXIMUM:
+                    session.setClientTopicAliasMaximum(packet.readUnsignedShort());
+                    break;
+                default:
+                    skipProperty(packet, id);
+                    break;
+            }
+        }
+        boolean hasUserName = (flags & 0x80) == 0x80;
+        boolean hasPassword = (flags & 0x40) == 0x40;
+        boolean willRetain = (flags & 0x20) == 0x20;
+        int willQos = (flags & 0x18) >> 3;
+        boolean willFlag = (flags & 0x04) == 0x04;
+        boolean cleanStart = (flags & 0x02) == 0x02;
+        String clientId = readString(packet);
+        String willTopic = null;
+        byte[] willMessage = null;
+        if (willFlag) {
+            // 遗嘱属性(延迟发布、过期时间等)暂不支持, 跳过
+            skipProperties(packet);
+            willTopic = readString(packet);
+            willMessage = readBinary(packet);
+        }
+        String userName = hasUserName ? readString(packet) : null;
+        byte[] password = hasPassword ? readBinary(packet) : null;
+        MqttConnectVariableHeader variableHeader = new MqttConnectVariableHeader(protocolName, protocolLevel, hasUserName,
+                hasPassword, willRetain, willQos, willFlag, cleanStart, keepAlive);
+        return new MqttConnectMessage(fixedHeader, variableHeader, new MqttConnectPayload(clientId, willTopic, willMessage, userName, password));
+    }
+
+    private int decodePublish(MqttFixedHeader fixedHeader, ByteBuf packet, List<Object> out) {
+        String topic = readString(packet);
+        int packetId = fixedHeader.qosLevel().value() > 0 ? packet.readUnsignedShort() : 0;
+        long expiryMillis = 0;
+        int alias = 0;
+        int propertiesEnd = readPropertiesEnd(packet);
+        while (packet.readerIndex() < propertiesEnd) {
+            int id = packet.readUnsignedByte();
+            if (id == MESSAGE_EXPIRY_INTERVAL) {
+                expiryMillis = System.currentTimeMillis() + packet.readUnsignedInt() * 1000L;
+            } else if (id == TOPIC_ALIAS) {
+                alias = packet.readUnsignedShort();
+            } else {
+                skipProperty(packet, id);
+            }
+        }
+        if (alias != 0) {
+            if (alias > session.getTopicAliasMaximum()) {
+                return TOPIC_ALIAS_INVALID;
+            }
+            if (topic.isEmpty()) {
+                topic = session.inboundAlias(alias);
+                if (topic == null) {
+                    return PROTOCOL_ERROR;
+                }
+            } else {
+                session.inboundAlias(alias, topic);
+            }
+        } else if (topic.isEmpty()) {
+            return PROTOCOL_ERROR;
+        }
+        // QoS2重发的PUBLISH与原消息共用一个PUBCOMP, 不再占用接收配额
+        boolean retransmittedQos2 = fixedHeader.isDup() && fixedHeader.qosLevel() == MqttQoS.EXACTLY_ONCE;
+        if (fixedHeader.qosLevel().value() > 0 && !retransmittedQos2 && !session.acquireInbound()) {
+            return RECEIVE_MAXIMUM_EXCEEDED;
+        }
+        ByteBuf payload = packet.readRetainedSlice(packet.readableBytes());
+        out.add(new Mqtt5PublishMessage(fixedHeader, new MqttPublishVariableHeader(topic, packetId), payload, expiryMillis));
+        return 0;
+    }
+
+    private MqttSubscribeMessage decodeSubscribe(MqttFixedHeader fixedHeader, ByteBuf packet) {
+        int packetId = packet.readUnsignedShort();
+        // 订阅标识符等属性暂不支持, 订阅选项只取QoS
+        skipProperties(packet);
+        List<MqttTopicSubscription> subscriptions = new ArrayList<>();
+        while (packet.isReadable()) {
+            String topicFilter = readString(packet);
+            int options = packet.readUnsignedByte();
+            subscriptions.add(new MqttTopicSubscription(topicFilter, MqttQoS.valueOf(options & 0x03)));
+        }
+        return new MqttSubscribeMessage(fixedHeader, MqttMessageIdVariableHeader.from(packetId), new MqttSubscribePayload(subscriptions));
+    }
+
+    private MqttUnsubscribeMessage decodeUnsubscribe(MqttFixedHeader fixedHeader, ByteBuf packet) {
+        int packetId = packet.readUnsignedShort();
+        skipProperties(packet);
+        List<String> topicFilters = new ArrayList<>();
+        while (packet.isReadable()) {
+            topicFilters.add(readString(packet));
+        }
+        session.addPendingUnsubscribe(packetId, topicFilters.size());
+        return new MqttUnsubscribeMessage(fixedHeader, MqttMessageIdVariableHeader.from(packetId), new MqttUnsubscribePayload(topicFilters));
+    }
+
+    private void fail(ChannelHandlerContext ctx, ByteBuf in, int reasonCode) {
+        failed = true;
+        in.skipBytes(in.readableBytes());
+        ctx.writeAndFlush(Mqtt5Encoder.disconnect(ctx.alloc(), reasonCode)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * 读取剩余长度, 数据不足返回-1, 格式错误返回-2
+     */
+    private static int peekRemainingLength(ByteBuf in, int index) {
+        int value = 0;
+        int multiplier = 1;
+        for (int i = 0; i < 4; i++) {
+            if (index + i >= in.writerIndex()) {
+                return -1;
+            }
+            int digit = in.getUnsignedByte(index + i);
+            value += (digit & 0x7F) * multiplier;
+            if ((digit & 0x80) == 0) {
+                return value;
+            }
+            multiplier *= 128;
+        }
+        return -2;
+    }
+
+    static int readVariableInt(ByteBuf buf) {
+        int value = 0;
+        int multiplier = 1;
+        for (int i = 0; i < 4; i++) {
+            int digit = buf.readUnsignedByte();
+            value += (digit & 0x7F) * multiplier;
+            if ((digit & 0x80) == 0) {
+                return value;
+            }
+            multiplier *= 128;
+        }
+        throw new DecoderException("malformed variable byte integer");
+    }
+
+    static int variableLengthSize(int num) {
+        int count = 0;
+        do {
+            num /= 128;
+            count++;
+        } while (num > 0);
+        return count;
+    }
+
+    private static int readPropertiesEnd(ByteBuf buf) {
+        int length = readVariableInt(buf);
+        if (length > buf.readableBytes()) {
+            throw new DecoderException("properties exceed packet");
+        }
+        return buf.readerIndex() + length;
+    }
+
+    private static void skipProperties(ByteBuf buf) {
+        int end = readPropertiesEnd(buf);
+        while (buf.readerIndex() < end) {
+            skipProperty(buf, buf.readUnsignedByte());
+        }
+    }
+
+    /**
+     * 按属性的数据类型跳过属性值, 未知属性视为报文格式错误
+     */
+    private static void skipProperty(ByteBuf buf, int id) {
+        switch (id) {
+            case 0x01: case 0x17: case 0x19: case 0x24: case 0x25: case 0x28: case 0x29: case 0x2A:
+                buf.skipBytes(1);
+                break;
+            case 0x13: case 0x21: case 0x22: case 0x23:
+                buf.skipBytes(2);
+                break;
+            case 0x02: case 0x11: case 0x18: case 0x27:
+                buf.skipBytes(4);
+                break;
+            case 0x0B:
+                readVariableInt(buf);
+                break;
+            case 0x03: case 0x08: case 0x09: case 0x12: case 0x15: case 0x16: case 0x1A: case 0x1C: case 0x1F:
+                buf.skipBytes(buf.readUnsignedShort());
+                break;
+            case 0x26:
+                buf.skipBytes(buf.readUnsignedShort());
+                buf.skipBytes(buf.readUnsignedShort());
+                break;
+            default:
+                throw new DecoderException("unknown property " + id);
+        }
+    }
+
+    private static String readString(ByteBuf buf) {
+        int length = buf.readUnsignedShort();
+        String value = buf.toString(buf.readerIndex(), length, CharsetUtil.UTF_8);
+        buf.skipBytes(length);
+        return value;
+    }
+
+    private static byte[] readBinary(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readUnsignedShort()];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+}
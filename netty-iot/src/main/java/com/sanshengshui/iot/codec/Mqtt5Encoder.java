@@ -0,0 +1,220 @@
+package com.sanshengshui.iot.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubAckMessage;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+
+/**
+ * @author james
+ * 把协议处理器写出的MQTT 3.1.1消息对象编码为MQTT 5报文.
+ * PUBLISH在这里分配出站主题别名、换算剩余的过期时间, 超过客户端Maximum Packet Size的报文直接丢弃
+ */
+public class Mqtt5Encoder extends MessageToMessageEncoder<MqttMessage> {
+
+    private static final int[] CONNACK_REASON_CODES = {0x00, 0x84, 0x85, 0x88, 0x86, 0x87};
+
+    private final Mqtt5Session session;
+
+    public Mqtt5Encoder(Mqtt5Session session) {
+        this.session = session;
+    }
+
+    /**
+     * 只带原因码的DISCONNECT报文
+     */
+    public static ByteBuf disconnect(ByteBufAllocator alloc, int reasonCode) {
+        return alloc.buffer(3).writeByte(MqttMessageType.DISCONNECT.value() << 4).writeByte(1).writeByte(reasonCode);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, MqttMessage msg, List<Object> out) {
+        ByteBufAllocator alloc = ctx.alloc();
+        switch (msg.fixedHeader().messageType()) {
+            case CONNACK:
+                out.add(this.encodeConnAck(alloc, (MqttConnAckMessage) msg));
+                break;
+            case PUBLISH:
+                // 丢弃的PUBLISH以空报文完成写入, 对写入方相当于已发送
+                ByteBuf publish = this.encodePublish(alloc, (MqttPublishMessage) msg);
+                out.add(publish != null ? publish : Unpooled.EMPTY_BUFFER);
+                break;
+            case PUBACK:
+            case PUBCOMP:
+                // 发出PUBACK/PUBCOMP表示客户端的一条QoS1/QoS2消息处理完毕
+                session.releaseInbound();
+                out.add(this.encodeMessageId(alloc, msg, 0));
+                break;
+            case PUBREC:
+                out.add(this.encodeMessageId(alloc, msg, 0));
+                break;
+            case PUBREL:
+                out.add(this.encodeMessageId(alloc, msg, 0x02));
+                break;
+            case SUBACK:
+                List<Integer> grantedQoSLevels = ((MqttSubAckMessage) msg).payload().grantedQoSLevels();
+                ByteBuf subAck = this.encodeAck(alloc, MqttMessageType.SUBACK, this.messageId(msg), grantedQoSLevels.size());
+                for (int grantedQoS : grantedQoSLevels) {
+                    subAck.writeByte(grantedQoS);
+                }
+                out.add(subAck);
+                break;
+            case UNSUBACK:
+                int messageId = this.messageId(msg);
+                int count = session.removePendingUnsubscribe(messageId);
+                out.add(this.encodeAck(alloc, MqttMessageType.UNSUBACK, messageId, count).writeZero(count));
+                break;
+            case DISCONNECT:
+                out.add(disconnect(alloc, 0));
+                break;
+            default:
+                out.add(alloc.buffer(2).writeByte(msg.fixedHeader().messageType().value() << 4).writeByte(0));
+                break;
+        }
+    }
+
+    private ByteBuf encodeConnAck(ByteBufAllocator alloc, MqttConnAckMessage msg) {
+        int propertiesLength = 0;
+        boolean receiveMaximum = session.getReceiveMaximum() < 65535;
+        boolean maximumPacketSize = session.getMaximumPacketSize() < Mqtt5Session.MAXIMUM_PACKET_SIZE_LIMIT;
+        boolean topicAliasMaximum = session.getTopicAliasMaximum() > 0;
+        propertiesLength += receiveMaximum ? 3 : 0;
+        propertiesLength += maximumPacketSize ? 5 : 0;
+        propertiesLength += topicAliasMaximum ? 3 : 0;
+        int remainingLength = 2 + Mqtt5Decoder.variableLengthSize(propertiesLength) + propertiesLength;
+        ByteBuf buf = alloc.buffer(2 + remainingLength);
+        buf.writeByte(MqttMessageType.CONNACK.value() << 4);
+        writeVariableInt(buf, remainingLength);
+        buf.writeByte(msg.variableHeader().isSessionPresent() ? 0x01 : 0x00);
+        int returnCode = msg.variableHeader().connectReturnCode().byteValue();
+        buf.writeByte(returnCode < CONNACK_REASON_CODES.length ? CONNACK_REASON_CODES[returnCode] : 0x80);
+        writeVariableInt(buf, propertiesLength);
+        if (receiveMaximum) {
+            buf.writeByte(0x21).writeShort(session.getReceiveMaximum());
+        }
+        if (maximumPacketSize) {
+            buf.writeByte(0x27).writeInt(session.getMaximumPacketSize());
+        }
+        if (topicAliasMaximum) {
+            buf.writeByte(0x22).writeShort(session.getTopicAliasMaximum());
+        }
+        return buf;
+    }
+
+    private ByteBuf encodePublish(ByteBufAllocator alloc, MqttPublishMessage msg) {
+        MqttQoS mqttQoS = msg.fixedHeader().qosLevel();
+        long expiryMillis = Mqtt5PublishMessage.expiryMillis(msg);
+        long expirySeconds = 0;
+        if (expiryMillis != 0) {
+            long remainingMillis = expiryMillis - System.currentTimeMillis();
+            if (remainingMillis <= 0 && mqttQoS == MqttQoS.AT_MOST_ONCE) {
+                return null;
+            }
+            // QoS1/QoS2在InFlight分配报文标识符前已检查过期, 这里已经开始的投递需要走完
+            expirySeconds = Math.max(1, (remainingMillis + 999) / 1000);
+        }
+        String topic = msg.variableHeader().topicName();
+        byte[] topicBytes = topic.getBytes(CharsetUtil.UTF_8);
+        ByteBuf payload = msg.payload();
+        int payloadLength = payload.readableBytes();
+        int propertiesLength = expiryMillis != 0 ? 5 : 0;
+        // 先按完整主题计算报文长度, 使用别名只会更短
+        if (packetSize(topicBytes.length, mqttQoS, propertiesLength + 3, payloadLength) > session.getClientMaximumPacketSize()) {
+            return null;
+        }
+        int alias = 0;
+        if (session.getClientTopicAliasMaximum() > 0) {
+            alias = session.outboundAlias(topic);
+            if (alias < 0) {
+                alias = -alias;
+                topicBytes = new byte[0];
+            }
+            if (alias != 0) {
+                propertiesLength += 3;
+            }
+        }
+        int variableHeaderLength = 2 + topicBytes.length + (mqttQoS.value() > 0 ? 2 : 0)
+                + Mqtt5Decoder.variableLengthSize(propertiesLength) + propertiesLength;
+        int remainingLength = variableHeaderLength + payloadLength;
+        ByteBuf header = alloc.directBuffer(1 + Mqtt5Decoder.variableLengthSize(remainingLength) + variableHeaderLength);
+        int flags = MqttMessageType.PUBLISH.value() << 4;
+        if (msg.fixedHeader().isDup()) {
+            flags |= 0x08;
+        }
+        flags |= mqttQoS.value() << 1;
+        if (msg.fixedHeader().isRetain()) {
+            flags |= 0x01;
+        }
+        header.writeByte(flags);
+        writeVariableInt(header, remainingLength);
+        header.writeShort(topicBytes.length);
+        header.writeBytes(topicBytes);
+        if (mqttQoS.value() > 0) {
+            header.writeShort(msg.variableHeader().packetId());
+        }
+        writeVariableInt(header, propertiesLength);
+        if (expiryMillis != 0) {
+            header.writeByte(0x02).writeInt((int) expirySeconds);
+        }
+        if (alias != 0) {
+            header.writeByte(0x23).writeShort(alias);
+        }
+        CompositeByteBuf packet = alloc.compositeDirectBuffer(2);
+        packet.addComponent(true, header);
+        packet.addComponent(true, payload.retainedDuplicate());
+        return packet;
+    }
+
+    private ByteBuf encodeMessageId(ByteBufAllocator alloc, MqttMessage msg, int flags) {
+        return alloc.buffer(4).writeByte(msg.fixedHeader().messageType().value() << 4 | flags).writeByte(2)
+                .writeShort(this.messageId(msg));
+    }
+
+    /**
+     * SUBACK/UNSUBACK的固定报头、报文标识符和空属性, 原因码由调用方写入
+     */
+    private ByteBuf encodeAck(ByteBufAllocator alloc, MqttMessageType messageType, int messageId, int reasonCodes) {
+        int remainingLength = 3 + reasonCodes;
+        ByteBuf buf = alloc.buffer(1 + Mqtt5Decoder.variableLengthSize(remainingLength) + remainingLength);
+        buf.writeByte(messageType.value() << 4);
+        writeVariableInt(buf, remainingLength);
+        buf.writeShort(messageId).writeByte(0);
+        return buf;
+    }
+
+    private int messageId(MqttMessage msg) {
+        return ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
+    }
+
+    /**
+     * PUBLISH报文的完整长度
+     */
+    static long packetSize(int topicLength, MqttQoS mqttQoS, int propertiesLength, int payloadLength) {
+        long remainingLength = 2 + topicLength + (mqttQoS.value() > 0 ? 2 : 0)
+                + Mqtt5Decoder.variableLengthSize(propertiesLength) + propertiesLength + (long) payloadLength;
+        return 1 + Mqtt5Decoder.variableLengthSize((int) Math.min(remainingLength, Integer.MAX_VALUE)) + remainingLength;
+    }
+
+    private static void writeVariableInt(ByteBuf buf, int num) {
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+    }
+}
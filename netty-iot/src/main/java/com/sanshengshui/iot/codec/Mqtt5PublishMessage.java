@@ -0,0 +1,34 @@
+package com.sanshengshui.iot.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+
+/**
+ * @author james
+ * 带消息过期时间的PUBLISH, 入站由Mqtt5Decoder生成, 出站由Mqtt5Encoder换算为剩余的Message Expiry Interval
+ */
+public class Mqtt5PublishMessage extends MqttPublishMessage {
+
+    /**
+     * 过期时刻(毫秒时间戳), 0为不过期
+     */
+    private final long expiryMillis;
+
+    public Mqtt5PublishMessage(MqttFixedHeader mqttFixedHeader, MqttPublishVariableHeader variableHeader, ByteBuf payload, long expiryMillis) {
+        super(mqttFixedHeader, variableHeader, payload);
+        this.expiryMillis = expiryMillis;
+    }
+
+    public long getExpiryMillis() {
+        return expiryMillis;
+    }
+
+    /**
+     * 任意版本的PUBLISH的过期时刻
+     */
+    public static long expiryMillis(MqttPublishMessage message) {
+        return message instanceof Mqtt5PublishMessage ? ((Mqtt5PublishMessage) message).expiryMillis : 0;
+    }
+}
@@ -0,0 +1,157 @@
+package com.sanshengshui.iot.codec;
+
+import com.sanshengshui.iot.server.ConnectionContext;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author james
+ * MQTT 5连接的协商状态: 双方的Receive Maximum、Maximum Packet Size、Topic Alias Maximum, 以及两个方向的主题别名表.
+ * 别名表和入站计数只在连接的事件循环(编解码器)中访问; 客户端声明的限制在CONNECT解码时写入, 之后只读
+ */
+public class Mqtt5Session {
+
+    /**
+     * 协议允许的最大报文长度
+     */
+    public static final int MAXIMUM_PACKET_SIZE_LIMIT = 268435460;
+
+    private final int receiveMaximum;
+
+    private final int maximumPacketSize;
+
+    private final int topicAliasMaximum;
+
+    private int clientReceiveMaximum = 65535;
+
+    private int clientMaximumPacketSize = MAXIMUM_PACKET_SIZE_LIMIT;
+
+    private int clientTopicAliasMaximum;
+
+    /**
+     * 客户端建立的别名, 下标为别名
+     */
+    private final String[] inboundAliases;
+
+    /**
+     * 服务端分配给客户端的别名, 按分配顺序占满clientTopicAliasMaximum后不再分配新别名
+     */
+    private final Map<String, Integer> outboundAliases = new HashMap<>();
+
+    /**
+     * 客户端发来的尚未应答完毕的QoS1/QoS2消息数
+     */
+    private int inboundUnacknowledged;
+
+    /**
+     * UNSUBSCRIBE的主题过滤器数, UNSUBACK需逐个返回原因码
+     */
+    private final Map<Integer, Integer> pendingUnsubscribes = new HashMap<>();
+
+    public Mqtt5Session(int receiveMaximum, int maximumPacketSize, int topicAliasMaximum) {
+        this.receiveMaximum = receiveMaximum;
+        this.maximumPacketSize = maximumPacketSize;
+        this.topicAliasMaximum = topicAliasMaximum;
+        this.inboundAliases = new String[topicAliasMaximum + 1];
+    }
+
+    /**
+     * MQTT 3.1.1连接返回null
+     */
+    public static Mqtt5Session of(Channel channel) {
+        ConnectionContext context = ConnectionContext.get(channel);
+        return context == null ? null : context.getMqtt5Session();
+    }
+
+    public int getReceiveMaximum() {
+        return receiveMaximum;
+    }
+
+    public int getMaximumPacketSize() {
+        return maximumPacketSize;
+    }
+
+    public int getTopicAliasMaximum() {
+        return topicAliasMaximum;
+    }
+
+    public int getClientReceiveMaximum() {
+        return clientReceiveMaximum;
+    }
+
+    void setClientReceiveMaximum(int clientReceiveMaximum) {
+        this.clientReceiveMaximum = clientReceiveMaximum;
+    }
+
+    public int getClientMaximumPacketSize() {
+        return clientMaximumPacketSize;
+    }
+
+    void setClientMaximumPacketSize(int clientMaximumPacketSize) {
+        this.clientMaximumPacketSize = clientMaximumPacketSize;
+    }
+
+    public int getClientTopicAliasMaximum() {
+        return clientTopicAliasMaximum;
+    }
+
+    void setClientTopicAliasMaximum(int clientTopicAliasMaximum) {
+        this.clientTopicAliasMaximum = clientTopicAliasMaximum;
+    }
+
+    String inboundAlias(int alias) {
+        return inboundAliases[alias];
+    }
+
+    void inboundAlias(int alias, String topic) {
+        inboundAliases[alias] = topic;
+    }
+
+    /**
+     * 已分配的别名返回负值, 新分配的返回正值, 别名已用完返回0
+     */
+    int outboundAlias(String topic) {
+        Integer alias = outboundAliases.get(topic);
+        if (alias != null) {
+            return -alias;
+        }
+        if (outboundAliases.size() >= clientTopicAliasMaximum) {
+            return 0;
+        }
+        int next = outboundAliases.size() + 1;
+        outboundAliases.put(topic, next);
+        return next;
+    }
+
+    /**
+     * 入站QoS1/QoS2消息计数加一, 超过Receive Maximum时返回false
+     */
+    boolean acquireInbound() {
+        return ++inboundUnacknowledged <= receiveMaximum;
+    }
+
+    void releaseInbound() {
+        if (inboundUnacknowledged > 0) {
+            inboundUnacknowledged--;
+        }
+    }
+
+    void addPendingUnsubscribe(int packetId, int count) {
+        pendingUnsubscribes.put(packetId, count);
+    }
+
+    int removePendingUnsubscribe(int packetId) {
+        Integer count = pendingUnsubscribes.remove(packetId);
+        return count == null ? 1 : count;
+    }
+
+    /**
+     * 按完整主题、消息过期和主题别名属性计算PUBLISH报文长度, 超过客户端的Maximum Packet Size时不能下发
+     */
+    public boolean exceedsClientMaximumPacketSize(int topicLength, MqttQoS mqttQoS, int payloadLength) {
+        return Mqtt5Encoder.packetSize(topicLength, mqttQoS, 8, payloadLength) > clientMaximumPacketSize;
+    }
+}
@@ -0,0 +1,71 @@
+package com.sanshengshui.iot.codec;
+
+import com.sanshengshui.iot.server.ConnectionContext;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+
+import java.util.List;
+
+/**
+ * @author james
+ * 位于pipeline最前面, 读取CONNECT的协议级别: 5则把"decoder"/"encoder"替换为MQTT 5编解码器, 否则保持MqttDecoder/MqttEncoder.
+ * 判断完成后移除自身, 已读到的数据交给后面的解码器
+ */
+public class MqttVersionDetector extends ByteToMessageDecoder {
+
+    private static final int MQTT_5 = 5;
+
+    private final int receiveMaximum;
+
+    private final int maximumPacketSize;
+
+    private final int topicAliasMaximum;
+
+    public MqttVersionDetector(int receiveMaximum, int maximumPacketSize, int topicAliasMaximum) {
+        this.receiveMaximum = receiveMaximum;
+        this.maximumPacketSize = maximumPacketSize;
+        this.topicAliasMaximum = topicAliasMaximum;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        int start = in.readerIndex();
+        if (!in.isReadable()) {
+            return;
+        }
+        if (in.getUnsignedByte(start) >> 4 != MqttMessageType.CONNECT.value()) {
+            ctx.pipeline().remove(this);
+            return;
+        }
+        // 固定报头之后依次是协议名长度、协议名、协议级别
+        int index = start + 1;
+        int digits = 0;
+        while (true) {
+            if (index >= in.writerIndex()) {
+                return;
+            }
+            digits++;
+            if ((in.getUnsignedByte(index++) & 0x80) == 0 || digits == 4) {
+                break;
+            }
+        }
+        if (index + 2 > in.writerIndex()) {
+            return;
+        }
+        int levelIndex = index + 2 + in.getUnsignedShort(index);
+        if (levelIndex >= in.writerIndex()) {
+            return;
+        }
+        if (in.getUnsignedByte(levelIndex) == MQTT_5) {
+            Mqtt5Session session = new Mqtt5Session(receiveMaximum, maximumPacketSize, topicAliasMaximum);
+            ConnectionContext.of(ctx.channel()).setMqtt5Session(session);
+            ChannelPipeline pipeline = ctx.pipeline();
+            pipeline.replace("decoder", "decoder", new Mqtt5Decoder(session));
+            pipeline.replace("encoder", "encoder", new Mqtt5Encoder(session));
+        }
+        ctx.pipeline().remove(this);
+    }
+}
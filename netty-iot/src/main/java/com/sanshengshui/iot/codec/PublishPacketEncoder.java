@@ -0,0 +1,93 @@
+package com.sanshengshui.iot.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+
+/**
+ * @author james
+ * PUBLISH报文编码, 报文头单独编码, 消息体以retainedDuplicate()共享, 不拷贝.
+ * 编码结果直接是ByteBuf, 写入channel时不再经过MqttEncoder; MQTT 5连接要用按连接生成的版本
+ */
+public final class PublishPacketEncoder {
+
+    private PublishPacketEncoder() {
+    }
+
+    /**
+     * 编码完整的PUBLISH报文, 返回的ByteBuf持有payload的一个引用
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, byte[] topicBytes, MqttQoS mqttQoS, boolean retain, boolean dup,
+                                 int packetId, ByteBuf payload) {
+        ByteBuf header = encodeHeader(alloc, topicBytes, mqttQoS, retain, dup, packetId, payload.readableBytes());
+        CompositeByteBuf packet = alloc.compositeDirectBuffer(2);
+        packet.addComponent(true, header);
+        packet.addComponent(true, payload.retainedDuplicate());
+        return packet;
+    }
+
+    /**
+     * 按连接的协议版本生成PUBLISH: MQTT 3.1.1直接编码为ByteBuf; MQTT 5生成Mqtt5PublishMessage,
+     * 由Mqtt5Encoder处理主题别名和消息过期. 同样持有payload的一个引用
+     */
+    public static Object encode(Channel channel, String topic, MqttQoS mqttQoS, boolean retain, boolean dup,
+                                int packetId, ByteBuf payload, long expiryMillis) {
+        if (Mqtt5Session.of(channel) == null) {
+            return encode(channel.alloc(), topic.getBytes(CharsetUtil.UTF_8), mqttQoS, retain, dup, packetId, payload);
+        }
+        return new Mqtt5PublishMessage(new MqttFixedHeader(MqttMessageType.PUBLISH, dup, mqttQoS, retain, 0),
+                new MqttPublishVariableHeader(topic, packetId), payload.retainedDuplicate(), expiryMillis);
+    }
+
+    /**
+     * 编码固定报头和可变报头
+     */
+    public static ByteBuf encodeHeader(ByteBufAllocator alloc, byte[] topicBytes, MqttQoS mqttQoS, boolean retain, boolean dup,
+                                       int packetId, int payloadLength) {
+        int variableHeaderLength = 2 + topicBytes.length + (mqttQoS.value() > 0 ? 2 : 0);
+        int remainingLength = variableHeaderLength + payloadLength;
+        ByteBuf header = alloc.directBuffer(1 + variableLengthSize(remainingLength) + variableHeaderLength);
+        int flags = MqttMessageType.PUBLISH.value() << 4;
+        if (dup) {
+            flags |= 0x08;
+        }
+        flags |= mqttQoS.value() << 1;
+        if (retain) {
+            flags |= 0x01;
+        }
+        header.writeByte(flags);
+        writeVariableLength(header, remainingLength);
+        header.writeShort(topicBytes.length);
+        header.writeBytes(topicBytes);
+        if (mqttQoS.value() > 0) {
+            header.writeShort(packetId);
+        }
+        return header;
+    }
+
+    private static void writeVariableLength(ByteBuf buf, int num) {
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+    }
+
+    private static int variableLengthSize(int num) {
+        int count = 0;
+        do {
+            num /= 128;
+            count++;
+        } while (num > 0);
+        return count;
+    }
+}
@@ -1,5 +1,7 @@
 package com.sanshengshui.iot.common.auth;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * 用户和密码认证服务接口
  */
@@ -8,4 +10,11 @@ public interface GrozaAuthService {
      * 验证用户名和密码是否正确
      */
     boolean checkValid(String username, String password);
+
+    /**
+     * 异步验证, 开销大的验证不在调用线程上执行; 默认在调用线程上同步验证
+     */
+    default CompletableFuture<Boolean> checkValidAsync(String username, String password) {
+        return CompletableFuture.completedFuture(checkValid(username, password));
+    }
 }
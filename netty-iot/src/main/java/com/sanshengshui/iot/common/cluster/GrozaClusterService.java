@@ -0,0 +1,41 @@
+package com.sanshengshui.iot.common.cluster;
+
+import com.sanshengshui.iot.internal.InternalMessage;
+
+/**
+ * @author james
+ * 集群服务接口, 在节点间同步订阅路由、转发PUBLISH和接管会话
+ */
+public interface GrozaClusterService {
+    /**
+     * 本地客户端订阅
+     */
+    void subscribe(String clientId, String topicFilter);
+
+    /**
+     * 本地客户端取消订阅
+     */
+    void unsubscribe(String clientId, String topicFilter);
+
+    /**
+     * 本地客户端会话清理
+     */
+    void removeClient(String clientId);
+
+    /**
+     * 本地收到的PUBLISH转发给有匹配订阅的节点
+     */
+    void publish(InternalMessage internalMessage);
+
+    /**
+     * 客户端已连接到本节点, 通知其他节点关闭旧连接
+     */
+    void takeover(String clientId, boolean cleanSession);
+
+    /**
+     * 是否支持共享订阅
+     */
+    default boolean isSharedSubscriptionSupported() {
+        return true;
+    }
+}
@@ -1,11 +1,26 @@
 package com.sanshengshui.iot.common.message;
 /**
  * @author james
- * 分布式生成报文标识符
+ * 报文标识符服务, 按客户端分配
  */
 public interface GrozaMessageIdService {
     /**
-     * 获取报文标识符
+     * 获取客户端的下一个报文标识符, 在途窗口已满时返回0
      */
-    int getNextMessageId();
+    int getNextMessageId(String clientId);
+
+    /**
+     * 回收报文标识符
+     */
+    void releaseMessageId(String clientId, int messageId);
+
+    /**
+     * 标记报文标识符为在途, 用于会话恢复时重发的消息
+     */
+    void reserveMessageId(String clientId, int messageId);
+
+    /**
+     * 删除客户端的报文标识符状态
+     */
+    void removeByClient(String clientId);
 }
@@ -0,0 +1,41 @@
+package com.sanshengshui.iot.common.message;
+
+import com.sanshengshui.iot.internal.InternalMessage;
+
+import java.util.List;
+
+/**
+ * @author james
+ * 离线消息存储服务接口, 保存持久会话(cleanSession=0)离线期间的QoS1/QoS2消息
+ */
+public interface GrozaOfflineMessageStoreService {
+    /**
+     * 登记持久会话
+     */
+    void register(String clientId);
+
+    /**
+     * 取消持久会话并丢弃其离线消息
+     */
+    void unregister(String clientId);
+
+    /**
+     * 是否为持久会话
+     */
+    boolean isPersistent(String clientId);
+
+    /**
+     * 存储离线消息, 未能存储时返回false
+     */
+    boolean put(String clientId, String topic, int mqttQoS, byte[] messageBytes);
+
+    /**
+     * 按顺序取出最多max条离线消息
+     */
+    List<InternalMessage> poll(String clientId, int max);
+
+    /**
+     * 离线消息数量
+     */
+    int size(String clientId);
+}
@@ -22,6 +22,21 @@ public interface GrozaRetainMessageStoreService {
      */
     void remove(String topic);
 
+    /**
+     * 其他节点写入的retain消息已在Redis中, 只在本节点的主题索引中添加
+     */
+    void putIndex(String topic);
+
+    /**
+     * 其他节点删除的retain消息, 只从本节点的主题索引中删除
+     */
+    void removeIndex(String topic);
+
+    /**
+     * 按Redis重新同步本节点的主题索引
+     */
+    void reload();
+
     /**
      * 判断指定topic的retain消息是否存在
      */
@@ -20,6 +20,11 @@ public class RetainMessageStore implements Serializable {
 
 	private int mqttQoS;
 
+	/**
+	 * 过期时刻(毫秒时间戳), 0为不过期
+	 */
+	private long expiryMillis;
+
 	public String getTopic() {
 		return topic;
 	}
@@ -46,4 +51,17 @@ public class RetainMessageStore implements Serializable {
 		this.mqttQoS = mqttQoS;
 		return this;
 	}
+
+	public long getExpiryMillis() {
+		return expiryMillis;
+	}
+
+	public RetainMessageStore setExpiryMillis(long expiryMillis) {
+		this.expiryMillis = expiryMillis;
+		return this;
+	}
+
+	public boolean isExpired(long now) {
+		return expiryMillis != 0 && expiryMillis <= now;
+	}
 }
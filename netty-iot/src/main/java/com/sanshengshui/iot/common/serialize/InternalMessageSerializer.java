@@ -0,0 +1,81 @@
+package com.sanshengshui.iot.common.serialize;
+
+import com.sanshengshui.iot.internal.InternalMessage;
+import io.netty.util.CharsetUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author james
+ * 内部消息的二进制编码, 用于kafka桥接. 格式:
+ * <pre>
+ * version(1) | flags(1) | timestamp(8) | clientId长度(2) clientId | topic长度(2) topic | payload长度(4) payload
+ * </pre>
+ * flags: 0~1位QoS, 2位retain, 3位dup
+ */
+public final class InternalMessageSerializer {
+
+    public static final byte VERSION = 1;
+
+    private InternalMessageSerializer() {
+    }
+
+    public static byte[] serialize(InternalMessage internalMessage, long timestamp) {
+        byte[] clientId = bytes(internalMessage.getClientId());
+        byte[] topic = bytes(internalMessage.getTopic());
+        byte[] payload = internalMessage.getMessageBytes() == null ? new byte[0] : internalMessage.getMessageBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 1 + 8 + 2 + clientId.length + 2 + topic.length + 4 + payload.length);
+        int flags = internalMessage.getMqttQoS() & 0x03;
+        if (internalMessage.isRetain()) {
+            flags |= 0x04;
+        }
+        if (internalMessage.isDup()) {
+            flags |= 0x08;
+        }
+        buffer.put(VERSION)
+                .put((byte) flags)
+                .putLong(timestamp)
+                .putShort((short) clientId.length).put(clientId)
+                .putShort((short) topic.length).put(topic)
+                .putInt(payload.length).put(payload);
+        return buffer.array();
+    }
+
+    public static InternalMessage deserialize(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported internal message version: " + version);
+        }
+        int flags = buffer.get();
+        buffer.getLong();
+        String clientId = string(buffer, buffer.getShort() & 0xFFFF);
+        String topic = string(buffer, buffer.getShort() & 0xFFFF);
+        byte[] payload = new byte[buffer.getInt()];
+        buffer.get(payload);
+        return new InternalMessage()
+                .setClientId(clientId)
+                .setTopic(topic)
+                .setMqttQoS(flags & 0x03)
+                .setRetain((flags & 0x04) != 0)
+                .setDup((flags & 0x08) != 0)
+                .setMessageBytes(payload);
+    }
+
+    /**
+     * 读取消息时间戳
+     */
+    public static long timestamp(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, 2, 8).getLong();
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(CharsetUtil.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer, int length) {
+        String value = new String(buffer.array(), buffer.position(), length, CharsetUtil.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -2,7 +2,6 @@ package com.sanshengshui.iot.common.session;
 
 
 import io.netty.channel.Channel;
-import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
 import java.io.Serializable;
 
@@ -19,9 +18,9 @@ public class SessionStore implements Serializable {
 
     private boolean cleanSession;
 
-    private MqttPublishMessage willMessage;
+    private WillMessageStore willMessage;
 
-    public SessionStore(String clientId, Channel channel, boolean cleanSession, MqttPublishMessage willMessage) {
+    public SessionStore(String clientId, Channel channel, boolean cleanSession, WillMessageStore willMessage) {
         this.clientId = clientId;
         this.channel = channel;
         this.cleanSession = cleanSession;
@@ -55,11 +54,11 @@ public class SessionStore implements Serializable {
         return this;
     }
 
-    public MqttPublishMessage getWillMessage() {
+    public WillMessageStore getWillMessage() {
         return willMessage;
     }
 
-    public SessionStore setWillMessage(MqttPublishMessage willMessage) {
+    public SessionStore setWillMessage(WillMessageStore willMessage) {
         this.willMessage = willMessage;
         return this;
     }
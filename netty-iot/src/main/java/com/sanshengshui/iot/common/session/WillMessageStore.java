@@ -0,0 +1,56 @@
+package com.sanshengshui.iot.common.session;
+
+import java.io.Serializable;
+
+/**
+ * @author james
+ * 遗嘱消息存储, 只保存主题、QoS、retain标志和消息体字节, 发布时再组装PUBLISH报文
+ */
+public class WillMessageStore implements Serializable {
+
+    private static final long serialVersionUID = -2793536416543745201L;
+
+    private String topic;
+
+    private byte[] messageBytes;
+
+    private int mqttQoS;
+
+    private boolean retain;
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public WillMessageStore setTopic(String topic) {
+        this.topic = topic;
+        return this;
+    }
+
+    public byte[] getMessageBytes() {
+        return messageBytes;
+    }
+
+    public WillMessageStore setMessageBytes(byte[] messageBytes) {
+        this.messageBytes = messageBytes;
+        return this;
+    }
+
+    public int getMqttQoS() {
+        return mqttQoS;
+    }
+
+    public WillMessageStore setMqttQoS(int mqttQoS) {
+        this.mqttQoS = mqttQoS;
+        return this;
+    }
+
+    public boolean isRetain() {
+        return retain;
+    }
+
+    public WillMessageStore setRetain(boolean retain) {
+        this.retain = retain;
+        return this;
+    }
+}
@@ -22,8 +22,23 @@ public interface GrozaSubscribeStoreService {
      */
     void removeForClient(String clientId);
 
+    /**
+     * 只删除clientId在本节点内存中的订阅, 不删除Redis中的持久化副本
+     */
+    void evictForClient(String clientId);
+
     /**
      * 获取订阅存储集
      */
     List<SubscribeStore> search(String topic);
+
+    /**
+     * 获取clientId的全部订阅
+     */
+    List<SubscribeStore> searchByClient(String clientId);
+
+    /**
+     * 获取与主题匹配的共享订阅组
+     */
+    List<SharedSubscription> searchShared(String topic);
 }
@@ -0,0 +1,87 @@
+package com.sanshengshui.iot.common.subscribe;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author james
+ * 共享订阅组: 同一组名、同一主题过滤器的订阅者, 每条消息只投递给其中一个成员.
+ * 成员数组写时复制, 发布路径上无锁读取
+ */
+public class SharedSubscription {
+
+    private static final SubscribeStore[] EMPTY = new SubscribeStore[0];
+
+    private final String group;
+
+    private final String topicFilter;
+
+    private volatile SubscribeStore[] members = EMPTY;
+
+    /**
+     * 轮询游标
+     */
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    public SharedSubscription(String group, String topicFilter) {
+        this.group = group;
+        this.topicFilter = topicFilter;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public String getTopicFilter() {
+        return topicFilter;
+    }
+
+    public SubscribeStore[] getMembers() {
+        return members;
+    }
+
+    public int nextCursor() {
+        return cursor.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+    public synchronized void put(SubscribeStore subscribeStore) {
+        SubscribeStore[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].getClientId().equals(subscribeStore.getClientId())) {
+                SubscribeStore[] next = current.clone();
+                next[i] = subscribeStore;
+                members = next;
+                return;
+            }
+        }
+        SubscribeStore[] next = new SubscribeStore[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = subscribeStore;
+        members = next;
+    }
+
+    public synchronized SubscribeStore get(String clientId) {
+        for (SubscribeStore subscribeStore : members) {
+            if (subscribeStore.getClientId().equals(clientId)) {
+                return subscribeStore;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 删除成员, 返回删除后是否为空组
+     */
+    public synchronized boolean remove(String clientId) {
+        SubscribeStore[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].getClientId().equals(clientId)) {
+                SubscribeStore[] next = new SubscribeStore[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                members = next;
+                break;
+            }
+        }
+        return members.length == 0;
+    }
+}
@@ -0,0 +1,183 @@
+package com.sanshengshui.iot.common.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author james
+ * 主题树, 按主题层级逐级存储, +和#各占一个节点.
+ * 每个节点下以key区分多个值(如订阅按clientId区分).
+ * 读操作无锁, 写操作串行化, 查询耗时只与主题层级深度相关
+ */
+public class TopicTrie<V> {
+
+    private final Node<V> root = new Node<>();
+
+    private final Object writeLock = new Object();
+
+    /**
+     * 存储值, 返回同一主题同一key的旧值
+     */
+    public V put(String topic, String key, V value) {
+        String[] levels = TopicUtil.split(topic);
+        synchronized (writeLock) {
+            Node<V> node = root;
+            for (String level : levels) {
+                node = node.children.computeIfAbsent(level, k -> new Node<>());
+            }
+            return node.values.put(key, value);
+        }
+    }
+
+    /**
+     * 删除值, 并回收空节点
+     */
+    public V remove(String topic, String key) {
+        String[] levels = TopicUtil.split(topic);
+        synchronized (writeLock) {
+            return remove(root, levels, 0, key);
+        }
+    }
+
+    private V remove(Node<V> node, String[] levels, int index, String key) {
+        if (index == levels.length) {
+            return node.values.remove(key);
+        }
+        Node<V> child = node.children.get(levels[index]);
+        if (child == null) {
+            return null;
+        }
+        V removed = remove(child, levels, index + 1, key);
+        if (child.isEmpty()) {
+            node.children.remove(levels[index], child);
+        }
+        return removed;
+    }
+
+    /**
+     * 获取指定主题(精确匹配, 不做通配)下的值
+     */
+    public V get(String topic, String key) {
+        Node<V> node = root;
+        for (String level : TopicUtil.split(topic)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.values.get(key);
+    }
+
+    /**
+     * 树中存储的是主题过滤器, 返回与主题匹配的所有值
+     */
+    public List<V> match(String topic) {
+        List<V> result = new ArrayList<>();
+        match(root, TopicUtil.split(topic), 0, result);
+        return result;
+    }
+
+    private void match(Node<V> node, String[] levels, int index, List<V> result) {
+        if (index == levels.length) {
+            result.addAll(node.values.values());
+            // a/#同样匹配a
+            Node<V> multi = node.children.get(TopicUtil.MULTI_LEVEL_WILDCARD);
+            if (multi != null) {
+                result.addAll(multi.values.values());
+            }
+            return;
+        }
+        Node<V> child = node.children.get(levels[index]);
+        if (child != null) {
+            match(child, levels, index + 1, result);
+        }
+        // 以$开头的主题不匹配首层通配符
+        if (index == 0 && levels[0].startsWith("$")) {
+            return;
+        }
+        Node<V> single = node.children.get(TopicUtil.SINGLE_LEVEL_WILDCARD);
+        if (single != null) {
+            match(single, levels, index + 1, result);
+        }
+        Node<V> multi = node.children.get(TopicUtil.MULTI_LEVEL_WILDCARD);
+        if (multi != null) {
+            result.addAll(multi.values.values());
+        }
+    }
+
+    /**
+     * 树中存储的是具体主题, 返回与主题过滤器匹配的所有值, 只遍历匹配的分支
+     */
+    public List<V> matchFilter(String topicFilter) {
+        List<V> result = new ArrayList<>();
+        matchFilter(root, TopicUtil.split(topicFilter), 0, result);
+        return result;
+    }
+
+    private void matchFilter(Node<V> node, String[] levels, int index, List<V> result) {
+        if (index == levels.length) {
+            result.addAll(node.values.values());
+            return;
+        }
+        String level = levels[index];
+        if (TopicUtil.MULTI_LEVEL_WILDCARD.equals(level)) {
+            // a/#同样匹配a
+            result.addAll(node.values.values());
+            for (Map.Entry<String, Node<V>> entry : node.children.entrySet()) {
+                if (index == 0 && entry.getKey().startsWith("$")) {
+                    continue;
+                }
+                collect(entry.getValue(), result);
+            }
+        } else if (TopicUtil.SINGLE_LEVEL_WILDCARD.equals(level)) {
+            for (Map.Entry<String, Node<V>> entry : node.children.entrySet()) {
+                if (index == 0 && entry.getKey().startsWith("$")) {
+                    continue;
+                }
+                matchFilter(entry.getValue(), levels, index + 1, result);
+            }
+        } else {
+            Node<V> child = node.children.get(level);
+            if (child != null) {
+                matchFilter(child, levels, index + 1, result);
+            }
+        }
+    }
+
+    private void collect(Node<V> node, List<V> result) {
+        result.addAll(node.values.values());
+        for (Node<V> child : node.children.values()) {
+            collect(child, result);
+        }
+    }
+
+    /**
+     * 树中的所有值
+     */
+    public List<V> values() {
+        List<V> result = new ArrayList<>();
+        collect(root, result);
+        return result;
+    }
+
+    /**
+     * 清空主题树
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            root.children.clear();
+            root.values.clear();
+        }
+    }
+
+    private static final class Node<V> {
+        private final Map<String, Node<V>> children = new ConcurrentHashMap<>(4);
+        private final Map<String, V> values = new ConcurrentHashMap<>(2);
+
+        private boolean isEmpty() {
+            return children.isEmpty() && values.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.sanshengshui.iot.common.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author james
+ * 主题工具类
+ */
+public final class TopicUtil {
+
+    public static final char LEVEL_SEPARATOR = '/';
+
+    public static final String SINGLE_LEVEL_WILDCARD = "+";
+
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    /**
+     * 共享订阅前缀, 格式为$share/{group}/{topicFilter}
+     */
+    public static final String SHARE_PREFIX = "$share/";
+
+    private TopicUtil() {
+    }
+
+    /**
+     * 按层级拆分主题, 保留空层级(如a//b为三层)
+     */
+    public static String[] split(String topic) {
+        List<String> levels = new ArrayList<>(8);
+        int start = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == LEVEL_SEPARATOR) {
+                levels.add(topic.substring(start, i));
+                start = i + 1;
+            }
+        }
+        levels.add(topic.substring(start));
+        return levels.toArray(new String[0]);
+    }
+
+    /**
+     * 是否为通配符主题过滤器
+     */
+    public static boolean isWildcard(String topicFilter) {
+        return topicFilter.indexOf('+') >= 0 || topicFilter.indexOf('#') >= 0;
+    }
+
+    /**
+     * 是否为共享订阅
+     */
+    public static boolean isShared(String topicFilter) {
+        return topicFilter.startsWith(SHARE_PREFIX);
+    }
+
+    /**
+     * 共享订阅的组名, 格式不合法时返回null
+     */
+    public static String shareGroup(String topicFilter) {
+        int end = topicFilter.indexOf(LEVEL_SEPARATOR, SHARE_PREFIX.length());
+        if (end <= SHARE_PREFIX.length() || end == topicFilter.length() - 1) {
+            return null;
+        }
+        String group = topicFilter.substring(SHARE_PREFIX.length(), end);
+        return isWildcard(group) ? null : group;
+    }
+
+    /**
+     * 去掉共享订阅前缀后的主题过滤器, 非共享订阅原样返回
+     */
+    public static String shareFilter(String topicFilter) {
+        if (!isShared(topicFilter)) {
+            return topicFilter;
+        }
+        return topicFilter.substring(topicFilter.indexOf(LEVEL_SEPARATOR, SHARE_PREFIX.length()) + 1);
+    }
+}
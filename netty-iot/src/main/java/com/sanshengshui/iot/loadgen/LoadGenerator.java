@@ -0,0 +1,239 @@
+package com.sanshengshui.iot.loadgen;
+
+import com.sanshengshui.iot.metrics.LatencyHistogram;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * 设备群压测工具, 在少量事件循环上复用大量模拟MQTT客户端, 连接本机或指定的代理.
+ * 订阅者和发布者在同一进程内, 发布时把System.nanoTime()写入消息体前8字节, 订阅者据此统计端到端延迟.
+ * 运行: java -cp netty-iot-0.0.1-SNAPSHOT-exec.jar -Dloader.main=com.sanshengshui.iot.loadgen.LoadGenerator
+ *      org.springframework.boot.loader.PropertiesLauncher --clients=100000 --local_addresses=127.0.0.1,127.0.0.2
+ */
+public class LoadGenerator {
+
+    private final LoadGeneratorConfig config;
+
+    private final LoadStats stats = new LoadStats();
+
+    private final Queue<Integer> pendingConnects = new ConcurrentLinkedQueue<>();
+
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    private final List<InetSocketAddress> localAddresses = new ArrayList<>();
+
+    private EventLoopGroup group;
+
+    private Bootstrap bootstrap;
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile boolean running;
+
+    private long startNanos;
+
+    private long lastReportNanos;
+
+    private long lastPublished;
+
+    private long lastReceived;
+
+    private long lastAcknowledged;
+
+    private long lastConnects;
+
+    public LoadGenerator(LoadGeneratorConfig config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGeneratorConfig config = LoadGeneratorConfig.parse(args);
+        LoadGenerator loadGenerator = new LoadGenerator(config);
+        loadGenerator.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(loadGenerator::stop));
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.durationSeconds));
+        loadGenerator.stop();
+    }
+
+    public void start() {
+        System.out.println("Load generator: " + config);
+        boolean epoll = "epoll".equalsIgnoreCase(config.transport) && Epoll.isAvailable();
+        group = epoll ? new EpollEventLoopGroup(config.threads, new DefaultThreadFactory("loadgen"))
+                : new NioEventLoopGroup(config.threads, new DefaultThreadFactory("loadgen"));
+        for (String address : config.localAddresses) {
+            localAddresses.add(new InetSocketAddress(address, 0));
+        }
+        bootstrap = new Bootstrap().group(group)
+                .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+                .remoteAddress(config.host, config.port)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("loadgen-scheduler", true));
+        running = true;
+        startNanos = lastReportNanos = System.nanoTime();
+        for (int i = 0; i < config.clients; i++) {
+            pendingConnects.add(i);
+        }
+        scheduler.scheduleAtFixedRate(new ConnectPacer(), 0, 10, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::report, config.reportIntervalSeconds, config.reportIntervalSeconds, TimeUnit.SECONDS);
+        if (config.stormIntervalSeconds > 0) {
+            scheduler.scheduleAtFixedRate(this::storm, config.stormIntervalSeconds, config.stormIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        scheduler.shutdownNow();
+        channels.close().awaitUninterruptibly();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+        this.summary();
+    }
+
+    /**
+     * 已计入端到端延迟的样本数, 嵌入运行时用于判断进度
+     */
+    public long getLatencySamples() {
+        return stats.totalLatency.getCount();
+    }
+
+    LoadGeneratorConfig getConfig() {
+        return config;
+    }
+
+    LoadStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 连接关闭后重连: 风暴断开的立即重连, 其余延迟reconnect_delay_ms后进入限速队列
+     */
+    void onClosed(int index, boolean stormed) {
+        if (!running) {
+            return;
+        }
+        if (stormed) {
+            this.connect(index);
+        } else {
+            group.schedule(() -> pendingConnects.add(index), config.reconnectDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void connect(int index) {
+        VirtualClient client = new VirtualClient(this, index);
+        Bootstrap b = bootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.pipeline().addLast("decoder", new MqttDecoder());
+                ch.pipeline().addLast("encoder", MqttEncoder.INSTANCE);
+                ch.pipeline().addLast("client", client);
+            }
+        });
+        ChannelFuture future = localAddresses.isEmpty() ? b.connect()
+                : b.connect(b.config().remoteAddress(), localAddresses.get(index % localAddresses.size()));
+        future.addListener((ChannelFuture f) -> {
+            if (f.isSuccess()) {
+                channels.add(f.channel());
+            } else {
+                stats.connectFailures.increment();
+                if (running) {
+                    group.schedule(() -> pendingConnects.add(index), config.reconnectDelayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    private void storm() {
+        int count = 0;
+        for (Channel channel : channels) {
+            if (ThreadLocalRandom.current().nextDouble() < config.stormRatio) {
+                VirtualClient client = channel.pipeline().get(VirtualClient.class);
+                if (client != null) {
+                    channel.eventLoop().execute(client::storm);
+                    count++;
+                }
+            }
+        }
+        System.out.println("Reconnect storm: dropping " + count + " clients");
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        double seconds = (now - lastReportNanos) / 1e9;
+        long published = stats.published.sum();
+        long received = stats.received.sum();
+        long acknowledged = stats.acknowledged.sum();
+        long connects = stats.connects.sum();
+        LatencyHistogram latency = stats.swapInterval();
+        System.out.println(String.format("[%5ds] connected %d/%d (+%.0f/s, failures %d, pending %d) publish %.0f/s ack %.0f/s receive %.0f/s"
+                        + " throttled %d | e2e ms p50 %.2f p90 %.2f p99 %.2f p999 %.2f max %.2f",
+                TimeUnit.NANOSECONDS.toSeconds(now - startNanos), stats.connected.get(), config.clients,
+                (connects - lastConnects) / seconds, stats.connectFailures.sum(), pendingConnects.size(),
+                (published - lastPublished) / seconds, (acknowledged - lastAcknowledged) / seconds, (received - lastReceived) / seconds,
+                stats.throttled.sum(), latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(90) / 1e6,
+                latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6, latency.getMax() / 1e6));
+        lastReportNanos = now;
+        lastPublished = published;
+        lastReceived = received;
+        lastAcknowledged = acknowledged;
+        lastConnects = connects;
+    }
+
+    private void summary() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("Summary after %.1fs: connects %d, connect failures %d, disconnects %d, published %d (%.0f/s),"
+                        + " acknowledged %d, received %d (%.0f/s), throttled %d, pings %d",
+                seconds, stats.connects.sum(), stats.connectFailures.sum(), stats.disconnects.sum(),
+                stats.published.sum(), stats.published.sum() / seconds, stats.acknowledged.sum(),
+                stats.received.sum(), stats.received.sum() / seconds, stats.throttled.sum(), stats.pings.sum()));
+        System.out.println("End-to-end latency (ms): " + stats.totalLatency.snapshot(1e6));
+        System.out.println("Connect latency (ms): " + stats.connectLatency.snapshot(1e6));
+    }
+
+    /**
+     * 按connect_rate从等待队列取出客户端建立连接, 每10毫秒一批, 不足1个的配额累计到下一批
+     */
+    private class ConnectPacer implements Runnable {
+
+        private double permits;
+
+        @Override
+        public void run() {
+            permits = Math.min(permits + config.connectRate / 100.0, Math.max(1, config.connectRate));
+            Integer index;
+            while (running && permits >= 1 && (index = pendingConnects.poll()) != null) {
+                permits--;
+                connect(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.sanshengshui.iot.loadgen;
+
+import cn.hutool.core.util.StrUtil;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author james
+ * 压测参数, 命令行以--key=value形式传入, key与字段的下划线写法一致, 如--publish_interval_ms=1000
+ */
+public class LoadGeneratorConfig {
+
+    String host = "127.0.0.1";
+
+    int port = 1883;
+
+    /**
+     * 本地绑定地址, 逗号分隔; 单个源地址的临时端口约6万个, 模拟10万以上连接时需配置多个回环地址(127.0.0.x)
+     */
+    List<String> localAddresses = new ArrayList<>();
+
+    String transport = "nio";
+
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    int clients = 10000;
+
+    /**
+     * 每秒新建连接数, 包括断线重连
+     */
+    int connectRate = 2000;
+
+    String clientIdPrefix = "loadgen-";
+
+    String username = "";
+
+    String password = "";
+
+    boolean cleanSession = true;
+
+    int keepAlive = 60;
+
+    /**
+     * 订阅者占比, 编号靠前的客户端为订阅者, 先于发布者建立连接
+     */
+    double subscriberRatio = 0.01;
+
+    /**
+     * 发布者占比, 其余客户端只维持心跳
+     */
+    double publisherRatio = 0.5;
+
+    /**
+     * 主题分组数, 订阅者订阅loadgen/{group}/+/telemetry, 单条消息扇出为 订阅者数/分组数
+     */
+    int topicGroups = 10;
+
+    int subscribeQoS = 1;
+
+    long publishIntervalMillis = 1000;
+
+    int payloadSize = 64;
+
+    /**
+     * QoS权重, 如0:70,1:25,2:5
+     */
+    int[] qosWeights = {1, 0, 0};
+
+    double retainRatio = 0;
+
+    long reconnectDelayMillis = 1000;
+
+    /**
+     * 重连风暴: 每隔storm_interval_s秒断开storm_ratio比例的在线客户端, 立即重连; 0为关闭
+     */
+    long stormIntervalSeconds = 0;
+
+    double stormRatio = 0.1;
+
+    long durationSeconds = 60;
+
+    long reportIntervalSeconds = 5;
+
+    public static LoadGeneratorConfig parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --key=value, got: " + arg);
+            }
+            int index = arg.indexOf('=');
+            options.put(arg.substring(2, index), arg.substring(index + 1));
+        }
+        LoadGeneratorConfig config = new LoadGeneratorConfig();
+        config.host = options.getOrDefault("host", config.host);
+        config.port = Integer.parseInt(options.getOrDefault("port", String.valueOf(config.port)));
+        for (String address : StrUtil.split(options.getOrDefault("local_addresses", ""), ',')) {
+            if (StrUtil.isNotBlank(address)) {
+                config.localAddresses.add(address.trim());
+            }
+        }
+        config.transport = options.getOrDefault("transport", config.transport);
+        config.threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(config.threads)));
+        config.clients = Integer.parseInt(options.getOrDefault("clients", String.valueOf(config.clients)));
+        config.connectRate = Integer.parseInt(options.getOrDefault("connect_rate", String.valueOf(config.connectRate)));
+        config.clientIdPrefix = options.getOrDefault("client_id_prefix", config.clientIdPrefix);
+        config.username = options.getOrDefault("username", config.username);
+        config.password = options.getOrDefault("password", config.password);
+        config.cleanSession = Boolean.parseBoolean(options.getOrDefault("clean_session", String.valueOf(config.cleanSession)));
+        config.keepAlive = Integer.parseInt(options.getOrDefault("keep_alive", String.valueOf(config.keepAlive)));
+        config.subscriberRatio = Double.parseDouble(options.getOrDefault("subscriber_ratio", String.valueOf(config.subscriberRatio)));
+        config.publisherRatio = Double.parseDouble(options.getOrDefault("publisher_ratio", String.valueOf(config.publisherRatio)));
+        config.topicGroups = Integer.parseInt(options.getOrDefault("topic_groups", String.valueOf(config.topicGroups)));
+        config.subscribeQoS = Integer.parseInt(options.getOrDefault("subscribe_qos", String.valueOf(config.subscribeQoS)));
+        config.publishIntervalMillis = Long.parseLong(options.getOrDefault("publish_interval_ms", String.valueOf(config.publishIntervalMillis)));
+        config.payloadSize = Integer.parseInt(options.getOrDefault("payload_size", String.valueOf(config.payloadSize)));
+        if (options.containsKey("qos_mix")) {
+            config.qosWeights = parseQoSMix(options.get("qos_mix"));
+        }
+        config.retainRatio = Double.parseDouble(options.getOrDefault("retain_ratio", String.valueOf(config.retainRatio)));
+        config.reconnectDelayMillis = Long.parseLong(options.getOrDefault("reconnect_delay_ms", String.valueOf(config.reconnectDelayMillis)));
+        config.stormIntervalSeconds = Long.parseLong(options.getOrDefault("storm_interval_s", String.valueOf(config.stormIntervalSeconds)));
+        config.stormRatio = Double.parseDouble(options.getOrDefault("storm_ratio", String.valueOf(config.stormRatio)));
+        config.durationSeconds = Long.parseLong(options.getOrDefault("duration_s", String.valueOf(config.durationSeconds)));
+        config.reportIntervalSeconds = Long.parseLong(options.getOrDefault("report_interval_s", String.valueOf(config.reportIntervalSeconds)));
+        if (config.payloadSize < Long.BYTES) {
+            throw new IllegalArgumentException("payload_size must be at least " + Long.BYTES + " bytes to carry the send timestamp");
+        }
+        if (config.topicGroups < 1) {
+            throw new IllegalArgumentException("topic_groups must be positive");
+        }
+        return config;
+    }
+
+    static int[] parseQoSMix(String mix) {
+        int[] weights = new int[3];
+        for (String entry : StrUtil.split(mix, ',')) {
+            List<String> pair = StrUtil.split(entry.trim(), ':');
+            if (pair.size() != 2) {
+                throw new IllegalArgumentException("Invalid qos_mix entry: " + entry);
+            }
+            int qos = Integer.parseInt(pair.get(0).trim());
+            if (qos < 0 || qos > 2) {
+                throw new IllegalArgumentException("Invalid QoS in qos_mix: " + qos);
+            }
+            weights[qos] = Integer.parseInt(pair.get(1).trim());
+        }
+        if (weights[0] + weights[1] + weights[2] <= 0) {
+            throw new IllegalArgumentException("qos_mix weights must not all be zero");
+        }
+        return weights;
+    }
+
+    int subscriberCount() {
+        return (int) (clients * subscriberRatio);
+    }
+
+    int publisherCount() {
+        return Math.min(clients - this.subscriberCount(), (int) (clients * publisherRatio));
+    }
+
+    /**
+     * 按权重随机选择本次发布的QoS
+     */
+    MqttQoS nextQoS() {
+        int r = ThreadLocalRandom.current().nextInt(qosWeights[0] + qosWeights[1] + qosWeights[2]);
+        if (r < qosWeights[0]) {
+            return MqttQoS.AT_MOST_ONCE;
+        }
+        return r < qosWeights[0] + qosWeights[1] ? MqttQoS.AT_LEAST_ONCE : MqttQoS.EXACTLY_ONCE;
+    }
+
+    String clientId(int index) {
+        return clientIdPrefix + index;
+    }
+
+    String publishTopic(int index) {
+        return "loadgen/" + (index % topicGroups) + "/" + this.clientId(index) + "/telemetry";
+    }
+
+    String subscribeTopicFilter(int index) {
+        return "loadgen/" + (index % topicGroups) + "/+/telemetry";
+    }
+
+    @Override
+    public String toString() {
+        return "clients=" + clients + " (subscribers=" + this.subscriberCount() + ", publishers=" + this.publisherCount()
+                + "), target=" + host + ":" + port + ", publish_interval_ms=" + publishIntervalMillis
+                + ", qos_mix=0:" + qosWeights[0] + ",1:" + qosWeights[1] + ",2:" + qosWeights[2]
+                + ", retain_ratio=" + retainRatio + ", payload_size=" + payloadSize + ", keep_alive=" + keepAlive
+                + ", storm_interval_s=" + stormIntervalSeconds + ", duration_s=" + durationSeconds;
+    }
+}
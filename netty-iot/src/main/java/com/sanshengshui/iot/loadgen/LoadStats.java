@@ -0,0 +1,53 @@
+package com.sanshengshui.iot.loadgen;
+
+import com.sanshengshui.iot.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * 压测计数和端到端延迟, 延迟同时记入累计直方图和按报告周期替换的区间直方图
+ */
+public class LoadStats {
+
+    final AtomicInteger connected = new AtomicInteger();
+
+    final LongAdder connects = new LongAdder();
+
+    final LongAdder connectFailures = new LongAdder();
+
+    final LongAdder disconnects = new LongAdder();
+
+    final LongAdder published = new LongAdder();
+
+    /**
+     * 发送缓冲区超过高水位而跳过的发布
+     */
+    final LongAdder throttled = new LongAdder();
+
+    final LongAdder acknowledged = new LongAdder();
+
+    final LongAdder received = new LongAdder();
+
+    final LongAdder pings = new LongAdder();
+
+    final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    private final AtomicReference<LatencyHistogram> intervalLatency = new AtomicReference<>(new LatencyHistogram());
+
+    void recordLatency(long nanos) {
+        totalLatency.record(nanos);
+        intervalLatency.get().record(nanos);
+    }
+
+    /**
+     * 取出当前区间直方图并换上新的, 换出后仍在记录的少量样本会丢失, 不影响累计直方图
+     */
+    LatencyHistogram swapInterval() {
+        return intervalLatency.getAndSet(new LatencyHistogram());
+    }
+}
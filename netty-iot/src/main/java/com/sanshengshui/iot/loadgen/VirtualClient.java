@@ -0,0 +1,234 @@
+package com.sanshengshui.iot.loadgen;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * 一个模拟设备的一次连接, 所有状态只在所属事件循环中访问; 重连时创建新实例
+ */
+public class VirtualClient extends ChannelInboundHandlerAdapter {
+
+    private final LoadGenerator loadGenerator;
+
+    private final LoadGeneratorConfig config;
+
+    private final LoadStats stats;
+
+    private final int index;
+
+    private final boolean subscriber;
+
+    private final boolean publisher;
+
+    private final long connectStartNanos;
+
+    private ChannelHandlerContext ctx;
+
+    private ScheduledFuture<?> publishFuture;
+
+    private ScheduledFuture<?> keepAliveFuture;
+
+    private boolean connected;
+
+    private boolean stormed;
+
+    private long subscribedNanos;
+
+    private long lastWriteNanos;
+
+    private int nextMessageId;
+
+    public VirtualClient(LoadGenerator loadGenerator, int index) {
+        this.loadGenerator = loadGenerator;
+        this.config = loadGenerator.getConfig();
+        this.stats = loadGenerator.getStats();
+        this.index = index;
+        this.subscriber = index < config.subscriberCount();
+        this.publisher = !subscriber && index < config.subscriberCount() + config.publisherCount();
+        this.connectStartNanos = System.nanoTime();
+    }
+
+    /**
+     * 重连风暴中被断开的客户端立即重连, 不经过连接限速
+     */
+    void storm() {
+        if (ctx != null) {
+            stormed = true;
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        MqttMessageBuilders.ConnectBuilder connect = MqttMessageBuilders.connect()
+                .clientId(config.clientId(index)).cleanSession(config.cleanSession).keepAlive(config.keepAlive);
+        if (!config.username.isEmpty()) {
+            connect.hasUser(true).username(config.username);
+        }
+        if (!config.password.isEmpty()) {
+            connect.hasPassword(true).password(config.password.getBytes(CharsetUtil.UTF_8));
+        }
+        this.write(connect.build());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        MqttMessage message = (MqttMessage) msg;
+        try {
+            if (message.decoderResult().isFailure()) {
+                ctx.close();
+                return;
+            }
+            switch (message.fixedHeader().messageType()) {
+                case CONNACK:
+                    this.onConnAck((MqttConnAckMessage) message);
+                    break;
+                case SUBACK:
+                    subscribedNanos = System.nanoTime();
+                    break;
+                case PUBLISH:
+                    this.onPublish((MqttPublishMessage) message);
+                    break;
+                case PUBACK:
+                case PUBCOMP:
+                    stats.acknowledged.increment();
+                    break;
+                case PUBREC:
+                    this.write(this.ack(MqttMessageType.PUBREL, MqttQoS.AT_LEAST_ONCE, this.messageId(message)));
+                    break;
+                case PUBREL:
+                    this.write(this.ack(MqttMessageType.PUBCOMP, MqttQoS.AT_MOST_ONCE, this.messageId(message)));
+                    break;
+                default:
+                    break;
+            }
+        } finally {
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (publishFuture != null) {
+            publishFuture.cancel(false);
+        }
+        if (keepAliveFuture != null) {
+            keepAliveFuture.cancel(false);
+        }
+        if (connected) {
+            stats.connected.decrementAndGet();
+            stats.disconnects.increment();
+        } else {
+            stats.connectFailures.increment();
+        }
+        loadGenerator.onClosed(index, stormed);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+
+    private void onConnAck(MqttConnAckMessage message) {
+        if (message.variableHeader().connectReturnCode() != MqttConnectReturnCode.CONNECTION_ACCEPTED) {
+            ctx.close();
+            return;
+        }
+        connected = true;
+        stats.connected.incrementAndGet();
+        stats.connects.increment();
+        stats.connectLatency.record(System.nanoTime() - connectStartNanos);
+        if (subscriber) {
+            this.write(MqttMessageBuilders.subscribe().messageId(this.nextMessageId())
+                    .addSubscription(MqttQoS.valueOf(config.subscribeQoS), config.subscribeTopicFilter(index)).build());
+        }
+        if (publisher) {
+            String topic = config.publishTopic(index);
+            long delay = ThreadLocalRandom.current().nextLong(Math.max(1, config.publishIntervalMillis));
+            publishFuture = ctx.executor().scheduleAtFixedRate(() -> this.publish(topic), delay, config.publishIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (config.keepAlive > 0) {
+            long period = config.keepAlive * 500L;
+            keepAliveFuture = ctx.executor().scheduleAtFixedRate(this::keepAlive, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onPublish(MqttPublishMessage message) {
+        stats.received.increment();
+        ByteBuf payload = message.payload();
+        // 订阅之前发布的消息(retain消息)不计入端到端延迟
+        if (payload.readableBytes() >= Long.BYTES && subscribedNanos != 0) {
+            long sentNanos = payload.getLong(payload.readerIndex());
+            if (sentNanos - subscribedNanos >= 0) {
+                stats.recordLatency(System.nanoTime() - sentNanos);
+            }
+        }
+        MqttQoS mqttQoS = message.fixedHeader().qosLevel();
+        if (mqttQoS == MqttQoS.AT_LEAST_ONCE) {
+            this.write(this.ack(MqttMessageType.PUBACK, MqttQoS.AT_MOST_ONCE, message.variableHeader().packetId()));
+        } else if (mqttQoS == MqttQoS.EXACTLY_ONCE) {
+            this.write(this.ack(MqttMessageType.PUBREC, MqttQoS.AT_MOST_ONCE, message.variableHeader().packetId()));
+        }
+    }
+
+    private void publish(String topic) {
+        // 发送缓冲区超过高水位时跳过本次发布, 避免代理处理不过来时压测端无限堆积
+        if (!ctx.channel().isWritable()) {
+            stats.throttled.increment();
+            return;
+        }
+        MqttQoS mqttQoS = config.nextQoS();
+        boolean retain = config.retainRatio > 0 && ThreadLocalRandom.current().nextDouble() < config.retainRatio;
+        ByteBuf payload = ctx.alloc().buffer(config.payloadSize);
+        payload.writeLong(System.nanoTime()).writeZero(config.payloadSize - Long.BYTES);
+        MqttPublishMessage message = new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, mqttQoS, retain, 0),
+                new MqttPublishVariableHeader(topic, mqttQoS == MqttQoS.AT_MOST_ONCE ? 0 : this.nextMessageId()), payload);
+        this.write(message);
+        stats.published.increment();
+    }
+
+    private void keepAlive() {
+        if (System.nanoTime() - lastWriteNanos >= TimeUnit.MILLISECONDS.toNanos(config.keepAlive * 500L)) {
+            this.write(new MqttMessage(new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+            stats.pings.increment();
+        }
+    }
+
+    private MqttMessage ack(MqttMessageType messageType, MqttQoS mqttQoS, int messageId) {
+        return new MqttMessage(new MqttFixedHeader(messageType, false, mqttQoS, false, 0), MqttMessageIdVariableHeader.from(messageId));
+    }
+
+    private int messageId(MqttMessage message) {
+        return ((MqttMessageIdVariableHeader) message.variableHeader()).messageId();
+    }
+
+    private int nextMessageId() {
+        nextMessageId = nextMessageId % 65535 + 1;
+        return nextMessageId;
+    }
+
+    private void write(Object message) {
+        lastWriteNanos = System.nanoTime();
+        ctx.writeAndFlush(message, ctx.voidPromise());
+    }
+}
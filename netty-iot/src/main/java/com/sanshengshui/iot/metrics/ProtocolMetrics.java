@@ -0,0 +1,123 @@
+package com.sanshengshui.iot.metrics;
+
+import com.sanshengshui.iot.server.OrderedProtocolExecutor;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.util.concurrent.EventExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author james
+ * 协议处理指标: 按报文类型统计处理耗时(纳秒, 含排队时间)和报文数, PUBLISH的投递扇出数,
+ * 每个事件循环上的连接数, 以及有序执行模式下的队列深度.
+ * 记录时不分配对象
+ */
+@Component
+public class ProtocolMetrics {
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[MqttMessageType.values().length];
+
+    private final LatencyHistogram fanout = new LatencyHistogram();
+
+    private final ConcurrentMap<EventExecutor, ConnectionCounter> connections = new ConcurrentHashMap<>();
+
+    private volatile OrderedProtocolExecutor orderedProtocolExecutor;
+
+    public ProtocolMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public void recordLatency(MqttMessageType messageType, long nanos) {
+        latencies[messageType.ordinal()].record(nanos);
+    }
+
+    public LatencyHistogram latency(MqttMessageType messageType) {
+        return latencies[messageType.ordinal()];
+    }
+
+    /**
+     * 一条PUBLISH投递给的本地订阅者数量
+     */
+    public void recordFanout(int subscribers) {
+        fanout.record(subscribers);
+    }
+
+    public LatencyHistogram fanout() {
+        return fanout;
+    }
+
+    /**
+     * 在连接所属的事件循环线程上调用
+     */
+    public void connectionOpened(EventExecutor eventLoop) {
+        ConnectionCounter counter = connections.get(eventLoop);
+        if (counter == null) {
+            counter = connections.computeIfAbsent(eventLoop, k -> new ConnectionCounter(Thread.currentThread().getName()));
+        }
+        counter.count.incrementAndGet();
+    }
+
+    public void connectionClosed(EventExecutor eventLoop) {
+        ConnectionCounter counter = connections.get(eventLoop);
+        if (counter != null) {
+            counter.count.decrementAndGet();
+        }
+    }
+
+    public int connectionCount() {
+        int total = 0;
+        for (ConnectionCounter counter : connections.values()) {
+            total += counter.count.get();
+        }
+        return total;
+    }
+
+    public void bind(OrderedProtocolExecutor orderedProtocolExecutor) {
+        this.orderedProtocolExecutor = orderedProtocolExecutor;
+    }
+
+    public int[] queueDepths() {
+        OrderedProtocolExecutor executor = this.orderedProtocolExecutor;
+        return executor == null ? new int[0] : executor.queueDepths();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> counts = new LinkedHashMap<>();
+        Map<String, Object> latency = new LinkedHashMap<>();
+        for (MqttMessageType messageType : MqttMessageType.values()) {
+            LatencyHistogram histogram = latencies[messageType.ordinal()];
+            if (histogram.getCount() > 0) {
+                counts.put(messageType.name(), histogram.getCount());
+                latency.put(messageType.name(), histogram.snapshot(1000000.0));
+            }
+        }
+        Map<String, Object> connectionsPerLoop = new LinkedHashMap<>();
+        connections.values().forEach(counter -> connectionsPerLoop.put(counter.name, counter.count.get()));
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("counts", counts);
+        map.put("latencyMillis", latency);
+        map.put("fanout", fanout.snapshot(1.0));
+        map.put("connections", this.connectionCount());
+        map.put("connectionsPerEventLoop", connectionsPerLoop);
+        map.put("queueDepths", queueDepths());
+        return map;
+    }
+
+    private static class ConnectionCounter {
+
+        private final String name;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        ConnectionCounter(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.sanshengshui.iot.metrics;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * @author james
+ * Redis调用耗时, 按缓存类和方法分别统计(纳秒).
+ * 同步调用用call/run包装, 异步命令用complete在结果返回时记录; 每条消息都会调用的路径不用lambda,
+ * 直接取System.nanoTime()并在finally中调用record.
+ * 操作名使用字符串常量, 首次记录后只有一次哈希查找
+ */
+@Component
+public class RedisMetrics {
+
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    public <T> T call(String operation, Supplier<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            record(operation, start);
+        }
+    }
+
+    public void run(String operation, Runnable call) {
+        long start = System.nanoTime();
+        try {
+            call.run();
+        } finally {
+            record(operation, start);
+        }
+    }
+
+    /**
+     * 异步命令从发出到完成(含失败)的耗时
+     */
+    public <T, S extends CompletionStage<T>> S complete(String operation, S stage) {
+        long start = System.nanoTime();
+        stage.whenComplete((result, e) -> record(operation, start));
+        return stage;
+    }
+
+    public void record(String operation, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        LatencyHistogram histogram = latencies.get(operation);
+        if (histogram == null) {
+            histogram = latencies.computeIfAbsent(operation, k -> new LatencyHistogram());
+        }
+        histogram.record(elapsed);
+    }
+
+    public LatencyHistogram latency(String operation) {
+        return latencies.get(operation);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new TreeMap<>();
+        latencies.forEach((operation, histogram) -> map.put(operation, histogram.snapshot(1000000.0)));
+        return map;
+    }
+}
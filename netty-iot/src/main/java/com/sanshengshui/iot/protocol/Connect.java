@@ -1,23 +1,33 @@
 package com.sanshengshui.iot.protocol;
 
 import cn.hutool.core.util.StrUtil;
+import com.sanshengshui.iot.codec.Mqtt5Session;
 import com.sanshengshui.iot.common.auth.GrozaAuthService;
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
 import com.sanshengshui.iot.common.message.DupPubRelMessageStore;
 import com.sanshengshui.iot.common.message.DupPublishMessageStore;
 import com.sanshengshui.iot.common.message.GrozaDupPubRelMessageStoreService;
 import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
+import com.sanshengshui.iot.common.message.GrozaMessageIdService;
+import com.sanshengshui.iot.common.message.GrozaOfflineMessageStoreService;
 import com.sanshengshui.iot.common.session.GrozaSessionStoreService;
 import com.sanshengshui.iot.common.session.SessionStore;
+import com.sanshengshui.iot.common.session.WillMessageStore;
 import com.sanshengshui.iot.common.subscribe.GrozaSubscribeStoreService;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.server.KeepAliveManager;
 import io.netty.buffer.Unpooled;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.handler.timeout.IdleStateHandler;
-import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author james
@@ -26,6 +36,11 @@ import java.util.List;
 @Slf4j
 public class Connect {
 
+    /**
+     * 同步处理完成时返回的共享future, 调用方只读取其状态
+     */
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
     private GrozaAuthService grozaAuthService;
 
     private GrozaSessionStoreService grozaSessionStoreService;
@@ -36,20 +51,52 @@ public class Connect {
 
     private GrozaSubscribeStoreService grozaSubscribeStoreService;
 
+    private GrozaMessageIdService grozaMessageIdService;
+
+    private GrozaOfflineMessageStoreService grozaOfflineMessageStoreService;
+
+    private GrozaClusterService grozaClusterService;
+
+    private InFlight inFlight;
+
+    private InboundQos2 inboundQos2;
+
+    private KeepAliveManager keepAliveManager;
+
+    private MessageTracer messageTracer;
+
 
     public Connect(GrozaAuthService grozaAuthService,
                    GrozaSessionStoreService grozaSessionStoreService,
                    GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService,
                    GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService,
-                   GrozaSubscribeStoreService grozaSubscribeStoreService){
+                   GrozaSubscribeStoreService grozaSubscribeStoreService,
+                   GrozaMessageIdService grozaMessageIdService,
+                   GrozaOfflineMessageStoreService grozaOfflineMessageStoreService,
+                   GrozaClusterService grozaClusterService,
+                   InFlight inFlight,
+                   InboundQos2 inboundQos2,
+                   KeepAliveManager keepAliveManager,
+                   MessageTracer messageTracer){
         this.grozaAuthService = grozaAuthService;
         this.grozaSessionStoreService = grozaSessionStoreService;
         this.grozaDupPublishMessageStoreService = grozaDupPublishMessageStoreService;
         this.grozaDupPubRelMessageStoreService = grozaDupPubRelMessageStoreService;
         this.grozaSubscribeStoreService = grozaSubscribeStoreService;
+        this.grozaMessageIdService = grozaMessageIdService;
+        this.grozaOfflineMessageStoreService = grozaOfflineMessageStoreService;
+        this.grozaClusterService = grozaClusterService;
+        this.inFlight = inFlight;
+        this.inboundQos2 = inboundQos2;
+        this.keepAliveManager = keepAliveManager;
+        this.messageTracer = messageTracer;
     }
 
-    public void processConnect(Channel channel, MqttConnectMessage msg){
+    /**
+     * 处理CONNECT, 返回的future在连接处理完成(含认证失败)后完成. 异步认证期间返回未完成的future,
+     * 之后在该连接的协议处理线程中完成, 调用方据此暂存认证期间收到的后续报文
+     */
+    public CompletableFuture<Void> processConnect(Channel channel, MqttConnectMessage msg){
         // 消息解码器出现异常
         if (msg.decoderResult().isFailure()) {
             Throwable cause = msg.decoderResult().cause();
@@ -60,7 +107,7 @@ public class Connect {
                         new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_UNACCEPTABLE_PROTOCOL_VERSION, false), null);
                 channel.writeAndFlush(connAckMessage);
                 channel.close();
-                return;
+                return COMPLETED;
             } else if (cause instanceof MqttIdentifierRejectedException) {
                 // 不合格的clientId
                 MqttConnAckMessage connAckMessage = (MqttConnAckMessage) MqttMessageFactory.newMessage(
@@ -68,10 +115,10 @@ public class Connect {
                         new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED, false), null);
                 channel.writeAndFlush(connAckMessage);
                 channel.close();
-                return;
+                return COMPLETED;
             }
             channel.close();
-            return;
+            return COMPLETED;
         }
         // clientId为空或null的情况, 这里要求客户端必须提供clientId, 不管cleanSession是否为1, 此处没有参考标准协议实现
         if (StrUtil.isBlank(msg.payload().clientIdentifier())) {
@@ -80,12 +127,49 @@ public class Connect {
                     new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED, false), null);
             channel.writeAndFlush(connAckMessage);
             channel.close();
-            return;
+            return COMPLETED;
         }
         // 用户名和密码验证, 这里要求客户端连接时必须提供用户名和密码, 不管是否设置用户名标志和密码标志为1, 此处没有参考标准协议实现
         String username = msg.payload().userName();
         String password = msg.payload().passwordInBytes() == null ? null : new String(msg.payload().passwordInBytes(), CharsetUtil.UTF_8);
-        if (!grozaAuthService.checkValid(username,password)) {
+        CompletableFuture<Boolean> authResult = grozaAuthService.checkValidAsync(username, password);
+        if (authResult.isDone()) {
+            this.completeConnect(channel, msg, authResult.join());
+            return COMPLETED;
+        }
+        // 验证在认证线程池中进行, 期间暂停读取该连接; 完成后回到该连接的协议处理线程继续
+        channel.config().setAutoRead(false);
+        Executor executor = ConnectionContext.of(channel).getExecutor();
+        Executor resumeExecutor = executor == null ? channel.eventLoop() : executor;
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        authResult.whenComplete((valid, cause) -> {
+            try {
+                resumeExecutor.execute(() -> {
+                    try {
+                        if (cause != null) {
+                            log.error("CONNECT auth failed - username: {}", username, cause);
+                        }
+                        channel.config().setAutoRead(true);
+                        this.completeConnect(channel, msg, cause == null && valid);
+                    } finally {
+                        connected.complete(null);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 协议队列已满, 无法继续处理该连接
+                log.warn("CONNECT - clientId: {}, protocol queue is full, closing connection", msg.payload().clientIdentifier());
+                channel.close();
+                connected.complete(null);
+            }
+        });
+        return connected;
+    }
+
+    private void completeConnect(Channel channel, MqttConnectMessage msg, boolean authorized) {
+        if (!channel.isActive()) {
+            return;
+        }
+        if (!authorized) {
             MqttConnAckMessage connAckMessage = (MqttConnAckMessage) MqttMessageFactory.newMessage(
                     new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
                     new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD, false), null);
@@ -103,30 +187,43 @@ public class Connect {
                 grozaSubscribeStoreService.removeForClient(msg.payload().clientIdentifier());
                 grozaDupPublishMessageStoreService.removeByClient(msg.payload().clientIdentifier());
                 grozaDupPubRelMessageStoreService.removeByClient(msg.payload().clientIdentifier());
+                grozaMessageIdService.removeByClient(msg.payload().clientIdentifier());
+                inFlight.removeByClient(msg.payload().clientIdentifier());
+                grozaClusterService.removeClient(msg.payload().clientIdentifier());
             }
             previous.close();
         }
         //处理遗嘱信息
         SessionStore sessionStore = new SessionStore(msg.payload().clientIdentifier(), channel, msg.variableHeader().isCleanSession(), null);
         if (msg.variableHeader().isWillFlag()){
-            MqttPublishMessage willMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                    new MqttFixedHeader(MqttMessageType.PUBLISH,false, MqttQoS.valueOf(msg.variableHeader().willQos()),msg.variableHeader().isWillRetain(),0),
-                    new MqttPublishVariableHeader(msg.payload().willTopic(),0),
-                    Unpooled.buffer().writeBytes(msg.payload().willMessageInBytes())
-            );
+            // 只保存消息体字节, 不在会话中长期持有ByteBuf
+            WillMessageStore willMessage = new WillMessageStore()
+                    .setTopic(msg.payload().willTopic())
+                    .setMqttQoS(msg.variableHeader().willQos())
+                    .setRetain(msg.variableHeader().isWillRetain())
+                    .setMessageBytes(msg.payload().willMessageInBytes());
             sessionStore.setWillMessage(willMessage);
         }
-        //处理连接心跳包
+        //处理连接心跳包, 1.5倍心跳时间内没有收到报文视为超时
         if (msg.variableHeader().keepAliveTimeSeconds() > 0){
-            if (channel.pipeline().names().contains("idle")){
-                channel.pipeline().remove("idle");
-            }
-            channel.pipeline().addFirst("idle",new IdleStateHandler(0, 0, Math.round(msg.variableHeader().keepAliveTimeSeconds() * 1.5f)));
+            keepAliveManager.register(channel, msg.variableHeader().keepAliveTimeSeconds() * 1500L);
         }
         //至此存储会话消息及返回接受客户端连接
         grozaSessionStoreService.put(msg.payload().clientIdentifier(),sessionStore);
+        Mqtt5Session mqtt5Session = Mqtt5Session.of(channel);
+        inFlight.setReceiveMaximum(msg.payload().clientIdentifier(),
+                mqtt5Session == null ? Integer.MAX_VALUE : mqtt5Session.getClientReceiveMaximum());
+        // 持久会话离线期间的消息写入离线队列; 清理会话时丢弃之前积压的离线消息
+        if (msg.variableHeader().isCleanSession()) {
+            grozaOfflineMessageStoreService.unregister(msg.payload().clientIdentifier());
+            inboundQos2.removeByClient(msg.payload().clientIdentifier());
+        } else {
+            grozaOfflineMessageStoreService.register(msg.payload().clientIdentifier());
+        }
         //将clientId存储到channel的map中
-        channel.attr(AttributeKey.valueOf("clientId")).set(msg.payload().clientIdentifier());
+        ConnectionContext.of(channel).setClientId(msg.payload().clientIdentifier());
+        // 关闭该clientId在其他节点上的连接, 持久会话的订阅和离线消息由旧节点移交过来
+        grozaClusterService.takeover(msg.payload().clientIdentifier(), msg.variableHeader().isCleanSession());
         Boolean sessionPresent = grozaSessionStoreService.containsKey(msg.payload().clientIdentifier()) && !msg.variableHeader().isCleanSession();
         MqttConnAckMessage okResp = (MqttConnAckMessage) MqttMessageFactory.newMessage(
                 new MqttFixedHeader(MqttMessageType.CONNACK,false,MqttQoS.AT_MOST_ONCE,false,0),
@@ -134,27 +231,32 @@ public class Connect {
                 null
         );
         channel.writeAndFlush(okResp);
-        log.info("CONNECT - clientId: {}, cleanSession: {}", msg.payload().clientIdentifier(), msg.variableHeader().isCleanSession());
+        messageTracer.trace(TraceType.CONNECT, msg.payload().clientIdentifier(), null, 0, 0);
         // 如果cleanSession为0, 需要重发同一clientId存储的未完成的QoS1和QoS2的DUP消息
         if (!msg.variableHeader().isCleanSession()){
             List<DupPublishMessageStore> dupPublishMessageStoreList = grozaDupPublishMessageStoreService.get(msg.payload().clientIdentifier());
             List<DupPubRelMessageStore> dupPubRelMessageStoreList = grozaDupPubRelMessageStoreService.get(msg.payload().clientIdentifier());
             dupPublishMessageStoreList.forEach(dupPublishMessageStore -> {
+                // 重发消息的报文标识符仍在途, 不能再分配给新消息
+                grozaMessageIdService.reserveMessageId(msg.payload().clientIdentifier(), dupPublishMessageStore.getMessageId());
                 MqttPublishMessage publishMessage = (MqttPublishMessage)MqttMessageFactory.newMessage(
                         new MqttFixedHeader(MqttMessageType.PUBLISH,true,MqttQoS.valueOf(dupPublishMessageStore.getMqttQoS()),false,0),
                         new MqttPublishVariableHeader(dupPublishMessageStore.getTopic(),dupPublishMessageStore.getMessageId()),
-                        Unpooled.buffer().writeBytes(dupPublishMessageStore.getMessageBytes())
+                        Unpooled.wrappedBuffer(dupPublishMessageStore.getMessageBytes())
                 );
                 channel.writeAndFlush(publishMessage);
+                inFlight.trackPublish(msg.payload().clientIdentifier(), dupPublishMessageStore);
             });
             dupPubRelMessageStoreList.forEach(dupPubRelMessageStore -> {
-                MqttMessage pubRelMessage = MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBREL,true,MqttQoS.AT_MOST_ONCE,false,0),
-                        MqttMessageIdVariableHeader.from(dupPubRelMessageStore.getMessageId()),
-                        null
-                );
-                channel.writeAndFlush(pubRelMessage);
+                grozaMessageIdService.reserveMessageId(msg.payload().clientIdentifier(), dupPubRelMessageStore.getMessageId());
+                channel.writeAndFlush(PubRec.pubRel(dupPubRelMessageStore.getMessageId()));
+                inFlight.trackPubRel(msg.payload().clientIdentifier(), dupPubRelMessageStore.getMessageId());
             });
+            // 持久会话保留的订阅重新通告给其他节点
+            grozaSubscribeStoreService.searchByClient(msg.payload().clientIdentifier()).forEach(subscribeStore ->
+                    grozaClusterService.subscribe(msg.payload().clientIdentifier(), subscribeStore.getTopicFilter()));
+            // 窗口内的消息重发后, 分批补发等待队列和离线队列中积压的消息
+            inFlight.resume(channel, msg.payload().clientIdentifier());
         }
     }
 }
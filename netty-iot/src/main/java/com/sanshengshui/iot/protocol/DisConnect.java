@@ -1,20 +1,23 @@
 package com.sanshengshui.iot.protocol;
 
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
 import com.sanshengshui.iot.common.message.GrozaDupPubRelMessageStoreService;
 import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
+import com.sanshengshui.iot.common.message.GrozaMessageIdService;
+import com.sanshengshui.iot.common.message.GrozaOfflineMessageStoreService;
 import com.sanshengshui.iot.common.session.GrozaSessionStoreService;
 import com.sanshengshui.iot.common.session.SessionStore;
 import com.sanshengshui.iot.common.subscribe.GrozaSubscribeStoreService;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.MqttMessage;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
 
 /**
  * @author james
  * @DISCONNECT 连接处理
  */
-@Slf4j
 public class DisConnect {
 
     private GrozaSessionStoreService grozaSessionStoreService;
@@ -25,25 +28,54 @@ public class DisConnect {
 
     private GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService;
 
+    private GrozaMessageIdService grozaMessageIdService;
+
+    private GrozaOfflineMessageStoreService grozaOfflineMessageStoreService;
+
+    private GrozaClusterService grozaClusterService;
+
+    private InFlight inFlight;
+
+    private InboundQos2 inboundQos2;
+
+    private MessageTracer messageTracer;
+
     public DisConnect(GrozaSessionStoreService grozaSessionStoreService,
                       GrozaSubscribeStoreService grozaSubscribeStoreService,
                       GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService,
-                      GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService){
+                      GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService,
+                      GrozaMessageIdService grozaMessageIdService,
+                      GrozaOfflineMessageStoreService grozaOfflineMessageStoreService,
+                      GrozaClusterService grozaClusterService,
+                      InFlight inFlight,
+                      InboundQos2 inboundQos2,
+                      MessageTracer messageTracer){
         this.grozaSessionStoreService = grozaSessionStoreService;
         this.grozaSubscribeStoreService = grozaSubscribeStoreService;
         this.grozaDupPublishMessageStoreService = grozaDupPublishMessageStoreService;
         this.grozaDupPubRelMessageStoreService = grozaDupPubRelMessageStoreService;
+        this.grozaMessageIdService = grozaMessageIdService;
+        this.grozaOfflineMessageStoreService = grozaOfflineMessageStoreService;
+        this.grozaClusterService = grozaClusterService;
+        this.inFlight = inFlight;
+        this.inboundQos2 = inboundQos2;
+        this.messageTracer = messageTracer;
     }
 
     public void processDisConnect(Channel channel,MqttMessage msg){
-        String clientId = (String) channel.attr(AttributeKey.valueOf("clientId")).get();
+        String clientId = ConnectionContext.clientId(channel);
         SessionStore sessionStore = grozaSessionStoreService.get(clientId);
         if (sessionStore!=null && sessionStore.isCleanSession()){
             grozaSubscribeStoreService.removeForClient(clientId);
             grozaDupPublishMessageStoreService.removeByClient(clientId);
             grozaDupPubRelMessageStoreService.removeByClient(clientId);
+            grozaMessageIdService.removeByClient(clientId);
+            inFlight.removeByClient(clientId);
+            inboundQos2.removeByClient(clientId);
+            grozaOfflineMessageStoreService.unregister(clientId);
+            grozaClusterService.removeClient(clientId);
         }
-        log.info("DISCONNECT - clientId: {}, cleanSession: {}", clientId, sessionStore.isCleanSession());
+        messageTracer.trace(TraceType.DISCONNECT, clientId, null, 0, 0);
         grozaSessionStoreService.remove(clientId);
         channel.close();
     }
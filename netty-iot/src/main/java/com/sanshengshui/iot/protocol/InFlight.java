@@ -0,0 +1,478 @@
+package com.sanshengshui.iot.protocol;
+
+import com.sanshengshui.iot.codec.Mqtt5Session;
+import com.sanshengshui.iot.codec.PublishPacketEncoder;
+import com.sanshengshui.iot.common.message.DupPublishMessageStore;
+import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
+import com.sanshengshui.iot.common.message.GrozaMessageIdService;
+import com.sanshengshui.iot.common.message.GrozaOfflineMessageStoreService;
+import com.sanshengshui.iot.common.session.GrozaSessionStoreService;
+import com.sanshengshui.iot.common.session.SessionStore;
+import com.sanshengshui.iot.internal.InternalMessage;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * QoS1/QoS2下发的在途窗口.
+ * 每个客户端最多window条未确认消息, MQTT 5客户端还受其CONNECT中的Receive Maximum限制, 超出窗口的消息进入内存中的有界等待队列,
+ * 确认后按顺序补发, 等待期间过期(MQTT 5消息过期时间)的消息直接丢弃; 连接不可写(发送缓冲区超过高水位)时也不再下发,
+ * 持久会话的新消息直接转入离线队列, 恢复可写后补发; 未确认的消息由共享的HashedWheelTimer按间隔重发(PUBLISH带DUP标志, 或PUBREL).
+ * MQTT 5禁止在连接期间重发, 未确认的消息只在会话恢复时由CONNECT重发, 因此MQTT 5连接不使用重发定时.
+ * 持久会话的等待队列满时消息转入离线队列, 等待队列清空后再从离线队列分批取回
+ */
+@Slf4j
+public class InFlight {
+
+    private GrozaSessionStoreService grozaSessionStoreService;
+
+    private GrozaMessageIdService grozaMessageIdService;
+
+    private GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService;
+
+    private GrozaOfflineMessageStoreService grozaOfflineMessageStoreService;
+
+    private MessageTracer messageTracer;
+
+    private final HashedWheelTimer timer;
+
+    private final long retryIntervalMillis;
+
+    private final int retryMax;
+
+    private final int maxPending;
+
+    private final int drainBatch;
+
+    private final Map<String, ClientState> clients = new ConcurrentHashMap<>();
+
+    private final LongAdder retransmitted = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder expired = new LongAdder();
+
+    private final LongAdder messageExpired = new LongAdder();
+
+    private final LongAdder spilled = new LongAdder();
+
+    public InFlight(GrozaSessionStoreService grozaSessionStoreService,
+                    GrozaMessageIdService grozaMessageIdService,
+                    GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService,
+                    GrozaOfflineMessageStoreService grozaOfflineMessageStoreService,
+                    MessageTracer messageTracer,
+                    long retryIntervalMillis, int retryMax, int maxPending, int drainBatch) {
+        this.grozaSessionStoreService = grozaSessionStoreService;
+        this.grozaMessageIdService = grozaMessageIdService;
+        this.grozaDupPublishMessageStoreService = grozaDupPublishMessageStoreService;
+        this.grozaOfflineMessageStoreService = grozaOfflineMessageStoreService;
+        this.messageTracer = messageTracer;
+        this.retryIntervalMillis = retryIntervalMillis;
+        this.retryMax = retryMax;
+        this.maxPending = maxPending;
+        this.drainBatch = drainBatch;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("groza-retransmit", true), 100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * 下发QoS1/QoS2消息, 窗口已满时进入等待队列; 等待队列也满时, 持久会话转入离线队列, 否则丢弃并返回false
+     */
+    public boolean publish(Channel channel, String clientId, String topic, MqttQoS mqttQoS, boolean retain, ByteBuf payload, byte[] messageBytes) {
+        return this.publish(channel, clientId, topic, mqttQoS, retain, payload, messageBytes, 0);
+    }
+
+    /**
+     * 下发带过期时刻(毫秒时间戳, 0为不过期)的QoS1/QoS2消息
+     */
+    public boolean publish(Channel channel, String clientId, String topic, MqttQoS mqttQoS, boolean retain, ByteBuf payload,
+                           byte[] messageBytes, long expiryMillis) {
+        ClientState state = this.state(clientId);
+        synchronized (state) {
+            // 已有消息在等待时新消息排在后面, 保证下发顺序
+            boolean writable = channel.isWritable();
+            if (writable && state.pending.isEmpty() && state.inFlight.size() < state.receiveMaximum) {
+                int messageId = grozaMessageIdService.getNextMessageId(clientId);
+                if (messageId != 0) {
+                    return this.send(channel, state, clientId, messageId, topic, mqttQoS, retain, payload, messageBytes, expiryMillis);
+                }
+            }
+            // 慢消费者的持久会话消息不在内存中堆积
+            if (!writable && grozaOfflineMessageStoreService.isPersistent(clientId)
+                    && grozaOfflineMessageStoreService.put(clientId, topic, mqttQoS.value(), messageBytes)) {
+                spilled.increment();
+                return true;
+            }
+            // 离线队列中还有消息时新消息也写入离线队列, 保证下发顺序
+            if (state.pending.size() >= maxPending || grozaOfflineMessageStoreService.size(clientId) > 0) {
+                if (grozaOfflineMessageStoreService.isPersistent(clientId)
+                        && grozaOfflineMessageStoreService.put(clientId, topic, mqttQoS.value(), messageBytes)) {
+                    return true;
+                }
+                dropped.increment();
+                log.warn("PUBLISH - clientId: {}, topic: {}, in-flight window and pending queue full, message dropped", clientId, topic);
+                return false;
+            }
+            state.pending.add(new Entry(topic, mqttQoS, retain, messageBytes, expiryMillis));
+            return true;
+        }
+    }
+
+    /**
+     * MQTT 5客户端在CONNECT中声明的Receive Maximum, 在途消息数不超过它; MQTT 3.1.1客户端传Integer.MAX_VALUE
+     */
+    public void setReceiveMaximum(String clientId, int receiveMaximum) {
+        ClientState state = receiveMaximum == Integer.MAX_VALUE ? clients.get(clientId) : this.state(clientId);
+        if (state != null) {
+            state.receiveMaximum = receiveMaximum;
+        }
+    }
+
+    /**
+     * 收到PUBREC, 等待PUBCOMP, 此后重发PUBREL
+     */
+    public void pubRec(String clientId, int messageId) {
+        ClientState state = clients.get(clientId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            Entry entry = state.inFlight.get(messageId);
+            if (entry != null) {
+                entry.cancel();
+                entry.released = true;
+                entry.attempts = 0;
+                this.schedule(clientId, messageId, entry);
+            }
+        }
+    }
+
+    /**
+     * 收到PUBACK/PUBCOMP, 回收报文标识符并补发等待队列中的消息
+     */
+    public void complete(Channel channel, String clientId, int messageId) {
+        ClientState state = clients.get(clientId);
+        if (state == null) {
+            grozaMessageIdService.releaseMessageId(clientId, messageId);
+            return;
+        }
+        synchronized (state) {
+            Entry entry = state.inFlight.remove(messageId);
+            if (entry != null) {
+                entry.cancel();
+            }
+            grozaMessageIdService.releaseMessageId(clientId, messageId);
+            this.drain(channel, state, clientId);
+        }
+    }
+
+    /**
+     * 会话恢复时重发的PUBLISH, 纳入重发定时
+     */
+    public void trackPublish(String clientId, DupPublishMessageStore dupPublishMessageStore) {
+        ClientState state = this.state(clientId);
+        synchronized (state) {
+            Entry entry = new Entry(dupPublishMessageStore.getTopic(), MqttQoS.valueOf(dupPublishMessageStore.getMqttQoS()),
+                    false, dupPublishMessageStore.getMessageBytes());
+            this.track(state, clientId, dupPublishMessageStore.getMessageId(), entry);
+        }
+    }
+
+    /**
+     * 会话恢复时重发的PUBREL, 纳入重发定时
+     */
+    public void trackPubRel(String clientId, int messageId) {
+        ClientState state = this.state(clientId);
+        synchronized (state) {
+            Entry entry = new Entry(null, MqttQoS.EXACTLY_ONCE, false, null);
+            entry.released = true;
+            this.track(state, clientId, messageId, entry);
+        }
+    }
+
+    /**
+     * 会话恢复后补发等待队列和离线队列中的消息
+     */
+    public void resume(Channel channel, String clientId) {
+        ClientState state = this.state(clientId);
+        synchronized (state) {
+            this.drain(channel, state, clientId);
+        }
+    }
+
+    /**
+     * 连接恢复可写(发送缓冲区降到低水位以下), 补发等待队列和离线队列中的消息
+     */
+    public void writable(Channel channel, String clientId) {
+        ClientState state = clients.get(clientId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            this.drain(channel, state, clientId);
+        }
+    }
+
+    /**
+     * 删除客户端的在途状态和等待队列
+     */
+    public void removeByClient(String clientId) {
+        ClientState state = clients.remove(clientId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.inFlight.values().forEach(Entry::cancel);
+            state.inFlight.clear();
+            state.pending.clear();
+        }
+    }
+
+    public int inFlightCount(String clientId) {
+        ClientState state = clients.get(clientId);
+        return state == null ? 0 : state.inFlight.size();
+    }
+
+    public int pendingCount(String clientId) {
+        ClientState state = clients.get(clientId);
+        if (state == null) {
+            return 0;
+        }
+        synchronized (state) {
+            return state.pending.size();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long inFlightTotal = 0;
+        long pendingTotal = 0;
+        int inFlightMax = 0;
+        for (ClientState state : clients.values()) {
+            int inFlight = state.inFlight.size();
+            inFlightTotal += inFlight;
+            inFlightMax = Math.max(inFlightMax, inFlight);
+            synchronized (state) {
+                pendingTotal += state.pending.size();
+            }
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("clients", clients.size());
+        map.put("inFlight", inFlightTotal);
+        map.put("inFlightMaxPerClient", inFlightMax);
+        map.put("pending", pendingTotal);
+        map.put("retransmitted", retransmitted.sum());
+        map.put("dropped", dropped.sum());
+        map.put("expired", expired.sum());
+        map.put("messageExpired", messageExpired.sum());
+        map.put("spilled", spilled.sum());
+        return map;
+    }
+
+    public void shutdown() {
+        timer.stop();
+    }
+
+    private void drain(Channel channel, ClientState state, String clientId) {
+        if (channel == null || !channel.isActive()) {
+            return;
+        }
+        for (;;) {
+            if (!channel.isWritable()) {
+                return;
+            }
+            if (state.pending.isEmpty() && !this.refill(state, clientId)) {
+                return;
+            }
+            Entry entry = state.pending.peek();
+            if (entry.expiryMillis != 0 && entry.expiryMillis <= System.currentTimeMillis()) {
+                state.pending.poll();
+                messageExpired.increment();
+                continue;
+            }
+            if (state.inFlight.size() >= state.receiveMaximum) {
+                return;
+            }
+            int messageId = grozaMessageIdService.getNextMessageId(clientId);
+            if (messageId == 0) {
+                return;
+            }
+            state.pending.poll();
+            this.send(channel, state, clientId, messageId, entry.topic, entry.mqttQoS, entry.retain,
+                    Unpooled.wrappedBuffer(entry.messageBytes), entry.messageBytes, entry.expiryMillis);
+        }
+    }
+
+    /**
+     * 从离线队列取一批消息放入等待队列
+     */
+    private boolean refill(ClientState state, String clientId) {
+        List<InternalMessage> messages = grozaOfflineMessageStoreService.poll(clientId, drainBatch);
+        for (InternalMessage message : messages) {
+            state.pending.add(new Entry(message.getTopic(), MqttQoS.valueOf(message.getMqttQoS()), false, message.getMessageBytes()));
+        }
+        return !messages.isEmpty();
+    }
+
+    private boolean send(Channel channel, ClientState state, String clientId, int messageId, String topic, MqttQoS mqttQoS,
+                         boolean retain, ByteBuf payload, byte[] messageBytes, long expiryMillis) {
+        Mqtt5Session mqtt5Session = Mqtt5Session.of(channel);
+        if (mqtt5Session != null && mqtt5Session.exceedsClientMaximumPacketSize(topic.getBytes(CharsetUtil.UTF_8).length,
+                mqttQoS, payload.readableBytes())) {
+            // 超过客户端Maximum Packet Size的消息不能下发, 按已投递处理
+            grozaMessageIdService.releaseMessageId(clientId, messageId);
+            dropped.increment();
+            log.warn("PUBLISH - clientId: {}, topic: {}, exceeds the client's maximum packet size, message dropped", clientId, topic);
+            return false;
+        }
+        messageTracer.trace(TraceType.PUBLISH_OUT, clientId, topic, mqttQoS.value(), messageId);
+        DupPublishMessageStore dupPublishMessageStore = new DupPublishMessageStore().setClientId(clientId)
+                .setTopic(topic).setMqttQoS(mqttQoS.value()).setMessageBytes(messageBytes).setMessageId(messageId);
+        grozaDupPublishMessageStoreService.put(clientId, dupPublishMessageStore);
+        this.track(state, clientId, messageId, new Entry(topic, mqttQoS, retain, messageBytes, expiryMillis), mqtt5Session == null);
+        channel.writeAndFlush(PublishPacketEncoder.encode(channel, topic, mqttQoS, retain, false, messageId, payload, expiryMillis));
+        return true;
+    }
+
+    private void track(ClientState state, String clientId, int messageId, Entry entry) {
+        this.track(state, clientId, messageId, entry, true);
+    }
+
+    private void track(ClientState state, String clientId, int messageId, Entry entry, boolean retransmit) {
+        Entry previous = state.inFlight.put(messageId, entry);
+        if (previous != null) {
+            previous.cancel();
+        }
+        if (retransmit) {
+            this.schedule(clientId, messageId, entry);
+        }
+    }
+
+    private void schedule(String clientId, int messageId, Entry entry) {
+        entry.timeout = timer.newTimeout(new Retransmit(clientId, messageId, entry), retryIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private ClientState state(String clientId) {
+        ClientState state = clients.get(clientId);
+        return state != null ? state : clients.computeIfAbsent(clientId, k -> new ClientState());
+    }
+
+    private class Retransmit implements TimerTask {
+
+        private final String clientId;
+
+        private final int messageId;
+
+        private final Entry entry;
+
+        Retransmit(String clientId, int messageId, Entry entry) {
+            this.clientId = clientId;
+            this.messageId = messageId;
+            this.entry = entry;
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            ClientState state = clients.get(clientId);
+            if (state == null) {
+                return;
+            }
+            synchronized (state) {
+                if (timeout.isCancelled() || state.inFlight.get(messageId) != entry) {
+                    return;
+                }
+                // 客户端离线时停止重发, 持久会话重连后由CONNECT从重发存储中恢复
+                SessionStore sessionStore = grozaSessionStoreService.get(clientId);
+                Channel channel = sessionStore == null ? null : sessionStore.getChannel();
+                if (channel == null || !channel.isActive()) {
+                    return;
+                }
+                // MQTT 5只在会话恢复时重发, 会话恢复和PUBREC后登记的定时在这里结束
+                if (Mqtt5Session.of(channel) != null) {
+                    return;
+                }
+                if (retryMax > 0 && entry.attempts >= retryMax) {
+                    expired.increment();
+                    log.warn("Retransmit - clientId: {}, messageId: {}, gave up after {} attempts", clientId, messageId, entry.attempts);
+                    return;
+                }
+                entry.attempts++;
+                retransmitted.increment();
+                if (entry.released) {
+                    channel.writeAndFlush(PubRec.pubRel(messageId));
+                } else {
+                    // 已开始的投递不再受消息过期限制
+                    channel.writeAndFlush(PublishPacketEncoder.encode(channel, entry.topic, entry.mqttQoS, entry.retain, true,
+                            messageId, Unpooled.wrappedBuffer(entry.messageBytes), 0));
+                }
+                schedule(clientId, messageId, entry);
+            }
+        }
+    }
+
+    private static class ClientState {
+
+        private final Map<Integer, Entry> inFlight = new ConcurrentHashMap<>();
+
+        private final Queue<Entry> pending = new ArrayDeque<>();
+
+        private volatile int receiveMaximum = Integer.MAX_VALUE;
+    }
+
+    private static class Entry {
+
+        private final String topic;
+
+        private final MqttQoS mqttQoS;
+
+        private final boolean retain;
+
+        private final byte[] messageBytes;
+
+        private final long expiryMillis;
+
+        /**
+         * 已收到PUBREC, 等待PUBCOMP
+         */
+        private boolean released;
+
+        private int attempts;
+
+        private Timeout timeout;
+
+        Entry(String topic, MqttQoS mqttQoS, boolean retain, byte[] messageBytes) {
+            this(topic, mqttQoS, retain, messageBytes, 0);
+        }
+
+        Entry(String topic, MqttQoS mqttQoS, boolean retain, byte[] messageBytes, long expiryMillis) {
+            this.topic = topic;
+            this.mqttQoS = mqttQoS;
+            this.retain = retain;
+            this.messageBytes = messageBytes;
+            this.expiryMillis = expiryMillis;
+        }
+
+        void cancel() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.sanshengshui.iot.protocol;
+
+import com.sanshengshui.iot.store.message.MessageIdBitmap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * 入站QoS2报文标识符状态. 收到PUBLISH时在该客户端的位图中置位, 收到PUBREL时清位;
+ * 置位期间同一报文标识符的PUBLISH视为重发, 不再转发. 状态按clientId保存在内存中,
+ * 持久会话重连后继续有效, 清理会话时丢弃
+ */
+public class InboundQos2 {
+
+    private final Map<String, MessageIdBitmap> clients = new ConcurrentHashMap<>();
+
+    private final LongAdder received = new LongAdder();
+
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * 收到QoS2 PUBLISH, 首次收到返回true, 在PUBREL之前重发的返回false
+     */
+    public boolean receive(String clientId, int packetId) {
+        // 遗嘱消息等内部发布没有报文标识符, 不跟踪
+        if (clientId == null || packetId <= 0) {
+            return true;
+        }
+        if (clients.computeIfAbsent(clientId, key -> new MessageIdBitmap()).set(packetId)) {
+            received.increment();
+            return true;
+        }
+        duplicates.increment();
+        return false;
+    }
+
+    /**
+     * 收到PUBREL, 该报文标识符可以用于新消息
+     */
+    public void release(String clientId, int packetId) {
+        if (clientId == null) {
+            return;
+        }
+        MessageIdBitmap bitmap = clients.get(clientId);
+        if (bitmap != null) {
+            bitmap.clear(packetId);
+        }
+    }
+
+    public boolean isPending(String clientId, int packetId) {
+        MessageIdBitmap bitmap = clientId == null ? null : clients.get(clientId);
+        return bitmap != null && bitmap.get(packetId);
+    }
+
+    public void removeByClient(String clientId) {
+        clients.remove(clientId);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("clients", clients.size());
+        map.put("received", received.sum());
+        map.put("duplicates", duplicates.sum());
+        return map;
+    }
+}
@@ -1,23 +1,31 @@
 package com.sanshengshui.iot.protocol;
 
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
 
 /**
  * @author james
  * @date 2018年10月21日01:45
  */
-@Slf4j
 public class PingReq {
 
+    private MessageTracer messageTracer;
+
+    public PingReq(MessageTracer messageTracer) {
+        this.messageTracer = messageTracer;
+    }
+
     public void processPingReq(Channel channel, MqttMessage msg){
         MqttMessage pingRespMessage = MqttMessageFactory.newMessage(
                 new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0),
                 null,
                 null);
-        log.info("PINGREQ - clientId: {}", (String) channel.attr(AttributeKey.valueOf("clientId")).get());
+        if (messageTracer.isEnabled()) {
+            messageTracer.trace(TraceType.PINGREQ, ConnectionContext.clientId(channel), null, 0, 0);
+        }
         channel.writeAndFlush(pingRespMessage);
 
     }
@@ -1,12 +1,21 @@
 package com.sanshengshui.iot.protocol;
 
 import com.sanshengshui.iot.common.auth.GrozaAuthService;
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
 import com.sanshengshui.iot.common.message.*;
 import com.sanshengshui.iot.common.session.GrozaSessionStoreService;
 import com.sanshengshui.iot.common.subscribe.GrozaSubscribeStoreService;
+import com.sanshengshui.iot.metrics.ProtocolMetrics;
+import com.sanshengshui.iot.rule.RuleEngine;
+import com.sanshengshui.iot.server.KeepAliveManager;
+import com.sanshengshui.iot.trace.MessageTracer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 /**
  * @author james
  * 协议处理
@@ -29,6 +38,45 @@ public class ProtocolProcess {
     private GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService;
     @Autowired
     private GrozaKafkaService kafkaService;
+    @Autowired
+    private GrozaOfflineMessageStoreService grozaOfflineMessageStoreService;
+    @Autowired
+    private GrozaClusterService grozaClusterService;
+    @Autowired
+    private ProtocolMetrics protocolMetrics;
+    @Autowired
+    private MessageTracer messageTracer;
+    @Autowired
+    private RuleEngine ruleEngine;
+
+    @Value("${mqtt.inflight.retry_interval_ms:10000}")
+    private long retryIntervalMillis;
+    @Value("${mqtt.inflight.retry_max:0}")
+    private int retryMax;
+    @Value("${mqtt.inflight.max_pending:1000}")
+    private int maxPending;
+    @Value("${mqtt.offline.drain_batch:100}")
+    private int drainBatch;
+    @Value("${mqtt.shared.strategy:round_robin}")
+    private String sharedStrategy;
+    @Value("${mqtt.slow_consumer.qos0_policy:drop_oldest}")
+    private String slowConsumerPolicy;
+    @Value("${mqtt.slow_consumer.qos0_queue_size:100}")
+    private int slowConsumerQueueSize;
+    @Value("${mqtt.keepalive.tick_ms:1000}")
+    private long keepAliveTickMillis;
+    @Value("${mqtt.keepalive.wheel_size:512}")
+    private int keepAliveWheelSize;
+
+    private InFlight inFlight;
+
+    private SlowConsumer slowConsumer;
+
+    private InboundQos2 inboundQos2;
+
+    private KeepAliveManager keepAliveManager;
+
+    private SharedSubscriptionSelector sharedSubscriptionSelector;
 
     private Connect connect;
 
@@ -50,74 +98,110 @@ public class ProtocolProcess {
 
     private PubComp pubComp;
 
+    @PostConstruct
+    public void init() {
+        // 在途状态需要全局唯一, 启动时创建, 不能像其他处理类一样懒加载
+        inFlight = new InFlight(grozaSessionStoreService, grozaMessageIdService, grozaDupPublishMessageStoreService,
+                grozaOfflineMessageStoreService, messageTracer, retryIntervalMillis, retryMax, maxPending, drainBatch);
+        sharedSubscriptionSelector = SharedSubscriptionSelector.of(sharedStrategy, inFlight);
+        slowConsumer = new SlowConsumer(SlowConsumer.Policy.of(slowConsumerPolicy), slowConsumerQueueSize);
+        inboundQos2 = new InboundQos2();
+        keepAliveManager = new KeepAliveManager(keepAliveTickMillis, keepAliveWheelSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        inFlight.shutdown();
+    }
+
     public Connect connect(){
         if (connect == null){
-            connect = new Connect(grozaAuthService, grozaSessionStoreService, grozaDupPublishMessageStoreService, grozaDupPubRelMessageStoreService, grozaSubscribeStoreService);
+            connect = new Connect(grozaAuthService, grozaSessionStoreService, grozaDupPublishMessageStoreService, grozaDupPubRelMessageStoreService, grozaSubscribeStoreService, grozaMessageIdService, grozaOfflineMessageStoreService, grozaClusterService, inFlight, inboundQos2, keepAliveManager, messageTracer);
         }
         return connect;
     }
     public Subscribe subscribe(){
         if (subscribe == null){
-            subscribe = new Subscribe(grozaSubscribeStoreService,grozaMessageIdService,grozaRetainMessageStoreService);
+            subscribe = new Subscribe(grozaSubscribeStoreService, grozaRetainMessageStoreService, grozaClusterService, inFlight, slowConsumer, messageTracer);
         }
         return subscribe;
     }
     public UnSubscribe unSubscribe() {
         if (unSubscribe == null) {
-            unSubscribe = new UnSubscribe(grozaSubscribeStoreService);
+            unSubscribe = new UnSubscribe(grozaSubscribeStoreService, grozaClusterService, messageTracer);
         }
         return unSubscribe;
     }
 
     public Publish publish() {
         if (publish == null) {
-            publish = new Publish(grozaSessionStoreService, grozaSubscribeStoreService, grozaMessageIdService, grozaRetainMessageStoreService, grozaDupPublishMessageStoreService,kafkaService);
+            publish = new Publish(grozaSessionStoreService, grozaSubscribeStoreService, grozaMessageIdService, grozaRetainMessageStoreService, grozaDupPublishMessageStoreService, ruleEngine.bridge(kafkaService), grozaOfflineMessageStoreService, grozaClusterService, inFlight, slowConsumer, inboundQos2, sharedSubscriptionSelector, protocolMetrics, messageTracer);
         }
         return publish;
     }
 
     public DisConnect disConnect() {
         if (disConnect == null) {
-            disConnect = new DisConnect(grozaSessionStoreService, grozaSubscribeStoreService, grozaDupPublishMessageStoreService, grozaDupPubRelMessageStoreService);
+            disConnect = new DisConnect(grozaSessionStoreService, grozaSubscribeStoreService, grozaDupPublishMessageStoreService, grozaDupPubRelMessageStoreService, grozaMessageIdService, grozaOfflineMessageStoreService, grozaClusterService, inFlight, inboundQos2, messageTracer);
         }
         return disConnect;
     }
 
     public PingReq pingReq() {
         if (pingReq == null) {
-            pingReq = new PingReq();
+            pingReq = new PingReq(messageTracer);
         }
         return pingReq;
     }
 
     public PubRel pubRel() {
         if (pubRel == null) {
-            pubRel = new PubRel();
+            pubRel = new PubRel(inboundQos2, messageTracer);
         }
         return pubRel;
     }
 
     public PubAck pubAck() {
         if (pubAck == null) {
-            pubAck = new PubAck(grozaDupPublishMessageStoreService);
+            pubAck = new PubAck(grozaDupPublishMessageStoreService, inFlight, messageTracer);
         }
         return pubAck;
     }
 
     public PubRec pubRec() {
         if (pubRec == null) {
-            pubRec = new PubRec(grozaDupPublishMessageStoreService, grozaDupPubRelMessageStoreService);
+            pubRec = new PubRec(grozaDupPublishMessageStoreService, grozaDupPubRelMessageStoreService, inFlight, messageTracer);
         }
         return pubRec;
     }
 
     public PubComp pubComp() {
         if (pubComp == null) {
-            pubComp = new PubComp(grozaDupPubRelMessageStoreService);
+            pubComp = new PubComp(grozaDupPubRelMessageStoreService, inFlight, messageTracer);
         }
         return pubComp;
     }
 
+    public InFlight getInFlight() {
+        return inFlight;
+    }
+
+    public SlowConsumer getSlowConsumer() {
+        return slowConsumer;
+    }
+
+    public InboundQos2 getInboundQos2() {
+        return inboundQos2;
+    }
+
+    public GrozaMessageIdService getGrozaMessageIdService() {
+        return grozaMessageIdService;
+    }
+
+    public KeepAliveManager getKeepAliveManager() {
+        return keepAliveManager;
+    }
+
     public GrozaSessionStoreService getGrozaSessionStoreService() {
         return grozaSessionStoreService;
     }
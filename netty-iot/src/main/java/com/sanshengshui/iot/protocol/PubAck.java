@@ -1,10 +1,11 @@
 package com.sanshengshui.iot.protocol;
 
 import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
 
 
 /**
@@ -12,19 +13,28 @@ import lombok.extern.slf4j.Slf4j;
  * @date 2018年10月21日 19:02
  * PUBACK连接处理
  */
-@Slf4j
 public class PubAck {
 
     private GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService;
 
-    public PubAck(GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService){
+    private InFlight inFlight;
+
+    private MessageTracer messageTracer;
+
+    public PubAck(GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService,
+                  InFlight inFlight,
+                  MessageTracer messageTracer){
         this.grozaDupPublishMessageStoreService = grozaDupPublishMessageStoreService;
+        this.inFlight = inFlight;
+        this.messageTracer = messageTracer;
     }
 
     public void processPubAck(Channel channel, MqttMessageIdVariableHeader variableHeader){
         int messageId = variableHeader.messageId();
-        log.info("PUBACK - clientId: {}, messageId: {}", (String) channel.attr(AttributeKey.valueOf("clientId")).get(), messageId);
-        grozaDupPublishMessageStoreService.remove((String) channel.attr(AttributeKey.valueOf("clientId")).get(), messageId);
+        String clientId = ConnectionContext.clientId(channel);
+        messageTracer.trace(TraceType.PUBACK, clientId, null, 0, messageId);
+        grozaDupPublishMessageStoreService.remove(clientId, messageId);
+        inFlight.complete(channel, clientId, messageId);
 
     }
 }
@@ -1,28 +1,38 @@
 package com.sanshengshui.iot.protocol;
 
 import com.sanshengshui.iot.common.message.GrozaDupPubRelMessageStoreService;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
 
 /**
  * @author james
  * @date 2018年10月21日19:08
  * PUBCOMP连接处理
  */
-@Slf4j
 public class PubComp {
 
     private GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService;
 
-    public PubComp(GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService){
+    private InFlight inFlight;
+
+    private MessageTracer messageTracer;
+
+    public PubComp(GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService,
+                   InFlight inFlight,
+                   MessageTracer messageTracer){
         this.grozaDupPubRelMessageStoreService = grozaDupPubRelMessageStoreService;
+        this.inFlight = inFlight;
+        this.messageTracer = messageTracer;
     }
 
     public void processPubComp(Channel channel, MqttMessageIdVariableHeader variableHeader){
         int messageId = variableHeader.messageId();
-        log.info("PUBCOMP - clientId: {}, messageId: {}", (String) channel.attr(AttributeKey.valueOf("clientId")).get(), messageId);
-        grozaDupPubRelMessageStoreService.remove((String)channel.attr(AttributeKey.valueOf("clientId")).get(), variableHeader.messageId());
+        String clientId = ConnectionContext.clientId(channel);
+        messageTracer.trace(TraceType.PUBCOMP, clientId, null, 0, messageId);
+        grozaDupPubRelMessageStoreService.remove(clientId, messageId);
+        inFlight.complete(channel, clientId, messageId);
     }
 }
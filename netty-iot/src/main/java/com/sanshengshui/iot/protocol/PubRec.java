@@ -3,34 +3,51 @@ package com.sanshengshui.iot.protocol;
 import com.sanshengshui.iot.common.message.DupPubRelMessageStore;
 import com.sanshengshui.iot.common.message.GrozaDupPubRelMessageStoreService;
 import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
 
-@Slf4j
 public class PubRec {
 
     private GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService;
 
     private GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService;
 
+    private InFlight inFlight;
+
+    private MessageTracer messageTracer;
+
     public PubRec(GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService,
-                  GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService){
+                  GrozaDupPubRelMessageStoreService grozaDupPubRelMessageStoreService,
+                  InFlight inFlight,
+                  MessageTracer messageTracer){
         this.grozaDupPublishMessageStoreService = grozaDupPublishMessageStoreService;
         this.grozaDupPubRelMessageStoreService = grozaDupPubRelMessageStoreService;
+        this.inFlight = inFlight;
+        this.messageTracer = messageTracer;
     }
 
     public void processPubRec(Channel channel, MqttMessageIdVariableHeader variableHeader) {
-        MqttMessage pubRelMessage = MqttMessageFactory.newMessage(
-                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                MqttMessageIdVariableHeader.from(variableHeader.messageId()),
-                null);
-        log.info("PUBREC - clientId: {}, messageId: {}", (String) channel.attr(AttributeKey.valueOf("clientId")).get(), variableHeader.messageId());
-        grozaDupPublishMessageStoreService.remove((String) channel.attr(AttributeKey.valueOf("clientId")).get(), variableHeader.messageId());
-        DupPubRelMessageStore dupPubRelMessageStore = new DupPubRelMessageStore().setClientId((String) channel.attr(AttributeKey.valueOf("clientId")).get())
+        MqttMessage pubRelMessage = pubRel(variableHeader.messageId());
+        String clientId = ConnectionContext.clientId(channel);
+        messageTracer.trace(TraceType.PUBREC, clientId, null, 0, variableHeader.messageId());
+        grozaDupPublishMessageStoreService.remove(clientId, variableHeader.messageId());
+        DupPubRelMessageStore dupPubRelMessageStore = new DupPubRelMessageStore().setClientId(clientId)
                 .setMessageId(variableHeader.messageId());
-        grozaDupPubRelMessageStoreService.put((String) channel.attr(AttributeKey.valueOf("clientId")).get(), dupPubRelMessageStore);
+        grozaDupPubRelMessageStoreService.put(clientId, dupPubRelMessageStore);
+        inFlight.pubRec(clientId, variableHeader.messageId());
         channel.writeAndFlush(pubRelMessage);
     }
+
+    /**
+     * PUBREL报文, 固定头第一个字节必须是0x62(QoS位为1, DUP为0) [MQTT-3.6.1-1], 重发时也不能设置DUP
+     */
+    static MqttMessage pubRel(int messageId) {
+        return MqttMessageFactory.newMessage(
+                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                MqttMessageIdVariableHeader.from(messageId),
+                null);
+    }
 }
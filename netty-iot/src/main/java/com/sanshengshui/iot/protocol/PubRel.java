@@ -1,26 +1,38 @@
 package com.sanshengshui.iot.protocol;
 
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * PUBREL连接处理
  * @author james
  * @date 2018年10月21日 09:26
  */
-@Slf4j
 public class PubRel {
 
+    private InboundQos2 inboundQos2;
+
+    private MessageTracer messageTracer;
+
+    public PubRel(InboundQos2 inboundQos2, MessageTracer messageTracer) {
+        this.inboundQos2 = inboundQos2;
+        this.messageTracer = messageTracer;
+    }
+
     public void processPubRel(Channel channel, MqttMessageIdVariableHeader variableHeader) {
+        String clientId = ConnectionContext.clientId(channel);
+        // 报文标识符释放后, 同一标识符的PUBLISH作为新消息处理
+        inboundQos2.release(clientId, variableHeader.messageId());
         MqttMessage pubCompMessage = MqttMessageFactory.newMessage(
                 new MqttFixedHeader(MqttMessageType.PUBCOMP, false, MqttQoS.AT_MOST_ONCE, false, 0),
                 MqttMessageIdVariableHeader.from(variableHeader.messageId()),
                 null);
-        log.info("PUBREL - clientId: {}, messageId: {}", (String) channel.attr(AttributeKey.valueOf("clientId")).get(), variableHeader.messageId());
+        if (messageTracer.isEnabled()) {
+            messageTracer.trace(TraceType.PUBREL, clientId, null, 0, variableHeader.messageId());
+        }
         channel.writeAndFlush(pubCompMessage);
     }
 }
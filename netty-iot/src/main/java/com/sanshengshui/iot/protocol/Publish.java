@@ -1,19 +1,30 @@
 package com.sanshengshui.iot.protocol;
 
+import com.sanshengshui.iot.codec.Mqtt5PublishMessage;
+import com.sanshengshui.iot.codec.Mqtt5Session;
+import com.sanshengshui.iot.codec.PublishPacketEncoder;
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
 import com.sanshengshui.iot.common.message.*;
 import com.sanshengshui.iot.common.session.GrozaSessionStoreService;
+import com.sanshengshui.iot.common.session.SessionStore;
 import com.sanshengshui.iot.common.subscribe.GrozaSubscribeStoreService;
+import com.sanshengshui.iot.common.subscribe.SharedSubscription;
 import com.sanshengshui.iot.common.subscribe.SubscribeStore;
 import com.sanshengshui.iot.internal.InternalMessage;
+import com.sanshengshui.iot.metrics.ProtocolMetrics;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
+import io.netty.util.CharsetUtil;
 
+import java.util.ArrayList;
 import java.util.List;
 
-@Slf4j
 public class Publish {
 
     private GrozaSessionStoreService grozaSessionStoreService;
@@ -28,119 +39,190 @@ public class Publish {
 
     private GrozaKafkaService grozaKafkaService;
 
+    private GrozaOfflineMessageStoreService grozaOfflineMessageStoreService;
+
+    private GrozaClusterService grozaClusterService;
+
+    private InFlight inFlight;
+
+    private SlowConsumer slowConsumer;
+
+    private InboundQos2 inboundQos2;
+
+    private SharedSubscriptionSelector sharedSubscriptionSelector;
+
+    private ProtocolMetrics protocolMetrics;
+
+    private MessageTracer messageTracer;
 
     public Publish(GrozaSessionStoreService grozaSessionStoreService,
                    GrozaSubscribeStoreService grozaSubscribeStoreService,
                    GrozaMessageIdService grozaMessageIdService,
                    GrozaRetainMessageStoreService grozaRetainMessageStoreService,
                    GrozaDupPublishMessageStoreService grozaDupPublishMessageStoreService,
-                   GrozaKafkaService grozaKafkaService){
+                   GrozaKafkaService grozaKafkaService,
+                   GrozaOfflineMessageStoreService grozaOfflineMessageStoreService,
+                   GrozaClusterService grozaClusterService,
+                   InFlight inFlight,
+                   SlowConsumer slowConsumer,
+                   InboundQos2 inboundQos2,
+                   SharedSubscriptionSelector sharedSubscriptionSelector,
+                   ProtocolMetrics protocolMetrics,
+                   MessageTracer messageTracer){
         this.grozaSessionStoreService = grozaSessionStoreService;
         this.grozaSubscribeStoreService = grozaSubscribeStoreService;
         this.grozaMessageIdService = grozaMessageIdService;
         this.grozaRetainMessageStoreService = grozaRetainMessageStoreService;
         this.grozaDupPublishMessageStoreService = grozaDupPublishMessageStoreService;
         this.grozaKafkaService = grozaKafkaService;
+        this.grozaOfflineMessageStoreService = grozaOfflineMessageStoreService;
+        this.grozaClusterService = grozaClusterService;
+        this.inFlight = inFlight;
+        this.slowConsumer = slowConsumer;
+        this.inboundQos2 = inboundQos2;
+        this.sharedSubscriptionSelector = sharedSubscriptionSelector;
+        this.protocolMetrics = protocolMetrics;
+        this.messageTracer = messageTracer;
     }
 
     public void processPublish(Channel channel, MqttPublishMessage msg) {
-        String clientId = (String) channel.attr(AttributeKey.valueOf("clientId")).get();
-        // QoS=0
-        if (msg.fixedHeader().qosLevel() == MqttQoS.AT_MOST_ONCE) {
-            byte[] messageBytes = new byte[msg.payload().readableBytes()];
-            msg.payload().getBytes(msg.payload().readerIndex(), messageBytes);
-            InternalMessage internalMessage = new InternalMessage()
-                    .setTopic(msg.variableHeader().topicName())
-                    .setMqttQoS(msg.fixedHeader().qosLevel().value())
-                    .setMessageBytes(messageBytes)
-                    .setDup(false)
-                    .setRetain(false)
-                    .setClientId(clientId);
-            grozaKafkaService.send(internalMessage);
-            this.sendPublishMessage(msg.variableHeader().topicName(), msg.fixedHeader().qosLevel(), messageBytes, false, false);
+        String clientId = ConnectionContext.clientId(channel);
+        String topic = msg.variableHeader().topicName();
+        MqttQoS mqttQoS = msg.fixedHeader().qosLevel();
+        messageTracer.trace(TraceType.PUBLISH_IN, clientId, topic, mqttQoS.value(), msg.variableHeader().packetId());
+        // QoS2在收到PUBREL之前重发的PUBLISH不再转发, 只重新回复PUBREC
+        if (mqttQoS == MqttQoS.EXACTLY_ONCE && !inboundQos2.receive(clientId, msg.variableHeader().packetId())) {
+            this.sendPubRecMessage(channel, msg.variableHeader().packetId());
+            return;
         }
+        ByteBuf payload = msg.payload();
+        // 入站消息体只拷贝一次, kafka转发、retain存储和重发存储共用; 在线投递直接共享payload, 不拷贝
+        byte[] messageBytes = ByteBufUtil.getBytes(payload, payload.readerIndex(), payload.readableBytes(), false);
+        InternalMessage internalMessage = new InternalMessage()
+                .setTopic(topic)
+                .setMqttQoS(mqttQoS.value())
+                .setMessageBytes(messageBytes)
+                .setDup(false)
+                .setRetain(msg.fixedHeader().isRetain())
+                .setClientId(clientId);
+        grozaKafkaService.send(internalMessage);
+        // MQTT 5的消息过期时间只在本节点的在线投递和保留消息中生效
+        long expiryMillis = Mqtt5PublishMessage.expiryMillis(msg);
+        this.sendPublishMessage(clientId, topic, mqttQoS, payload, messageBytes, false, false, expiryMillis);
+        // 转发给有匹配订阅的其他节点
+        grozaClusterService.publish(internalMessage);
         // QoS=1
-        if (msg.fixedHeader().qosLevel() == MqttQoS.AT_LEAST_ONCE) {
-            byte[] messageBytes = new byte[msg.payload().readableBytes()];
-            msg.payload().getBytes(msg.payload().readerIndex(), messageBytes);
-            InternalMessage internalMessage = new InternalMessage()
-                    .setTopic(msg.variableHeader().topicName())
-                    .setMqttQoS(msg.fixedHeader().qosLevel().value())
-                    .setMessageBytes(messageBytes)
-                    .setDup(false)
-                    .setRetain(false)
-                    .setClientId(clientId);
-            grozaKafkaService.send(internalMessage);
-            this.sendPublishMessage(msg.variableHeader().topicName(), msg.fixedHeader().qosLevel(), messageBytes, false, false);
+        if (mqttQoS == MqttQoS.AT_LEAST_ONCE) {
             this.sendPubAckMessage(channel, msg.variableHeader().packetId());
         }
         // QoS=2
-        if (msg.fixedHeader().qosLevel() == MqttQoS.EXACTLY_ONCE) {
-            byte[] messageBytes = new byte[msg.payload().readableBytes()];
-            msg.payload().getBytes(msg.payload().readerIndex(), messageBytes);
-            InternalMessage internalMessage = new InternalMessage()
-                    .setTopic(msg.variableHeader().topicName())
-                    .setMqttQoS(msg.fixedHeader().qosLevel().value())
-                    .setMessageBytes(messageBytes)
-                    .setDup(false)
-                    .setRetain(false)
-                    .setClientId(clientId);
-            grozaKafkaService.send(internalMessage);
-            this.sendPublishMessage(msg.variableHeader().topicName(), msg.fixedHeader().qosLevel(), messageBytes, false, false);
+        if (mqttQoS == MqttQoS.EXACTLY_ONCE) {
             this.sendPubRecMessage(channel, msg.variableHeader().packetId());
         }
         // retain=1, 保留消息
         if (msg.fixedHeader().isRetain()) {
-            byte[] messageBytes = new byte[msg.payload().readableBytes()];
-            msg.payload().getBytes(msg.payload().readerIndex(), messageBytes);
-            if (messageBytes.length == 0) {
-                grozaRetainMessageStoreService.remove(msg.variableHeader().topicName());
+            this.storeRetainMessage(topic, mqttQoS, messageBytes, expiryMillis);
+        }
+    }
+
+    /**
+     * 其他节点转发的PUBLISH, 只投递给本节点的订阅者, 不再转发kafka和其他节点
+     */
+    public void processRemotePublish(InternalMessage internalMessage) {
+        MqttQoS mqttQoS = MqttQoS.valueOf(internalMessage.getMqttQoS());
+        this.sendPublishMessage(internalMessage.getClientId(), internalMessage.getTopic(), mqttQoS, Unpooled.wrappedBuffer(internalMessage.getMessageBytes()),
+                internalMessage.getMessageBytes(), false, false, 0);
+        // 发布节点已把retain消息写入Redis, 这里只更新本节点的主题索引
+        if (internalMessage.isRetain()) {
+            if (internalMessage.getMessageBytes().length == 0) {
+                grozaRetainMessageStoreService.removeIndex(internalMessage.getTopic());
             } else {
-                RetainMessageStore retainMessageStore = new RetainMessageStore().setTopic(msg.variableHeader().topicName()).setMqttQoS(msg.fixedHeader().qosLevel().value())
-                        .setMessageBytes(messageBytes);
-                grozaRetainMessageStoreService.put(msg.variableHeader().topicName(), retainMessageStore);
+                grozaRetainMessageStoreService.putIndex(internalMessage.getTopic());
             }
         }
     }
 
-    private void sendPublishMessage(String topic, MqttQoS mqttQoS, byte[] messageBytes, boolean retain, boolean dup) {
+    private void storeRetainMessage(String topic, MqttQoS mqttQoS, byte[] messageBytes, long expiryMillis) {
+        if (messageBytes.length == 0) {
+            grozaRetainMessageStoreService.remove(topic);
+        } else {
+            RetainMessageStore retainMessageStore = new RetainMessageStore().setTopic(topic).setMqttQoS(mqttQoS.value())
+                    .setMessageBytes(messageBytes).setExpiryMillis(expiryMillis);
+            grozaRetainMessageStoreService.put(topic, retainMessageStore);
+        }
+    }
+
+    private void sendPublishMessage(String publisherId, String topic, MqttQoS mqttQoS, ByteBuf payload, byte[] messageBytes,
+                                    boolean retain, boolean dup, long expiryMillis) {
         List<SubscribeStore> subscribeStores = grozaSubscribeStoreService.search(topic);
-        for (SubscribeStore subscribeStore : subscribeStores) {
-            if (grozaSessionStoreService.containsKey(subscribeStore.getClientId())) {
+        List<SharedSubscription> sharedSubscriptions = grozaSubscribeStoreService.searchShared(topic);
+        if (!sharedSubscriptions.isEmpty()) {
+            subscribeStores = new ArrayList<>(subscribeStores);
+            for (SharedSubscription sharedSubscription : sharedSubscriptions) {
+                SubscribeStore member = this.selectSharedMember(sharedSubscription, publisherId, topic);
+                if (member != null) {
+                    subscribeStores.add(member);
+                }
+            }
+        }
+        protocolMetrics.recordFanout(subscribeStores.size());
+        if (subscribeStores.isEmpty()) {
+            return;
+        }
+        byte[] topicBytes = topic.getBytes(CharsetUtil.UTF_8);
+        // QoS=0的MQTT 3.1.1订阅者报文完全相同, 只编码一次, 各订阅者共享同一个报文; MQTT 5订阅者的主题别名按连接分配
+        ByteBuf sharedPacket = null;
+        try {
+            for (SubscribeStore subscribeStore : subscribeStores) {
                 // 订阅者收到MQTT消息的QoS级别, 最终取决于发布消息的QoS和主题订阅的QoS
                 MqttQoS respQoS = mqttQoS.value() > subscribeStore.getMqttQoS() ? MqttQoS.valueOf(subscribeStore.getMqttQoS()) : mqttQoS;
-                if (respQoS == MqttQoS.AT_MOST_ONCE) {
-                    MqttPublishMessage publishMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.PUBLISH, dup, respQoS, retain, 0),
-                            new MqttPublishVariableHeader(topic, 0),
-                            Unpooled.buffer().writeBytes(messageBytes));
-                    log.info("PUBLISH - clientId: {}, topic: {}, Qos: {}", subscribeStore.getClientId(), topic, respQoS.value());
-                    grozaSessionStoreService.get(subscribeStore.getClientId()).getChannel().writeAndFlush(publishMessage);
-                }
-                if (respQoS == MqttQoS.AT_LEAST_ONCE) {
-                    int messageId = grozaMessageIdService.getNextMessageId();
-                    MqttPublishMessage publishMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.PUBLISH, dup, respQoS, retain, 0),
-                            new MqttPublishVariableHeader(topic, messageId), Unpooled.buffer().writeBytes(messageBytes));
-                    log.info("PUBLISH - clientId: {}, topic: {}, Qos: {}, messageId: {}", subscribeStore.getClientId(), topic, respQoS.value(), messageId);
-                    DupPublishMessageStore dupPublishMessageStore = new DupPublishMessageStore().setClientId(subscribeStore.getClientId())
-                            .setTopic(topic).setMqttQoS(respQoS.value()).setMessageBytes(messageBytes).setMessageId(messageId);
-                    grozaDupPublishMessageStoreService.put(subscribeStore.getClientId(), dupPublishMessageStore);
-                    grozaSessionStoreService.get(subscribeStore.getClientId()).getChannel().writeAndFlush(publishMessage);
+                SessionStore sessionStore = grozaSessionStoreService.get(subscribeStore.getClientId());
+                Channel channel = sessionStore == null ? null : sessionStore.getChannel();
+                if (channel == null || !channel.isActive()) {
+                    // 持久会话离线期间的QoS1/QoS2消息写入离线队列, 重连后补发
+                    if (respQoS != MqttQoS.AT_MOST_ONCE && grozaOfflineMessageStoreService.isPersistent(subscribeStore.getClientId())) {
+                        grozaOfflineMessageStoreService.put(subscribeStore.getClientId(), topic, respQoS.value(), messageBytes);
+                    }
+                    continue;
                 }
-                if (respQoS == MqttQoS.EXACTLY_ONCE) {
-                    int messageId = grozaMessageIdService.getNextMessageId() + 1;
-                    MqttPublishMessage publishMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.PUBLISH, dup, respQoS, retain, 0),
-                            new MqttPublishVariableHeader(topic, messageId), Unpooled.buffer().writeBytes(messageBytes));
-                    log.info("PUBLISH - clientId: {}, topic: {}, Qos: {}, messageId: {}", subscribeStore.getClientId(), topic, respQoS.value(), messageId);
-                    DupPublishMessageStore dupPublishMessageStore = new DupPublishMessageStore().setClientId(subscribeStore.getClientId())
-                            .setTopic(topic).setMqttQoS(respQoS.value()).setMessageBytes(messageBytes).setMessageId(messageId);
-                    grozaDupPublishMessageStoreService.put(subscribeStore.getClientId(), dupPublishMessageStore);
-                    grozaSessionStoreService.get(subscribeStore.getClientId()).getChannel().writeAndFlush(publishMessage);
+                if (respQoS == MqttQoS.AT_MOST_ONCE && Mqtt5Session.of(channel) != null) {
+                    messageTracer.trace(TraceType.PUBLISH_OUT, subscribeStore.getClientId(), topic, respQoS.value(), 0);
+                    slowConsumer.write(channel, subscribeStore.getClientId(),
+                            PublishPacketEncoder.encode(channel, topic, respQoS, retain, dup, 0, payload, expiryMillis));
+                } else if (respQoS == MqttQoS.AT_MOST_ONCE) {
+                    if (sharedPacket == null) {
+                        sharedPacket = PublishPacketEncoder.encode(channel.alloc(), topicBytes, respQoS, retain, dup, 0, payload);
+                    }
+                    messageTracer.trace(TraceType.PUBLISH_OUT, subscribeStore.getClientId(), topic, respQoS.value(), 0);
+                    slowConsumer.write(channel, subscribeStore.getClientId(), sharedPacket.retainedDuplicate());
+                } else {
+                    inFlight.publish(channel, subscribeStore.getClientId(), topic, respQoS, retain, payload, messageBytes, expiryMillis);
                 }
             }
+        } finally {
+            if (sharedPacket != null) {
+                sharedPacket.release();
+            }
+        }
+    }
+
+    /**
+     * 共享订阅组中选出一个成员; 选中的成员不在线时顺延到下一个在线成员, 都不在线时仍返回选中的成员(持久会话写入离线队列)
+     */
+    private SubscribeStore selectSharedMember(SharedSubscription sharedSubscription, String publisherId, String topic) {
+        SubscribeStore[] members = sharedSubscription.getMembers();
+        if (members.length == 0) {
+            return null;
+        }
+        int selected = sharedSubscriptionSelector.select(sharedSubscription, members, publisherId, topic);
+        for (int i = 0; i < members.length; i++) {
+            SubscribeStore member = members[(selected + i) % members.length];
+            SessionStore sessionStore = grozaSessionStoreService.get(member.getClientId());
+            if (sessionStore != null && sessionStore.getChannel().isActive()) {
+                return member;
+            }
         }
+        return members[selected];
     }
 
     private void sendPubAckMessage(Channel channel, int messageId) {
@@ -0,0 +1,82 @@
+package com.sanshengshui.iot.protocol;
+
+import com.sanshengshui.iot.common.subscribe.SharedSubscription;
+import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author james
+ * 共享订阅成员选择策略, 返回成员数组下标; 选择在发布路径上执行, 耗时与组内成员数无关
+ */
+public interface SharedSubscriptionSelector {
+
+    int select(SharedSubscription sharedSubscription, SubscribeStore[] members, String publisherId, String topic);
+
+    /**
+     * 按配置名创建: round_robin / least_inflight / sticky
+     */
+    static SharedSubscriptionSelector of(String strategy, InFlight inFlight) {
+        switch (strategy) {
+            case "least_inflight":
+                return new LeastInFlight(inFlight);
+            case "sticky":
+                return new Sticky();
+            case "round_robin":
+                return new RoundRobin();
+            default:
+                throw new IllegalArgumentException("Unknown shared subscription strategy: " + strategy);
+        }
+    }
+
+    /**
+     * 轮询
+     */
+    class RoundRobin implements SharedSubscriptionSelector {
+
+        @Override
+        public int select(SharedSubscription sharedSubscription, SubscribeStore[] members, String publisherId, String topic) {
+            return sharedSubscription.nextCursor() % members.length;
+        }
+    }
+
+    /**
+     * 在途消息较少者: 随机取两个成员比较在途数量(two random choices), 不遍历整个组
+     */
+    class LeastInFlight implements SharedSubscriptionSelector {
+
+        private final InFlight inFlight;
+
+        public LeastInFlight(InFlight inFlight) {
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public int select(SharedSubscription sharedSubscription, SubscribeStore[] members, String publisherId, String topic) {
+            if (members.length == 1) {
+                return 0;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(members.length);
+            int second = random.nextInt(members.length - 1);
+            if (second >= first) {
+                second++;
+            }
+            int firstLoad = inFlight.inFlightCount(members[first].getClientId()) + inFlight.pendingCount(members[first].getClientId());
+            int secondLoad = inFlight.inFlightCount(members[second].getClientId()) + inFlight.pendingCount(members[second].getClientId());
+            return secondLoad < firstLoad ? second : first;
+        }
+    }
+
+    /**
+     * 按发布者clientId散列, 同一发布者的消息在成员不变时总由同一成员处理; 没有发布者时按主题散列
+     */
+    class Sticky implements SharedSubscriptionSelector {
+
+        @Override
+        public int select(SharedSubscription sharedSubscription, SubscribeStore[] members, String publisherId, String topic) {
+            String key = publisherId == null ? topic : publisherId;
+            return (key.hashCode() & Integer.MAX_VALUE) % members.length;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.sanshengshui.iot.protocol;
+
+import com.sanshengshui.iot.server.ConnectionContext;
+import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * 慢消费者的QoS0下发策略. 订阅者连接的发送缓冲区超过高水位(不可写)时, QoS0消息按策略处理:
+ * drop_oldest在连接上排队, 队列满时丢弃最早的消息; drop_newest丢弃新消息; disconnect断开连接.
+ * 连接恢复可写后按顺序补发排队的消息, 队列存放在连接的ConnectionContext中. QoS1/QoS2由InFlight转入等待队列或离线队列
+ */
+@Slf4j
+public class SlowConsumer {
+
+    public enum Policy {
+        DROP_OLDEST, DROP_NEWEST, DISCONNECT;
+
+        public static Policy of(String name) {
+            return Policy.valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private final Policy policy;
+
+    private final int maxQueued;
+
+    private final LongAdder unwritable = new LongAdder();
+
+    private final LongAdder queued = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder disconnected = new LongAdder();
+
+    public SlowConsumer(Policy policy, int maxQueued) {
+        this.policy = policy;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * 下发QoS0报文(ByteBuf或MqttMessage), packet的引用转交给本方法. 消息被丢弃时返回false
+     */
+    public boolean write(Channel channel, String clientId, Object packet) {
+        Queue<Object> queue = queue(channel);
+        if (queue == null) {
+            if (channel.isWritable()) {
+                channel.writeAndFlush(packet);
+                return true;
+            }
+        } else {
+            synchronized (queue) {
+                // 有积压时新消息排在后面, 保证下发顺序
+                if (queue.isEmpty() && channel.isWritable()) {
+                    channel.writeAndFlush(packet);
+                    return true;
+                }
+            }
+        }
+        switch (policy) {
+            case DROP_NEWEST:
+                ReferenceCountUtil.release(packet);
+                dropped.increment();
+                return false;
+            case DISCONNECT:
+                ReferenceCountUtil.release(packet);
+                if (channel.isActive()) {
+                    disconnected.increment();
+                    log.warn("Slow consumer - clientId: {}, outbound buffer above high water mark, disconnecting", clientId);
+                    channel.close();
+                }
+                return false;
+            default:
+                return this.enqueue(channel, packet);
+        }
+    }
+
+    /**
+     * 连接的发送缓冲区超过高水位
+     */
+    public void unwritable(Channel channel) {
+        unwritable.increment();
+    }
+
+    /**
+     * 连接恢复可写, 补发排队的QoS0消息, 直到再次不可写
+     */
+    public void writable(Channel channel) {
+        Queue<Object> queue = queue(channel);
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            boolean written = false;
+            Object packet;
+            while (channel.isWritable() && (packet = queue.poll()) != null) {
+                channel.write(packet);
+                written = true;
+            }
+            if (written) {
+                channel.flush();
+            }
+        }
+    }
+
+    /**
+     * 连接关闭, 释放排队的消息
+     */
+    public void closed(Channel channel) {
+        ConnectionContext context = ConnectionContext.get(channel);
+        Queue<Object> queue = context == null ? null : context.removeSlowConsumerQueue();
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            Object packet;
+            while ((packet = queue.poll()) != null) {
+                ReferenceCountUtil.release(packet);
+                dropped.increment();
+            }
+        }
+    }
+
+    public int queuedCount(Channel channel) {
+        Queue<Object> queue = queue(channel);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("qos0Policy", policy.name().toLowerCase());
+        map.put("unwritable", unwritable.sum());
+        map.put("qos0Queued", queued.sum());
+        map.put("qos0Dropped", dropped.sum());
+        map.put("disconnected", disconnected.sum());
+        return map;
+    }
+
+    private boolean enqueue(Channel channel, Object packet) {
+        Queue<Object> queue = ConnectionContext.of(channel).slowConsumerQueue();
+        synchronized (queue) {
+            if (!channel.isActive()) {
+                ReferenceCountUtil.release(packet);
+                dropped.increment();
+                return false;
+            }
+            if (queue.size() >= maxQueued) {
+                ReferenceCountUtil.release(queue.poll());
+                dropped.increment();
+            }
+            queue.add(packet);
+            queued.increment();
+        }
+        // 入队期间连接可能已恢复可写, 可写事件不会再次触发
+        if (channel.isWritable()) {
+            this.writable(channel);
+        }
+        return true;
+    }
+
+    private static Queue<Object> queue(Channel channel) {
+        ConnectionContext context = ConnectionContext.get(channel);
+        return context == null ? null : context.getSlowConsumerQueue();
+    }
+}
@@ -1,18 +1,21 @@
 package com.sanshengshui.iot.protocol;
 
 import cn.hutool.core.util.StrUtil;
-import com.sanshengshui.iot.common.message.GrozaMessageIdService;
+import com.sanshengshui.iot.codec.PublishPacketEncoder;
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
 import com.sanshengshui.iot.common.message.GrozaRetainMessageStoreService;
 import com.sanshengshui.iot.common.message.RetainMessageStore;
 import com.sanshengshui.iot.common.session.GrozaSessionStoreService;
 import com.sanshengshui.iot.common.session.SessionStore;
 import com.sanshengshui.iot.common.subscribe.GrozaSubscribeStoreService;
 import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.common.topic.TopicUtil;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,44 +23,66 @@ import java.util.List;
 /**
  * SUBSCRIBE连接处理
  */
-@Slf4j
 public class Subscribe {
 
     private GrozaSessionStoreService grozaSessionStoreService;
 
     private GrozaSubscribeStoreService grozaSubscribeStoreService;
 
-    private GrozaMessageIdService grozaMessageIdService;
-
     private GrozaRetainMessageStoreService grozaRetainMessageStoreService;
 
+    private GrozaClusterService grozaClusterService;
+
+    private InFlight inFlight;
+
+    private SlowConsumer slowConsumer;
+
+    private MessageTracer messageTracer;
+
     public Subscribe(GrozaSubscribeStoreService grozaSubscribeStoreService,
-                     GrozaMessageIdService grozaMessageIdService,
-                     GrozaRetainMessageStoreService grozaRetainMessageStoreService){
+                     GrozaRetainMessageStoreService grozaRetainMessageStoreService,
+                     GrozaClusterService grozaClusterService,
+                     InFlight inFlight,
+                     SlowConsumer slowConsumer,
+                     MessageTracer messageTracer){
         this.grozaSubscribeStoreService = grozaSubscribeStoreService;
-        this.grozaMessageIdService = grozaMessageIdService;
         this.grozaRetainMessageStoreService = grozaRetainMessageStoreService;
+        this.grozaClusterService = grozaClusterService;
+        this.inFlight = inFlight;
+        this.slowConsumer = slowConsumer;
+        this.messageTracer = messageTracer;
     }
 
     public void processSubscribe(Channel channel, MqttSubscribeMessage msg) {
         List<MqttTopicSubscription> topicSubscriptions = msg.payload().topicSubscriptions();
         if (this.validTopicFilter(topicSubscriptions)) {
-            String clientId = (String) channel.attr(AttributeKey.valueOf("clientId")).get();
-            List<Integer> mqttQoSList = new ArrayList<Integer>();
+            String clientId = ConnectionContext.clientId(channel);
+            List<Integer> mqttQoSList = new ArrayList<Integer>(topicSubscriptions.size());
             for(MqttTopicSubscription mqttTopicSubscription : topicSubscriptions){
                 String topicFilter = mqttTopicSubscription.topicName();
                 MqttQoS mqttQoS = mqttTopicSubscription.qualityOfService();
-                MqttSubAckMessage subAckMessage = (MqttSubAckMessage) MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.SUBACK, false, mqttQoS, false, 0),
-                        MqttMessageIdVariableHeader.from(msg.variableHeader().messageId()),
-                        new MqttSubAckPayload(mqttQoSList));
-                channel.writeAndFlush(subAckMessage);
-                this.sendRetainMessage(channel, topicFilter, mqttQoS);
-
+                if (TopicUtil.isShared(topicFilter) && !grozaClusterService.isSharedSubscriptionSupported()) {
+                    mqttQoSList.add(MqttQoS.FAILURE.value());
+                    messageTracer.trace(TraceType.SUBSCRIBE, clientId, topicFilter, MqttQoS.FAILURE.value(), msg.variableHeader().messageId());
+                    continue;
+                }
                 SubscribeStore subscribeStore = new SubscribeStore(clientId, topicFilter, mqttQoS.value());
                 grozaSubscribeStoreService.put(topicFilter, subscribeStore);
+                grozaClusterService.subscribe(clientId, topicFilter);
                 mqttQoSList.add(mqttQoS.value());
-                log.info("SUBSCRIBE - clientId: {}, topFilter: {}, QoS: {}", clientId, topicFilter, mqttQoS.value());
+                messageTracer.trace(TraceType.SUBSCRIBE, clientId, topicFilter, mqttQoS.value(), msg.variableHeader().messageId());
+            }
+            // MqttSubAckPayload会拷贝返回码列表, 所有订阅处理完后一次回复, 保留消息在SUBACK之后发送
+            MqttSubAckMessage subAckMessage = (MqttSubAckMessage) MqttMessageFactory.newMessage(
+                    new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                    MqttMessageIdVariableHeader.from(msg.variableHeader().messageId()),
+                    new MqttSubAckPayload(mqttQoSList));
+            channel.writeAndFlush(subAckMessage);
+            for (MqttTopicSubscription mqttTopicSubscription : topicSubscriptions) {
+                // 共享订阅不发送保留消息
+                if (!TopicUtil.isShared(mqttTopicSubscription.topicName())) {
+                    this.sendRetainMessage(channel, mqttTopicSubscription.topicName(), mqttTopicSubscription.qualityOfService());
+                }
             }
         } else {
             channel.close();
@@ -67,6 +92,13 @@ public class Subscribe {
     private boolean validTopicFilter(List<MqttTopicSubscription> topicSubscriptions) {
         for (MqttTopicSubscription topicSubscription : topicSubscriptions) {
             String topicFilter = topicSubscription.topicName();
+            // 共享订阅$share/{group}/{topicFilter}: 组名不能为空、不能含通配符, 其后的主题过滤器按普通订阅校验
+            if (TopicUtil.isShared(topicFilter)) {
+                if (TopicUtil.shareGroup(topicFilter) == null) {
+                    return false;
+                }
+                topicFilter = TopicUtil.shareFilter(topicFilter);
+            }
             // 以#或+符号开头的、以/符号结尾的订阅按非法订阅处理, 这里没有参考标准协议
             if (StrUtil.startWith(topicFilter, '+') || StrUtil.endWith(topicFilter, '/')) {
                 return false;
@@ -90,31 +122,24 @@ public class Subscribe {
     }
 
     private void sendRetainMessage(Channel channel, String topicFilter, MqttQoS mqttQoS) {
+        String clientId = ConnectionContext.clientId(channel);
         List<RetainMessageStore> retainMessageStores = grozaRetainMessageStoreService.search(topicFilter);
+        long now = System.currentTimeMillis();
         retainMessageStores.forEach(retainMessageStore -> {
+            // 过期的保留消息不再下发
+            if (retainMessageStore.isExpired(now)) {
+                return;
+            }
             MqttQoS respQoS = retainMessageStore.getMqttQoS() > mqttQoS.value() ? mqttQoS : MqttQoS.valueOf(retainMessageStore.getMqttQoS());
             if (respQoS == MqttQoS.AT_MOST_ONCE) {
-                MqttPublishMessage publishMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, respQoS, false, 0),
-                        new MqttPublishVariableHeader(retainMessageStore.getTopic(), 0), Unpooled.buffer().writeBytes(retainMessageStore.getMessageBytes()));
-                log.info("PUBLISH - clientId: {}, topic: {}, Qos: {}", (String) channel.attr(AttributeKey.valueOf("clientId")).get(), retainMessageStore.getTopic(), respQoS.value());
-                channel.writeAndFlush(publishMessage);
-            }
-            if (respQoS == MqttQoS.AT_LEAST_ONCE) {
-                int messageId = grozaMessageIdService.getNextMessageId();
-                MqttPublishMessage publishMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, respQoS, false, 0),
-                        new MqttPublishVariableHeader(retainMessageStore.getTopic(), messageId), Unpooled.buffer().writeBytes(retainMessageStore.getMessageBytes()));
-                log.info("PUBLISH - clientId: {}, topic: {}, Qos: {}, messageId: {}", (String) channel.attr(AttributeKey.valueOf("clientId")).get(), retainMessageStore.getTopic(), respQoS.value(), messageId);
-                channel.writeAndFlush(publishMessage);
+                messageTracer.trace(TraceType.PUBLISH_OUT, clientId, retainMessageStore.getTopic(), respQoS.value(), 0);
+                slowConsumer.write(channel, clientId, PublishPacketEncoder.encode(channel, retainMessageStore.getTopic(), respQoS, false,
+                        false, 0, Unpooled.wrappedBuffer(retainMessageStore.getMessageBytes()), retainMessageStore.getExpiryMillis()));
             }
-            if (respQoS == MqttQoS.EXACTLY_ONCE) {
-                int messageId = grozaMessageIdService.getNextMessageId();
-                MqttPublishMessage publishMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, respQoS, false, 0),
-                        new MqttPublishVariableHeader(retainMessageStore.getTopic(), messageId), Unpooled.buffer().writeBytes(retainMessageStore.getMessageBytes()));
-                log.info("PUBLISH - clientId: {}, topic: {}, Qos: {}, messageId: {}", (String) channel.attr(AttributeKey.valueOf("clientId")).get(), retainMessageStore.getTopic(), respQoS.value(), messageId);
-                channel.writeAndFlush(publishMessage);
+            if (respQoS == MqttQoS.AT_LEAST_ONCE || respQoS == MqttQoS.EXACTLY_ONCE) {
+                inFlight.publish(channel, clientId, retainMessageStore.getTopic(), respQoS, false,
+                        Unpooled.wrappedBuffer(retainMessageStore.getMessageBytes()), retainMessageStore.getMessageBytes(),
+                        retainMessageStore.getExpiryMillis());
             }
         });
     }
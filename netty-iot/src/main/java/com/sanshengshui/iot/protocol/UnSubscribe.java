@@ -1,28 +1,36 @@
 package com.sanshengshui.iot.protocol;
 
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
 import com.sanshengshui.iot.common.subscribe.GrozaSubscribeStoreService;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import com.sanshengshui.iot.trace.TraceType;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
-import io.netty.util.AttributeKey;
-import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
 
-@Slf4j
 public class UnSubscribe {
 
     private GrozaSubscribeStoreService grozaSubscribeStoreService;
 
-    public UnSubscribe(GrozaSubscribeStoreService grozaSubscribeStoreService){
+    private GrozaClusterService grozaClusterService;
+
+    private MessageTracer messageTracer;
+
+    public UnSubscribe(GrozaSubscribeStoreService grozaSubscribeStoreService, GrozaClusterService grozaClusterService, MessageTracer messageTracer){
         this.grozaSubscribeStoreService = grozaSubscribeStoreService;
+        this.grozaClusterService = grozaClusterService;
+        this.messageTracer = messageTracer;
     }
 
     public void processUnSubscribe(Channel channel, MqttUnsubscribeMessage msg) {
         List<String> topicFilters = msg.payload().topics();
-        String clinetId = (String) channel.attr(AttributeKey.valueOf("clientId")).get();
+        String clinetId = ConnectionContext.clientId(channel);
         topicFilters.forEach(topicFilter -> {
             grozaSubscribeStoreService.remove(topicFilter, clinetId);
-            log.info("UNSUBSCRIBE - clientId: {}, topicFilter: {}", clinetId, topicFilter);
+            grozaClusterService.unsubscribe(clinetId, topicFilter);
+            messageTracer.trace(TraceType.UNSUBSCRIBE, clinetId, topicFilter, 0, msg.variableHeader().messageId());
         });
         MqttUnsubAckMessage unsubAckMessage = (MqttUnsubAckMessage) MqttMessageFactory.newMessage(
                 new MqttFixedHeader(MqttMessageType.UNSUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
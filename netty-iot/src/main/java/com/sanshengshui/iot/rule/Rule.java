@@ -0,0 +1,101 @@
+package com.sanshengshui.iot.rule;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * @author james
+ * 编译后的规则: 主题过滤器、WHERE条件和动作. 由RuleParser从语句编译, 不可变
+ */
+public final class Rule {
+
+    public enum Action {
+        FORWARD, DROP, RETOPIC, SAMPLE;
+
+        public static Action of(String name) {
+            return Action.valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private final int order;
+
+    private final String statement;
+
+    private final List<String> topicFilters;
+
+    private final Predicate<RuleContext> condition;
+
+    private final Action action;
+
+    /**
+     * RETOPIC的目标主题模板
+     */
+    private final List<Function<RuleContext, Object>> topicTemplate;
+
+    /**
+     * SAMPLE的转发比例, 0~1
+     */
+    private final double sampleRate;
+
+    private final LongAdder matched = new LongAdder();
+
+    Rule(int order, String statement, List<String> topicFilters, Predicate<RuleContext> condition, Action action,
+         List<Function<RuleContext, Object>> topicTemplate, double sampleRate) {
+        this.order = order;
+        this.statement = statement;
+        this.topicFilters = Collections.unmodifiableList(topicFilters);
+        this.condition = condition;
+        this.action = action;
+        this.topicTemplate = topicTemplate;
+        this.sampleRate = sampleRate;
+    }
+
+    public boolean test(RuleContext context) {
+        return condition.test(context);
+    }
+
+    /**
+     * RETOPIC的目标主题, 模板中取不到值的字段为空串
+     */
+    public String retopic(RuleContext context) {
+        StringBuilder topic = new StringBuilder();
+        for (Function<RuleContext, Object> part : topicTemplate) {
+            Object value = part.apply(context);
+            if (value != null) {
+                topic.append(value);
+            }
+        }
+        return topic.toString();
+    }
+
+    void hit() {
+        matched.increment();
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public String getStatement() {
+        return statement;
+    }
+
+    public List<String> getTopicFilters() {
+        return topicFilters;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getMatchedCount() {
+        return matched.sum();
+    }
+}
@@ -0,0 +1,79 @@
+package com.sanshengshui.iot.rule;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sanshengshui.iot.internal.InternalMessage;
+import io.netty.util.CharsetUtil;
+
+/**
+ * @author james
+ * 一条消息的规则求值上下文. 消息体只在规则用到payload字段时才按JSON解析, 且每条消息只解析一次
+ */
+public final class RuleContext {
+
+    private final InternalMessage message;
+
+    private String payloadText;
+
+    private JsonElement payloadJson;
+
+    public RuleContext(InternalMessage message) {
+        this.message = message;
+    }
+
+    public InternalMessage getMessage() {
+        return message;
+    }
+
+    String payloadText() {
+        if (payloadText == null) {
+            byte[] messageBytes = message.getMessageBytes();
+            payloadText = messageBytes == null ? "" : new String(messageBytes, CharsetUtil.UTF_8);
+        }
+        return payloadText;
+    }
+
+    /**
+     * 按路径取JSON字段: 数值返回Double, 布尔返回Boolean, 对象和数组返回JSON文本, 不存在或不是JSON时返回null
+     */
+    Object payloadField(String[] path) {
+        JsonElement element = this.payloadJson();
+        for (String name : path) {
+            if (!element.isJsonObject()) {
+                return null;
+            }
+            element = element.getAsJsonObject().get(name);
+            if (element == null) {
+                return null;
+            }
+        }
+        if (element.isJsonNull()) {
+            return null;
+        }
+        if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isNumber()) {
+                return primitive.getAsDouble();
+            }
+            if (primitive.isBoolean()) {
+                return primitive.getAsBoolean();
+            }
+            return primitive.getAsString();
+        }
+        return element.toString();
+    }
+
+    private JsonElement payloadJson() {
+        if (payloadJson == null) {
+            try {
+                payloadJson = new JsonParser().parse(this.payloadText());
+            } catch (JsonParseException e) {
+                payloadJson = JsonNull.INSTANCE;
+            }
+        }
+        return payloadJson;
+    }
+}
@@ -0,0 +1,134 @@
+package com.sanshengshui.iot.rule;
+
+import com.sanshengshui.iot.common.message.GrozaKafkaService;
+import com.sanshengshui.iot.internal.InternalMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * 内置规则引擎, 在PUBLISH转发到kafka之前按规则过滤和改写: 转发、丢弃、改写主题后转发、按比例抽样转发.
+ * 只作用于kafka转发, 不影响本节点和集群内订阅者的投递. 规则可在运行时整体替换, 未配置规则时只有一次volatile读
+ */
+@Slf4j
+@Component
+public class RuleEngine {
+
+    @Value("${mqtt.rule.statements:}")
+    private String statements;
+    @Value("${mqtt.rule.default_action:forward}")
+    private String defaultAction;
+
+    private volatile RuleSet ruleSet = RuleSet.NONE;
+
+    private final LongAdder forwarded = new LongAdder();
+
+    private final LongAdder retopiced = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder sampledOut = new LongAdder();
+
+    private final LongAdder unmatched = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        ruleSet = RuleSet.parse(statements, Rule.Action.of(defaultAction));
+        log.info("Loaded {} rule(s), default action: {}", ruleSet.getRules().size(), ruleSet.getDefaultAction());
+    }
+
+    /**
+     * 经过规则引擎的kafka转发
+     */
+    public GrozaKafkaService bridge(GrozaKafkaService delegate) {
+        return internalMessage -> this.route(internalMessage, delegate);
+    }
+
+    public void route(InternalMessage internalMessage, GrozaKafkaService delegate) {
+        RuleSet current = ruleSet;
+        if (current.getRules().isEmpty()) {
+            this.apply(current.getDefaultAction(), internalMessage, delegate);
+            return;
+        }
+        RuleContext context = new RuleContext(internalMessage);
+        Rule rule = current.match(context);
+        if (rule == null) {
+            unmatched.increment();
+            this.apply(current.getDefaultAction(), internalMessage, delegate);
+            return;
+        }
+        rule.hit();
+        switch (rule.getAction()) {
+            case RETOPIC:
+                retopiced.increment();
+                delegate.send(new InternalMessage()
+                        .setTopic(rule.retopic(context))
+                        .setMqttQoS(internalMessage.getMqttQoS())
+                        .setMessageBytes(internalMessage.getMessageBytes())
+                        .setDup(internalMessage.isDup())
+                        .setRetain(internalMessage.isRetain())
+                        .setClientId(internalMessage.getClientId()));
+                break;
+            case SAMPLE:
+                if (ThreadLocalRandom.current().nextDouble() < rule.getSampleRate()) {
+                    forwarded.increment();
+                    delegate.send(internalMessage);
+                } else {
+                    sampledOut.increment();
+                }
+                break;
+            default:
+                this.apply(rule.getAction(), internalMessage, delegate);
+                break;
+        }
+    }
+
+    /**
+     * 替换全部规则, 语句有误时抛出IllegalArgumentException, 原规则不变
+     */
+    public synchronized void replace(String statements) {
+        ruleSet = RuleSet.parse(statements, ruleSet.getDefaultAction());
+    }
+
+    public synchronized void setDefaultAction(Rule.Action defaultAction) {
+        ruleSet = new RuleSet(ruleSet.getRules(), defaultAction);
+    }
+
+    public Map<String, Object> snapshot() {
+        RuleSet current = ruleSet;
+        List<Map<String, Object>> rules = new ArrayList<>();
+        for (Rule rule : current.getRules()) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("statement", rule.getStatement());
+            map.put("matched", rule.getMatchedCount());
+            rules.add(map);
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("defaultAction", current.getDefaultAction().name().toLowerCase());
+        map.put("rules", rules);
+        map.put("forwarded", forwarded.sum());
+        map.put("retopiced", retopiced.sum());
+        map.put("dropped", dropped.sum());
+        map.put("sampledOut", sampledOut.sum());
+        map.put("unmatched", unmatched.sum());
+        return map;
+    }
+
+    private void apply(Rule.Action action, InternalMessage internalMessage, GrozaKafkaService delegate) {
+        if (action == Rule.Action.DROP) {
+            dropped.increment();
+        } else {
+            forwarded.increment();
+            delegate.send(internalMessage);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package com.sanshengshui.iot.rule;
+
+import com.sanshengshui.iot.common.topic.TopicUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * @author james
+ * 规则语句编译器, 类SQL语法, 关键字不区分大小写:
+ * <pre>
+ * SELECT * FROM 'devices/+/telemetry'[, '主题过滤器'...] [WHERE 条件] [DO FORWARD | DROP | RETOPIC '主题模板' | SAMPLE 比例]
+ * </pre>
+ * 条件支持AND、OR、NOT、括号, 比较运算符= != &lt;&gt; &lt; &lt;= &gt; &gt;=, 以及IS [NOT] NULL.
+ * 字段: topic, clientId, qos, retain, payload(消息体文本), payload.a.b(消息体JSON字段).
+ * 主题模板中用{字段}引用字段, 如'alerts/{clientId}/{payload.level}'. 省略DO时为FORWARD
+ */
+public final class RuleParser {
+
+    private static final int WORD = 0;
+
+    private static final int STRING = 1;
+
+    private static final int NUMBER = 2;
+
+    private static final int SYMBOL = 3;
+
+    private static final int END = 4;
+
+    private final String statement;
+
+    private final List<Token> tokens;
+
+    private int index;
+
+    private RuleParser(String statement) {
+        this.statement = statement;
+        this.tokens = this.tokenize();
+    }
+
+    /**
+     * 编译分号分隔的多条规则, 规则顺序即匹配顺序
+     */
+    public static List<Rule> parseAll(String statements) {
+        List<Rule> rules = new ArrayList<>();
+        if (statements == null) {
+            return rules;
+        }
+        for (String statement : split(statements)) {
+            if (!statement.trim().isEmpty()) {
+                rules.add(parse(rules.size(), statement.trim()));
+            }
+        }
+        return rules;
+    }
+
+    public static Rule parse(int order, String statement) {
+        return new RuleParser(statement).rule(order);
+    }
+
+    private Rule rule(int order) {
+        this.expectKeyword("SELECT");
+        this.expectSymbol("*");
+        this.expectKeyword("FROM");
+        List<String> topicFilters = new ArrayList<>();
+        do {
+            String topicFilter = this.expect(STRING, "topic filter").text;
+            if (topicFilter.isEmpty()) {
+                throw this.error("empty topic filter");
+            }
+            topicFilters.add(topicFilter);
+        } while (this.acceptSymbol(","));
+        Predicate<RuleContext> condition = context -> true;
+        if (this.acceptKeyword("WHERE")) {
+            condition = this.or();
+        }
+        Rule.Action action = Rule.Action.FORWARD;
+        List<Function<RuleContext, Object>> topicTemplate = Collections.emptyList();
+        double sampleRate = 1;
+        if (this.acceptKeyword("DO")) {
+            Token name = this.expect(WORD, "action");
+            try {
+                action = Rule.Action.of(name.text);
+            } catch (IllegalArgumentException e) {
+                throw this.error("unknown action " + name.text);
+            }
+            if (action == Rule.Action.RETOPIC) {
+                topicTemplate = this.template(this.expect(STRING, "topic template").text);
+            } else if (action == Rule.Action.SAMPLE) {
+                sampleRate = Double.parseDouble(this.expect(NUMBER, "sample rate").text);
+                if (sampleRate < 0 || sampleRate > 1) {
+                    throw this.error("sample rate must be between 0 and 1");
+                }
+            }
+        }
+        this.expect(END, "end of rule");
+        return new Rule(order, statement, topicFilters, condition, action, topicTemplate, sampleRate);
+    }
+
+    private Predicate<RuleContext> or() {
+        Predicate<RuleContext> left = this.and();
+        while (this.acceptKeyword("OR")) {
+            left = left.or(this.and());
+        }
+        return left;
+    }
+
+    private Predicate<RuleContext> and() {
+        Predicate<RuleContext> left = this.not();
+        while (this.acceptKeyword("AND")) {
+            left = left.and(this.not());
+        }
+        return left;
+    }
+
+    private Predicate<RuleContext> not() {
+        if (this.acceptKeyword("NOT")) {
+            return this.not().negate();
+        }
+        return this.primary();
+    }
+
+    private Predicate<RuleContext> primary() {
+        if (this.acceptSymbol("(")) {
+            Predicate<RuleContext> condition = this.or();
+            this.expectSymbol(")");
+            return condition;
+        }
+        Function<RuleContext, Object> left = this.operand();
+        if (this.acceptKeyword("IS")) {
+            boolean not = this.acceptKeyword("NOT");
+            this.expectKeyword("NULL");
+            return not ? context -> left.apply(context) != null : context -> left.apply(context) == null;
+        }
+        Token operator = this.expect(SYMBOL, "comparison operator");
+        IntPredicate result;
+        switch (operator.text) {
+            case "=":
+                result = c -> c == 0;
+                break;
+            case "!=":
+            case "<>":
+                result = c -> c != 0;
+                break;
+            case "<":
+                result = c -> c < 0;
+                break;
+            case "<=":
+                result = c -> c <= 0;
+                break;
+            case ">":
+                result = c -> c > 0;
+                break;
+            case ">=":
+                result = c -> c >= 0;
+                break;
+            default:
+                throw this.error("unexpected " + operator.text);
+        }
+        Function<RuleContext, Object> right = this.operand();
+        // 任一侧为null或无法比较时条件不成立, 与SQL一致
+        return context -> {
+            Object l = left.apply(context);
+            Object r = l == null ? null : right.apply(context);
+            if (r == null) {
+                return false;
+            }
+            Integer c = compare(l, r);
+            return c != null && result.test(c);
+        };
+    }
+
+    private Function<RuleContext, Object> operand() {
+        Token token = this.next();
+        switch (token.type) {
+            case STRING:
+                return context -> token.text;
+            case NUMBER:
+                Double number = Double.valueOf(token.text);
+                return context -> number;
+            case WORD:
+                if ("TRUE".equalsIgnoreCase(token.text) || "FALSE".equalsIgnoreCase(token.text)) {
+                    Boolean bool = Boolean.valueOf(token.text.toLowerCase());
+                    return context -> bool;
+                }
+                return this.field(token.text);
+            default:
+                throw this.error("expected field or value but found " + token.describe());
+        }
+    }
+
+    private Function<RuleContext, Object> field(String name) {
+        String lower = name.toLowerCase();
+        switch (lower) {
+            case "topic":
+                return context -> context.getMessage().getTopic();
+            case "clientid":
+                return context -> context.getMessage().getClientId();
+            case "qos":
+                return context -> (double) context.getMessage().getMqttQoS();
+            case "retain":
+                return context -> context.getMessage().isRetain();
+            case "payload":
+                return RuleContext::payloadText;
+            default:
+                if (lower.startsWith("payload.") && name.length() > "payload.".length()) {
+                    String[] path = name.substring("payload.".length()).split("\\.");
+                    return context -> context.payloadField(path);
+                }
+                throw this.error("unknown field " + name);
+        }
+    }
+
+    private List<Function<RuleContext, Object>> template(String template) {
+        if (template.isEmpty() || TopicUtil.isWildcard(template)) {
+            throw this.error("topic template must be a non-empty topic name");
+        }
+        List<Function<RuleContext, Object>> parts = new ArrayList<>();
+        int start = 0;
+        int open;
+        while ((open = template.indexOf('{', start)) >= 0) {
+            int close = template.indexOf('}', open);
+            if (close < 0) {
+                throw this.error("unclosed { in topic template");
+            }
+            if (open > start) {
+                String literal = template.substring(start, open);
+                parts.add(context -> literal);
+            }
+            parts.add(this.field(template.substring(open + 1, close).trim()));
+            start = close + 1;
+        }
+        if (start < template.length()) {
+            String literal = template.substring(start);
+            parts.add(context -> literal);
+        }
+        return parts;
+    }
+
+    /**
+     * 有数值一侧时按数值比较, 字符串无法转为数值时不可比较; 布尔按false&lt;true; 其余按字符串比较
+     */
+    static Integer compare(Object left, Object right) {
+        if (left instanceof Double || right instanceof Double) {
+            Double l = toNumber(left);
+            Double r = toNumber(right);
+            return l == null || r == null ? null : Double.compare(l, r);
+        }
+        if (left instanceof Boolean || right instanceof Boolean) {
+            return Boolean.compare(Boolean.parseBoolean(left.toString()), Boolean.parseBoolean(right.toString()));
+        }
+        return left.toString().compareTo(right.toString());
+    }
+
+    private static Double toNumber(Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        }
+        if (value instanceof String) {
+            try {
+                return Double.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按引号外的分号拆分语句
+     */
+    private static List<String> split(String statements) {
+        List<String> result = new ArrayList<>();
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < statements.length(); i++) {
+            char c = statements.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                result.add(statements.substring(start, i));
+                start = i + 1;
+            }
+        }
+        result.add(statements.substring(start));
+        return result;
+    }
+
+    private List<Token> tokenize() {
+        List<Token> result = new ArrayList<>();
+        int i = 0;
+        int length = statement.length();
+        while (i < length) {
+            char c = statement.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'' || c == '"') {
+                // 引号内连续两个引号表示引号本身
+                StringBuilder text = new StringBuilder();
+                int start = i++;
+                for (;;) {
+                    if (i >= length) {
+                        throw new IllegalArgumentException("Invalid rule: unclosed string at " + start + " - " + statement);
+                    }
+                    char ch = statement.charAt(i++);
+                    if (ch == c) {
+                        if (i < length && statement.charAt(i) == c) {
+                            text.append(c);
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        text.append(ch);
+                    }
+                }
+                result.add(new Token(STRING, text.toString(), start));
+            } else if (Character.isDigit(c) || (c == '-' && i + 1 < length && Character.isDigit(statement.charAt(i + 1)))) {
+                int start = i++;
+                while (i < length && (Character.isDigit(statement.charAt(i)) || statement.charAt(i) == '.')) {
+                    i++;
+                }
+                result.add(new Token(NUMBER, statement.substring(start, i), start));
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i++;
+                while (i < length && (Character.isLetterOrDigit(statement.charAt(i)) || statement.charAt(i) == '_' || statement.charAt(i) == '.')) {
+                    i++;
+                }
+                result.add(new Token(WORD, statement.substring(start, i), start));
+            } else if (i + 1 < length && (statement.startsWith("<=", i) || statement.startsWith(">=", i)
+                    || statement.startsWith("<>", i) || statement.startsWith("!=", i))) {
+                result.add(new Token(SYMBOL, statement.substring(i, i + 2), i));
+                i += 2;
+            } else if ("=<>(),*".indexOf(c) >= 0) {
+                result.add(new Token(SYMBOL, String.valueOf(c), i));
+                i++;
+            } else {
+                throw new IllegalArgumentException("Invalid rule: unexpected '" + c + "' at " + i + " - " + statement);
+            }
+        }
+        result.add(new Token(END, "", length));
+        return result;
+    }
+
+    private Token next() {
+        Token token = tokens.get(index);
+        if (token.type != END) {
+            index++;
+        }
+        return token;
+    }
+
+    private Token expect(int type, String expected) {
+        Token token = tokens.get(index);
+        if (token.type != type) {
+            throw this.error("expected " + expected + " but found " + token.describe());
+        }
+        return this.next();
+    }
+
+    private void expectKeyword(String keyword) {
+        if (!this.acceptKeyword(keyword)) {
+            throw this.error("expected " + keyword + " but found " + tokens.get(index).describe());
+        }
+    }
+
+    private void expectSymbol(String symbol) {
+        if (!this.acceptSymbol(symbol)) {
+            throw this.error("expected " + symbol + " but found " + tokens.get(index).describe());
+        }
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        Token token = tokens.get(index);
+        if (token.type == WORD && token.text.equalsIgnoreCase(keyword)) {
+            index++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptSymbol(String symbol) {
+        Token token = tokens.get(index);
+        if (token.type == SYMBOL && token.text.equals(symbol)) {
+            index++;
+            return true;
+        }
+        return false;
+    }
+
+    private IllegalArgumentException error(String message) {
+        int position = tokens.get(Math.min(index, tokens.size() - 1)).position;
+        return new IllegalArgumentException("Invalid rule: " + message + " at " + position + " - " + statement);
+    }
+
+    private static final class Token {
+
+        private final int type;
+
+        private final String text;
+
+        private final int position;
+
+        Token(int type, String text, int position) {
+            this.type = type;
+            this.text = text;
+            this.position = position;
+        }
+
+        String describe() {
+            return type == END ? "end of rule" : "'" + text + "'";
+        }
+    }
+}
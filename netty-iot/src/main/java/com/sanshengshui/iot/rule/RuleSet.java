@@ -0,0 +1,69 @@
+package com.sanshengshui.iot.rule;
+
+import com.sanshengshui.iot.common.topic.TopicTrie;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @author james
+ * 规则集, 不可变, 修改时整体替换. 规则按主题过滤器索引在主题树中, 每条消息只对主题匹配的规则求值条件,
+ * 按声明顺序第一条条件成立的规则决定动作
+ */
+public final class RuleSet {
+
+    public static final RuleSet NONE = new RuleSet(Collections.emptyList(), Rule.Action.FORWARD);
+
+    private static final Comparator<Rule> ORDER = Comparator.comparingInt(Rule::getOrder);
+
+    private final List<Rule> rules;
+
+    private final TopicTrie<Rule> topicTrie = new TopicTrie<>();
+
+    private final Rule.Action defaultAction;
+
+    public RuleSet(List<Rule> rules, Rule.Action defaultAction) {
+        if (defaultAction != Rule.Action.FORWARD && defaultAction != Rule.Action.DROP) {
+            throw new IllegalArgumentException("Default action must be forward or drop: " + defaultAction);
+        }
+        this.rules = Collections.unmodifiableList(rules);
+        for (Rule rule : rules) {
+            for (String topicFilter : rule.getTopicFilters()) {
+                topicTrie.put(topicFilter, String.valueOf(rule.getOrder()), rule);
+            }
+        }
+        this.defaultAction = defaultAction;
+    }
+
+    public static RuleSet parse(String statements, Rule.Action defaultAction) {
+        return new RuleSet(RuleParser.parseAll(statements), defaultAction);
+    }
+
+    /**
+     * 第一条命中的规则, 没有命中时返回null
+     */
+    public Rule match(RuleContext context) {
+        if (rules.isEmpty()) {
+            return null;
+        }
+        List<Rule> candidates = topicTrie.match(context.getMessage().getTopic());
+        if (candidates.size() > 1) {
+            candidates.sort(ORDER);
+        }
+        for (Rule rule : candidates) {
+            if (rule.test(context)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public Rule.Action getDefaultAction() {
+        return defaultAction;
+    }
+}
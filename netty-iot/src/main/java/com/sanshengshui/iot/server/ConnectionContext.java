@@ -0,0 +1,191 @@
+package com.sanshengshui.iot.server;
+
+import com.sanshengshui.iot.codec.Mqtt5Session;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * @author james
+ * 连接的协议状态, 集中存放在channel的一个属性中. 属性键是静态常量,
+ * 每个报文只查一次属性, 不再按名字到全局常量池中查找, 每个连接也只占用一个属性节点
+ */
+public final class ConnectionContext {
+
+    private static final AttributeKey<ConnectionContext> KEY = AttributeKey.valueOf("connectionContext");
+
+    private static final AtomicIntegerFieldUpdater<ConnectionContext> PENDING =
+            AtomicIntegerFieldUpdater.newUpdater(ConnectionContext.class, "pending");
+
+    private volatile String clientId;
+
+    /**
+     * 有序执行模式下该连接的协议处理执行器
+     */
+    private volatile Executor executor;
+
+    /**
+     * 有序执行模式下已入队未处理的报文数
+     */
+    private volatile int pending;
+
+    /**
+     * MQTT 5连接的协商状态, MQTT 3.1.1连接为null
+     */
+    private volatile Mqtt5Session mqtt5Session;
+
+    /**
+     * 慢消费者排队的QoS0报文, 首次排队时创建, 连接关闭时取走. 只在发送缓冲区超过高水位时创建, 创建和取走加锁
+     */
+    private volatile Queue<Object> slowConsumerQueue;
+
+    /**
+     * 是否因积压暂停了读取, 只在连接的事件循环中修改
+     */
+    volatile boolean readSuspended;
+
+    /**
+     * CONNECT异步认证期间收到的后续报文, 认证完成后按到达顺序处理; null表示没有进行中的认证.
+     * 只在该连接的协议处理线程中访问
+     */
+    private Queue<MqttMessage> heldMessages;
+
+    /**
+     * 心跳检测的时间轮条目, 只在连接的事件循环中访问
+     */
+    KeepAliveManager.Entry keepAlive;
+
+    /**
+     * 获取连接的上下文, 不存在时创建
+     */
+    public static ConnectionContext of(Channel channel) {
+        ConnectionContext context = channel.attr(KEY).get();
+        if (context == null) {
+            ConnectionContext created = new ConnectionContext();
+            context = channel.attr(KEY).setIfAbsent(created);
+            if (context == null) {
+                context = created;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * 获取连接的上下文, 不存在时返回null
+     */
+    public static ConnectionContext get(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * 连接的clientId, CONNECT之前为null
+     */
+    public static String clientId(Channel channel) {
+        ConnectionContext context = channel.attr(KEY).get();
+        return context == null ? null : context.clientId;
+    }
+
+    int incrementPending() {
+        return PENDING.incrementAndGet(this);
+    }
+
+    int decrementPending() {
+        return PENDING.decrementAndGet(this);
+    }
+
+    int getPending() {
+        return pending;
+    }
+
+    /**
+     * 开始暂存后续报文, 直到takeHeldMessages
+     */
+    void holdMessages() {
+        if (heldMessages == null) {
+            heldMessages = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * 认证进行中时暂存报文(持有一个引用)并返回true
+     */
+    boolean hold(MqttMessage msg) {
+        if (heldMessages == null) {
+            return false;
+        }
+        heldMessages.add(ReferenceCountUtil.retain(msg));
+        return true;
+    }
+
+    /**
+     * 结束暂存, 返回暂存的报文, 没有时返回null
+     */
+    Queue<MqttMessage> takeHeldMessages() {
+        Queue<MqttMessage> messages = heldMessages;
+        heldMessages = null;
+        return messages;
+    }
+
+    public Mqtt5Session getMqtt5Session() {
+        return mqtt5Session;
+    }
+
+    public ConnectionContext setMqtt5Session(Mqtt5Session mqtt5Session) {
+        this.mqtt5Session = mqtt5Session;
+        return this;
+    }
+
+    public Queue<Object> getSlowConsumerQueue() {
+        return slowConsumerQueue;
+    }
+
+    /**
+     * 获取慢消费者队列, 不存在时创建
+     */
+    public Queue<Object> slowConsumerQueue() {
+        Queue<Object> queue = slowConsumerQueue;
+        if (queue == null) {
+            synchronized (this) {
+                queue = slowConsumerQueue;
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    slowConsumerQueue = queue;
+                }
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * 取走慢消费者队列, 之后再排队会创建新队列
+     */
+    public synchronized Queue<Object> removeSlowConsumerQueue() {
+        Queue<Object> queue = slowConsumerQueue;
+        slowConsumerQueue = null;
+        return queue;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public ConnectionContext setClientId(String clientId) {
+        this.clientId = clientId;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public ConnectionContext setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+}
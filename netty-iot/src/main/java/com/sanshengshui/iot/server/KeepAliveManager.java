@@ -0,0 +1,176 @@
+package com.sanshengshui.iot.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * 心跳超时检测. 每个事件循环一个粗粒度时间轮, 只有一个定时任务按刻度扫描;
+ * 收到报文时只记录当前刻度, 不重新调度, 到期时再按最后读取的刻度决定超时或移到新的槽位.
+ * 超时的连接触发IdleStateEvent.ALL_IDLE_STATE_EVENT, 由MqttTransportHandler发布遗嘱消息并关闭连接
+ */
+public class KeepAliveManager {
+
+    private final long tickMillis;
+
+    private final int mask;
+
+    private final Map<EventLoop, Wheel> wheels = new ConcurrentHashMap<>();
+
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param wheelSize 槽位数, 向上取整为2的幂
+     */
+    public KeepAliveManager(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * 开始检测连接的心跳, timeoutMillis内没有收到报文则超时
+     */
+    public void register(Channel channel, long timeoutMillis) {
+        long timeoutTicks = Math.max(1, (timeoutMillis + tickMillis - 1) / tickMillis);
+        EventLoop eventLoop = channel.eventLoop();
+        Wheel wheel = wheels.computeIfAbsent(eventLoop, Wheel::new);
+        if (eventLoop.inEventLoop()) {
+            wheel.add(channel, timeoutTicks);
+        } else {
+            eventLoop.execute(() -> wheel.add(channel, timeoutTicks));
+        }
+    }
+
+    /**
+     * 收到客户端报文, 在连接的事件循环中调用
+     */
+    public static void touch(ConnectionContext context) {
+        Entry entry = context.keepAlive;
+        if (entry != null) {
+            entry.lastReadTick = entry.wheel.tick;
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long tracked = 0;
+        for (Wheel wheel : wheels.values()) {
+            tracked += wheel.size;
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("wheels", wheels.size());
+        map.put("tracked", tracked);
+        map.put("expired", expired.sum());
+        return map;
+    }
+
+    private final class Wheel implements Runnable {
+
+        private final List<List<Entry>> buckets;
+
+        private final List<Entry> rescheduled = new ArrayList<>();
+
+        private final List<Entry> timedOut = new ArrayList<>();
+
+        private long tick;
+
+        private volatile int size;
+
+        Wheel(EventLoop eventLoop) {
+            buckets = new ArrayList<>(mask + 1);
+            for (int i = 0; i <= mask; i++) {
+                buckets.add(new ArrayList<>());
+            }
+            eventLoop.scheduleAtFixedRate(this, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void add(Channel channel, long timeoutTicks) {
+            if (!channel.isActive()) {
+                return;
+            }
+            ConnectionContext context = ConnectionContext.of(channel);
+            if (context.keepAlive != null) {
+                context.keepAlive.cancelled = true;
+            }
+            Entry entry = new Entry(this, channel, timeoutTicks);
+            entry.lastReadTick = tick;
+            context.keepAlive = entry;
+            this.schedule(entry, tick + timeoutTicks);
+            size++;
+        }
+
+        @Override
+        public void run() {
+            tick++;
+            List<Entry> bucket = buckets.get((int) (tick & mask));
+            if (bucket.isEmpty()) {
+                return;
+            }
+            int kept = 0;
+            int count = bucket.size();
+            for (int i = 0; i < count; i++) {
+                Entry entry = bucket.get(i);
+                if (entry.cancelled || !entry.channel.isActive()) {
+                    size--;
+                } else if (entry.deadlineTick > tick) {
+                    // 超时时间大于一圈, 留在原槽位
+                    bucket.set(kept++, entry);
+                } else if (entry.lastReadTick + entry.timeoutTicks <= tick) {
+                    size--;
+                    timedOut.add(entry);
+                } else {
+                    rescheduled.add(entry);
+                }
+            }
+            bucket.subList(kept, count).clear();
+            for (Entry entry : rescheduled) {
+                this.schedule(entry, entry.lastReadTick + entry.timeoutTicks);
+            }
+            rescheduled.clear();
+            for (Entry entry : timedOut) {
+                entry.cancelled = true;
+                expired.increment();
+                entry.channel.pipeline().fireUserEventTriggered(IdleStateEvent.ALL_IDLE_STATE_EVENT);
+            }
+            timedOut.clear();
+        }
+
+        private void schedule(Entry entry, long deadlineTick) {
+            entry.deadlineTick = deadlineTick;
+            buckets.get((int) (deadlineTick & mask)).add(entry);
+        }
+    }
+
+    static final class Entry {
+
+        private final Wheel wheel;
+
+        private final Channel channel;
+
+        private final long timeoutTicks;
+
+        private long lastReadTick;
+
+        private long deadlineTick;
+
+        private boolean cancelled;
+
+        Entry(Wheel wheel, Channel channel, long timeoutTicks) {
+            this.wheel = wheel;
+            this.channel = channel;
+            this.timeoutTicks = timeoutTicks;
+        }
+    }
+}
@@ -1,16 +1,29 @@
 package com.sanshengshui.iot.server;
 
+import com.sanshengshui.iot.codec.MqttVersionDetector;
+import com.sanshengshui.iot.metrics.ProtocolMetrics;
 import com.sanshengshui.iot.protocol.ProtocolProcess;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.ResourceLeakDetector;
 import lombok.extern.slf4j.Slf4j;
@@ -22,6 +35,8 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -32,6 +47,11 @@ import java.util.concurrent.TimeUnit;
 @ConfigurationProperties(prefix = "mqtt")
 @Slf4j
 public class MqttServer {
+    /**
+     * MQTT规范要求的WebSocket子协议, mqttv3.1兼容旧客户端
+     */
+    private static final String MQTT_SUBPROTOCOLS = "mqtt,mqttv3.1";
+
     @Value("${mqtt.bind_address}")
     private String host;
     @Value("${mqtt.bind_port}")
@@ -47,13 +67,59 @@ public class MqttServer {
     private Integer workerGroupThreadCount;
     @Value("${mqtt.netty.max_payload_size}")
     private Integer maxPayloadSize;
+    @Value("${mqtt.netty.execution_mode:event_loop}")
+    private String executionMode;
+    @Value("${mqtt.netty.protocol_thread_count:16}")
+    private Integer protocolThreadCount;
+    @Value("${mqtt.netty.protocol_queue_capacity:65536}")
+    private Integer protocolQueueCapacity;
+    @Value("${mqtt.netty.protocol_pending_high_water_mark:256}")
+    private Integer protocolPendingHighWaterMark;
+    @Value("${mqtt.netty.protocol_pending_low_water_mark:64}")
+    private Integer protocolPendingLowWaterMark;
+    @Value("${mqtt.netty.transport:nio}")
+    private String transport;
+    @Value("${mqtt.netty.epoll_mode:edge_triggered}")
+    private String epollMode;
+    @Value("${mqtt.netty.tcp_fastopen:0}")
+    private Integer tcpFastOpen;
+    @Value("${mqtt.netty.listener_count:1}")
+    private Integer listenerCount;
+    @Value("${mqtt.netty.flush_consolidation:false}")
+    private boolean flushConsolidation;
+    @Value("${mqtt.netty.max_pending_flushes:256}")
+    private Integer maxPendingFlushes;
+    @Value("${mqtt.netty.write_buffer_low_water_mark:32768}")
+    private Integer writeBufferLowWaterMark;
+    @Value("${mqtt.netty.write_buffer_high_water_mark:65536}")
+    private Integer writeBufferHighWaterMark;
+    @Value("${mqtt.mqtt5.enabled:true}")
+    private boolean mqtt5Enabled;
+    @Value("${mqtt.mqtt5.receive_maximum:65535}")
+    private Integer mqtt5ReceiveMaximum;
+    @Value("${mqtt.mqtt5.maximum_packet_size:268435460}")
+    private Integer mqtt5MaximumPacketSize;
+    @Value("${mqtt.mqtt5.topic_alias_maximum:0}")
+    private Integer mqtt5TopicAliasMaximum;
+    @Value("${mqtt.websocket.enabled:false}")
+    private boolean webSocketEnabled;
+    @Value("${mqtt.websocket.bind_port:8083}")
+    private Integer webSocketPort;
+    @Value("${mqtt.websocket.path:/mqtt}")
+    private String webSocketPath;
+    @Value("${mqtt.websocket.max_frame_size:65536}")
+    private Integer webSocketMaxFrameSize;
 
     @Autowired
     private ProtocolProcess protocolProcess;
+    @Autowired
+    private ProtocolMetrics protocolMetrics;
 
-    private Channel serverChannel;
+    private List<Channel> serverChannels = new ArrayList<>();
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private OrderedProtocolExecutor orderedProtocolExecutor;
+    private MqttTransportHandler mqttTransportHandler;
 
     @PostConstruct
     public void init() throws Exception {
@@ -63,37 +129,114 @@ public class MqttServer {
         log.info("Starting MQTT transport...");
 
         log.info("Starting MQTT transport server");
-        bossGroup = new NioEventLoopGroup(bossGroupThreadCount);
-        workerGroup = new NioEventLoopGroup(workerGroupThreadCount);
+        boolean epoll = "epoll".equalsIgnoreCase(transport);
+        if (epoll && !Epoll.isAvailable()) {
+            log.warn("Epoll transport is not available, falling back to NIO", Epoll.unavailabilityCause());
+            epoll = false;
+        }
+        // SO_REUSEPORT下每个监听channel独占一个boss线程, 由内核在各监听socket间分发新连接
+        int listeners = epoll ? Math.max(1, listenerCount) : 1;
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(Math.max(bossGroupThreadCount, listeners));
+            workerGroup = new EpollEventLoopGroup(workerGroupThreadCount);
+        } else {
+            bossGroup = new NioEventLoopGroup(bossGroupThreadCount);
+            workerGroup = new NioEventLoopGroup(workerGroupThreadCount);
+        }
+        if ("ordered".equalsIgnoreCase(executionMode)) {
+            log.info("Protocol processing runs on {} ordered threads", protocolThreadCount);
+            orderedProtocolExecutor = new OrderedProtocolExecutor(protocolThreadCount, protocolQueueCapacity,
+                    protocolPendingHighWaterMark, protocolPendingLowWaterMark);
+            protocolMetrics.bind(orderedProtocolExecutor);
+        }
+        // 协议处理无状态, 所有连接共用一个实例
+        mqttTransportHandler = new MqttTransportHandler(protocolProcess, protocolMetrics, orderedProtocolExecutor);
         ServerBootstrap b = new ServerBootstrap();
         b.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                // 每个连接的发送缓冲区上限, 超过高水位后按慢消费者策略处理
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark))
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel socketChannel) throws Exception {
                         ChannelPipeline pipeline = socketChannel.pipeline();
-                        pipeline.addLast("decoder", new MqttDecoder(maxPayloadSize));
-                        pipeline.addLast("encoder", MqttEncoder.INSTANCE);
-                        //pipeline.addLast("idleStateHandler", new IdleStateHandler(10,2,12, TimeUnit.SECONDS));
-                        MqttTransportHandler handler = new MqttTransportHandler(protocolProcess);
-                        pipeline.addLast(handler);
+                        if (flushConsolidation) {
+                            // 读批次内的flush合并到channelReadComplete, 其他线程(转发/有序执行)写入的flush合并到下一次事件循环
+                            pipeline.addLast("flushConsolidation", new FlushConsolidationHandler(maxPendingFlushes, true));
+                        }
+                        initMqttPipeline(pipeline);
                     }
                 });
 
-        serverChannel = b.bind(host, port).sync().channel();
+        if (epoll) {
+            b.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.valueOf(epollMode.toUpperCase()));
+            if (tcpFastOpen > 0) {
+                b.option(EpollChannelOption.TCP_FASTOPEN, tcpFastOpen);
+            }
+            if (listeners > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+        }
+        for (int i = 0; i < listeners; i++) {
+            serverChannels.add(b.bind(host, port).sync().channel());
+        }
+        log.info("Mqtt transport bound to {}:{} with {} transport, {} listener(s)", host, port, epoll ? "epoll" : "nio", listeners);
 
+        if (webSocketEnabled) {
+            // WebSocket监听与TCP监听共用boss/worker线程, 握手后帧内容直接进入同一套MQTT处理链
+            ServerBootstrap ws = b.clone().childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel socketChannel) throws Exception {
+                    ChannelPipeline pipeline = socketChannel.pipeline();
+                    if (flushConsolidation) {
+                        pipeline.addLast("flushConsolidation", new FlushConsolidationHandler(maxPendingFlushes, true));
+                    }
+                    pipeline.addLast("httpCodec", new HttpServerCodec());
+                    // 只用于聚合握手请求, 握手完成后由WebSocketServerProtocolHandler移除
+                    pipeline.addLast("httpAggregator", new HttpObjectAggregator(65536));
+                    pipeline.addLast("webSocketHandler", new WebSocketServerProtocolHandler(webSocketPath, MQTT_SUBPROTOCOLS,
+                            false, webSocketMaxFrameSize));
+                    pipeline.addLast("webSocketCodec", MqttWebSocketCodec.INSTANCE);
+                    initMqttPipeline(pipeline);
+                }
+            });
+            // SO_REUSEPORT只用于TCP多监听
+            ws.option(EpollChannelOption.SO_REUSEPORT, null);
+            serverChannels.add(ws.bind(host, webSocketPort).sync().channel());
+            log.info("Mqtt over WebSocket bound to {}:{}{}", host, webSocketPort, webSocketPath);
+        }
 
         log.info("Mqtt transport started!");
     }
 
+    /**
+     * TCP和WebSocket共用的MQTT编解码和协议处理
+     */
+    private void initMqttPipeline(ChannelPipeline pipeline) {
+        if (mqtt5Enabled) {
+            // 按CONNECT的协议级别选择MQTT 3.1.1或MQTT 5编解码器
+            pipeline.addLast("versionDetector", new MqttVersionDetector(mqtt5ReceiveMaximum,
+                    mqtt5MaximumPacketSize, mqtt5TopicAliasMaximum));
+        }
+        pipeline.addLast("decoder", new MqttDecoder(maxPayloadSize));
+        pipeline.addLast("encoder", MqttEncoder.INSTANCE);
+        //pipeline.addLast("idleStateHandler", new IdleStateHandler(10,2,12, TimeUnit.SECONDS));
+        pipeline.addLast(mqttTransportHandler);
+    }
+
     @PreDestroy
     public void shutdown() throws InterruptedException {
         log.info("Stopping MQTT transport!");
         try {
-            serverChannel.close().sync();
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.close().sync();
+            }
         } finally {
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
+            if (orderedProtocolExecutor != null) {
+                orderedProtocolExecutor.shutdown();
+            }
         }
         log.info("MQTT transport stopped!");
     }
@@ -1,7 +1,11 @@
 package com.sanshengshui.iot.server;
 
 import com.sanshengshui.iot.common.session.SessionStore;
+import com.sanshengshui.iot.common.session.WillMessageStore;
+import com.sanshengshui.iot.metrics.ProtocolMetrics;
 import com.sanshengshui.iot.protocol.ProtocolProcess;
+import com.sanshengshui.iot.protocol.SlowConsumer;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -9,10 +13,14 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author james
@@ -25,13 +33,27 @@ public class MqttTransportHandler extends SimpleChannelInboundHandler<MqttMessag
 
     private ProtocolProcess protocolProcess;
 
+    private ProtocolMetrics protocolMetrics;
+
+    /**
+     * 有序执行模式下的协议处理线程池, 为null时在netty的IO线程上直接处理
+     */
+    private OrderedProtocolExecutor orderedProtocolExecutor;
 
     public MqttTransportHandler(ProtocolProcess protocolProcess) {
+        this(protocolProcess, null, null);
+    }
+
+    public MqttTransportHandler(ProtocolProcess protocolProcess, ProtocolMetrics protocolMetrics, OrderedProtocolExecutor orderedProtocolExecutor) {
         this.protocolProcess = protocolProcess;
+        this.protocolMetrics = protocolMetrics;
+        this.orderedProtocolExecutor = orderedProtocolExecutor;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) throws Exception {
+        ConnectionContext context = ConnectionContext.of(ctx.channel());
+        KeepAliveManager.touch(context);
         if (msg.decoderResult().isFailure()) {
             Throwable cause = msg.decoderResult().cause();
             if (cause instanceof MqttUnacceptableProtocolVersionException) {
@@ -49,9 +71,100 @@ public class MqttTransportHandler extends SimpleChannelInboundHandler<MqttMessag
             return;
         }
 
+        long start = System.nanoTime();
+        Executor executor = executor(ctx.channel(), context, msg);
+        if (executor == null) {
+            process(ctx, msg, start);
+            return;
+        }
+        // SimpleChannelInboundHandler在channelRead0返回后释放报文, 交给其他线程前需要retain
+        ReferenceCountUtil.retain(msg);
+        Channel channel = ctx.channel();
+        if (context.incrementPending() >= orderedProtocolExecutor.getHighWaterMark() && !context.readSuspended) {
+            // 协议线程处理不过来(例如Redis变慢), 暂停读取该连接, 由TCP窗口把压力传回客户端
+            context.readSuspended = true;
+            channel.config().setAutoRead(false);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    process(ctx, msg, start);
+                } catch (Exception e) {
+                    ctx.fireExceptionCaught(e);
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                    if (context.decrementPending() <= orderedProtocolExecutor.getLowWaterMark() && context.readSuspended) {
+                        channel.eventLoop().execute(() -> resumeRead(channel, context));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ReferenceCountUtil.release(msg);
+            context.decrementPending();
+            log.warn("Protocol queue is full, closing connection - clientId: {}", context.getClientId());
+            ctx.close();
+        }
+    }
+
+    /**
+     * CONNECT处理完成后, 在同一协议处理线程中按顺序处理暂存的报文; 连接已关闭时直接释放
+     */
+    private void replayHeldMessages(ChannelHandlerContext ctx, ConnectionContext context) {
+        Queue<MqttMessage> messages = context.takeHeldMessages();
+        if (messages == null) {
+            return;
+        }
+        MqttMessage msg;
+        while ((msg = messages.poll()) != null) {
+            try {
+                if (ctx.channel().isActive()) {
+                    process(ctx, msg, System.nanoTime());
+                }
+            } catch (Exception e) {
+                ctx.fireExceptionCaught(e);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    private void resumeRead(Channel channel, ConnectionContext context) {
+        if (context.readSuspended && context.getPending() <= orderedProtocolExecutor.getLowWaterMark()) {
+            context.readSuspended = false;
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * 选择报文的执行器: CONNECT时按clientId选定并记在channel上, 之后该连接的报文都由它处理.
+     * 在IO线程上选定, 保证同一连接的报文按到达顺序入队
+     */
+    private Executor executor(Channel channel, ConnectionContext context, MqttMessage msg) {
+        if (orderedProtocolExecutor == null) {
+            return null;
+        }
+        if (msg.fixedHeader().messageType() == MqttMessageType.CONNECT) {
+            String clientId = ((MqttConnectMessage) msg).payload().clientIdentifier();
+            Executor executor = orderedProtocolExecutor.select(clientId == null || clientId.isEmpty() ? channel.id().asLongText() : clientId);
+            context.setExecutor(executor);
+            return executor;
+        }
+        return context.getExecutor();
+    }
+
+    private void process(ChannelHandlerContext ctx, MqttMessage msg, long start) {
+        ConnectionContext context = ConnectionContext.of(ctx.channel());
+        if (msg.fixedHeader().messageType() != MqttMessageType.CONNECT && context.hold(msg)) {
+            return;
+        }
         switch (msg.fixedHeader().messageType()) {
             case CONNECT:
-                protocolProcess.connect().processConnect(ctx.channel(), (MqttConnectMessage) msg);
+                CompletableFuture<Void> connected = protocolProcess.connect().processConnect(ctx.channel(), (MqttConnectMessage) msg);
+                if (!connected.isDone()) {
+                    // 异步认证期间, 同一次读取中已解码的后续报文(协议允许CONNACK之前发送)暂存到认证完成后处理
+                    context.holdMessages();
+                    connected.thenRun(() -> replayHeldMessages(ctx, context));
+                }
                 break;
             case CONNACK:
                 break;
@@ -91,18 +204,75 @@ public class MqttTransportHandler extends SimpleChannelInboundHandler<MqttMessag
             default:
                 break;
         }
+        if (protocolMetrics != null) {
+            protocolMetrics.recordLatency(msg.fixedHeader().messageType(), System.nanoTime() - start);
+        }
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (protocolMetrics != null) {
+            protocolMetrics.connectionOpened(ctx.channel().eventLoop());
+        }
         super.channelActive(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        if (protocolMetrics != null) {
+            protocolMetrics.connectionClosed(channel.eventLoop());
+        }
+        protocolProcess.getSlowConsumer().closed(channel);
+        ConnectionContext context = ConnectionContext.get(channel);
+        String clientId = context == null ? null : context.getClientId();
+        if (clientId != null) {
+            // 与该连接的报文在同一执行器中处理, 避免已入队的PUBLISH在清理之后重新登记
+            Executor executor = context.getExecutor();
+            if (executor == null) {
+                discardCleanSessionState(channel, clientId);
+            } else {
+                try {
+                    executor.execute(() -> discardCleanSessionState(channel, clientId));
+                } catch (RejectedExecutionException e) {
+                    // 连接因协议队列已满而关闭时, 直接在事件循环中清理
+                    discardCleanSessionState(channel, clientId);
+                }
+            }
+        }
         super.channelInactive(ctx);
     }
 
+    /**
+     * 发送缓冲区越过高/低水位: 恢复可写时补发排队的QoS0消息, 以及等待队列和离线队列中的QoS1/QoS2消息
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        SlowConsumer slowConsumer = protocolProcess.getSlowConsumer();
+        if (!channel.isWritable()) {
+            slowConsumer.unwritable(channel);
+        } else {
+            slowConsumer.writable(channel);
+            ConnectionContext context = ConnectionContext.get(channel);
+            String clientId = context == null ? null : context.getClientId();
+            if (clientId != null) {
+                Executor executor = context.getExecutor();
+                if (executor == null) {
+                    protocolProcess.getInFlight().writable(channel, clientId);
+                } else {
+                    try {
+                        executor.execute(() -> protocolProcess.getInFlight().writable(channel, clientId));
+                    } catch (RejectedExecutionException e) {
+                        // 协议队列已满时在事件循环中直接补发, 否则等待队列中的消息要等到下一次可写变化
+                        protocolProcess.getInFlight().writable(channel, clientId);
+                    }
+                }
+            }
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         if (cause instanceof IOException) {
@@ -118,19 +288,55 @@ public class MqttTransportHandler extends SimpleChannelInboundHandler<MqttMessag
         if (evt instanceof IdleStateEvent) {
             IdleStateEvent idleStateEvent = (IdleStateEvent) evt;
             if (idleStateEvent.state() == IdleState.ALL_IDLE) {
-                Channel channel = ctx.channel();
-                String clientId = (String) channel.attr(AttributeKey.valueOf("clientId")).get();
-                // 发送遗嘱消息
-                if (this.protocolProcess.getGrozaSessionStoreService().containsKey(clientId)) {
-                    SessionStore sessionStore = this.protocolProcess.getGrozaSessionStoreService().get(clientId);
-                    if (sessionStore.getWillMessage() != null) {
-                        this.protocolProcess.publish().processPublish(ctx.channel(), sessionStore.getWillMessage());
+                ConnectionContext context = ConnectionContext.get(ctx.channel());
+                Executor executor = context == null ? null : context.getExecutor();
+                if (executor == null) {
+                    publishWillAndClose(ctx);
+                } else {
+                    try {
+                        executor.execute(() -> publishWillAndClose(ctx));
+                    } catch (RejectedExecutionException e) {
+                        // 协议队列已满时在事件循环中直接发送遗嘱并关闭, 避免超时的连接一直保持
+                        publishWillAndClose(ctx);
                     }
                 }
-                ctx.close();
             }
         } else {
             super.userEventTriggered(ctx, evt);
         }
     }
+
+    /**
+     * 清理会话未发送DISCONNECT就断开时丢弃本节点内存中的入站QoS2状态、在途窗口和报文标识符分配器, 持久会话保留到重连;
+     * 会话已被新连接接管时不处理
+     */
+    private void discardCleanSessionState(Channel channel, String clientId) {
+        SessionStore sessionStore = this.protocolProcess.getGrozaSessionStoreService().get(clientId);
+        if (sessionStore != null && sessionStore.isCleanSession() && sessionStore.getChannel() == channel) {
+            this.protocolProcess.getInboundQos2().removeByClient(clientId);
+            this.protocolProcess.getInFlight().removeByClient(clientId);
+            this.protocolProcess.getGrozaMessageIdService().removeByClient(clientId);
+        }
+    }
+
+    private void publishWillAndClose(ChannelHandlerContext ctx) {
+        Channel channel = ctx.channel();
+        String clientId = ConnectionContext.clientId(channel);
+        try {
+            // 发送遗嘱消息
+            if (clientId != null && this.protocolProcess.getGrozaSessionStoreService().containsKey(clientId)) {
+                SessionStore sessionStore = this.protocolProcess.getGrozaSessionStoreService().get(clientId);
+                WillMessageStore willMessage = sessionStore.getWillMessage();
+                if (willMessage != null) {
+                    MqttPublishMessage publishMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
+                            new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.valueOf(willMessage.getMqttQoS()), willMessage.isRetain(), 0),
+                            new MqttPublishVariableHeader(willMessage.getTopic(), 0),
+                            Unpooled.wrappedBuffer(willMessage.getMessageBytes()));
+                    this.protocolProcess.publish().processPublish(channel, publishMessage);
+                }
+            }
+        } finally {
+            ctx.close();
+        }
+    }
 }
@@ -0,0 +1,45 @@
+package com.sanshengshui.iot.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.List;
+
+/**
+ * @author james
+ * MQTT over WebSocket: 二进制帧(及其后续帧)的内容直接交给MQTT解码器, MQTT报文包装为二进制帧, 均不拷贝.
+ * 一个MQTT报文可以跨多个帧, 由后面的解码器累积
+ */
+@ChannelHandler.Sharable
+public class MqttWebSocketCodec extends MessageToMessageCodec<WebSocketFrame, ByteBuf> {
+
+    public static final MqttWebSocketCodec INSTANCE = new MqttWebSocketCodec();
+
+    private MqttWebSocketCodec() {
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+        // 被丢弃的报文(空ByteBuf)不生成空帧
+        if (!msg.isReadable()) {
+            out.add(msg.retain());
+            return;
+        }
+        out.add(new BinaryWebSocketFrame(msg.retain()));
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) {
+        if (frame instanceof BinaryWebSocketFrame || frame instanceof ContinuationWebSocketFrame) {
+            out.add(frame.content().retain());
+        } else {
+            // MQTT只使用二进制帧, 收到文本帧时关闭连接
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.sanshengshui.iot.server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * 按clientId选择单线程执行器的协议处理线程池.
+ * 同一clientId的报文(包括重连后的新连接)总在同一线程上按到达顺序处理, 保证MQTT报文顺序;
+ * Redis等阻塞调用不再占用netty的IO线程.
+ * 队列有上限; 每个连接已入队未处理的报文数超过高水位时暂停读取该连接, 降到低水位时恢复
+ */
+public class OrderedProtocolExecutor {
+
+    private final ThreadPoolExecutor[] executors;
+
+    private final int highWaterMark;
+
+    private final int lowWaterMark;
+
+    public OrderedProtocolExecutor(int threads, int queueCapacity, int highWaterMark, int lowWaterMark) {
+        if (lowWaterMark >= highWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark must be less than highWaterMark");
+        }
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+        executors = new ThreadPoolExecutor[threads];
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory("groza-protocol", true);
+        for (int i = 0; i < threads; i++) {
+            executors[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), threadFactory);
+        }
+    }
+
+    /**
+     * 选择clientId对应的执行器
+     */
+    public Executor select(String key) {
+        return executors[(key.hashCode() & Integer.MAX_VALUE) % executors.length];
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public int getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    /**
+     * 各执行器的队列深度
+     */
+    public int[] queueDepths() {
+        int[] depths = new int[executors.length];
+        for (int i = 0; i < executors.length; i++) {
+            depths[i] = executors[i].getQueue().size();
+        }
+        return depths;
+    }
+
+    public int totalQueueDepth() {
+        int total = 0;
+        for (ThreadPoolExecutor executor : executors) {
+            total += executor.getQueue().size();
+        }
+        return total;
+    }
+
+    public void shutdown() throws InterruptedException {
+        for (ThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+        for (ThreadPoolExecutor executor : executors) {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.sanshengshui.iot.store.cache;
 
 import com.sanshengshui.iot.common.message.DupPubRelMessageStore;
+import com.sanshengshui.iot.metrics.RedisMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
@@ -17,33 +18,48 @@ import java.util.concurrent.ConcurrentHashMap;
 public class GrozaDupPubRelMessageCache {
     public static final String CACHE_PRE = "groza:pubrel:";
 
+    @Autowired
+    private RedisMetrics redisMetrics;
+
     @Autowired
     private RedisTemplate<String, Serializable> redisCacheTemplate;
 
 
     public DupPubRelMessageStore put(String clientId, Integer messageId, DupPubRelMessageStore dupPubRelMessageStore){
-        redisCacheTemplate.opsForHash().put(CACHE_PRE + clientId,String.valueOf(messageId),dupPubRelMessageStore);
-        return dupPubRelMessageStore;
+        long start = System.nanoTime();
+        try {
+            redisCacheTemplate.opsForHash().put(CACHE_PRE + clientId,String.valueOf(messageId),dupPubRelMessageStore);
+            return dupPubRelMessageStore;
+        } finally {
+            redisMetrics.record("GrozaDupPubRelMessageCache.put", start);
+        }
     }
 
     public ConcurrentHashMap<Integer,DupPubRelMessageStore> get(String clientId){
-        ConcurrentHashMap<Integer, DupPubRelMessageStore> map = new ConcurrentHashMap<>();
-        Map<Object,Object> map1 = redisCacheTemplate.opsForHash().entries(CACHE_PRE + clientId);
-        if (map1 != null && !map1.isEmpty()) {
-            map1.forEach((k, v) -> {
-                map.put((Integer)k, (DupPubRelMessageStore)v);
-            });
-        }
-        return map;
+        return redisMetrics.call("GrozaDupPubRelMessageCache.get", () -> {
+            ConcurrentHashMap<Integer, DupPubRelMessageStore> map = new ConcurrentHashMap<>();
+            Map<Object,Object> map1 = redisCacheTemplate.opsForHash().entries(CACHE_PRE + clientId);
+            if (map1 != null && !map1.isEmpty()) {
+                map1.forEach((k, v) -> {
+                    map.put(Integer.valueOf((String) k), (DupPubRelMessageStore)v);
+                });
+            }
+            return map;
+        });
     }
     public boolean containsKey(String clientId){
-        return redisCacheTemplate.hasKey(CACHE_PRE + clientId);
+        return redisMetrics.call("GrozaDupPubRelMessageCache.containsKey", () -> redisCacheTemplate.hasKey(CACHE_PRE + clientId));
     }
 
     public void remove(String clientId,Integer messageId){
-        redisCacheTemplate.opsForHash().delete(CACHE_PRE + clientId,messageId);
+        long start = System.nanoTime();
+        try {
+            redisCacheTemplate.opsForHash().delete(CACHE_PRE + clientId,String.valueOf(messageId));
+        } finally {
+            redisMetrics.record("GrozaDupPubRelMessageCache.remove/2", start);
+        }
     }
     public void remove(String clientId){
-        redisCacheTemplate.delete(CACHE_PRE + clientId);
+        redisMetrics.run("GrozaDupPubRelMessageCache.remove/1", () -> redisCacheTemplate.delete(CACHE_PRE + clientId));
     }
 }
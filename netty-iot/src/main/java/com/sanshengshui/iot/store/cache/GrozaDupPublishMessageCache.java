@@ -1,6 +1,7 @@
 package com.sanshengshui.iot.store.cache;
 
 import com.sanshengshui.iot.common.message.DupPublishMessageStore;
+import com.sanshengshui.iot.metrics.RedisMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
@@ -15,35 +16,50 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 @Service
 public class GrozaDupPublishMessageCache {
-    private final static String CACHE_PRE = "groza:publish:";
+    public static final String CACHE_PRE = "groza:publish:";
+
+    @Autowired
+    private RedisMetrics redisMetrics;
 
     @Autowired
     private RedisTemplate<String, Serializable> redisCacheTemplate;
 
     public DupPublishMessageStore put(String clientId,Integer messageId,DupPublishMessageStore dupPublishMessageStore){
-        redisCacheTemplate.opsForHash().put(CACHE_PRE + clientId,String.valueOf(messageId),dupPublishMessageStore);
-        return dupPublishMessageStore;
+        long start = System.nanoTime();
+        try {
+            redisCacheTemplate.opsForHash().put(CACHE_PRE + clientId,String.valueOf(messageId),dupPublishMessageStore);
+            return dupPublishMessageStore;
+        } finally {
+            redisMetrics.record("GrozaDupPublishMessageCache.put", start);
+        }
     }
 
     public ConcurrentHashMap<Integer,DupPublishMessageStore> get(String clientId){
-        ConcurrentHashMap<Integer, DupPublishMessageStore> map = new ConcurrentHashMap<>();
-        Map<Object,Object> map1 = redisCacheTemplate.opsForHash().entries(CACHE_PRE + clientId);
-        if (map1 != null && !map1.isEmpty()) {
-            map1.forEach((k, v) -> {
-                map.put((Integer)k, (DupPublishMessageStore)v);
-            });
-        }
-        return map;
+        return redisMetrics.call("GrozaDupPublishMessageCache.get", () -> {
+            ConcurrentHashMap<Integer, DupPublishMessageStore> map = new ConcurrentHashMap<>();
+            Map<Object,Object> map1 = redisCacheTemplate.opsForHash().entries(CACHE_PRE + clientId);
+            if (map1 != null && !map1.isEmpty()) {
+                map1.forEach((k, v) -> {
+                    map.put(Integer.valueOf((String) k), (DupPublishMessageStore)v);
+                });
+            }
+            return map;
+        });
     }
     public boolean containsKey(String clientId){
-        return redisCacheTemplate.hasKey(CACHE_PRE + clientId);
+        return redisMetrics.call("GrozaDupPublishMessageCache.containsKey", () -> redisCacheTemplate.hasKey(CACHE_PRE + clientId));
     }
 
     public void remove(String clientId,Integer messageId){
-        redisCacheTemplate.opsForHash().delete(CACHE_PRE + clientId,messageId);
+        long start = System.nanoTime();
+        try {
+            redisCacheTemplate.opsForHash().delete(CACHE_PRE + clientId,String.valueOf(messageId));
+        } finally {
+            redisMetrics.record("GrozaDupPublishMessageCache.remove/2", start);
+        }
     }
     public void remove(String clientId){
-        redisCacheTemplate.delete(CACHE_PRE + clientId);
+        redisMetrics.run("GrozaDupPublishMessageCache.remove/1", () -> redisCacheTemplate.delete(CACHE_PRE + clientId));
     }
 
 }
@@ -0,0 +1,130 @@
+package com.sanshengshui.iot.store.cache;
+
+import com.sanshengshui.iot.metrics.RedisMetrics;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author james
+ * Lettuce异步命令. 同一连接上连续发出的命令不等待回复即写出(即管道), 且按发出顺序执行.
+ * 连接取自Spring配置的LettuceConnectionFactory(共享的原生连接), 单机、哨兵、集群和SSL配置与同步实现一致;
+ * 首次使用时才建立连接, Redis不可用时不影响启动.
+ * 哈希字段和值沿用redisCacheTemplate的序列化器, 与同步实现写入的数据互相兼容.
+ * 每条命令从发出到完成的耗时按"GrozaRedisAsyncClient.命令名"记入RedisMetrics
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "mqtt.store.mode", havingValue = "async")
+public class GrozaRedisAsyncClient {
+
+    private static final String METRIC_PRE = "GrozaRedisAsyncClient.";
+
+    @Autowired
+    private RedisMetrics redisMetrics;
+
+    @Autowired
+    private LettuceConnectionFactory lettuceConnectionFactory;
+
+    @Autowired
+    private RedisTemplate<String, Serializable> redisCacheTemplate;
+
+    private volatile RedisConnection connection;
+
+    private volatile RedisClusterAsyncCommands<byte[], byte[]> async;
+
+    private RedisSerializer<Object> hashKeySerializer;
+
+    private RedisSerializer<Object> hashValueSerializer;
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    public void init() {
+        hashKeySerializer = (RedisSerializer<Object>) redisCacheTemplate.getHashKeySerializer();
+        hashValueSerializer = (RedisSerializer<Object>) redisCacheTemplate.getHashValueSerializer();
+    }
+
+    @SuppressWarnings("unchecked")
+    public RedisClusterAsyncCommands<byte[], byte[]> async() {
+        RedisClusterAsyncCommands<byte[], byte[]> commands = async;
+        if (commands == null) {
+            synchronized (this) {
+                commands = async;
+                if (commands == null) {
+                    // 共享原生连接时关闭该RedisConnection不会关闭原生连接; 不共享时需要持有到停机, 因此统一在shutdown中关闭
+                    connection = lettuceConnectionFactory.getConnection();
+                    commands = (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+                    async = commands;
+                    log.info("Async redis store connected");
+                }
+            }
+        }
+        return commands;
+    }
+
+    public byte[] key(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public byte[] hashKey(Object hashKey) {
+        return hashKeySerializer.serialize(hashKey);
+    }
+
+    public byte[] hashValue(Object hashValue) {
+        return hashValueSerializer.serialize(hashValue);
+    }
+
+    public Object deserializeHashValue(byte[] bytes) {
+        return hashValueSerializer.deserialize(bytes);
+    }
+
+    public Object deserializeHashKey(byte[] bytes) {
+        return hashKeySerializer.deserialize(bytes);
+    }
+
+    /**
+     * 等待结果, 仅用于连接建立等需要读取数据的场景
+     */
+    public <T> T await(RedisFuture<T> future, String command) {
+        redisMetrics.complete(METRIC_PRE + command, future);
+        Duration timeout = lettuceConnectionFactory.getClientConfiguration().getCommandTimeout();
+        try {
+            return future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException("Redis command failed", e);
+        }
+    }
+
+    /**
+     * 不等待结果, 失败时记录日志
+     */
+    public void fireAndForget(RedisFuture<?> future, String command, String key) {
+        redisMetrics.complete(METRIC_PRE + command, future);
+        future.whenComplete((result, e) -> {
+            if (e != null) {
+                log.warn("Async redis {} failed, key: {}", command, key, e);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
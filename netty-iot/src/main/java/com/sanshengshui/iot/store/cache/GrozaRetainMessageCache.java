@@ -1,14 +1,19 @@
 package com.sanshengshui.iot.store.cache;
 
 import com.sanshengshui.iot.common.message.RetainMessageStore;
+import com.sanshengshui.iot.metrics.RedisMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * @author james
@@ -18,36 +23,81 @@ import java.util.Set;
 public class GrozaRetainMessageCache {
     public static final String CACHE_PRE = "groza:retain:";
 
+    @Autowired
+    private RedisMetrics redisMetrics;
+
     @Autowired
     private RedisTemplate<String, Serializable> redisCacheTemplate;
 
     public RetainMessageStore put(String topic,RetainMessageStore retainMessageStore){
-        redisCacheTemplate.opsForValue().set(CACHE_PRE + topic,retainMessageStore);
-        return retainMessageStore;
+        long start = System.nanoTime();
+        try {
+            redisCacheTemplate.opsForValue().set(CACHE_PRE + topic,retainMessageStore);
+            return retainMessageStore;
+        } finally {
+            redisMetrics.record("GrozaRetainMessageCache.put", start);
+        }
     }
 
     public RetainMessageStore get(String topic){
-        return (RetainMessageStore) redisCacheTemplate.opsForValue().get(CACHE_PRE + topic);
+        return redisMetrics.call("GrozaRetainMessageCache.get/1", () -> (RetainMessageStore) redisCacheTemplate.opsForValue().get(CACHE_PRE + topic));
     }
 
     public boolean containsKey(String topic){
-        return redisCacheTemplate.hasKey(CACHE_PRE + topic);
+        return redisMetrics.call("GrozaRetainMessageCache.containsKey", () -> redisCacheTemplate.hasKey(CACHE_PRE + topic));
     }
 
     public void remove(String topic){
-        redisCacheTemplate.delete(CACHE_PRE + topic);
+        long start = System.nanoTime();
+        try {
+            redisCacheTemplate.delete(CACHE_PRE + topic);
+        } finally {
+            redisMetrics.record("GrozaRetainMessageCache.remove", start);
+        }
     }
 
     public Map<String,RetainMessageStore> all(){
-        Map<String, RetainMessageStore> map = new HashMap<>();
-        Set<String> set = redisCacheTemplate.keys(CACHE_PRE + "*");
-        if(set!=null&&!set.isEmpty()) {
-            set.forEach(
-                    entry -> {
-                        map.put(entry.substring(CACHE_PRE.length()), (RetainMessageStore) redisCacheTemplate.opsForValue().get(entry));
+        return redisMetrics.call("GrozaRetainMessageCache.all", () -> {
+            Map<String, RetainMessageStore> map = new HashMap<>();
+            Set<String> set = redisCacheTemplate.keys(CACHE_PRE + "*");
+            if(set!=null&&!set.isEmpty()) {
+                set.forEach(
+                        entry -> {
+                            map.put(entry.substring(CACHE_PRE.length()), (RetainMessageStore) redisCacheTemplate.opsForValue().get(entry));
+                        }
+                );
+            }
+            return map;
+        });
+    }
+
+    /**
+     * 用SCAN分批遍历所有retain消息的主题, 不加载消息体
+     */
+    public void scanTopics(Consumer<String> consumer){
+        RedisScan.keys(redisCacheTemplate, CACHE_PRE, consumer);
+    }
+
+    /**
+     * 批量获取retain消息, 一次MGET完成
+     */
+    public List<RetainMessageStore> get(Collection<String> topics){
+        return redisMetrics.call("GrozaRetainMessageCache.multiGet", () -> {
+            List<RetainMessageStore> list = new ArrayList<>();
+            if (topics.isEmpty()) {
+                return list;
+            }
+            List<String> keys = new ArrayList<>(topics.size());
+            topics.forEach(topic -> keys.add(CACHE_PRE + topic));
+            List<Serializable> values = redisCacheTemplate.opsForValue().multiGet(keys);
+            if (values != null) {
+                values.forEach(value -> {
+                    if (value != null) {
+                        list.add((RetainMessageStore) value);
                     }
-            );
-        }
-        return map;
+                });
+            }
+            return list;
+        });
     }
 }
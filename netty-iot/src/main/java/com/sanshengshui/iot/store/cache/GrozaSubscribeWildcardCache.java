@@ -1,6 +1,7 @@
 package com.sanshengshui.iot.store.cache;
 
 import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.metrics.RedisMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -9,6 +10,7 @@ import org.springframework.stereotype.Service;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * @author james
@@ -19,6 +21,9 @@ public class GrozaSubscribeWildcardCache {
     public static final String CACHE_PRE = "groza:subwildcard:";
     public static final String CACHE_CLIENT_PRE = "groza:client:";
 
+    @Autowired
+    private RedisMetrics redisMetrics;
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
@@ -26,60 +31,78 @@ public class GrozaSubscribeWildcardCache {
     private RedisTemplate<String, Serializable> redisCacheTemplate;
 
     public SubscribeStore put(String topic,String clientId,SubscribeStore subscribeStore){
-        redisCacheTemplate.opsForHash().put(CACHE_PRE + topic,clientId,subscribeStore);
-        stringRedisTemplate.opsForSet().add(CACHE_CLIENT_PRE + clientId,topic);
-        return subscribeStore;
+        return redisMetrics.call("GrozaSubscribeWildcardCache.put", () -> {
+            redisCacheTemplate.opsForHash().put(CACHE_PRE + topic,clientId,subscribeStore);
+            stringRedisTemplate.opsForSet().add(CACHE_CLIENT_PRE + clientId,topic);
+            return subscribeStore;
+        });
     }
 
     public SubscribeStore get(String topic, String clientId) {
-        return (SubscribeStore) redisCacheTemplate.opsForHash().get(CACHE_PRE + topic, clientId);
+        return redisMetrics.call("GrozaSubscribeWildcardCache.get", () -> (SubscribeStore) redisCacheTemplate.opsForHash().get(CACHE_PRE + topic, clientId));
     }
 
     public boolean containsKey(String topic, String clientId) {
-        return redisCacheTemplate.opsForHash().hasKey(CACHE_PRE + topic, clientId);
+        return redisMetrics.call("GrozaSubscribeWildcardCache.containsKey", () -> redisCacheTemplate.opsForHash().hasKey(CACHE_PRE + topic, clientId));
     }
 
 
     public void remove(String topic, String clientId) {
-        stringRedisTemplate.opsForSet().remove(CACHE_CLIENT_PRE + clientId, topic);
-        redisCacheTemplate.opsForHash().delete(CACHE_PRE + topic, clientId);
+        redisMetrics.run("GrozaSubscribeWildcardCache.remove", () -> {
+            stringRedisTemplate.opsForSet().remove(CACHE_CLIENT_PRE + clientId, topic);
+            redisCacheTemplate.opsForHash().delete(CACHE_PRE + topic, clientId);
+        });
     }
 
 
     public void removeForClient(String clientId) {
-        for (String topic : stringRedisTemplate.opsForSet().members(CACHE_CLIENT_PRE + clientId)){
-            redisCacheTemplate.opsForHash().delete(CACHE_PRE + topic, clientId);
-        }
-        stringRedisTemplate.delete(CACHE_CLIENT_PRE + clientId);
+        redisMetrics.run("GrozaSubscribeWildcardCache.removeForClient", () -> {
+            for (String topic : stringRedisTemplate.opsForSet().members(CACHE_CLIENT_PRE + clientId)){
+                redisCacheTemplate.opsForHash().delete(CACHE_PRE + topic, clientId);
+            }
+            stringRedisTemplate.delete(CACHE_CLIENT_PRE + clientId);
+        });
     }
 
     public Map<String, ConcurrentHashMap<String, SubscribeStore>> all(){
-        Map<String, ConcurrentHashMap<String, SubscribeStore>> map = new HashMap<>();
-        Set<String> set = redisCacheTemplate.keys(CACHE_PRE + "*");
-        if (set != null && !set.isEmpty()) {
-            set.forEach(
-                    entry -> {
-                        ConcurrentHashMap<String, SubscribeStore> map1 = new ConcurrentHashMap<>();
-                        Map<Object, Object> map2 = redisCacheTemplate.opsForHash().entries(entry);
-                        if (map2 != null && !map2.isEmpty()) {
-                            map2.forEach((k, v) -> {
-                                map1.put((String)k, (SubscribeStore)v);
-                            });
-                            map.put(entry.substring(CACHE_PRE.length()), map1);
+        return redisMetrics.call("GrozaSubscribeWildcardCache.all/0", () -> {
+            Map<String, ConcurrentHashMap<String, SubscribeStore>> map = new HashMap<>();
+            Set<String> set = redisCacheTemplate.keys(CACHE_PRE + "*");
+            if (set != null && !set.isEmpty()) {
+                set.forEach(
+                        entry -> {
+                            ConcurrentHashMap<String, SubscribeStore> map1 = new ConcurrentHashMap<>();
+                            Map<Object, Object> map2 = redisCacheTemplate.opsForHash().entries(entry);
+                            if (map2 != null && !map2.isEmpty()) {
+                                map2.forEach((k, v) -> {
+                                    map1.put((String)k, (SubscribeStore)v);
+                                });
+                                map.put(entry.substring(CACHE_PRE.length()), map1);
+                            }
                         }
-                    }
-            );
-        }
-        return map;
+                );
+            }
+            return map;
+        });
+    }
+    /**
+     * 用SCAN分批遍历全部订阅, 用于启动时加载
+     */
+    public void scan(Consumer<SubscribeStore> consumer) {
+        RedisScan.keys(redisCacheTemplate, CACHE_PRE, topic -> RedisScan.entries(redisCacheTemplate, CACHE_PRE + topic,
+                (clientId, subscribeStore) -> consumer.accept((SubscribeStore) subscribeStore)));
     }
+
     public List<SubscribeStore> all(String topic){
-        List<SubscribeStore> list = new ArrayList<>();
-        Map<Object,Object> map = redisCacheTemplate.opsForHash().entries(CACHE_PRE + topic);
-        if (map != null && !map.isEmpty()) {
-            map.forEach((k, v) -> {
-                list.add((SubscribeStore) v);
-            });
-        }
-        return list;
+        return redisMetrics.call("GrozaSubscribeWildcardCache.all/1", () -> {
+            List<SubscribeStore> list = new ArrayList<>();
+            Map<Object,Object> map = redisCacheTemplate.opsForHash().entries(CACHE_PRE + topic);
+            if (map != null && !map.isEmpty()) {
+                map.forEach((k, v) -> {
+                    list.add((SubscribeStore) v);
+                });
+            }
+            return list;
+        });
     }
 }
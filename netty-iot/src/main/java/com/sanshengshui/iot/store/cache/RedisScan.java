@@ -0,0 +1,57 @@
+package com.sanshengshui.iot.store.cache;
+
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * @author james
+ * 用SCAN/HSCAN分批遍历, 代替KEYS/HGETALL, 避免大键空间时阻塞Redis
+ */
+final class RedisScan {
+
+    private static final int BATCH = 1000;
+
+    private RedisScan() {
+    }
+
+    /**
+     * 遍历匹配前缀的全部key, 回调参数为去掉前缀后的部分
+     */
+    static void keys(RedisTemplate<String, ?> template, String prefix, Consumer<String> consumer) {
+        ScanOptions options = ScanOptions.scanOptions().match(prefix + "*").count(BATCH).build();
+        template.execute((RedisCallback<Void>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    consumer.accept(new String(cursor.next(), StandardCharsets.UTF_8).substring(prefix.length()));
+                }
+            } catch (IOException e) {
+                throw new RedisSystemException("Failed to close scan cursor", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 遍历哈希的全部字段
+     */
+    static void entries(RedisTemplate<String, ?> template, String key, BiConsumer<Object, Object> consumer) {
+        ScanOptions options = ScanOptions.scanOptions().count(BATCH).build();
+        try (Cursor<Map.Entry<Object, Object>> cursor = template.opsForHash().scan(key, options)) {
+            while (cursor.hasNext()) {
+                Map.Entry<Object, Object> entry = cursor.next();
+                consumer.accept(entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new RedisSystemException("Failed to close scan cursor", e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.sanshengshui.iot.store.kafka;
+
+import com.sanshengshui.iot.common.message.GrozaKafkaService;
+import com.sanshengshui.iot.common.serialize.InternalMessageSerializer;
+import com.sanshengshui.iot.internal.InternalMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * kafka二进制批量桥接: 消息以二进制信封编码, 按clientId作为key写入固定的一组kafka主题.
+ * 发布线程只把消息放入有界队列, 由独立线程批量交给producer, netty线程不会等待producer
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "mqtt.kafka.bridge_mode", havingValue = "binary")
+public class KafkaBridgeServiceImpl implements GrozaKafkaService {
+
+    /**
+     * 队列满时的处理策略
+     */
+    public enum OverflowPolicy {
+        /**
+         * 直接丢弃新消息
+         */
+        DROP,
+        /**
+         * 最多等待block_timeout_ms, 仍无空间则丢弃; 等待发生在发布线程上, 只在ordered模式下可用
+         */
+        BLOCK
+    }
+
+    @Autowired
+    private KafkaProperties kafkaProperties;
+
+    @Value("${mqtt.kafka.bridge.topics:groza-publish}")
+    private String[] topics;
+    @Value("${mqtt.kafka.bridge.queue_capacity:65536}")
+    private int queueCapacity;
+    @Value("${mqtt.kafka.bridge.overflow_policy:drop}")
+    private String overflowPolicy;
+    @Value("${mqtt.kafka.bridge.block_timeout_ms:5}")
+    private long blockTimeoutMs;
+    @Value("${mqtt.kafka.bridge.drain_batch:1024}")
+    private int drainBatch;
+    @Value("${mqtt.kafka.bridge.linger_ms:20}")
+    private int lingerMs;
+    @Value("${mqtt.kafka.bridge.batch_size:262144}")
+    private int batchSize;
+    @Value("${mqtt.kafka.bridge.compression_type:lz4}")
+    private String compressionType;
+    @Value("${mqtt.kafka.bridge.acks:1}")
+    private String acks;
+    @Value("${mqtt.netty.execution_mode:event_loop}")
+    private String executionMode;
+
+    private BlockingQueue<ProducerRecord<String, byte[]>> queue;
+
+    private OverflowPolicy policy;
+
+    private Producer<String, byte[]> producer;
+
+    private Thread sender;
+
+    private volatile boolean running;
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        policy = OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+        if (policy == OverflowPolicy.BLOCK && !"ordered".equalsIgnoreCase(executionMode)) {
+            // event_loop模式下PUBLISH在netty的IO线程上处理, 等待会阻塞该线程上的所有连接
+            log.warn("Kafka bridge overflow policy BLOCK requires mqtt.netty.execution_mode=ordered, falling back to DROP");
+            policy = OverflowPolicy.DROP;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        Map<String, Object> props = kafkaProperties.buildProducerProperties();
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        props.put(ProducerConfig.LINGER_MS_CONFIG, lingerMs);
+        props.put(ProducerConfig.BATCH_SIZE_CONFIG, batchSize);
+        props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compressionType);
+        props.put(ProducerConfig.ACKS_CONFIG, acks);
+        producer = new KafkaProducer<>(props);
+        running = true;
+        sender = new Thread(this::drain, "groza-kafka-bridge");
+        sender.setDaemon(true);
+        sender.start();
+        log.info("Kafka bridge started, topics: {}, queue capacity: {}, overflow policy: {}", String.join(",", topics), queueCapacity, policy);
+    }
+
+    @Override
+    public void send(InternalMessage internalMessage) {
+        String clientId = internalMessage.getClientId() == null ? "" : internalMessage.getClientId();
+        String topic = topics[(clientId.hashCode() & Integer.MAX_VALUE) % topics.length];
+        ProducerRecord<String, byte[]> record = new ProducerRecord<>(topic, clientId,
+                InternalMessageSerializer.serialize(internalMessage, System.currentTimeMillis()));
+        boolean accepted;
+        if (policy == OverflowPolicy.BLOCK) {
+            try {
+                accepted = queue.offer(record, blockTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                accepted = false;
+            }
+        } else {
+            accepted = queue.offer(record);
+        }
+        if (!accepted) {
+            dropped.increment();
+        }
+    }
+
+    private void drain() {
+        List<ProducerRecord<String, byte[]>> batch = new ArrayList<>(drainBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                ProducerRecord<String, byte[]> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, drainBatch - 1);
+                for (ProducerRecord<String, byte[]> record : batch) {
+                    producer.send(record, (metadata, exception) -> {
+                        if (exception != null) {
+                            failed.increment();
+                            log.warn("Kafka bridge send failed, topic: {}, key: {}", record.topic(), record.key(), exception);
+                        } else {
+                            sent.increment();
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Kafka bridge drain failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        sender.join(TimeUnit.SECONDS.toMillis(5));
+        producer.close(5, TimeUnit.SECONDS);
+        log.info("Kafka bridge stopped, sent: {}, dropped: {}, failed: {}", sent.sum(), dropped.sum(), failed.sum());
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+}
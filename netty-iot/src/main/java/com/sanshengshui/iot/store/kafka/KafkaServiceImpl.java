@@ -5,14 +5,16 @@ import com.google.gson.GsonBuilder;
 import com.sanshengshui.iot.common.message.GrozaKafkaService;
 import com.sanshengshui.iot.internal.InternalMessage;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Service;
 
 /**
  * @author james
- * @description kafka消息生产者处理类
+ * @description kafka消息生产者处理类, 逐条以json发送, kafka主题与MQTT主题相同
  */
 @Service
+@ConditionalOnProperty(name = "mqtt.kafka.bridge_mode", havingValue = "json", matchIfMissing = true)
 public class KafkaServiceImpl implements GrozaKafkaService {
 
     @Autowired
@@ -0,0 +1,58 @@
+package com.sanshengshui.iot.store.message;
+
+import com.sanshengshui.iot.common.message.DupPubRelMessageStore;
+import com.sanshengshui.iot.common.message.GrozaDupPubRelMessageStoreService;
+import com.sanshengshui.iot.store.cache.GrozaDupPubRelMessageCache;
+import com.sanshengshui.iot.store.cache.GrozaRedisAsyncClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 异步写入的重发消息存储, 写操作不等待Redis回复, 只有连接建立时的读取需要等待
+ */
+@Service
+@ConditionalOnProperty(name = "mqtt.store.mode", havingValue = "async")
+public class AsyncDupPubRelMessageStoreServiceImpl implements GrozaDupPubRelMessageStoreService {
+
+    @Autowired
+    private GrozaRedisAsyncClient grozaRedisAsyncClient;
+
+    @Override
+    public void put(String clientId, DupPubRelMessageStore dupPubRelMessageStore) {
+        String key = GrozaDupPubRelMessageCache.CACHE_PRE + clientId;
+        grozaRedisAsyncClient.fireAndForget(grozaRedisAsyncClient.async().hset(grozaRedisAsyncClient.key(key),
+                grozaRedisAsyncClient.hashKey(String.valueOf(dupPubRelMessageStore.getMessageId())),
+                grozaRedisAsyncClient.hashValue(dupPubRelMessageStore)), "HSET", key);
+    }
+
+    @Override
+    public List<DupPubRelMessageStore> get(String clientId) {
+        String key = GrozaDupPubRelMessageCache.CACHE_PRE + clientId;
+        Map<byte[], byte[]> entries = grozaRedisAsyncClient.await(grozaRedisAsyncClient.async().hgetall(grozaRedisAsyncClient.key(key)), "HGETALL");
+        List<DupPubRelMessageStore> list = new ArrayList<>();
+        if (entries != null) {
+            for (byte[] value : entries.values()) {
+                list.add((DupPubRelMessageStore) grozaRedisAsyncClient.deserializeHashValue(value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void remove(String clientId, int messageId) {
+        String key = GrozaDupPubRelMessageCache.CACHE_PRE + clientId;
+        grozaRedisAsyncClient.fireAndForget(grozaRedisAsyncClient.async().hdel(grozaRedisAsyncClient.key(key),
+                grozaRedisAsyncClient.hashKey(String.valueOf(messageId))), "HDEL", key);
+    }
+
+    @Override
+    public void removeByClient(String clientId) {
+        String key = GrozaDupPubRelMessageCache.CACHE_PRE + clientId;
+        grozaRedisAsyncClient.fireAndForget(grozaRedisAsyncClient.async().del(grozaRedisAsyncClient.key(key)), "DEL", key);
+    }
+}
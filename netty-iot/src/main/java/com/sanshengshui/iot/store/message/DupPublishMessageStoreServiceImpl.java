@@ -4,6 +4,7 @@ import com.sanshengshui.iot.common.message.DupPublishMessageStore;
 import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
 import com.sanshengshui.iot.store.cache.GrozaDupPublishMessageCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
@@ -12,6 +13,7 @@ import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Service
+@ConditionalOnProperty(name = "mqtt.store.mode", havingValue = "sync", matchIfMissing = true)
 public class DupPublishMessageStoreServiceImpl implements GrozaDupPublishMessageStoreService {
 
     @Autowired
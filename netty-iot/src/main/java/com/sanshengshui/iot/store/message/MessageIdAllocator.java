@@ -0,0 +1,88 @@
+package com.sanshengshui.iot.store.message;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author james
+ * 单个客户端的报文标识符分配器, 无锁.
+ * 在1~65535范围内循环分配, 用位图记录在途(未确认)的标识符, 在途数达到窗口上限时拒绝分配
+ */
+public class MessageIdAllocator {
+
+    public static final int MAX_MESSAGE_ID = 65535;
+
+    private final MessageIdBitmap inFlight = new MessageIdBitmap();
+
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    private volatile int window;
+
+    public MessageIdAllocator(int window) {
+        this.setWindow(window);
+    }
+
+    /**
+     * 分配报文标识符, 窗口已满时返回0
+     */
+    public int acquire() {
+        for (;;) {
+            int count = inFlightCount.get();
+            if (count >= window) {
+                return 0;
+            }
+            if (inFlightCount.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+        // 已占用窗口名额, 在途数小于65535, 必然能找到空闲标识符
+        for (;;) {
+            int id = (cursor.getAndIncrement() & Integer.MAX_VALUE) % MAX_MESSAGE_ID + 1;
+            if (inFlight.set(id)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * 回收报文标识符(收到PUBACK/PUBCOMP)
+     */
+    public boolean release(int id) {
+        if (inFlight.clear(id)) {
+            inFlightCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 标记已在途的报文标识符, 用于会话恢复时重发的消息
+     */
+    public boolean reserve(int id) {
+        if (id < 1 || id > MAX_MESSAGE_ID) {
+            return false;
+        }
+        if (inFlight.set(id)) {
+            inFlightCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isInFlight(int id) {
+        return inFlight.get(id);
+    }
+
+    public int inFlightCount() {
+        return inFlightCount.get();
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        this.window = Math.max(1, Math.min(window, MAX_MESSAGE_ID));
+    }
+}
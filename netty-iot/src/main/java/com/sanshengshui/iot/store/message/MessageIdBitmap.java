@@ -0,0 +1,74 @@
+package com.sanshengshui.iot.store.message;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author james
+ * 报文标识符位图, 覆盖0~65535, 无锁.
+ * 按1024位分页, 页在第一次使用时才分配, 空闲客户端只占一个64项的页表
+ */
+public class MessageIdBitmap {
+
+    private static final int PAGE_BITS = 10;
+
+    private static final int PAGE_COUNT = 65536 >>> PAGE_BITS;
+
+    private static final int WORDS_PER_PAGE = (1 << PAGE_BITS) >>> 6;
+
+    private final AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<>(PAGE_COUNT);
+
+    /**
+     * 置位, 原来未置位时返回true
+     */
+    public boolean set(int id) {
+        AtomicLongArray page = page(id, true);
+        int word = (id >>> 6) & (WORDS_PER_PAGE - 1);
+        long mask = 1L << (id & 63);
+        for (;;) {
+            long value = page.get(word);
+            if ((value & mask) != 0) {
+                return false;
+            }
+            if (page.compareAndSet(word, value, value | mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 清位, 原来已置位时返回true
+     */
+    public boolean clear(int id) {
+        AtomicLongArray page = page(id, false);
+        if (page == null) {
+            return false;
+        }
+        int word = (id >>> 6) & (WORDS_PER_PAGE - 1);
+        long mask = 1L << (id & 63);
+        for (;;) {
+            long value = page.get(word);
+            if ((value & mask) == 0) {
+                return false;
+            }
+            if (page.compareAndSet(word, value, value & ~mask)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean get(int id) {
+        AtomicLongArray page = page(id, false);
+        return page != null && (page.get((id >>> 6) & (WORDS_PER_PAGE - 1)) & (1L << (id & 63))) != 0;
+    }
+
+    private AtomicLongArray page(int id, boolean create) {
+        int index = (id & 0xFFFF) >>> PAGE_BITS;
+        AtomicLongArray page = pages.get(index);
+        if (page == null && create) {
+            pages.compareAndSet(index, null, new AtomicLongArray(WORDS_PER_PAGE));
+            page = pages.get(index);
+        }
+        return page;
+    }
+}
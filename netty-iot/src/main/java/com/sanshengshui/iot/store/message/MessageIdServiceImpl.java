@@ -1,12 +1,48 @@
 package com.sanshengshui.iot.store.message;
 
 import com.sanshengshui.iot.common.message.GrozaMessageIdService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 报文标识符服务, 每个客户端一个无锁分配器, 标识符在PUBACK/PUBCOMP时回收
+ */
 @Service
 public class MessageIdServiceImpl implements GrozaMessageIdService {
+
+    @Value("${mqtt.inflight.window:65535}")
+    private int window;
+
+    private final Map<String, MessageIdAllocator> allocators = new ConcurrentHashMap<>();
+
     @Override
-    public int getNextMessageId() {
-        return 0;
+    public int getNextMessageId(String clientId) {
+        return this.allocator(clientId).acquire();
+    }
+
+    @Override
+    public void releaseMessageId(String clientId, int messageId) {
+        MessageIdAllocator allocator = allocators.get(clientId);
+        if (allocator != null) {
+            allocator.release(messageId);
+        }
+    }
+
+    @Override
+    public void reserveMessageId(String clientId, int messageId) {
+        this.allocator(clientId).reserve(messageId);
+    }
+
+    @Override
+    public void removeByClient(String clientId) {
+        allocators.remove(clientId);
+    }
+
+    private MessageIdAllocator allocator(String clientId) {
+        MessageIdAllocator allocator = allocators.get(clientId);
+        return allocator != null ? allocator : allocators.computeIfAbsent(clientId, k -> new MessageIdAllocator(window));
     }
 }
@@ -1,23 +1,82 @@
 package com.sanshengshui.iot.store.message;
 
-import cn.hutool.core.util.StrUtil;
 import com.sanshengshui.iot.common.message.GrozaRetainMessageStoreService;
 import com.sanshengshui.iot.common.message.RetainMessageStore;
+import com.sanshengshui.iot.common.topic.TopicTrie;
+import com.sanshengshui.iot.common.topic.TopicUtil;
 import com.sanshengshui.iot.store.cache.GrozaRetainMessageCache;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+/**
+ * retain消息存储服务
+ * 本节点用主题树索引所有retain主题, 通配订阅只遍历匹配的分支, 命中后再从Redis批量加载消息体
+ */
+@Slf4j
 @Service
 public class RetainMessageStoreServiceImpl implements GrozaRetainMessageStoreService {
     @Autowired
     private GrozaRetainMessageCache grozaRetainMessageCache;
 
+    private final TopicTrie<String> retainTopicTrie = new TopicTrie<>();
+
+    /**
+     * 启动时用SCAN分批加载retain主题; Redis不可用时以空索引启动, 不阻止服务启动
+     */
+    @PostConstruct
+    public void init() {
+        int[] count = new int[1];
+        try {
+            grozaRetainMessageCache.scanTopics(topic -> {
+                retainTopicTrie.put(topic, topic, topic);
+                count[0]++;
+            });
+            log.info("Loaded {} retained topics into topic trie", count[0]);
+        } catch (RuntimeException e) {
+            log.warn("Failed to load retained topics from redis, loaded {} before failure", count[0], e);
+        }
+    }
+
     @Override
     public void put(String topic, RetainMessageStore retainMessageStore) {
         grozaRetainMessageCache.put(topic,retainMessageStore);
+        retainTopicTrie.put(topic, topic, topic);
+    }
+
+    @Override
+    public void putIndex(String topic) {
+        retainTopicTrie.put(topic, topic, topic);
+    }
+
+    @Override
+    public void removeIndex(String topic) {
+        retainTopicTrie.remove(topic, topic);
+    }
+
+    /**
+     * 用SCAN加载Redis中的全部retain主题补入索引, 再删除Redis中已不存在的主题.
+     * 扫描期间写入的主题不在快照中, 删除前逐个确认
+     */
+    @Override
+    public void reload() {
+        Set<String> topics = new HashSet<>();
+        grozaRetainMessageCache.scanTopics(topics::add);
+        topics.forEach(topic -> retainTopicTrie.put(topic, topic, topic));
+        int removed = 0;
+        for (String topic : retainTopicTrie.values()) {
+            if (!topics.contains(topic) && !grozaRetainMessageCache.containsKey(topic)) {
+                retainTopicTrie.remove(topic, topic);
+                removed++;
+            }
+        }
+        log.info("Reloaded {} retained topics into topic trie, removed {}", topics.size(), removed);
     }
 
     @Override
@@ -28,44 +87,26 @@ public class RetainMessageStoreServiceImpl implements GrozaRetainMessageStoreSer
     @Override
     public void remove(String topic) {
         grozaRetainMessageCache.remove(topic);
+        retainTopicTrie.remove(topic, topic);
     }
 
     @Override
     public boolean containsKey(String topic) {
-        return grozaRetainMessageCache.containsKey(topic);
+        return retainTopicTrie.get(topic, topic) != null;
     }
 
     @Override
     public List<RetainMessageStore> search(String topicFilter) {
-        List<RetainMessageStore> retainMessageStores = new ArrayList<RetainMessageStore>();
-        if (!StrUtil.contains(topicFilter, '#') && !StrUtil.contains(topicFilter, '+')) {
-            if (grozaRetainMessageCache.containsKey(topicFilter)) {
-                retainMessageStores.add(grozaRetainMessageCache.get(topicFilter));
-            }
-        } else {
-            grozaRetainMessageCache.all().forEach((topic, val) -> {
-                if (StrUtil.split(topic, '/').size() >= StrUtil.split(topicFilter, '/').size()) {
-                    List<String> splitTopics = StrUtil.split(topic, '/');
-                    List<String> spliteTopicFilters = StrUtil.split(topicFilter, '/');
-                    String newTopicFilter = "";
-                    for (int i = 0; i < spliteTopicFilters.size(); i++) {
-                        String value = spliteTopicFilters.get(i);
-                        if (value.equals("+")) {
-                            newTopicFilter = newTopicFilter + "+/";
-                        } else if (value.equals("#")) {
-                            newTopicFilter = newTopicFilter + "#/";
-                            break;
-                        } else {
-                            newTopicFilter = newTopicFilter + splitTopics.get(i) + "/";
-                        }
-                    }
-                    newTopicFilter = StrUtil.removeSuffix(newTopicFilter, "/");
-                    if (topicFilter.equals(newTopicFilter)) {
-                        retainMessageStores.add(val);
-                    }
+        if (!TopicUtil.isWildcard(topicFilter)) {
+            List<RetainMessageStore> retainMessageStores = new ArrayList<RetainMessageStore>();
+            if (this.containsKey(topicFilter)) {
+                RetainMessageStore retainMessageStore = grozaRetainMessageCache.get(topicFilter);
+                if (retainMessageStore != null) {
+                    retainMessageStores.add(retainMessageStore);
                 }
-            });
+            }
+            return retainMessageStores;
         }
-        return retainMessageStores;
+        return grozaRetainMessageCache.get(retainTopicTrie.matchFilter(topicFilter));
     }
 }
@@ -0,0 +1,411 @@
+package com.sanshengshui.iot.store.offline;
+
+import com.sanshengshui.iot.internal.InternalMessage;
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.PlatformDependent;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author james
+ * 离线消息日志: 所有客户端共用一组内存映射的分段文件, 消息顺序追加.
+ * 每条记录保存同一客户端下一条记录的位置, 内存中每个客户端只保存链表的头尾位置和计数, 消息本身不占堆内存.
+ * 记录被读取或过期后标记为已消费, 分段内记录全部消费或超过保存时间后整段删除.
+ * 非线程安全的操作均在this上同步
+ */
+@Slf4j
+public class OfflineMessageLog {
+
+    private static final byte EMPTY = 0;
+
+    private static final byte LIVE = 1;
+
+    private static final byte CONSUMED = 2;
+
+    private static final int STATUS_OFFSET = 0;
+
+    private static final int NEXT_OFFSET = 1;
+
+    private static final int TIMESTAMP_OFFSET = 9;
+
+    private static final int QOS_OFFSET = 17;
+
+    private static final int CLIENT_ID_LENGTH_OFFSET = 18;
+
+    private static final int TOPIC_LENGTH_OFFSET = 20;
+
+    private static final int PAYLOAD_LENGTH_OFFSET = 22;
+
+    private static final int HEADER_SIZE = 26;
+
+    private static final long NONE = -1L;
+
+    private static final String SUFFIX = ".log";
+
+    private final File dir;
+
+    private final int segmentBytes;
+
+    private final long maxAgeMillis;
+
+    private final long maxBytesPerClient;
+
+    private final long maxTotalBytes;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private final Map<String, ClientChain> chains = new HashMap<>();
+
+    private Segment active;
+
+    public OfflineMessageLog(File dir, int segmentBytes, long maxAgeMillis, long maxBytesPerClient, long maxTotalBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytesPerClient = maxBytesPerClient;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * 打开日志目录, 从已有分段中恢复各客户端未消费的消息
+     */
+    public synchronized void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create offline message directory " + dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                long index = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                Segment segment = new Segment(index, file, (int) Math.max(file.length(), HEADER_SIZE));
+                segments.put(index, segment);
+                this.recover(segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            active = this.newSegment(0);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        log.info("Offline message log opened, segments: {}, clients: {}", segments.size(), chains.size());
+    }
+
+    /**
+     * 追加消息, 超出单条上限时返回false
+     */
+    public synchronized boolean append(String clientId, String topic, int mqttQoS, byte[] messageBytes, long now) throws IOException {
+        byte[] clientIdBytes = clientId.getBytes(CharsetUtil.UTF_8);
+        byte[] topicBytes = topic.getBytes(CharsetUtil.UTF_8);
+        int size = HEADER_SIZE + clientIdBytes.length + topicBytes.length + messageBytes.length;
+        if (size > segmentBytes || (maxBytesPerClient > 0 && size > maxBytesPerClient)) {
+            return false;
+        }
+        if (active.writeOffset + size > active.capacity) {
+            active = this.newSegment(active.index + 1);
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.writeOffset;
+        buffer.putLong(offset + NEXT_OFFSET, NONE);
+        buffer.putLong(offset + TIMESTAMP_OFFSET, now);
+        buffer.put(offset + QOS_OFFSET, (byte) mqttQoS);
+        buffer.putShort(offset + CLIENT_ID_LENGTH_OFFSET, (short) clientIdBytes.length);
+        buffer.putShort(offset + TOPIC_LENGTH_OFFSET, (short) topicBytes.length);
+        buffer.putInt(offset + PAYLOAD_LENGTH_OFFSET, messageBytes.length);
+        int pos = offset + HEADER_SIZE;
+        pos = put(buffer, pos, clientIdBytes);
+        pos = put(buffer, pos, topicBytes);
+        put(buffer, pos, messageBytes);
+        // 状态字节最后写入, 进程中断时未写完的记录在恢复时视为日志末尾
+        buffer.put(offset + STATUS_OFFSET, LIVE);
+        active.writeOffset += size;
+        active.live++;
+        active.lastTimestamp = now;
+
+        long position = position(active.index, offset);
+        ClientChain chain = chains.computeIfAbsent(clientId, k -> new ClientChain());
+        this.link(chain, position, size);
+        // 超过单个客户端的容量上限时丢弃最早的消息
+        while (maxBytesPerClient > 0 && chain.bytes > maxBytesPerClient) {
+            this.consumeHead(clientId, chain);
+        }
+        return true;
+    }
+
+    /**
+     * 按顺序取出最多max条消息并标记为已消费, 跳过超过保存时间的消息
+     */
+    public synchronized List<InternalMessage> poll(String clientId, int max, long now) {
+        List<InternalMessage> messages = new ArrayList<>();
+        ClientChain chain = chains.get(clientId);
+        while (chain != null && chain.head != NONE && messages.size() < max) {
+            Segment segment = segments.get(segmentIndex(chain.head));
+            int offset = offset(chain.head);
+            MappedByteBuffer buffer = segment.buffer;
+            boolean expired = maxAgeMillis > 0 && buffer.getLong(offset + TIMESTAMP_OFFSET) < now - maxAgeMillis;
+            if (!expired) {
+                int clientIdLength = buffer.getShort(offset + CLIENT_ID_LENGTH_OFFSET) & 0xFFFF;
+                int topicLength = buffer.getShort(offset + TOPIC_LENGTH_OFFSET) & 0xFFFF;
+                byte[] topicBytes = get(buffer, offset + HEADER_SIZE + clientIdLength, topicLength);
+                byte[] messageBytes = get(buffer, offset + HEADER_SIZE + clientIdLength + topicLength, buffer.getInt(offset + PAYLOAD_LENGTH_OFFSET));
+                messages.add(new InternalMessage().setClientId(clientId)
+                        .setTopic(new String(topicBytes, CharsetUtil.UTF_8))
+                        .setMqttQoS(buffer.get(offset + QOS_OFFSET))
+                        .setMessageBytes(messageBytes)
+                        .setRetain(false)
+                        .setDup(false));
+            }
+            chain = this.consumeHead(clientId, chain) ? chain : null;
+        }
+        return messages;
+    }
+
+    /**
+     * 丢弃客户端的全部消息
+     */
+    public synchronized void remove(String clientId) {
+        ClientChain chain = chains.get(clientId);
+        while (chain != null && this.consumeHead(clientId, chain)) {
+            // 逐条标记为已消费
+        }
+    }
+
+    public synchronized int size(String clientId) {
+        ClientChain chain = chains.get(clientId);
+        return chain == null ? 0 : chain.count;
+    }
+
+    public synchronized long bytes(String clientId) {
+        ClientChain chain = chains.get(clientId);
+        return chain == null ? 0 : chain.bytes;
+    }
+
+    public synchronized List<String> clients() {
+        return new ArrayList<>(chains.keySet());
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long totalBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.capacity;
+        }
+        return total;
+    }
+
+    /**
+     * 压缩: 删除全部过期的分段; 总大小超过上限时从最早的分段开始删除
+     */
+    public synchronized void compact(long now) {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active) {
+                break;
+            }
+            boolean expired = maxAgeMillis > 0 && segment.lastTimestamp < now - maxAgeMillis;
+            boolean overflow = maxTotalBytes > 0 && this.totalBytes() > maxTotalBytes;
+            if (segment.live > 0 && !expired && !overflow) {
+                continue;
+            }
+            if (segment.live > 0) {
+                this.evict(segment);
+            }
+            iterator.remove();
+            segment.delete();
+        }
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        chains.clear();
+    }
+
+    private void recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= segment.capacity) {
+            byte status = buffer.get(offset + STATUS_OFFSET);
+            if (status == EMPTY) {
+                break;
+            }
+            int clientIdLength = buffer.getShort(offset + CLIENT_ID_LENGTH_OFFSET) & 0xFFFF;
+            int size = recordSize(buffer, offset);
+            if (offset + size > segment.capacity) {
+                break;
+            }
+            segment.lastTimestamp = Math.max(segment.lastTimestamp, buffer.getLong(offset + TIMESTAMP_OFFSET));
+            if (status == LIVE) {
+                String clientId = new String(get(buffer, offset + HEADER_SIZE, clientIdLength), CharsetUtil.UTF_8);
+                buffer.putLong(offset + NEXT_OFFSET, NONE);
+                segment.live++;
+                this.link(chains.computeIfAbsent(clientId, k -> new ClientChain()), position(segment.index, offset), size);
+            }
+            offset += size;
+        }
+        segment.writeOffset = offset;
+    }
+
+    private void link(ClientChain chain, long position, int size) {
+        if (chain.tail != NONE) {
+            Segment tail = segments.get(segmentIndex(chain.tail));
+            tail.buffer.putLong(offset(chain.tail) + NEXT_OFFSET, position);
+        } else {
+            chain.head = position;
+        }
+        chain.tail = position;
+        chain.count++;
+        chain.bytes += size;
+    }
+
+    /**
+     * 标记链表头部记录为已消费, 链表为空时删除并返回false
+     */
+    private boolean consumeHead(String clientId, ClientChain chain) {
+        Segment segment = segments.get(segmentIndex(chain.head));
+        int offset = offset(chain.head);
+        MappedByteBuffer buffer = segment.buffer;
+        int size = recordSize(buffer, offset);
+        long next = buffer.getLong(offset + NEXT_OFFSET);
+        buffer.put(offset + STATUS_OFFSET, CONSUMED);
+        segment.live--;
+        chain.count--;
+        chain.bytes -= size;
+        chain.head = next;
+        if (segment.live == 0 && segment != active) {
+            segments.remove(segment.index);
+            segment.delete();
+        }
+        if (next == NONE) {
+            chains.remove(clientId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 整段删除前, 把头部位于该分段的客户端链表前移. 同一客户端的记录按时间顺序追加, 位于该分段中的必然是链表的前缀
+     */
+    private void evict(Segment segment) {
+        Iterator<Map.Entry<String, ClientChain>> iterator = chains.entrySet().iterator();
+        while (iterator.hasNext()) {
+            ClientChain chain = iterator.next().getValue();
+            while (chain.head != NONE && segmentIndex(chain.head) == segment.index) {
+                int offset = offset(chain.head);
+                MappedByteBuffer buffer = segment.buffer;
+                chain.count--;
+                chain.bytes -= recordSize(buffer, offset);
+                chain.head = buffer.getLong(offset + NEXT_OFFSET);
+            }
+            if (chain.head == NONE) {
+                iterator.remove();
+            }
+        }
+        segment.live = 0;
+    }
+
+    private Segment newSegment(long index) throws IOException {
+        Segment segment = new Segment(index, new File(dir, String.format("%020d", index) + SUFFIX), segmentBytes);
+        segments.put(index, segment);
+        return segment;
+    }
+
+    private static int recordSize(MappedByteBuffer buffer, int offset) {
+        return HEADER_SIZE + (buffer.getShort(offset + CLIENT_ID_LENGTH_OFFSET) & 0xFFFF)
+                + (buffer.getShort(offset + TOPIC_LENGTH_OFFSET) & 0xFFFF) + buffer.getInt(offset + PAYLOAD_LENGTH_OFFSET);
+    }
+
+    private static long position(long segmentIndex, int offset) {
+        return segmentIndex << 32 | offset;
+    }
+
+    private static long segmentIndex(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    private static int put(MappedByteBuffer buffer, int index, byte[] bytes) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(index);
+        duplicate.put(bytes);
+        return index + bytes.length;
+    }
+
+    private static byte[] get(MappedByteBuffer buffer, int index, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(index);
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    private static class ClientChain {
+
+        private long head = NONE;
+
+        private long tail = NONE;
+
+        private int count;
+
+        private long bytes;
+    }
+
+    private static class Segment {
+
+        private final long index;
+
+        private final File file;
+
+        private final int capacity;
+
+        private final MappedByteBuffer buffer;
+
+        private int writeOffset;
+
+        private int live;
+
+        private long lastTimestamp;
+
+        Segment(long index, File file, int capacity) throws IOException {
+            this.index = index;
+            this.file = file;
+            this.capacity = capacity;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        void close() {
+            PlatformDependent.freeDirectBuffer(buffer);
+        }
+
+        void delete() {
+            this.close();
+            if (!file.delete()) {
+                log.warn("Failed to delete offline message segment {}", file);
+            }
+        }
+    }
+}
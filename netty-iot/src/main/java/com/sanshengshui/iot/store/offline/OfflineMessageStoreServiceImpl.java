@@ -0,0 +1,132 @@
+package com.sanshengshui.iot.store.offline;
+
+import com.sanshengshui.iot.common.message.GrozaOfflineMessageStoreService;
+import com.sanshengshui.iot.internal.InternalMessage;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 离线消息存储服务, 消息写入本地内存映射的分段日志, 不占用Redis和堆内存.
+ * 持久会话登记在内存中, 重启后由日志中尚有消息的客户端恢复
+ */
+@Slf4j
+@Service
+public class OfflineMessageStoreServiceImpl implements GrozaOfflineMessageStoreService {
+
+    @Value("${mqtt.offline.enabled:true}")
+    private boolean enabled;
+    @Value("${mqtt.offline.dir:data/offline}")
+    private String dir;
+    @Value("${mqtt.offline.segment_bytes:67108864}")
+    private int segmentBytes;
+    @Value("${mqtt.offline.max_age_ms:86400000}")
+    private long maxAgeMillis;
+    @Value("${mqtt.offline.max_bytes_per_client:1048576}")
+    private long maxBytesPerClient;
+    @Value("${mqtt.offline.max_total_bytes:4294967296}")
+    private long maxTotalBytes;
+    @Value("${mqtt.offline.compact_interval_ms:60000}")
+    private long compactIntervalMillis;
+
+    private OfflineMessageLog offlineMessageLog;
+
+    private final Set<String> persistentClients = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService compactor;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        offlineMessageLog = new OfflineMessageLog(new File(dir), segmentBytes, maxAgeMillis, maxBytesPerClient, maxTotalBytes);
+        offlineMessageLog.open();
+        persistentClients.addAll(offlineMessageLog.clients());
+        compactor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("groza-offline-compact", true));
+        compactor.scheduleWithFixedDelay(this::compact, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void register(String clientId) {
+        if (enabled) {
+            persistentClients.add(clientId);
+        }
+    }
+
+    @Override
+    public void unregister(String clientId) {
+        if (enabled && persistentClients.remove(clientId)) {
+            offlineMessageLog.remove(clientId);
+        }
+    }
+
+    @Override
+    public boolean isPersistent(String clientId) {
+        return enabled && persistentClients.contains(clientId);
+    }
+
+    @Override
+    public boolean put(String clientId, String topic, int mqttQoS, byte[] messageBytes) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            return offlineMessageLog.append(clientId, topic, mqttQoS, messageBytes, System.currentTimeMillis());
+        } catch (IOException e) {
+            log.error("Failed to append offline message, clientId: {}, topic: {}", clientId, topic, e);
+            return false;
+        }
+    }
+
+    @Override
+    public List<InternalMessage> poll(String clientId, int max) {
+        if (!enabled) {
+            return Collections.emptyList();
+        }
+        return offlineMessageLog.poll(clientId, max, System.currentTimeMillis());
+    }
+
+    @Override
+    public int size(String clientId) {
+        return enabled ? offlineMessageLog.size(clientId) : 0;
+    }
+
+    public int getSegmentCount() {
+        return enabled ? offlineMessageLog.segmentCount() : 0;
+    }
+
+    public long getTotalBytes() {
+        return enabled ? offlineMessageLog.totalBytes() : 0;
+    }
+
+    private void compact() {
+        try {
+            offlineMessageLog.compact(System.currentTimeMillis());
+        } catch (Exception e) {
+            log.error("Offline message compaction failed", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        compactor.shutdownNow();
+        offlineMessageLog.close();
+    }
+}
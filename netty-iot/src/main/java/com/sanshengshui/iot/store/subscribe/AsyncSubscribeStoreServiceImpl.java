@@ -0,0 +1,69 @@
+package com.sanshengshui.iot.store.subscribe;
+
+import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.common.topic.TopicUtil;
+import com.sanshengshui.iot.store.cache.GrozaRedisAsyncClient;
+import com.sanshengshui.iot.store.cache.GrozaSubscribeNotWildcardCache;
+import com.sanshengshui.iot.store.cache.GrozaSubscribeWildcardCache;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.Set;
+
+/**
+ * 订阅存储服务(异步)
+ * 主题树与同步实现相同; Redis写入改为Lettuce异步命令, 不等待回复.
+ * 多命令操作在同一连接上连续发出(管道)
+ */
+@Service
+@ConditionalOnProperty(name = "mqtt.store.mode", havingValue = "async")
+public class AsyncSubscribeStoreServiceImpl extends SubscribeStoreServiceImpl {
+
+    @Autowired
+    private GrozaRedisAsyncClient grozaRedisAsyncClient;
+
+    @Override
+    protected void persist(String topicFilter, SubscribeStore subscribeStore) {
+        String key = cachePre(topicFilter) + topicFilter;
+        String clientKey = GrozaSubscribeNotWildcardCache.CACHE_CLIENT_PRE + subscribeStore.getClientId();
+        RedisClusterAsyncCommands<byte[], byte[]> async = grozaRedisAsyncClient.async();
+        grozaRedisAsyncClient.fireAndForget(async.hset(grozaRedisAsyncClient.key(key),
+                grozaRedisAsyncClient.hashKey(subscribeStore.getClientId()),
+                grozaRedisAsyncClient.hashValue(subscribeStore)), "HSET", key);
+        grozaRedisAsyncClient.fireAndForget(async.sadd(grozaRedisAsyncClient.key(clientKey),
+                grozaRedisAsyncClient.key(topicFilter)), "SADD", clientKey);
+    }
+
+    @Override
+    protected void unpersist(String topicFilter, String clientId) {
+        String key = cachePre(topicFilter) + topicFilter;
+        String clientKey = GrozaSubscribeNotWildcardCache.CACHE_CLIENT_PRE + clientId;
+        RedisClusterAsyncCommands<byte[], byte[]> async = grozaRedisAsyncClient.async();
+        grozaRedisAsyncClient.fireAndForget(async.srem(grozaRedisAsyncClient.key(clientKey),
+                grozaRedisAsyncClient.key(topicFilter)), "SREM", clientKey);
+        grozaRedisAsyncClient.fireAndForget(async.hdel(grozaRedisAsyncClient.key(key),
+                grozaRedisAsyncClient.hashKey(clientId)), "HDEL", key);
+    }
+
+    /**
+     * 逐个订阅发出HDEL, 最后删除客户端集合, 命令在同一连接上连续发出, 不等待回复.
+     * 订阅的key全部由客户端给出, 不在服务端拼接key, 兼容Redis集群
+     */
+    @Override
+    protected void unpersistClient(String clientId, Set<String> topicFilters) {
+        RedisClusterAsyncCommands<byte[], byte[]> async = grozaRedisAsyncClient.async();
+        byte[] hashKey = grozaRedisAsyncClient.hashKey(clientId);
+        for (String topicFilter : topicFilters) {
+            String key = cachePre(topicFilter) + topicFilter;
+            grozaRedisAsyncClient.fireAndForget(async.hdel(grozaRedisAsyncClient.key(key), hashKey), "HDEL", key);
+        }
+        String clientKey = GrozaSubscribeNotWildcardCache.CACHE_CLIENT_PRE + clientId;
+        grozaRedisAsyncClient.fireAndForget(async.del(grozaRedisAsyncClient.key(clientKey)), "DEL", clientKey);
+    }
+
+    private static String cachePre(String topicFilter) {
+        return TopicUtil.isWildcard(topicFilter) ? GrozaSubscribeWildcardCache.CACHE_PRE : GrozaSubscribeNotWildcardCache.CACHE_PRE;
+    }
+}
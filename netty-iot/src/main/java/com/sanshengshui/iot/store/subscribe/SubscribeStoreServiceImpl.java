@@ -1,83 +1,205 @@
 package com.sanshengshui.iot.store.subscribe;
 
-import cn.hutool.core.util.StrUtil;
 import com.sanshengshui.iot.common.subscribe.GrozaSubscribeStoreService;
+import com.sanshengshui.iot.common.subscribe.SharedSubscription;
 import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.common.topic.TopicTrie;
+import com.sanshengshui.iot.common.topic.TopicUtil;
 import com.sanshengshui.iot.store.cache.GrozaSubscribeNotWildcardCache;
 import com.sanshengshui.iot.store.cache.GrozaSubscribeWildcardCache;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * 订阅存储服务
+ * 订阅全部保存在本节点的主题树中, search只查主题树; Redis作为持久化副本, 启动时用SCAN从Redis加载, 写操作同步写入Redis.
+ * 共享订阅($share/{group}/{topicFilter})按组保存在单独的主题树中, 由searchShared返回匹配的组
  */
+@Slf4j
 @Service
+@ConditionalOnProperty(name = "mqtt.store.mode", havingValue = "sync", matchIfMissing = true)
 public class SubscribeStoreServiceImpl implements GrozaSubscribeStoreService {
     @Autowired
-    private GrozaSubscribeWildcardCache grozaSubscribeWildcardCache;
+    protected GrozaSubscribeWildcardCache grozaSubscribeWildcardCache;
 
     @Autowired
-    private GrozaSubscribeNotWildcardCache grozaSubscribeNotWildcardCache;
+    protected GrozaSubscribeNotWildcardCache grozaSubscribeNotWildcardCache;
+
+    private final TopicTrie<SubscribeStore> subscribeTrie = new TopicTrie<>();
+
+    /**
+     * 共享订阅组, 以去掉前缀的主题过滤器为路径, 以组名为key
+     */
+    private final TopicTrie<SharedSubscription> sharedTrie = new TopicTrie<>();
+
+    private final Object sharedLock = new Object();
+
+    /**
+     * clientId -> 该客户端订阅的主题过滤器
+     */
+    private final Map<String, Set<String>> clientTopicFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 启动时用SCAN分批从Redis加载订阅; Redis不可用时以空主题树启动, 不阻止服务启动
+     */
+    @PostConstruct
+    public void init() {
+        int[] count = new int[1];
+        Consumer<SubscribeStore> loader = subscribeStore -> {
+            this.index(subscribeStore.getTopicFilter(), subscribeStore);
+            count[0]++;
+        };
+        try {
+            grozaSubscribeWildcardCache.scan(loader);
+            grozaSubscribeNotWildcardCache.scan(loader);
+            log.info("Loaded {} subscriptions into topic trie", count[0]);
+        } catch (RuntimeException e) {
+            log.warn("Failed to load subscriptions from redis, loaded {} before failure", count[0], e);
+        }
+    }
 
     @Override
     public void put(String topicFilter, SubscribeStore subscribeStore) {
-        if (StrUtil.contains(topicFilter,'#') || StrUtil.contains(topicFilter,'+')){
-            grozaSubscribeWildcardCache.put(topicFilter,subscribeStore.getClientId(),subscribeStore);
-        }else{
-            grozaSubscribeNotWildcardCache.put(topicFilter,subscribeStore.getClientId(),subscribeStore);
-        }
+        this.persist(topicFilter, subscribeStore);
+        this.index(topicFilter, subscribeStore);
     }
 
     @Override
     public void remove(String topicFilter, String clientId) {
-        if (StrUtil.contains(topicFilter,'#') || StrUtil.contains(topicFilter,'+')){
-            grozaSubscribeWildcardCache.remove(topicFilter,clientId);
-        }else {
-            grozaSubscribeNotWildcardCache.remove(topicFilter,clientId);
+        this.unpersist(topicFilter, clientId);
+        this.unindex(topicFilter, clientId);
+        Set<String> topicFilters = clientTopicFilters.get(clientId);
+        if (topicFilters != null) {
+            topicFilters.remove(topicFilter);
         }
     }
 
     @Override
     public void removeForClient(String clientId) {
-        grozaSubscribeNotWildcardCache.removeForClient(clientId);
-        grozaSubscribeWildcardCache.removeForClient(clientId);
+        Set<String> topicFilters = clientTopicFilters.remove(clientId);
+        if (topicFilters != null) {
+            this.unpersistClient(clientId, topicFilters);
+            for (String topicFilter : topicFilters) {
+                this.unindex(topicFilter, clientId);
+            }
+        }
+    }
+
+    @Override
+    public void evictForClient(String clientId) {
+        Set<String> topicFilters = clientTopicFilters.remove(clientId);
+        if (topicFilters != null) {
+            for (String topicFilter : topicFilters) {
+                this.unindex(topicFilter, clientId);
+            }
+        }
     }
 
     @Override
     public List<SubscribeStore> search(String topic) {
-        List<SubscribeStore> subscribeStores = new ArrayList<SubscribeStore>();
-        List<SubscribeStore> list = grozaSubscribeNotWildcardCache.all(topic);
-        if (list.size() > 0) {
-            subscribeStores.addAll(list);
+        return subscribeTrie.match(topic);
+    }
+
+    @Override
+    public List<SubscribeStore> searchByClient(String clientId) {
+        Set<String> topicFilters = clientTopicFilters.get(clientId);
+        if (topicFilters == null) {
+            return Collections.emptyList();
+        }
+        List<SubscribeStore> subscribeStores = new ArrayList<>(topicFilters.size());
+        for (String topicFilter : topicFilters) {
+            SubscribeStore subscribeStore;
+            if (TopicUtil.isShared(topicFilter)) {
+                SharedSubscription sharedSubscription = sharedTrie.get(TopicUtil.shareFilter(topicFilter), TopicUtil.shareGroup(topicFilter));
+                subscribeStore = sharedSubscription == null ? null : sharedSubscription.get(clientId);
+            } else {
+                subscribeStore = subscribeTrie.get(topicFilter, clientId);
+            }
+            if (subscribeStore != null) {
+                subscribeStores.add(subscribeStore);
+            }
         }
-        grozaSubscribeWildcardCache.all().forEach((topicFilter, map) -> {
-            if (StrUtil.split(topic, '/').size() >= StrUtil.split(topicFilter, '/').size()) {
-                List<String> splitTopics = StrUtil.split(topic, '/');//a
-                List<String> spliteTopicFilters = StrUtil.split(topicFilter, '/');//#
-                String newTopicFilter = "";
-                for (int i = 0; i < spliteTopicFilters.size(); i++) {
-                    String value = spliteTopicFilters.get(i);
-                    if (value.equals("+")) {
-                        newTopicFilter = newTopicFilter + "+/";
-                    } else if (value.equals("#")) {
-                        newTopicFilter = newTopicFilter + "#/";
-                        break;
-                    } else {
-                        newTopicFilter = newTopicFilter + splitTopics.get(i) + "/";
-                    }
+        return subscribeStores;
+    }
+
+    @Override
+    public List<SharedSubscription> searchShared(String topic) {
+        return sharedTrie.match(topic);
+    }
+
+    /**
+     * 写入Redis
+     */
+    protected void persist(String topicFilter, SubscribeStore subscribeStore) {
+        if (TopicUtil.isWildcard(topicFilter)) {
+            grozaSubscribeWildcardCache.put(topicFilter, subscribeStore.getClientId(), subscribeStore);
+        } else {
+            grozaSubscribeNotWildcardCache.put(topicFilter, subscribeStore.getClientId(), subscribeStore);
+        }
+    }
+
+    /**
+     * 从Redis删除
+     */
+    protected void unpersist(String topicFilter, String clientId) {
+        if (TopicUtil.isWildcard(topicFilter)) {
+            grozaSubscribeWildcardCache.remove(topicFilter, clientId);
+        } else {
+            grozaSubscribeNotWildcardCache.remove(topicFilter, clientId);
+        }
+    }
+
+    /**
+     * 从Redis删除客户端的全部订阅
+     */
+    protected void unpersistClient(String clientId, Set<String> topicFilters) {
+        // 通配与非通配订阅共用同一个客户端集合, 这里按过滤器逐个删除, 避免其中一类残留在Redis
+        for (String topicFilter : topicFilters) {
+            this.unpersist(topicFilter, clientId);
+        }
+    }
+
+    private void index(String topicFilter, SubscribeStore subscribeStore) {
+        if (TopicUtil.isShared(topicFilter)) {
+            String group = TopicUtil.shareGroup(topicFilter);
+            String shareFilter = TopicUtil.shareFilter(topicFilter);
+            synchronized (sharedLock) {
+                SharedSubscription sharedSubscription = sharedTrie.get(shareFilter, group);
+                if (sharedSubscription == null) {
+                    sharedSubscription = new SharedSubscription(group, shareFilter);
+                    sharedTrie.put(shareFilter, group, sharedSubscription);
                 }
-                newTopicFilter = StrUtil.removeSuffix(newTopicFilter, "/");
-                if (topicFilter.equals(newTopicFilter)) {
-                    Collection<SubscribeStore> collection = map.values();
-                    List<SubscribeStore> list2 = new ArrayList<SubscribeStore>(collection);
-                    subscribeStores.addAll(list2);
+                sharedSubscription.put(subscribeStore);
+            }
+        } else {
+            subscribeTrie.put(topicFilter, subscribeStore.getClientId(), subscribeStore);
+        }
+        clientTopicFilters.computeIfAbsent(subscribeStore.getClientId(), k -> ConcurrentHashMap.newKeySet()).add(topicFilter);
+    }
+
+    private void unindex(String topicFilter, String clientId) {
+        if (TopicUtil.isShared(topicFilter)) {
+            String group = TopicUtil.shareGroup(topicFilter);
+            String shareFilter = TopicUtil.shareFilter(topicFilter);
+            synchronized (sharedLock) {
+                SharedSubscription sharedSubscription = sharedTrie.get(shareFilter, group);
+                if (sharedSubscription != null && sharedSubscription.remove(clientId)) {
+                    sharedTrie.remove(shareFilter, group);
                 }
             }
-        });
-        return subscribeStores;
+        } else {
+            subscribeTrie.remove(topicFilter, clientId);
+        }
     }
 }
@@ -0,0 +1,156 @@
+package com.sanshengshui.iot.trace;
+
+import cn.hutool.core.util.StrUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author james
+ * 报文跟踪, 替代协议处理中逐报文的INFO日志. 按规则(客户端、主题过滤器、客户端抽样)决定是否跟踪,
+ * 命中的报文写入环形缓冲区, 由后台线程异步输出到名为groza.trace的日志. 规则可在运行时修改, 未配置规则时只有一次volatile读
+ */
+@Component
+public class MessageTracer {
+
+    private static final Logger TRACE_LOG = LoggerFactory.getLogger("groza.trace");
+
+    private static final int DRAIN_BATCH = 1024;
+
+    @Value("${mqtt.trace.buffer_size:65536}")
+    private int bufferSize;
+    @Value("${mqtt.trace.clients:}")
+    private String clients;
+    @Value("${mqtt.trace.topics:}")
+    private String topics;
+    @Value("${mqtt.trace.sample_rate:0}")
+    private double sampleRate;
+
+    private volatile TraceRules rules = TraceRules.NONE;
+
+    private TraceRingBuffer ringBuffer;
+
+    private Thread drainer;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        ringBuffer = new TraceRingBuffer(bufferSize);
+        rules = new TraceRules(split(clients), split(topics), sampleRate);
+        running = true;
+        drainer = new Thread(this::drainLoop, "groza-trace");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        if (drainer != null) {
+            drainer.interrupt();
+            drainer.join(1000);
+            this.drain();
+        }
+    }
+
+    /**
+     * 是否配置了任何跟踪规则, 调用方在只为跟踪才需要查询clientId时先做此判断
+     */
+    public boolean isEnabled() {
+        return rules.isEnabled();
+    }
+
+    public void trace(TraceType type, String clientId, String topic, int mqttQoS, int messageId) {
+        TraceRules current = rules;
+        if (current.matches(clientId, topic)) {
+            ringBuffer.offer(System.currentTimeMillis(), type, clientId, topic, mqttQoS, messageId);
+        }
+    }
+
+    public synchronized void traceClient(String clientId, boolean traced) {
+        rules = rules.withClient(clientId, traced);
+    }
+
+    public synchronized void traceTopicFilter(String topicFilter, boolean traced) {
+        rules = rules.withTopicFilter(topicFilter, traced);
+    }
+
+    public synchronized void setSampleRate(double sampleRate) {
+        rules = rules.withSampleRate(sampleRate);
+    }
+
+    public Map<String, Object> snapshot() {
+        TraceRules current = rules;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("clients", current.getClients());
+        map.put("topicFilters", current.getTopicFilters());
+        map.put("sampleRate", current.getSampleRate());
+        map.put("capacity", ringBuffer.getCapacity());
+        map.put("pending", ringBuffer.size());
+        map.put("recorded", ringBuffer.getRecordedCount());
+        map.put("dropped", ringBuffer.getDroppedCount());
+        return map;
+    }
+
+    int drain() {
+        int total = 0;
+        int count;
+        while ((count = ringBuffer.drain(MessageTracer::log, DRAIN_BATCH)) > 0) {
+            total += count;
+        }
+        return total;
+    }
+
+    private void drainLoop() {
+        while (running) {
+            if (this.drain() == 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    private static void log(long timestamp, TraceType type, String clientId, String topic, int mqttQoS, int messageId) {
+        switch (type) {
+            case PUBLISH_IN:
+            case PUBLISH_OUT:
+                TRACE_LOG.info("{} - clientId: {}, topic: {}, QoS: {}, messageId: {}, time: {}", type, clientId, topic, mqttQoS, messageId, timestamp);
+                break;
+            case SUBSCRIBE:
+                TRACE_LOG.info("{} - clientId: {}, topicFilter: {}, QoS: {}, time: {}", type, clientId, topic, mqttQoS, timestamp);
+                break;
+            case UNSUBSCRIBE:
+                TRACE_LOG.info("{} - clientId: {}, topicFilter: {}, time: {}", type, clientId, topic, timestamp);
+                break;
+            case PUBACK:
+            case PUBREC:
+            case PUBREL:
+            case PUBCOMP:
+                TRACE_LOG.info("{} - clientId: {}, messageId: {}, time: {}", type, clientId, messageId, timestamp);
+                break;
+            default:
+                TRACE_LOG.info("{} - clientId: {}, time: {}", type, clientId, timestamp);
+                break;
+        }
+    }
+
+    private static Set<String> split(String value) {
+        Set<String> set = new HashSet<>();
+        for (String item : StrUtil.split(value, ',')) {
+            if (StrUtil.isNotBlank(item)) {
+                set.add(item.trim());
+            }
+        }
+        return set;
+    }
+}
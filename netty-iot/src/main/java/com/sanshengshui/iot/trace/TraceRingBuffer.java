@@ -0,0 +1,117 @@
+package com.sanshengshui.iot.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author james
+ * 跟踪记录环形缓冲区, 多生产者单消费者. 记录按字段存放在预分配的数组中, 写入时只CAS占位和写数组, 不分配对象;
+ * 缓冲区满时丢弃新记录并计数, 不阻塞协议处理线程
+ */
+public class TraceRingBuffer {
+
+    /**
+     * 消费记录的回调, 字段逐个传入, 不构造记录对象
+     */
+    public interface TraceSink {
+        void accept(long timestamp, TraceType type, String clientId, String topic, int mqttQoS, int messageId);
+    }
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final long[] timestamps;
+
+    private final TraceType[] types;
+
+    private final String[] clientIds;
+
+    private final String[] topics;
+
+    private final int[] mqttQoSs;
+
+    private final int[] messageIds;
+
+    /**
+     * 槽位写完后置为序号+1, 消费者据此判断记录是否可读
+     */
+    private final AtomicLongArray published;
+
+    private final AtomicLong producer = new AtomicLong();
+
+    private final AtomicLong consumer = new AtomicLong();
+
+    private final LongAdder dropped = new LongAdder();
+
+    public TraceRingBuffer(int size) {
+        capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        mask = capacity - 1;
+        timestamps = new long[capacity];
+        types = new TraceType[capacity];
+        clientIds = new String[capacity];
+        topics = new String[capacity];
+        mqttQoSs = new int[capacity];
+        messageIds = new int[capacity];
+        published = new AtomicLongArray(capacity);
+    }
+
+    public boolean offer(long timestamp, TraceType type, String clientId, String topic, int mqttQoS, int messageId) {
+        long sequence;
+        do {
+            sequence = producer.get();
+            if (sequence - consumer.get() >= capacity) {
+                dropped.increment();
+                return false;
+            }
+        } while (!producer.compareAndSet(sequence, sequence + 1));
+        int index = (int) sequence & mask;
+        timestamps[index] = timestamp;
+        types[index] = type;
+        clientIds[index] = clientId;
+        topics[index] = topic;
+        mqttQoSs[index] = mqttQoS;
+        messageIds[index] = messageId;
+        published.lazySet(index, sequence + 1);
+        return true;
+    }
+
+    /**
+     * 按写入顺序消费最多max条记录, 只能由一个线程调用; 遇到已占位但未写完的槽位时停止
+     */
+    public int drain(TraceSink sink, int max) {
+        long sequence = consumer.get();
+        int count = 0;
+        while (count < max) {
+            int index = (int) sequence & mask;
+            if (published.get(index) != sequence + 1) {
+                break;
+            }
+            sink.accept(timestamps[index], types[index], clientIds[index], topics[index], mqttQoSs[index], messageIds[index]);
+            types[index] = null;
+            clientIds[index] = null;
+            topics[index] = null;
+            sequence++;
+            consumer.lazySet(sequence);
+            count++;
+        }
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getRecordedCount() {
+        return producer.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long size() {
+        return producer.get() - consumer.get();
+    }
+}
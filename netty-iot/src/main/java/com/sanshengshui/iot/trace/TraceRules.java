@@ -0,0 +1,99 @@
+package com.sanshengshui.iot.trace;
+
+import com.sanshengshui.iot.common.topic.TopicTrie;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author james
+ * 跟踪规则, 不可变, 修改时整体替换. 命中任一条件即跟踪:
+ * 指定客户端的全部报文、主题匹配指定过滤器的PUBLISH, 以及按clientId哈希抽样的客户端(同一客户端的报文全部跟踪或全部不跟踪)
+ */
+public final class TraceRules {
+
+    public static final TraceRules NONE = new TraceRules(Collections.emptySet(), Collections.emptySet(), 0);
+
+    private static final int SAMPLE_SCALE = 1000000;
+
+    private final Set<String> clients;
+
+    private final Set<String> topicFilters;
+
+    private final TopicTrie<String> topicTrie = new TopicTrie<>();
+
+    private final double sampleRate;
+
+    private final int sampleThreshold;
+
+    private final boolean enabled;
+
+    public TraceRules(Set<String> clients, Set<String> topicFilters, double sampleRate) {
+        this.clients = Collections.unmodifiableSet(new HashSet<>(clients));
+        this.topicFilters = Collections.unmodifiableSet(new HashSet<>(topicFilters));
+        for (String topicFilter : topicFilters) {
+            topicTrie.put(topicFilter, topicFilter, topicFilter);
+        }
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+        this.sampleThreshold = (int) Math.round(this.sampleRate * SAMPLE_SCALE);
+        this.enabled = !clients.isEmpty() || !topicFilters.isEmpty() || sampleThreshold > 0;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean matches(String clientId, String topic) {
+        if (!enabled) {
+            return false;
+        }
+        if (clientId != null) {
+            if (clients.contains(clientId)) {
+                return true;
+            }
+            if (sampleThreshold > 0 && sample(clientId) < sampleThreshold) {
+                return true;
+            }
+        }
+        return topic != null && !topicFilters.isEmpty() && !topicTrie.match(topic).isEmpty();
+    }
+
+    public TraceRules withClient(String clientId, boolean traced) {
+        Set<String> next = new HashSet<>(clients);
+        if (traced ? !next.add(clientId) : !next.remove(clientId)) {
+            return this;
+        }
+        return new TraceRules(next, topicFilters, sampleRate);
+    }
+
+    public TraceRules withTopicFilter(String topicFilter, boolean traced) {
+        Set<String> next = new HashSet<>(topicFilters);
+        if (traced ? !next.add(topicFilter) : !next.remove(topicFilter)) {
+            return this;
+        }
+        return new TraceRules(clients, next, sampleRate);
+    }
+
+    public TraceRules withSampleRate(double sampleRate) {
+        return new TraceRules(clients, topicFilters, sampleRate);
+    }
+
+    public Set<String> getClients() {
+        return clients;
+    }
+
+    public Set<String> getTopicFilters() {
+        return topicFilters;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    private static int sample(String clientId) {
+        // String.hashCode低位分布较差, 先做一次混淆
+        int h = clientId.hashCode() * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % SAMPLE_SCALE;
+    }
+}
@@ -0,0 +1,19 @@
+package com.sanshengshui.iot.trace;
+
+/**
+ * @author james
+ * 跟踪记录的报文类型, PUBLISH按方向区分: 客户端发来的和下发给订阅者的
+ */
+public enum TraceType {
+    CONNECT,
+    DISCONNECT,
+    PUBLISH_IN,
+    PUBLISH_OUT,
+    PUBACK,
+    PUBREC,
+    PUBREL,
+    PUBCOMP,
+    SUBSCRIBE,
+    UNSUBSCRIBE,
+    PINGREQ
+}
@@ -1,16 +1,16 @@
 package com.sanshengshui.iot.web;
 
-import cn.hutool.core.io.IoUtil;
-import cn.hutool.crypto.asymmetric.KeyType;
-import cn.hutool.crypto.asymmetric.RSA;
+import com.sanshengshui.iot.auth.service.RsaCredentialSigner;
+import com.sanshengshui.iot.auth.service.TokenAuthServiceImpl;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.security.interfaces.RSAPrivateKey;
-
 /**
  * @author jamesmsw
  * @date 2018年10月24号 21:24
@@ -21,11 +21,26 @@ import java.security.interfaces.RSAPrivateKey;
 public class
 AuthApiController {
 
+    @Autowired
+    private RsaCredentialSigner rsaCredentialSigner;
+
+    @Autowired(required = false)
+    private TokenAuthServiceImpl tokenAuthService;
+
     @RequestMapping(value = "/{username}/auth",method = RequestMethod.GET,produces = "application/json")
     public String getPwd(@PathVariable("username") String username){
-        RSAPrivateKey privateKey = IoUtil.readObj(AuthApiController.class.getClassLoader().getResourceAsStream("keystore/auth-private.key"));
-        RSA rsa = new RSA(privateKey, null);
-        return rsa.encryptBcd(username, KeyType.PrivateKey);
+        return rsaCredentialSigner.sign(username);
+    }
+
+    /**
+     * 签发令牌, 仅mqtt.auth.mode=token时可用
+     */
+    @RequestMapping(value = "/{username}/token",method = RequestMethod.GET,produces = "application/json")
+    public ResponseEntity<String> getToken(@PathVariable("username") String username){
+        if (tokenAuthService == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(tokenAuthService.issue(username));
     }
 
 
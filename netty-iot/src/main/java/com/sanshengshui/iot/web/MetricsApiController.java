@@ -0,0 +1,77 @@
+package com.sanshengshui.iot.web;
+
+import com.sanshengshui.iot.cluster.ClusterNode;
+import com.sanshengshui.iot.cluster.ClusterServiceImpl;
+import com.sanshengshui.iot.metrics.ProtocolMetrics;
+import com.sanshengshui.iot.metrics.RedisMetrics;
+import com.sanshengshui.iot.protocol.ProtocolProcess;
+import com.sanshengshui.iot.store.kafka.KafkaBridgeServiceImpl;
+import com.sanshengshui.iot.store.offline.OfflineMessageStoreServiceImpl;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author james
+ * 运行指标: 协议处理、Redis调用、在途窗口、离线队列、kafka桥接和集群转发
+ */
+@RestController
+@RequestMapping("/groza/v1")
+public class MetricsApiController {
+
+    @Autowired
+    private ProtocolMetrics protocolMetrics;
+
+    @Autowired
+    private RedisMetrics redisMetrics;
+
+    @Autowired
+    private ProtocolProcess protocolProcess;
+
+    @Autowired
+    private OfflineMessageStoreServiceImpl offlineMessageStoreService;
+
+    @Autowired(required = false)
+    private KafkaBridgeServiceImpl kafkaBridgeService;
+
+    @Autowired(required = false)
+    private ClusterServiceImpl clusterService;
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = "application/json")
+    public Map<String, Object> metrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("protocol", protocolMetrics.snapshot());
+        map.put("redisLatencyMillis", redisMetrics.snapshot());
+        map.put("inFlight", protocolProcess.getInFlight().snapshot());
+        map.put("slowConsumer", protocolProcess.getSlowConsumer().snapshot());
+        map.put("inboundQos2", protocolProcess.getInboundQos2().snapshot());
+        map.put("keepAlive", protocolProcess.getKeepAliveManager().snapshot());
+        Map<String, Object> offline = new LinkedHashMap<>();
+        offline.put("segments", offlineMessageStoreService.getSegmentCount());
+        offline.put("bytes", offlineMessageStoreService.getTotalBytes());
+        map.put("offline", offline);
+        if (kafkaBridgeService != null) {
+            Map<String, Object> kafka = new LinkedHashMap<>();
+            kafka.put("queueDepth", kafkaBridgeService.getQueueSize());
+            kafka.put("sent", kafkaBridgeService.getSentCount());
+            kafka.put("dropped", kafkaBridgeService.getDroppedCount());
+            kafka.put("failed", kafkaBridgeService.getFailedCount());
+            map.put("kafkaBridge", kafka);
+        }
+        ClusterNode clusterNode = clusterService == null ? null : clusterService.getClusterNode();
+        if (clusterNode != null) {
+            Map<String, Object> cluster = new LinkedHashMap<>();
+            cluster.put("nodeId", clusterNode.getNodeId());
+            cluster.put("peers", clusterNode.connectedPeers());
+            cluster.put("forwarded", clusterNode.getForwardedCount());
+            cluster.put("received", clusterNode.getReceivedCount());
+            cluster.put("dropped", clusterNode.getDroppedCount());
+            map.put("cluster", cluster);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,55 @@
+package com.sanshengshui.iot.web;
+
+import com.sanshengshui.iot.rule.Rule;
+import com.sanshengshui.iot.rule.RuleEngine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * @author james
+ * 规则引擎的规则和统计查询, 以及运行时替换规则
+ */
+@RestController
+@RequestMapping("/groza/v1/rules")
+public class RuleApiController {
+
+    @Autowired
+    private RuleEngine ruleEngine;
+
+    @RequestMapping(method = RequestMethod.GET, produces = "application/json")
+    public Map<String, Object> rules() {
+        return ruleEngine.snapshot();
+    }
+
+    /**
+     * 请求体为分号分隔的规则语句, 替换全部规则; 语句有误时返回400, 原规则不变
+     */
+    @RequestMapping(method = RequestMethod.PUT, consumes = "text/plain", produces = "application/json")
+    public ResponseEntity<Map<String, Object>> replace(@RequestBody(required = false) String statements) {
+        try {
+            ruleEngine.replace(statements);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Collections.singletonMap("error", e.getMessage()));
+        }
+        return ResponseEntity.ok(ruleEngine.snapshot());
+    }
+
+    @RequestMapping(value = "/default_action", method = RequestMethod.PUT, produces = "application/json")
+    public ResponseEntity<Map<String, Object>> defaultAction(@RequestParam("action") String action) {
+        try {
+            ruleEngine.setDefaultAction(Rule.Action.of(action));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Collections.singletonMap("error", e.getMessage()));
+        }
+        return ResponseEntity.ok(ruleEngine.snapshot());
+    }
+}
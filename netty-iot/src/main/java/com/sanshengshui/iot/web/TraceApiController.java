@@ -0,0 +1,61 @@
+package com.sanshengshui.iot.web;
+
+import com.sanshengshui.iot.trace.MessageTracer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * @author james
+ * 报文跟踪规则的查询和运行时修改
+ */
+@RestController
+@RequestMapping("/groza/v1/trace")
+public class TraceApiController {
+
+    @Autowired
+    private MessageTracer messageTracer;
+
+    @RequestMapping(method = RequestMethod.GET, produces = "application/json")
+    public Map<String, Object> rules() {
+        return messageTracer.snapshot();
+    }
+
+    @RequestMapping(value = "/clients/{clientId}", method = RequestMethod.PUT, produces = "application/json")
+    public Map<String, Object> traceClient(@PathVariable("clientId") String clientId) {
+        messageTracer.traceClient(clientId, true);
+        return messageTracer.snapshot();
+    }
+
+    @RequestMapping(value = "/clients/{clientId}", method = RequestMethod.DELETE, produces = "application/json")
+    public Map<String, Object> untraceClient(@PathVariable("clientId") String clientId) {
+        messageTracer.traceClient(clientId, false);
+        return messageTracer.snapshot();
+    }
+
+    /**
+     * 主题过滤器含/, 以请求参数传入
+     */
+    @RequestMapping(value = "/topics", method = RequestMethod.PUT, produces = "application/json")
+    public Map<String, Object> traceTopicFilter(@RequestParam("topicFilter") String topicFilter) {
+        messageTracer.traceTopicFilter(topicFilter, true);
+        return messageTracer.snapshot();
+    }
+
+    @RequestMapping(value = "/topics", method = RequestMethod.DELETE, produces = "application/json")
+    public Map<String, Object> untraceTopicFilter(@RequestParam("topicFilter") String topicFilter) {
+        messageTracer.traceTopicFilter(topicFilter, false);
+        return messageTracer.snapshot();
+    }
+
+    @RequestMapping(value = "/sample_rate", method = RequestMethod.PUT, produces = "application/json")
+    public Map<String, Object> sampleRate(@RequestParam("rate") double rate) {
+        messageTracer.setSampleRate(rate);
+        return messageTracer.snapshot();
+    }
+}
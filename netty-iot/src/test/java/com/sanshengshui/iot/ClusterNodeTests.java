@@ -0,0 +1,200 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.cluster.ClusterFrame;
+import com.sanshengshui.iot.cluster.ClusterFrameCodec;
+import com.sanshengshui.iot.cluster.ClusterNode;
+import com.sanshengshui.iot.internal.InternalMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterNodeTests {
+
+    private final List<ClusterNode> nodes = new ArrayList<>();
+
+    private final List<RecordingListener> listeners = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            peers.add("127.0.0.1:" + freePort());
+        }
+        for (int i = 0; i < 3; i++) {
+            String[] address = peers.get(i).split(":");
+            RecordingListener listener = new RecordingListener();
+            // node0监听所有地址, 按peers中的写法通告
+            ClusterNode node = i == 0
+                    ? new ClusterNode("node0", "0.0.0.0", Integer.parseInt(address[1]), peers.get(0), peers, listener, 16, 200, 50)
+                    : new ClusterNode("node" + i, address[0], Integer.parseInt(address[1]), null, peers, listener, 16, 200, 50);
+            node.start();
+            nodes.add(node);
+            listeners.add(listener);
+        }
+        for (ClusterNode node : nodes) {
+            waitFor(() -> node.connectedPeers().size() == 2);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (ClusterNode node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void codecRoundTrip() {
+        ClusterFrame frame = new ClusterFrame(ClusterFrame.PUBLISH_BATCH).setClientId("c1").setCleanSession(true)
+                .setTopicFilters(Arrays.asList("a/+", "b/#")).setMqttQoSList(Arrays.asList(1, 2))
+                .setMessages(Collections.singletonList(message("a/b", 1, "hello")));
+        ByteBuf buf = Unpooled.buffer();
+        ClusterFrameCodec.encode(frame, buf);
+        ClusterFrame decoded = ClusterFrameCodec.decode(buf);
+        assertEquals(ClusterFrame.PUBLISH_BATCH, decoded.getType());
+        assertNull(decoded.getNodeId());
+        assertEquals("c1", decoded.getClientId());
+        assertTrue(decoded.isCleanSession());
+        assertEquals(Arrays.asList("a/+", "b/#"), decoded.getTopicFilters());
+        assertEquals(Arrays.asList(1, 2), decoded.getMqttQoSList());
+        assertEquals("a/b", decoded.getMessages().get(0).getTopic());
+        assertArrayEquals("hello".getBytes(CharsetUtil.UTF_8), decoded.getMessages().get(0).getMessageBytes());
+        assertEquals(0, buf.readableBytes());
+    }
+
+    @Test
+    public void publishRoutedOnlyToSubscribedNodes() throws Exception {
+        nodes.get(1).subscribe("c1", "sensor/+/temp");
+        waitFor(() -> nodes.get(0).route("sensor/1/temp").contains("node1") && nodes.get(2).route("sensor/1/temp").contains("node1"));
+        assertTrue(nodes.get(0).route("sensor/1/humidity").isEmpty());
+
+        for (int i = 0; i < 100; i++) {
+            nodes.get(0).publish(message("sensor/" + i + "/temp", 1, "m" + i));
+        }
+        nodes.get(0).publish(message("sensor/1/humidity", 1, "x"));
+        for (int i = 0; i < 100; i++) {
+            InternalMessage message = listeners.get(1).published.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals("m" + i, new String(message.getMessageBytes(), CharsetUtil.UTF_8));
+        }
+        assertNull(listeners.get(1).published.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(listeners.get(2).published.isEmpty());
+        assertEquals(100, nodes.get(1).getReceivedCount());
+
+        // 同一过滤器还有其他本地订阅者时不撤销通告
+        nodes.get(1).subscribe("c2", "sensor/+/temp");
+        nodes.get(1).unsubscribe("c1", "sensor/+/temp");
+        nodes.get(1).removeClient("c2");
+        waitFor(() -> nodes.get(0).route("sensor/1/temp").isEmpty());
+    }
+
+    @Test
+    public void advertisedAddressRoutesToWildcardBoundNode() throws Exception {
+        waitFor(() -> listeners.get(1).peers.contains("node0"));
+        nodes.get(0).subscribe("c1", "a/b");
+        waitFor(() -> nodes.get(1).route("a/b").contains("node0"));
+        nodes.get(1).publish(message("a/b", 1, "m1"));
+        InternalMessage message = listeners.get(0).published.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals(0, nodes.get(1).getDroppedCount());
+    }
+
+    @Test
+    public void takeoverTransfersSession() throws Exception {
+        nodes.get(0).subscribe("c1", "a/b");
+        nodes.get(2).takeover("c1", false);
+        String[] takeover = listeners.get(0).takeovers.poll(5, TimeUnit.SECONDS);
+        assertNotNull(takeover);
+        assertEquals("node2", takeover[0]);
+        assertEquals("c1", takeover[1]);
+        assertTrue(listeners.get(1).takeovers.poll(5, TimeUnit.SECONDS) != null);
+
+        nodes.get(0).removeClient("c1");
+        nodes.get(0).transfer("node2", "c1", Collections.singletonList("a/b"), Collections.singletonList(1));
+        nodes.get(0).deliver("node2", "c1", Arrays.asList(message("a/b", 1, "m1"), message("a/b", 2, "m2")));
+        assertEquals(Collections.singletonList("a/b"), listeners.get(2).transfers.poll(5, TimeUnit.SECONDS));
+        InternalMessage delivered = listeners.get(2).delivered.poll(5, TimeUnit.SECONDS);
+        assertEquals("c1", delivered.getClientId());
+        assertEquals("m1", new String(delivered.getMessageBytes(), CharsetUtil.UTF_8));
+        assertEquals(2, listeners.get(2).delivered.poll(5, TimeUnit.SECONDS).getMqttQoS());
+    }
+
+    private static InternalMessage message(String topic, int mqttQoS, String payload) {
+        return new InternalMessage().setTopic(topic).setMqttQoS(mqttQoS).setRetain(false).setDup(false)
+                .setMessageBytes(payload.getBytes(CharsetUtil.UTF_8));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class RecordingListener implements ClusterNode.Listener {
+
+        final BlockingQueue<InternalMessage> published = new LinkedBlockingQueue<>();
+
+        final BlockingQueue<InternalMessage> delivered = new LinkedBlockingQueue<>();
+
+        final BlockingQueue<String[]> takeovers = new LinkedBlockingQueue<>();
+
+        final BlockingQueue<List<String>> transfers = new LinkedBlockingQueue<>();
+
+        final Set<String> peers = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void onPublish(InternalMessage message) {
+            published.add(message);
+        }
+
+        @Override
+        public void onDeliver(String clientId, List<InternalMessage> messages) {
+            delivered.addAll(messages);
+        }
+
+        @Override
+        public void onTakeover(String nodeId, String clientId, boolean cleanSession) {
+            takeovers.add(new String[]{nodeId, clientId});
+        }
+
+        @Override
+        public void onTransfer(String clientId, List<String> topicFilters, List<Integer> mqttQoSList) {
+            transfers.add(topicFilters);
+        }
+
+        @Override
+        public void onPeerConnected(String nodeId) {
+            peers.add(nodeId);
+        }
+    }
+}
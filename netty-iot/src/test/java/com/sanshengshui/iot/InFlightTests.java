@@ -0,0 +1,242 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.codec.Mqtt5Session;
+import com.sanshengshui.iot.common.message.DupPublishMessageStore;
+import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
+import com.sanshengshui.iot.common.session.SessionStore;
+import com.sanshengshui.iot.protocol.InFlight;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.store.message.MessageIdServiceImpl;
+import com.sanshengshui.iot.store.offline.OfflineMessageStoreServiceImpl;
+import com.sanshengshui.iot.store.session.GrozaSessionStoreServiceImpl;
+import com.sanshengshui.iot.trace.MessageTracer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InFlightTests {
+
+    private EmbeddedChannel channel;
+
+    private InFlight inFlight;
+
+    @Before
+    public void setUp() {
+        channel = new EmbeddedChannel();
+        GrozaSessionStoreServiceImpl sessionStoreService = new GrozaSessionStoreServiceImpl();
+        sessionStoreService.put("c1", new SessionStore("c1", channel, false, null));
+        MessageIdServiceImpl messageIdService = new MessageIdServiceImpl();
+        ReflectionTestUtils.setField(messageIdService, "window", 2);
+        inFlight = new InFlight(sessionStoreService, messageIdService, new NoopDupPublishStore(),
+                new OfflineMessageStoreServiceImpl(), new MessageTracer(), 200, 0, 1, 100);
+    }
+
+    @After
+    public void tearDown() {
+        inFlight.shutdown();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void pendingQueueDrainsOnAck() {
+        assertTrue(publish("a"));
+        assertTrue(publish("b"));
+        assertTrue(publish("c"));
+        // 窗口为2, 等待队列为1, 第四条丢弃
+        assertFalse(publish("d"));
+        assertEquals(2, inFlight.inFlightCount("c1"));
+        assertEquals(1, inFlight.pendingCount("c1"));
+        List<MqttPublishMessage> sent = decodeOutbound();
+        assertEquals(2, sent.size());
+        int first = sent.get(0).variableHeader().packetId();
+        release(sent);
+
+        inFlight.complete(channel, "c1", first);
+        sent = decodeOutbound();
+        assertEquals(1, sent.size());
+        assertEquals("c", sent.get(0).variableHeader().topicName());
+        assertEquals(0, inFlight.pendingCount("c1"));
+        release(sent);
+    }
+
+    @Test
+    public void unacknowledgedMessageIsRetransmittedWithDup() throws InterruptedException {
+        publish("a");
+        List<MqttPublishMessage> sent = decodeOutbound();
+        assertFalse(sent.get(0).fixedHeader().isDup());
+        int messageId = sent.get(0).variableHeader().packetId();
+        release(sent);
+
+        Thread.sleep(600);
+        channel.runPendingTasks();
+        sent = decodeOutbound();
+        assertFalse(sent.isEmpty());
+        assertTrue(sent.get(0).fixedHeader().isDup());
+        assertEquals(messageId, sent.get(0).variableHeader().packetId());
+        release(sent);
+
+        inFlight.complete(channel, "c1", messageId);
+        assertEquals(0, inFlight.inFlightCount("c1"));
+        Thread.sleep(400);
+        channel.runPendingTasks();
+        assertNull(channel.readOutbound());
+    }
+
+    @Test
+    public void pubRelIsRetransmittedWithSpecFixedHeader() throws InterruptedException {
+        byte[] bytes = new byte[]{1, 2, 3};
+        inFlight.publish(channel, "c1", "a", MqttQoS.EXACTLY_ONCE, false, Unpooled.wrappedBuffer(bytes), bytes);
+        List<MqttPublishMessage> sent = decodeOutbound();
+        int messageId = sent.get(0).variableHeader().packetId();
+        release(sent);
+
+        inFlight.pubRec("c1", messageId);
+        MqttMessage pubRel = awaitOutbound();
+        assertEquals(MqttMessageType.PUBREL, pubRel.fixedHeader().messageType());
+        assertEquals(messageId, ((MqttMessageIdVariableHeader) pubRel.variableHeader()).messageId());
+        // [MQTT-3.6.1-1] PUBREL的固定头第一个字节必须是0x62, 重发也一样
+        EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.writeOutbound(pubRel);
+        ByteBuf encoded = encoder.readOutbound();
+        assertEquals(0x62, encoded.getUnsignedByte(0));
+        encoded.release();
+        encoder.finish();
+    }
+
+    @Test
+    public void mqtt5SessionIsNotRetransmittedOnTimer() throws InterruptedException {
+        ConnectionContext.of(channel).setMqtt5Session(new Mqtt5Session(65535, Mqtt5Session.MAXIMUM_PACKET_SIZE_LIMIT, 0));
+        byte[] bytes = new byte[]{1, 2, 3};
+        inFlight.publish(channel, "c1", "a", MqttQoS.EXACTLY_ONCE, false, Unpooled.wrappedBuffer(bytes), bytes);
+        MqttPublishMessage sent = channel.readOutbound();
+        int messageId = sent.variableHeader().packetId();
+        sent.release();
+        assertEquals(1, inFlight.inFlightCount("c1"));
+
+        // 超过重发间隔后既不重发PUBLISH, 收到PUBREC后也不重发PUBREL, 由会话恢复时的CONNECT重发
+        Thread.sleep(600);
+        channel.runPendingTasks();
+        assertNull(channel.readOutbound());
+        inFlight.pubRec("c1", messageId);
+        Thread.sleep(600);
+        channel.runPendingTasks();
+        assertNull(channel.readOutbound());
+        assertEquals(0L, inFlight.snapshot().get("retransmitted"));
+        assertEquals(1, inFlight.inFlightCount("c1"));
+    }
+
+    @Test
+    public void receiveMaximumLimitsWindowAndExpiredMessagesAreSkipped() {
+        inFlight.setReceiveMaximum("c1", 1);
+        assertTrue(publish("a"));
+        byte[] bytes = new byte[]{1, 2, 3};
+        assertTrue(inFlight.publish(channel, "c1", "b", MqttQoS.AT_LEAST_ONCE, false, Unpooled.wrappedBuffer(bytes), bytes,
+                System.currentTimeMillis() - 1));
+        assertEquals(1, inFlight.inFlightCount("c1"));
+        assertEquals(1, inFlight.pendingCount("c1"));
+        List<MqttPublishMessage> sent = decodeOutbound();
+        assertEquals(1, sent.size());
+        int messageId = sent.get(0).variableHeader().packetId();
+        release(sent);
+
+        // 等待期间过期的消息不再下发
+        inFlight.complete(channel, "c1", messageId);
+        assertNull(channel.readOutbound());
+        assertEquals(0, inFlight.pendingCount("c1"));
+        assertEquals(1L, inFlight.snapshot().get("messageExpired"));
+    }
+
+    @Test
+    public void unwritableChannelHoldsMessagesUntilWritable() {
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        assertTrue(publish("a"));
+        assertEquals(0, inFlight.inFlightCount("c1"));
+        assertEquals(1, inFlight.pendingCount("c1"));
+        assertNull(channel.readOutbound());
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        inFlight.writable(channel, "c1");
+        List<MqttPublishMessage> sent = decodeOutbound();
+        assertEquals(1, sent.size());
+        assertEquals("a", sent.get(0).variableHeader().topicName());
+        release(sent);
+    }
+
+    private boolean publish(String topic) {
+        byte[] bytes = new byte[]{1, 2, 3};
+        return inFlight.publish(channel, "c1", topic, MqttQoS.AT_LEAST_ONCE, false, Unpooled.wrappedBuffer(bytes), bytes);
+    }
+
+    private MqttMessage awaitOutbound() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Object msg;
+        while ((msg = channel.readOutbound()) == null) {
+            if (System.nanoTime() > deadline) {
+                fail("No outbound message within 5 seconds");
+            }
+            Thread.sleep(10);
+            channel.runPendingTasks();
+        }
+        return (MqttMessage) msg;
+    }
+
+    private List<MqttPublishMessage> decodeOutbound() {
+        EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            decoder.writeInbound(buf);
+        }
+        List<MqttPublishMessage> messages = new ArrayList<>();
+        MqttPublishMessage msg;
+        while ((msg = decoder.readInbound()) != null) {
+            messages.add(msg);
+        }
+        decoder.finish();
+        return messages;
+    }
+
+    private static void release(List<MqttPublishMessage> messages) {
+        messages.forEach(MqttPublishMessage::release);
+    }
+
+    private static class NoopDupPublishStore implements GrozaDupPublishMessageStoreService {
+
+        @Override
+        public void put(String clientId, DupPublishMessageStore dupPublishMessageStore) {
+        }
+
+        @Override
+        public List<DupPublishMessageStore> get(String clientId) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void remove(String clientId, int messageId) {
+        }
+
+        @Override
+        public void removeByClient(String clientId) {
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.common.message.DupPublishMessageStore;
+import com.sanshengshui.iot.common.message.GrozaDupPublishMessageStoreService;
+import com.sanshengshui.iot.common.session.SessionStore;
+import com.sanshengshui.iot.protocol.InFlight;
+import com.sanshengshui.iot.protocol.InboundQos2;
+import com.sanshengshui.iot.protocol.ProtocolProcess;
+import com.sanshengshui.iot.protocol.PubRel;
+import com.sanshengshui.iot.protocol.SlowConsumer;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.server.MqttTransportHandler;
+import com.sanshengshui.iot.store.message.MessageIdServiceImpl;
+import com.sanshengshui.iot.store.offline.OfflineMessageStoreServiceImpl;
+import com.sanshengshui.iot.store.session.GrozaSessionStoreServiceImpl;
+import com.sanshengshui.iot.trace.MessageTracer;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InboundQos2Tests {
+
+    @Test
+    public void duplicatesSuppressedUntilPubRel() {
+        InboundQos2 inboundQos2 = new InboundQos2();
+        PubRel pubRel = new PubRel(inboundQos2, new MessageTracer());
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ConnectionContext.of(channel).setClientId("c1");
+
+        assertTrue(inboundQos2.receive("c1", 7));
+        assertFalse(inboundQos2.receive("c1", 7));
+        // 其他客户端的同一报文标识符互不影响
+        assertTrue(inboundQos2.receive("c2", 7));
+
+        // 持久会话重连后, 新连接上的PUBREL仍能释放之前的报文标识符
+        EmbeddedChannel reconnected = new EmbeddedChannel();
+        ConnectionContext.of(reconnected).setClientId("c1");
+        assertFalse(inboundQos2.receive("c1", 7));
+        pubRel.processPubRel(reconnected, MqttMessageIdVariableHeader.from(7));
+        MqttMessage pubComp = reconnected.readOutbound();
+        assertEquals(MqttMessageType.PUBCOMP, pubComp.fixedHeader().messageType());
+        assertEquals(7, ((MqttMessageIdVariableHeader) pubComp.variableHeader()).messageId());
+        assertFalse(inboundQos2.isPending("c1", 7));
+        assertTrue(inboundQos2.receive("c1", 7));
+
+        assertEquals(2L, inboundQos2.snapshot().get("duplicates"));
+        channel.finish();
+        reconnected.finish();
+    }
+
+    @Test
+    public void cleanSessionDiscardsState() {
+        InboundQos2 inboundQos2 = new InboundQos2();
+        assertTrue(inboundQos2.receive("c1", 1));
+        inboundQos2.removeByClient("c1");
+        assertTrue(inboundQos2.receive("c1", 1));
+        // 没有报文标识符的内部发布不跟踪
+        assertTrue(inboundQos2.receive("c1", 0));
+        assertTrue(inboundQos2.receive("c1", 0));
+    }
+
+    @Test
+    public void connectionLossDiscardsCleanSessionState() {
+        InboundQos2 inboundQos2 = new InboundQos2();
+        GrozaSessionStoreServiceImpl sessionStoreService = new GrozaSessionStoreServiceImpl();
+        ProtocolProcess protocolProcess = new ProtocolProcess();
+        ReflectionTestUtils.setField(protocolProcess, "inboundQos2", inboundQos2);
+        ReflectionTestUtils.setField(protocolProcess, "slowConsumer", new SlowConsumer(SlowConsumer.Policy.DROP_NEWEST, 100));
+        ReflectionTestUtils.setField(protocolProcess, "grozaSessionStoreService", sessionStoreService);
+        MessageIdServiceImpl messageIdService = new MessageIdServiceImpl();
+        ReflectionTestUtils.setField(messageIdService, "window", 2);
+        InFlight inFlight = new InFlight(sessionStoreService, messageIdService, new NoopDupPublishStore(),
+                new OfflineMessageStoreServiceImpl(), new MessageTracer(), 200, 0, 1, 100);
+        ReflectionTestUtils.setField(protocolProcess, "inFlight", inFlight);
+        ReflectionTestUtils.setField(protocolProcess, "grozaMessageIdService", messageIdService);
+
+        // 清理会话未发送DISCONNECT就断开
+        EmbeddedChannel clean = connect(protocolProcess, sessionStoreService, "c1", true);
+        assertTrue(inboundQos2.receive("c1", 1));
+        byte[] bytes = new byte[]{1};
+        inFlight.publish(clean, "c1", "a/b", MqttQoS.AT_LEAST_ONCE, false, Unpooled.wrappedBuffer(bytes), bytes);
+        messageIdService.getNextMessageId("c1");
+        assertEquals(1, inFlight.inFlightCount("c1"));
+        clean.close();
+        assertFalse(inboundQos2.isPending("c1", 1));
+        assertEquals(0, inboundQos2.snapshot().get("clients"));
+        assertEquals(0, inFlight.snapshot().get("clients"));
+        // 报文标识符分配器已删除, 新分配器从1开始
+        assertEquals(1, messageIdService.getNextMessageId("c1"));
+
+        // 持久会话保留到重连
+        EmbeddedChannel persistent = connect(protocolProcess, sessionStoreService, "c2", false);
+        assertTrue(inboundQos2.receive("c2", 1));
+        persistent.close();
+        assertTrue(inboundQos2.isPending("c2", 1));
+
+        // 已被新连接接管的清理会话不受旧连接关闭影响
+        EmbeddedChannel old = connect(protocolProcess, sessionStoreService, "c3", true);
+        EmbeddedChannel takeover = connect(protocolProcess, sessionStoreService, "c3", true);
+        assertTrue(inboundQos2.receive("c3", 1));
+        old.close();
+        assertTrue(inboundQos2.isPending("c3", 1));
+        takeover.finish();
+        inFlight.shutdown();
+    }
+
+    private static EmbeddedChannel connect(ProtocolProcess protocolProcess, GrozaSessionStoreServiceImpl sessionStoreService,
+                                           String clientId, boolean cleanSession) {
+        EmbeddedChannel channel = new EmbeddedChannel(new MqttTransportHandler(protocolProcess));
+        ConnectionContext.of(channel).setClientId(clientId);
+        sessionStoreService.put(clientId, new SessionStore(clientId, channel, cleanSession, null));
+        return channel;
+    }
+
+    private static class NoopDupPublishStore implements GrozaDupPublishMessageStoreService {
+
+        @Override
+        public void put(String clientId, DupPublishMessageStore dupPublishMessageStore) {
+        }
+
+        @Override
+        public List<DupPublishMessageStore> get(String clientId) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void remove(String clientId, int messageId) {
+        }
+
+        @Override
+        public void removeByClient(String clientId) {
+        }
+    }
+}
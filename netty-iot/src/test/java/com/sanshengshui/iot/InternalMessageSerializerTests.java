@@ -0,0 +1,33 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.common.serialize.InternalMessageSerializer;
+import com.sanshengshui.iot.internal.InternalMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InternalMessageSerializerTests {
+
+    @Test
+    public void roundTrip() {
+        InternalMessage internalMessage = new InternalMessage()
+                .setClientId("设备-1")
+                .setTopic("devices/1/telemetry")
+                .setMqttQoS(2)
+                .setRetain(true)
+                .setDup(false)
+                .setMessageBytes(new byte[]{1, 2, 3});
+        byte[] bytes = InternalMessageSerializer.serialize(internalMessage, 1539000000000L);
+        InternalMessage decoded = InternalMessageSerializer.deserialize(bytes);
+        assertEquals("设备-1", decoded.getClientId());
+        assertEquals("devices/1/telemetry", decoded.getTopic());
+        assertEquals(2, decoded.getMqttQoS());
+        assertTrue(decoded.isRetain());
+        assertFalse(decoded.isDup());
+        assertArrayEquals(new byte[]{1, 2, 3}, decoded.getMessageBytes());
+        assertEquals(1539000000000L, InternalMessageSerializer.timestamp(bytes));
+    }
+}
@@ -0,0 +1,76 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.server.KeepAliveManager;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAliveManagerTests {
+
+    @Test
+    public void readsPostponeExpiry() throws InterruptedException {
+        KeepAliveManager keepAliveManager = new KeepAliveManager(10, 4);
+        List<Object> events = new ArrayList<>();
+        EmbeddedChannel channel = new EmbeddedChannel(new EventRecorder(events));
+        // 超时10个刻度, 大于时间轮一圈
+        keepAliveManager.register(channel, 100);
+        assertEquals(1L, keepAliveManager.snapshot().get("tracked"));
+
+        sleepAndRun(channel, 60);
+        KeepAliveManager.touch(ConnectionContext.of(channel));
+        sleepAndRun(channel, 60);
+        assertTrue(events.isEmpty());
+
+        sleepAndRun(channel, 150);
+        assertEquals(1, events.size());
+        assertEquals(IdleStateEvent.ALL_IDLE_STATE_EVENT, events.get(0));
+        assertEquals(0L, keepAliveManager.snapshot().get("tracked"));
+        assertEquals(1L, keepAliveManager.snapshot().get("expired"));
+
+        // 超时后不再重复触发
+        sleepAndRun(channel, 150);
+        assertEquals(1, events.size());
+        channel.finish();
+    }
+
+    @Test
+    public void registerAgainReplacesTimeout() throws InterruptedException {
+        KeepAliveManager keepAliveManager = new KeepAliveManager(10, 8);
+        List<Object> events = new ArrayList<>();
+        EmbeddedChannel channel = new EmbeddedChannel(new EventRecorder(events));
+        keepAliveManager.register(channel, 30);
+        keepAliveManager.register(channel, 500);
+        sleepAndRun(channel, 80);
+        assertTrue(events.isEmpty());
+        assertEquals(1L, keepAliveManager.snapshot().get("tracked"));
+        channel.finish();
+    }
+
+    private static void sleepAndRun(EmbeddedChannel channel, long millis) throws InterruptedException {
+        Thread.sleep(millis);
+        channel.runScheduledPendingTasks();
+    }
+
+    private static class EventRecorder extends ChannelInboundHandlerAdapter {
+
+        private final List<Object> events;
+
+        EventRecorder(List<Object> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            events.add(evt);
+        }
+    }
+}
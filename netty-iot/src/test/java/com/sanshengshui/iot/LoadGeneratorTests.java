@@ -0,0 +1,168 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.loadgen.LoadGenerator;
+import com.sanshengshui.iot.loadgen.LoadGeneratorConfig;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubAckMessage;
+import io.netty.handler.codec.mqtt.MqttSubAckPayload;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoadGeneratorTests {
+
+    private EventLoopGroup group;
+
+    private Channel serverChannel;
+
+    private final ChannelGroup subscribers = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    private final AtomicInteger connects = new AtomicInteger();
+
+    private final CountDownLatch connected = new CountDownLatch(20);
+
+    @Before
+    public void setUp() throws Exception {
+        group = new NioEventLoopGroup(2);
+        serverChannel = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE, new StubBroker());
+                    }
+                }).bind("127.0.0.1", 0).sync().channel();
+    }
+
+    @After
+    public void tearDown() {
+        serverChannel.close().syncUninterruptibly();
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    public void parseOptions() {
+        LoadGeneratorConfig config = LoadGeneratorConfig.parse(new String[]{"--clients=1000", "--subscriber_ratio=0.1",
+                "--publisher_ratio=0.95", "--qos_mix=0:0,2:1"});
+        assertTrue(config.toString().contains("subscribers=100, publishers=900"));
+        assertTrue(config.toString().contains("qos_mix=0:0,1:0,2:1"));
+        try {
+            LoadGeneratorConfig.parse(new String[]{"--payload_size=4"});
+            fail("payload smaller than the timestamp must be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("payload_size"));
+        }
+    }
+
+    @Test
+    public void publishesAndMeasuresLatency() throws Exception {
+        int port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+        LoadGeneratorConfig config = LoadGeneratorConfig.parse(new String[]{"--port=" + port, "--clients=20",
+                "--subscriber_ratio=0.1", "--publisher_ratio=0.5", "--topic_groups=1", "--publish_interval_ms=20",
+                "--qos_mix=0:1,1:1,2:1", "--threads=2", "--report_interval_s=60"});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            LoadGenerator loadGenerator = new LoadGenerator(config);
+            loadGenerator.start();
+            try {
+                assertTrue(connected.await(10, TimeUnit.SECONDS));
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (loadGenerator.getLatencySamples() == 0) {
+                    if (System.nanoTime() > deadline) {
+                        fail("No latency sample within 10 seconds");
+                    }
+                    Thread.sleep(10);
+                }
+            } finally {
+                loadGenerator.stop();
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+        String summary = out.toString();
+        assertEquals(20, connects.get());
+        assertTrue(summary, summary.contains("connects 20, connect failures 0"));
+        assertTrue(summary, summary.matches("(?s).*End-to-end latency \\(ms\\): \\{count=[1-9].*"));
+    }
+
+    /**
+     * 最小代理: 应答CONNECT/SUBSCRIBE/PUBLISH确认, 把PUBLISH以QoS0转发给全部订阅者
+     */
+    private class StubBroker extends SimpleChannelInboundHandler<MqttMessage> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+            switch (msg.fixedHeader().messageType()) {
+                case CONNECT:
+                    connects.incrementAndGet();
+                    connected.countDown();
+                    ctx.writeAndFlush(MqttMessageBuilders.connAck().returnCode(MqttConnectReturnCode.CONNECTION_ACCEPTED).build());
+                    break;
+                case SUBSCRIBE:
+                    subscribers.add(ctx.channel());
+                    ctx.writeAndFlush(new MqttSubAckMessage(new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                            (MqttMessageIdVariableHeader) msg.variableHeader(), new MqttSubAckPayload(1)));
+                    break;
+                case PUBLISH:
+                    MqttPublishMessage publish = (MqttPublishMessage) msg;
+                    int packetId = publish.variableHeader().packetId();
+                    if (publish.fixedHeader().qosLevel() == MqttQoS.AT_LEAST_ONCE) {
+                        ctx.writeAndFlush(ack(MqttMessageType.PUBACK, packetId));
+                    } else if (publish.fixedHeader().qosLevel() == MqttQoS.EXACTLY_ONCE) {
+                        ctx.writeAndFlush(ack(MqttMessageType.PUBREC, packetId));
+                    }
+                    for (Channel subscriber : subscribers) {
+                        subscriber.writeAndFlush(new MqttPublishMessage(new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                                new MqttPublishVariableHeader(publish.variableHeader().topicName(), 0), publish.payload().retainedDuplicate()));
+                    }
+                    break;
+                case PUBREL:
+                    ctx.writeAndFlush(ack(MqttMessageType.PUBCOMP, ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId()));
+                    break;
+                case PINGREQ:
+                    ctx.writeAndFlush(new MqttMessage(new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private MqttMessage ack(MqttMessageType messageType, int packetId) {
+            return new MqttMessage(new MqttFixedHeader(messageType, false, MqttQoS.AT_MOST_ONCE, false, 0), MqttMessageIdVariableHeader.from(packetId));
+        }
+    }
+}
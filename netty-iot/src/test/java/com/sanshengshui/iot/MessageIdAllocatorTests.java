@@ -0,0 +1,65 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.store.message.MessageIdAllocator;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIdAllocatorTests {
+
+    @Test
+    public void windowAppliesBackpressureAndRecycles() {
+        MessageIdAllocator allocator = new MessageIdAllocator(3);
+        int first = allocator.acquire();
+        int second = allocator.acquire();
+        int third = allocator.acquire();
+        assertNotEquals(first, second);
+        assertNotEquals(second, third);
+        // 窗口已满
+        assertEquals(0, allocator.acquire());
+        assertTrue(allocator.release(second));
+        assertFalse(allocator.release(second));
+        assertNotEquals(0, allocator.acquire());
+        assertEquals(3, allocator.inFlightCount());
+    }
+
+    @Test
+    public void reservedIdsAreSkipped() {
+        MessageIdAllocator allocator = new MessageIdAllocator(MessageIdAllocator.MAX_MESSAGE_ID);
+        assertTrue(allocator.reserve(1));
+        assertTrue(allocator.reserve(2));
+        assertEquals(3, allocator.acquire());
+        assertFalse(allocator.reserve(0));
+    }
+
+    @Test
+    public void wholeIdSpaceIsUniqueUnderConcurrency() throws Exception {
+        MessageIdAllocator allocator = new MessageIdAllocator(MessageIdAllocator.MAX_MESSAGE_ID);
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CountDownLatch latch = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                int id;
+                while ((id = allocator.acquire()) != 0) {
+                    assertTrue(ids.add(id));
+                }
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(MessageIdAllocator.MAX_MESSAGE_ID, ids.size());
+        assertFalse(ids.contains(0));
+    }
+}
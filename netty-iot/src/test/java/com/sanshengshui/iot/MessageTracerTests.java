@@ -0,0 +1,109 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.trace.TraceRingBuffer;
+import com.sanshengshui.iot.trace.TraceRules;
+import com.sanshengshui.iot.trace.TraceType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTracerTests {
+
+    @Test
+    public void ringBufferDrainsInOrderAndDropsWhenFull() {
+        TraceRingBuffer ringBuffer = new TraceRingBuffer(4);
+        assertEquals(4, ringBuffer.getCapacity());
+        for (int i = 0; i < 6; i++) {
+            ringBuffer.offer(i, TraceType.PUBACK, "c1", null, 0, i);
+        }
+        assertEquals(2, ringBuffer.getDroppedCount());
+        List<Integer> messageIds = new ArrayList<>();
+        assertEquals(3, ringBuffer.drain((timestamp, type, clientId, topic, mqttQoS, messageId) -> messageIds.add(messageId), 3));
+        assertTrue(ringBuffer.offer(10, TraceType.PUBLISH_IN, "c1", "a/b", 1, 10));
+        ringBuffer.drain((timestamp, type, clientId, topic, mqttQoS, messageId) -> messageIds.add(messageId), 100);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 10), messageIds);
+        assertEquals(0, ringBuffer.size());
+    }
+
+    @Test
+    public void ringBufferConcurrentProducers() throws Exception {
+        TraceRingBuffer ringBuffer = new TraceRingBuffer(1 << 16);
+        int threads = 4;
+        int perThread = 10000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String clientId = "c" + t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    ringBuffer.offer(System.nanoTime(), TraceType.PUBLISH_OUT, clientId, "t", 0, i);
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+        start.countDown();
+        int[] next = new int[threads];
+        int drained = 0;
+        while (drained < threads * perThread) {
+            drained += ringBuffer.drain((timestamp, type, clientId, topic, mqttQoS, messageId) -> {
+                // 同一生产者的记录保持写入顺序
+                int t = clientId.charAt(1) - '0';
+                assertEquals(next[t]++, messageId);
+            }, 1024);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertEquals(0, ringBuffer.getDroppedCount());
+        for (int count : next) {
+            assertEquals(perThread, count);
+        }
+    }
+
+    @Test
+    public void rulesMatchClientsTopicsAndSamples() {
+        assertFalse(TraceRules.NONE.isEnabled());
+        assertFalse(TraceRules.NONE.matches("c1", "a/b"));
+
+        TraceRules rules = TraceRules.NONE.withClient("c1", true).withTopicFilter("sensor/+/temp", true);
+        assertTrue(rules.isEnabled());
+        assertTrue(rules.matches("c1", null));
+        assertTrue(rules.matches("c2", "sensor/1/temp"));
+        assertFalse(rules.matches("c2", "sensor/1/humidity"));
+        assertFalse(rules.matches("c2", null));
+        assertSame(rules, rules.withClient("c1", true));
+
+        rules = rules.withClient("c1", false).withTopicFilter("sensor/+/temp", false);
+        assertFalse(rules.isEnabled());
+
+        // 抽样按clientId决定, 同一客户端结果稳定
+        TraceRules sampled = new TraceRules(Collections.emptySet(), Collections.emptySet(), 0.1);
+        Set<String> traced = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            if (sampled.matches("device-" + i, null)) {
+                traced.add("device-" + i);
+            }
+        }
+        assertTrue(traced.size() > 800 && traced.size() < 1200);
+        for (String clientId : traced) {
+            assertTrue(sampled.matches(clientId, "x"));
+        }
+    }
+}
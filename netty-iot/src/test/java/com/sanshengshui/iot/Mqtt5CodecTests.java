@@ -0,0 +1,244 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.codec.Mqtt5Decoder;
+import com.sanshengshui.iot.codec.Mqtt5PublishMessage;
+import com.sanshengshui.iot.codec.Mqtt5Session;
+import com.sanshengshui.iot.codec.MqttVersionDetector;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttConnAckVariableHeader;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mqtt5CodecTests {
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        channel = new EmbeddedChannel();
+        channel.pipeline().addLast("versionDetector", new MqttVersionDetector(2, 1024, 4));
+        channel.pipeline().addLast("decoder", new MqttDecoder());
+        channel.pipeline().addLast("encoder", MqttEncoder.INSTANCE);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void mqtt311ConnectKeepsDefaultCodec() {
+        MqttConnectMessage connect = MqttMessageBuilders.connect().clientId("c1").keepAlive(60).build();
+        EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.writeOutbound(connect);
+        channel.writeInbound((ByteBuf) encoder.readOutbound());
+        MqttConnectMessage decoded = channel.readInbound();
+        assertEquals("c1", decoded.payload().clientIdentifier());
+        assertNull(Mqtt5Session.of(channel));
+        assertTrue(channel.pipeline().get("decoder") instanceof MqttDecoder);
+        assertNull(channel.pipeline().get("versionDetector"));
+    }
+
+    @Test
+    public void connectNegotiatesLimits() {
+        this.connect();
+        Mqtt5Session session = Mqtt5Session.of(channel);
+        assertTrue(channel.pipeline().get("decoder") instanceof Mqtt5Decoder);
+        assertEquals(5, session.getClientReceiveMaximum());
+        assertEquals(120, session.getClientMaximumPacketSize());
+        assertEquals(2, session.getClientTopicAliasMaximum());
+
+        channel.writeOutbound(new MqttConnAckMessage(new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_ACCEPTED, false)));
+        ByteBuf connAck = channel.readOutbound();
+        assertEquals(0x20, connAck.readUnsignedByte());
+        assertEquals(14, connAck.readUnsignedByte());
+        assertEquals(0, connAck.readUnsignedByte());
+        assertEquals(0, connAck.readUnsignedByte());
+        assertEquals(11, connAck.readUnsignedByte());
+        assertEquals(0x21, connAck.readUnsignedByte());
+        assertEquals(2, connAck.readUnsignedShort());
+        assertEquals(0x27, connAck.readUnsignedByte());
+        assertEquals(1024, connAck.readInt());
+        assertEquals(0x22, connAck.readUnsignedByte());
+        assertEquals(4, connAck.readUnsignedShort());
+        connAck.release();
+    }
+
+    @Test
+    public void inboundTopicAliasAndReceiveMaximum() {
+        this.connect();
+        channel.writeInbound(publish(1, "a/b", 1, 0));
+        channel.writeInbound(publish(2, "", 1, 10));
+        MqttPublishMessage first = channel.readInbound();
+        Mqtt5PublishMessage second = channel.readInbound();
+        assertEquals("a/b", first.variableHeader().topicName());
+        assertEquals("a/b", second.variableHeader().topicName());
+        assertEquals(0, Mqtt5PublishMessage.expiryMillis(first));
+        assertTrue(second.getExpiryMillis() > System.currentTimeMillis());
+        first.release();
+        second.release();
+
+        // PUBACK发出后腾出一个名额
+        channel.writeOutbound(new MqttMessage(new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                MqttMessageIdVariableHeader.from(1)));
+        ((ByteBuf) channel.readOutbound()).release();
+        channel.writeInbound(publish(3, "a/c", 0, 0));
+        ((MqttPublishMessage) channel.readInbound()).release();
+
+        // 第三条未确认的QoS1消息超过Receive Maximum
+        channel.writeInbound(publish(4, "a/d", 0, 0));
+        assertNull(channel.readInbound());
+        ByteBuf disconnect = channel.readOutbound();
+        assertEquals(0xE0, disconnect.readUnsignedByte());
+        assertEquals(1, disconnect.readUnsignedByte());
+        assertEquals(0x93, disconnect.readUnsignedByte());
+        disconnect.release();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void unknownInboundAliasIsProtocolError() {
+        this.connect();
+        channel.writeInbound(publish(1, "", 3, 0));
+        assertNull(channel.readInbound());
+        ByteBuf disconnect = channel.readOutbound();
+        disconnect.skipBytes(2);
+        assertEquals(0x82, disconnect.readUnsignedByte());
+        disconnect.release();
+    }
+
+    @Test
+    public void reservedPacketTypeIsMalformed() {
+        this.assertMalformed(0x00);
+    }
+
+    @Test
+    public void qos3PublishIsMalformed() {
+        this.assertMalformed(0x36);
+    }
+
+    @Test
+    public void outboundTopicAliasExpiryAndMaximumPacketSize() {
+        this.connect();
+        long expiryMillis = System.currentTimeMillis() + 5000;
+        for (int i = 0; i < 2; i++) {
+            channel.writeOutbound(new Mqtt5PublishMessage(new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                    new MqttPublishVariableHeader("x/y", 0), Unpooled.wrappedBuffer(new byte[]{7}), expiryMillis));
+        }
+        ByteBuf first = channel.readOutbound();
+        assertEquals(0x30, first.readUnsignedByte());
+        first.skipBytes(1);
+        assertEquals("x/y", first.readCharSequence(first.readUnsignedShort(), CharsetUtil.UTF_8).toString());
+        assertEquals(8, first.readUnsignedByte());
+        assertEquals(0x02, first.readUnsignedByte());
+        assertEquals(5, first.readInt());
+        assertEquals(0x23, first.readUnsignedByte());
+        assertEquals(1, first.readUnsignedShort());
+        assertEquals(7, first.readByte());
+        first.release();
+        // 第二次只发送别名, 主题为空
+        ByteBuf second = channel.readOutbound();
+        second.skipBytes(2);
+        assertEquals(0, second.readUnsignedShort());
+        assertEquals(8, second.readUnsignedByte());
+        second.release();
+
+        // 超过客户端Maximum Packet Size的报文丢弃, 已过期的QoS0消息也丢弃
+        channel.writeOutbound(new MqttPublishMessage(new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttPublishVariableHeader("x/y", 0), Unpooled.wrappedBuffer(new byte[200])));
+        channel.writeOutbound(new Mqtt5PublishMessage(new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttPublishVariableHeader("x/y", 0), Unpooled.wrappedBuffer(new byte[1]), System.currentTimeMillis() - 1));
+        assertFalse(((ByteBuf) channel.readOutbound()).isReadable());
+        assertFalse(((ByteBuf) channel.readOutbound()).isReadable());
+        assertTrue(Mqtt5Session.of(channel).exceedsClientMaximumPacketSize(3, MqttQoS.AT_LEAST_ONCE, 200));
+    }
+
+    /**
+     * 客户端声明Receive Maximum=5, Maximum Packet Size=120, Topic Alias Maximum=2
+     */
+    private void connect() {
+        ByteBuf body = Unpooled.buffer();
+        writeString(body, "MQTT");
+        body.writeByte(5).writeByte(0x02).writeShort(60);
+        body.writeByte(18);
+        body.writeByte(0x21).writeShort(5);
+        body.writeByte(0x27).writeInt(120);
+        body.writeByte(0x22).writeShort(2);
+        // 不关心的属性被跳过
+        body.writeByte(0x26);
+        writeString(body, "k");
+        writeString(body, "v");
+        writeString(body, "c1");
+        channel.writeInbound(packet(0x10, body));
+        MqttConnectMessage connect = channel.readInbound();
+        assertEquals("c1", connect.payload().clientIdentifier());
+        assertEquals(5, connect.variableHeader().version());
+        assertTrue(connect.variableHeader().isCleanSession());
+    }
+
+    private void assertMalformed(int firstByte) {
+        this.connect();
+        ByteBuf body = Unpooled.buffer();
+        writeString(body, "a");
+        body.writeShort(1).writeByte(0);
+        channel.writeInbound(packet(firstByte, body));
+        assertNull(channel.readInbound());
+        ByteBuf disconnect = channel.readOutbound();
+        assertEquals(0xE0, disconnect.readUnsignedByte());
+        disconnect.skipBytes(1);
+        assertEquals(0x81, disconnect.readUnsignedByte());
+        disconnect.release();
+        assertFalse(channel.isActive());
+    }
+
+    private static ByteBuf publish(int packetId, String topic, int alias, int expirySeconds) {
+        ByteBuf body = Unpooled.buffer();
+        writeString(body, topic);
+        body.writeShort(packetId);
+        int propertiesLength = (alias != 0 ? 3 : 0) + (expirySeconds != 0 ? 5 : 0);
+        body.writeByte(propertiesLength);
+        if (alias != 0) {
+            body.writeByte(0x23).writeShort(alias);
+        }
+        if (expirySeconds != 0) {
+            body.writeByte(0x02).writeInt(expirySeconds);
+        }
+        body.writeBytes(new byte[]{1, 2, 3});
+        return packet(0x32, body);
+    }
+
+    private static ByteBuf packet(int firstByte, ByteBuf body) {
+        ByteBuf packet = Unpooled.buffer();
+        packet.writeByte(firstByte).writeByte(body.readableBytes()).writeBytes(body);
+        body.release();
+        return packet;
+    }
+
+    private static void writeString(ByteBuf buf, String value) {
+        byte[] bytes = value.getBytes(CharsetUtil.UTF_8);
+        buf.writeShort(bytes.length).writeBytes(bytes);
+    }
+}
@@ -0,0 +1,55 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.server.MqttWebSocketCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class MqttWebSocketCodecTests {
+
+    @Test
+    public void packetSpanningFramesIsDecoded() {
+        EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.writeOutbound(MqttMessageBuilders.connect().clientId("browser-1").keepAlive(30).build());
+        ByteBuf connect = encoder.readOutbound();
+
+        EmbeddedChannel channel = new EmbeddedChannel(MqttWebSocketCodec.INSTANCE, new MqttDecoder(), MqttEncoder.INSTANCE);
+        int half = connect.readableBytes() / 2;
+        channel.writeInbound(new BinaryWebSocketFrame(false, 0, connect.readRetainedSlice(half)));
+        assertNull(channel.readInbound());
+        channel.writeInbound(new ContinuationWebSocketFrame(true, 0, connect.readRetainedSlice(connect.readableBytes())));
+        connect.release();
+        MqttConnectMessage decoded = channel.readInbound();
+        assertEquals("browser-1", decoded.payload().clientIdentifier());
+
+        channel.writeOutbound(new MqttMessage(new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+        BinaryWebSocketFrame frame = channel.readOutbound();
+        assertEquals(0xD0, frame.content().readUnsignedByte());
+        assertEquals(0, frame.content().readUnsignedByte());
+        frame.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void textFrameClosesConnection() {
+        EmbeddedChannel channel = new EmbeddedChannel(MqttWebSocketCodec.INSTANCE, new MqttDecoder());
+        channel.writeInbound(new TextWebSocketFrame("hello"));
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+    }
+}
@@ -0,0 +1,97 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.internal.InternalMessage;
+import com.sanshengshui.iot.store.offline.OfflineMessageLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineMessageLogTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void interleavedClientsKeepOrderAcrossSegmentsAndRestart() throws Exception {
+        File dir = folder.newFolder();
+        OfflineMessageLog log = new OfflineMessageLog(dir, 1024, 0, 0, 0);
+        log.open();
+        for (int i = 0; i < 100; i++) {
+            log.append("c" + (i % 2), "t/" + i, 1, new byte[]{(byte) i}, 1000L);
+        }
+        assertTrue(log.segmentCount() > 1);
+        assertEquals(50, log.size("c0"));
+        List<InternalMessage> first = log.poll("c0", 10, 1000L);
+        assertEquals(10, first.size());
+        assertEquals("t/0", first.get(0).getTopic());
+        assertEquals("t/18", first.get(9).getTopic());
+        log.close();
+
+        log = new OfflineMessageLog(dir, 1024, 0, 0, 0);
+        log.open();
+        assertEquals(40, log.size("c0"));
+        assertEquals(50, log.size("c1"));
+        List<InternalMessage> rest = log.poll("c0", 100, 1000L);
+        assertEquals(40, rest.size());
+        assertEquals("t/20", rest.get(0).getTopic());
+        assertArrayEquals(new byte[]{98}, rest.get(39).getMessageBytes());
+        assertEquals(0, log.size("c0"));
+        log.close();
+    }
+
+    @Test
+    public void consumedSegmentsAreDeleted() throws Exception {
+        File dir = folder.newFolder();
+        OfflineMessageLog log = new OfflineMessageLog(dir, 1024, 0, 0, 0);
+        log.open();
+        for (int i = 0; i < 100; i++) {
+            log.append("c0", "t", 1, new byte[64], 1000L);
+        }
+        int segments = log.segmentCount();
+        log.poll("c0", 100, 1000L);
+        assertEquals(1, log.segmentCount());
+        assertEquals(1, dir.listFiles().length);
+        assertTrue(segments > 1);
+        log.close();
+    }
+
+    @Test
+    public void perClientCapDropsOldest() throws Exception {
+        OfflineMessageLog log = new OfflineMessageLog(folder.newFolder(), 4096, 0, 500, 0);
+        log.open();
+        for (int i = 0; i < 20; i++) {
+            log.append("c0", "t/" + i, 1, new byte[64], 1000L);
+        }
+        assertTrue(log.bytes("c0") <= 500);
+        List<InternalMessage> messages = log.poll("c0", 100, 1000L);
+        assertEquals("t/19", messages.get(messages.size() - 1).getTopic());
+        assertTrue(messages.size() < 20);
+        log.close();
+    }
+
+    @Test
+    public void expiredSegmentsAreCompacted() throws Exception {
+        OfflineMessageLog log = new OfflineMessageLog(folder.newFolder(), 1024, 10000, 0, 0);
+        log.open();
+        for (int i = 0; i < 30; i++) {
+            log.append("c0", "old", 1, new byte[64], 1000L);
+        }
+        for (int i = 0; i < 30; i++) {
+            log.append("c0", "new", 1, new byte[64], 20000L);
+        }
+        log.compact(20000L);
+        List<InternalMessage> messages = log.poll("c0", 100, 20000L);
+        for (InternalMessage message : messages) {
+            assertEquals("new", message.getTopic());
+        }
+        assertEquals(30, messages.size());
+        log.close();
+    }
+}
@@ -0,0 +1,206 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.common.session.GrozaSessionStoreService;
+import com.sanshengshui.iot.protocol.Connect;
+import com.sanshengshui.iot.protocol.InboundQos2;
+import com.sanshengshui.iot.protocol.PingReq;
+import com.sanshengshui.iot.protocol.ProtocolProcess;
+import com.sanshengshui.iot.protocol.SlowConsumer;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.server.MqttTransportHandler;
+import com.sanshengshui.iot.server.OrderedProtocolExecutor;
+import com.sanshengshui.iot.store.session.GrozaSessionStoreServiceImpl;
+import com.sanshengshui.iot.trace.MessageTracer;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OrderedProtocolExecutorTests {
+
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    private final CountDownLatch processed = new CountDownLatch(6);
+
+    private final CompletableFuture<Void> connecting = new CompletableFuture<>();
+
+    private volatile String pingClientId;
+
+    private OrderedProtocolExecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        blocked.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void pausesReadAboveHighWaterMark() throws InterruptedException {
+        executor = new OrderedProtocolExecutor(1, 100, 4, 2);
+        EmbeddedChannel channel = channel();
+
+        for (int i = 0; i < 3; i++) {
+            channel.writeInbound(pingReq());
+        }
+        assertTrue(channel.config().isAutoRead());
+        channel.writeInbound(pingReq());
+        assertFalse(channel.config().isAutoRead());
+        // 暂停期间已读到的报文照常入队
+        channel.writeInbound(pingReq());
+        channel.writeInbound(pingReq());
+
+        blocked.countDown();
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+        await(channel, () -> channel.config().isAutoRead());
+        channel.finish();
+    }
+
+    @Test
+    public void closesConnectionWhenQueueIsFull() throws InterruptedException {
+        executor = new OrderedProtocolExecutor(1, 2, 100, 50);
+        EmbeddedChannel channel = channel();
+
+        // 第一个报文被协议线程取走并阻塞, 随后两个占满队列
+        channel.writeInbound(pingReq());
+        await(channel, () -> executor.totalQueueDepth() == 0);
+        channel.writeInbound(pingReq());
+        channel.writeInbound(pingReq());
+        assertTrue(channel.isActive());
+        channel.writeInbound(pingReq());
+        assertFalse(channel.isActive());
+        assertEquals(2, executor.totalQueueDepth());
+    }
+
+    @Test
+    public void keepAliveExpiryClosesConnectionWhenQueueIsFull() throws InterruptedException {
+        executor = new OrderedProtocolExecutor(1, 2, 100, 50);
+        EmbeddedChannel channel = channel();
+
+        channel.writeInbound(pingReq());
+        await(channel, () -> executor.totalQueueDepth() == 0);
+        channel.writeInbound(pingReq());
+        channel.writeInbound(pingReq());
+        assertTrue(channel.isActive());
+        // 队列已满时心跳超时在事件循环中直接关闭连接
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.ALL_IDLE_STATE_EVENT);
+        assertFalse(channel.isActive());
+    }
+
+    @Test
+    public void holdsPacketsUntilAsyncConnectCompletes() throws InterruptedException {
+        blocked.countDown();
+        executor = new OrderedProtocolExecutor(1, 100, 100, 50);
+        EmbeddedChannel channel = new EmbeddedChannel(new MqttTransportHandler(new BlockingProtocolProcess(), null, executor));
+        MqttConnectMessage connect = MqttMessageBuilders.connect().clientId("c2").build();
+
+        // CONNECT和PINGREQ在同一次读取中解码
+        channel.writeInbound(connect, pingReq());
+        await(channel, () -> executor.totalQueueDepth() == 0);
+        Thread.sleep(50);
+        assertEquals(6, processed.getCount());
+
+        // 认证完成后在协议线程中设置clientId, 随后处理暂存的PINGREQ
+        executor.select("c2").execute(() -> {
+            ConnectionContext.of(channel).setClientId("c2");
+            connecting.complete(null);
+        });
+        await(channel, () -> processed.getCount() == 5);
+        assertEquals("c2", pingClientId);
+        channel.finish();
+    }
+
+    private EmbeddedChannel channel() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MqttTransportHandler(new BlockingProtocolProcess(), null, executor));
+        ConnectionContext.of(channel).setClientId("c1").setExecutor(executor.select("c1"));
+        return channel;
+    }
+
+    private static MqttMessage pingReq() {
+        return new MqttMessage(new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0));
+    }
+
+    /**
+     * 协议线程恢复读取时把任务投递到channel的事件循环, EmbeddedChannel需要手动执行
+     */
+    private static void await(EmbeddedChannel channel, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Condition not met within 5 seconds");
+            }
+            Thread.sleep(1);
+            channel.runPendingTasks();
+        }
+    }
+
+    private class BlockingProtocolProcess extends ProtocolProcess {
+
+        private final SlowConsumer slowConsumer = new SlowConsumer(SlowConsumer.Policy.DROP_NEWEST, 100);
+
+        private final InboundQos2 inboundQos2 = new InboundQos2();
+
+        private final GrozaSessionStoreService sessionStoreService = new GrozaSessionStoreServiceImpl();
+
+        private final PingReq pingReq = new PingReq(new MessageTracer()) {
+            @Override
+            public void processPingReq(Channel channel, MqttMessage msg) {
+                pingClientId = ConnectionContext.of(channel).getClientId();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.countDown();
+            }
+        };
+
+        private final Connect connect = new Connect(null, null, null, null, null, null, null, null, null, null, null, null) {
+            @Override
+            public CompletableFuture<Void> processConnect(Channel channel, MqttConnectMessage msg) {
+                return connecting;
+            }
+        };
+
+        @Override
+        public Connect connect() {
+            return connect;
+        }
+
+        @Override
+        public PingReq pingReq() {
+            return pingReq;
+        }
+
+        @Override
+        public SlowConsumer getSlowConsumer() {
+            return slowConsumer;
+        }
+
+        @Override
+        public InboundQos2 getInboundQos2() {
+            return inboundQos2;
+        }
+
+        @Override
+        public GrozaSessionStoreService getGrozaSessionStoreService() {
+            return sessionStoreService;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.metrics.ProtocolMetrics;
+import com.sanshengshui.iot.metrics.RedisMetrics;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ProtocolMetricsTests {
+
+    @Test
+    public void countConnectionsPerEventLoop() throws Exception {
+        ProtocolMetrics metrics = new ProtocolMetrics();
+        EventLoop first = new DefaultEventLoop();
+        EventLoop second = new DefaultEventLoop();
+        try {
+            // 与channelActive一样在事件循环线程上记录
+            first.submit(() -> metrics.connectionOpened(first)).sync();
+            first.submit(() -> metrics.connectionOpened(first)).sync();
+            second.submit(() -> metrics.connectionOpened(second)).sync();
+            first.submit(() -> metrics.connectionClosed(first)).sync();
+            assertEquals(2, metrics.connectionCount());
+            assertEquals(2, ((Map<?, ?>) metrics.snapshot().get("connectionsPerEventLoop")).size());
+        } finally {
+            first.shutdownGracefully();
+            second.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void recordFanoutAndCounts() {
+        ProtocolMetrics metrics = new ProtocolMetrics();
+        metrics.recordFanout(0);
+        metrics.recordFanout(10);
+        metrics.recordLatency(MqttMessageType.PUBLISH, 1000);
+        assertEquals(2, metrics.fanout().getCount());
+        assertEquals(10, metrics.fanout().getMax());
+        assertEquals(1L, ((Map<?, ?>) metrics.snapshot().get("counts")).get("PUBLISH"));
+    }
+
+    @Test
+    public void recordRedisLatencyPerOperation() {
+        RedisMetrics metrics = new RedisMetrics();
+        assertNull(metrics.latency("GrozaRetainMessageCache.get/1"));
+        metrics.record("GrozaRetainMessageCache.get/1", System.nanoTime());
+        metrics.record("GrozaRetainMessageCache.get/1", System.nanoTime());
+        assertEquals(2, metrics.latency("GrozaRetainMessageCache.get/1").getCount());
+        assertEquals(1, metrics.snapshot().size());
+    }
+
+    @Test
+    public void recordRedisLatencyForWrappedAndAsyncCalls() {
+        RedisMetrics metrics = new RedisMetrics();
+        assertEquals("v", metrics.call("GrozaRetainMessageCache.get/1", () -> "v"));
+        try {
+            metrics.run("GrozaRetainMessageCache.remove", () -> {
+                throw new IllegalStateException("redis down");
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, metrics.latency("GrozaRetainMessageCache.remove").getCount());
+
+        // 异步命令在完成时记录, 发出时不记录
+        CompletableFuture<String> future = metrics.complete("GrozaRedisAsyncClient.HSET", new CompletableFuture<>());
+        assertNull(metrics.latency("GrozaRedisAsyncClient.HSET"));
+        future.complete("OK");
+        assertEquals(1, metrics.latency("GrozaRedisAsyncClient.HSET").getCount());
+    }
+}
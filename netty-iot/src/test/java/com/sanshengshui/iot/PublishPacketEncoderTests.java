@@ -0,0 +1,41 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.codec.PublishPacketEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublishPacketEncoderTests {
+
+    @Test
+    public void encodedPacketDecodesWithNettyDecoder() {
+        ByteBuf payload = Unpooled.copiedBuffer(new byte[300]);
+        byte[] topicBytes = "devices/1/telemetry".getBytes(CharsetUtil.UTF_8);
+        ByteBuf packet = PublishPacketEncoder.encode(ByteBufAllocator.DEFAULT, topicBytes, MqttQoS.AT_LEAST_ONCE, true, true, 42, payload);
+        // 报文持有payload的引用, 不拷贝
+        assertEquals(2, payload.refCnt());
+
+        EmbeddedChannel channel = new EmbeddedChannel(new MqttDecoder());
+        assertTrue(channel.writeInbound(packet));
+        MqttPublishMessage msg = channel.readInbound();
+        assertEquals("devices/1/telemetry", msg.variableHeader().topicName());
+        assertEquals(42, msg.variableHeader().packetId());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, msg.fixedHeader().qosLevel());
+        assertTrue(msg.fixedHeader().isRetain());
+        assertTrue(msg.fixedHeader().isDup());
+        assertEquals(300, msg.payload().readableBytes());
+        msg.release();
+        channel.finish();
+        assertEquals(1, payload.refCnt());
+        payload.release();
+    }
+}
@@ -0,0 +1,135 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.common.message.RetainMessageStore;
+import com.sanshengshui.iot.store.cache.GrozaRetainMessageCache;
+import com.sanshengshui.iot.store.message.RetainMessageStoreServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetainMessageStoreTests {
+
+    private final Map<String, RetainMessageStore> redis = new TreeMap<>();
+
+    private RetainMessageStoreServiceImpl retainMessageStoreService;
+
+    @Before
+    public void setUp() {
+        redis.put("a/b", retain("a/b"));
+        redis.put("a/c/d", retain("a/c/d"));
+        retainMessageStoreService = new RetainMessageStoreServiceImpl();
+        ReflectionTestUtils.setField(retainMessageStoreService, "grozaRetainMessageCache", new MapRetainMessageCache());
+        retainMessageStoreService.init();
+    }
+
+    @Test
+    public void indexFollowsPutAndRemove() {
+        assertTrue(retainMessageStoreService.containsKey("a/b"));
+        assertFalse(retainMessageStoreService.containsKey("a"));
+
+        retainMessageStoreService.put("a", retain("a"));
+        assertTrue(retainMessageStoreService.containsKey("a"));
+        assertEquals(1, retainMessageStoreService.search("a").size());
+
+        retainMessageStoreService.remove("a/b");
+        assertFalse(retainMessageStoreService.containsKey("a/b"));
+        assertTrue(retainMessageStoreService.search("a/b").isEmpty());
+        assertFalse(redis.containsKey("a/b"));
+    }
+
+    @Test
+    public void wildcardSearchUsesIndex() {
+        retainMessageStoreService.put("x/b", retain("x/b"));
+        assertEquals(topics("a/b"), topics(retainMessageStoreService.search("a/+")));
+        assertEquals(topics("a/b", "a/c/d"), topics(retainMessageStoreService.search("a/#")));
+        assertEquals(topics("a/b", "x/b"), topics(retainMessageStoreService.search("+/b")));
+        assertTrue(retainMessageStoreService.search("b/#").isEmpty());
+    }
+
+    @Test
+    public void reloadSyncsIndexWithRedis() {
+        // 其他节点写入和删除的retain消息, 本节点只更新索引
+        redis.put("x/y", retain("x/y"));
+        retainMessageStoreService.putIndex("x/y");
+        assertTrue(retainMessageStoreService.containsKey("x/y"));
+        assertEquals(3, redis.size());
+
+        // 集群连接断开期间错过的变更由reload补上
+        redis.remove("a/b");
+        redis.put("z", retain("z"));
+        retainMessageStoreService.reload();
+        assertFalse(retainMessageStoreService.containsKey("a/b"));
+        assertTrue(retainMessageStoreService.containsKey("z"));
+        assertEquals(topics("a/c/d", "x/y", "z"), topics(retainMessageStoreService.search("#")));
+
+        retainMessageStoreService.removeIndex("z");
+        assertFalse(retainMessageStoreService.containsKey("z"));
+        assertTrue(redis.containsKey("z"));
+    }
+
+    private static RetainMessageStore retain(String topic) {
+        return new RetainMessageStore().setTopic(topic).setMessageBytes(new byte[]{1}).setMqttQoS(1);
+    }
+
+    private static List<String> topics(String... topics) {
+        List<String> list = new ArrayList<>();
+        for (String topic : topics) {
+            list.add(topic);
+        }
+        return list;
+    }
+
+    private static List<String> topics(List<RetainMessageStore> retainMessageStores) {
+        List<String> list = new ArrayList<>();
+        retainMessageStores.forEach(retainMessageStore -> list.add(retainMessageStore.getTopic()));
+        list.sort(null);
+        return list;
+    }
+
+    private class MapRetainMessageCache extends GrozaRetainMessageCache {
+
+        @Override
+        public RetainMessageStore put(String topic, RetainMessageStore retainMessageStore) {
+            redis.put(topic, retainMessageStore);
+            return retainMessageStore;
+        }
+
+        @Override
+        public RetainMessageStore get(String topic) {
+            return redis.get(topic);
+        }
+
+        @Override
+        public void remove(String topic) {
+            redis.remove(topic);
+        }
+
+        @Override
+        public boolean containsKey(String topic) {
+            return redis.containsKey(topic);
+        }
+
+        @Override
+        public void scanTopics(Consumer<String> consumer) {
+            redis.keySet().forEach(consumer);
+        }
+
+        @Override
+        public List<RetainMessageStore> get(Collection<String> topics) {
+            List<RetainMessageStore> list = new ArrayList<>();
+            topics.forEach(topic -> list.add(redis.get(topic)));
+            return list;
+        }
+    }
+}
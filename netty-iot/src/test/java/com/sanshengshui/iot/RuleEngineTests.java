@@ -0,0 +1,94 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.common.message.GrozaKafkaService;
+import com.sanshengshui.iot.internal.InternalMessage;
+import com.sanshengshui.iot.rule.Rule;
+import com.sanshengshui.iot.rule.RuleEngine;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RuleEngineTests {
+
+    private final List<InternalMessage> sent = new ArrayList<>();
+
+    private final GrozaKafkaService kafka = sent::add;
+
+    private static InternalMessage message(String clientId, String topic, String payload) {
+        return new InternalMessage().setClientId(clientId).setTopic(topic)
+                .setMessageBytes(payload.getBytes(CharsetUtil.UTF_8));
+    }
+
+    @Test
+    public void firstMatchingRuleDecidesAction() {
+        RuleEngine ruleEngine = new RuleEngine();
+        ruleEngine.replace("SELECT * FROM 'devices/+/telemetry' WHERE payload.temperature > 80 AND qos = 0"
+                + " DO RETOPIC 'alerts/{clientId}';"
+                + "SELECT * FROM 'devices/#' WHERE payload.debug = true DO DROP");
+        GrozaKafkaService bridge = ruleEngine.bridge(kafka);
+
+        bridge.send(message("d1", "devices/d1/telemetry", "{\"temperature\":85.5}"));
+        bridge.send(message("d2", "devices/d2/telemetry", "{\"temperature\":20,\"debug\":true}"));
+        bridge.send(message("d3", "devices/d3/telemetry", "{\"temperature\":20}"));
+        bridge.send(message("d4", "devices/d4/telemetry", "not json"));
+
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals("alerts/d1", sent.get(0).getTopic());
+        Assert.assertEquals("d1", sent.get(0).getClientId());
+        Assert.assertEquals("devices/d3/telemetry", sent.get(1).getTopic());
+        Assert.assertEquals("devices/d4/telemetry", sent.get(2).getTopic());
+        Assert.assertEquals(1L, ruleEngine.snapshot().get("retopiced"));
+        Assert.assertEquals(1L, ruleEngine.snapshot().get("dropped"));
+        Assert.assertEquals(2L, ruleEngine.snapshot().get("unmatched"));
+    }
+
+    @Test
+    public void topicFilterSkipsRule() {
+        RuleEngine ruleEngine = new RuleEngine();
+        ruleEngine.replace("SELECT * FROM 'a/+' DO DROP");
+        GrozaKafkaService bridge = ruleEngine.bridge(kafka);
+
+        bridge.send(message("c", "a/b", "{}"));
+        bridge.send(message("c", "a/b/c", "{}"));
+        bridge.send(message("c", "b/a", "{}"));
+
+        Assert.assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void sampleAndDefaultAction() {
+        RuleEngine ruleEngine = new RuleEngine();
+        ruleEngine.replace("SELECT * FROM 'all/#' DO SAMPLE 1; SELECT * FROM 'none/#' DO SAMPLE 0");
+        ruleEngine.setDefaultAction(Rule.Action.DROP);
+        GrozaKafkaService bridge = ruleEngine.bridge(kafka);
+
+        for (int i = 0; i < 10; i++) {
+            bridge.send(message("c", "all/x", "{}"));
+            bridge.send(message("c", "none/x", "{}"));
+            bridge.send(message("c", "other", "{}"));
+        }
+
+        Assert.assertEquals(10, sent.size());
+        Assert.assertEquals(10L, ruleEngine.snapshot().get("sampledOut"));
+        Assert.assertEquals(10L, ruleEngine.snapshot().get("dropped"));
+    }
+
+    @Test
+    public void invalidStatementKeepsRules() {
+        RuleEngine ruleEngine = new RuleEngine();
+        ruleEngine.replace("SELECT * FROM 'a' WHERE clientId IS NOT NULL OR NOT (payload.n <= 3) DO DROP");
+        for (String statement : new String[]{"SELECT * FROM", "SELECT * FROM 'a' WHERE", "SELECT * FROM 'a' DO SAMPLE 2",
+                "SELECT * FROM 'a' DO RETOPIC 'b/#'", "SELECT x FROM 'a'", "SELECT * FROM 'a' WHERE foo = 1"}) {
+            try {
+                ruleEngine.replace(statement);
+                Assert.fail(statement);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid rule"));
+            }
+        }
+        Assert.assertEquals(1, ((List<?>) ruleEngine.snapshot().get("rules")).size());
+    }
+}
@@ -0,0 +1,116 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.common.cluster.GrozaClusterService;
+import com.sanshengshui.iot.common.subscribe.SharedSubscription;
+import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.common.topic.TopicUtil;
+import com.sanshengshui.iot.internal.InternalMessage;
+import com.sanshengshui.iot.protocol.SharedSubscriptionSelector;
+import com.sanshengshui.iot.protocol.Subscribe;
+import com.sanshengshui.iot.server.ConnectionContext;
+import com.sanshengshui.iot.trace.MessageTracer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubAckMessage;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedSubscriptionTests {
+
+    @Test
+    public void parseShareFilter() {
+        assertTrue(TopicUtil.isShared("$share/g1/devices/+/telemetry"));
+        assertEquals("g1", TopicUtil.shareGroup("$share/g1/devices/+/telemetry"));
+        assertEquals("devices/+/telemetry", TopicUtil.shareFilter("$share/g1/devices/+/telemetry"));
+        assertEquals("a/b", TopicUtil.shareFilter("a/b"));
+        assertNull(TopicUtil.shareGroup("$share//a"));
+        assertNull(TopicUtil.shareGroup("$share/g1/"));
+        assertNull(TopicUtil.shareGroup("$share/g+/a"));
+    }
+
+    @Test
+    public void membersCopyOnWrite() {
+        SharedSubscription group = new SharedSubscription("g1", "a/+");
+        group.put(new SubscribeStore("c1", "$share/g1/a/+", 1));
+        group.put(new SubscribeStore("c2", "$share/g1/a/+", 1));
+        SubscribeStore[] snapshot = group.getMembers();
+        group.put(new SubscribeStore("c1", "$share/g1/a/+", 2));
+        assertEquals(2, group.getMembers().length);
+        assertEquals(2, group.get("c1").getMqttQoS());
+        assertEquals(1, snapshot[0].getMqttQoS());
+        assertFalse(group.remove("c1"));
+        assertEquals("c2", group.getMembers()[0].getClientId());
+        assertTrue(group.remove("c2"));
+    }
+
+    @Test
+    public void roundRobinAndSticky() {
+        SharedSubscription group = new SharedSubscription("g1", "a/+");
+        for (int i = 0; i < 3; i++) {
+            group.put(new SubscribeStore("c" + i, "$share/g1/a/+", 1));
+        }
+        SubscribeStore[] members = group.getMembers();
+        SharedSubscriptionSelector roundRobin = SharedSubscriptionSelector.of("round_robin", null);
+        int[] counts = new int[3];
+        for (int i = 0; i < 300; i++) {
+            counts[roundRobin.select(group, members, "p1", "a/b")]++;
+        }
+        assertEquals(100, counts[0]);
+        assertEquals(100, counts[1]);
+        assertEquals(100, counts[2]);
+
+        SharedSubscriptionSelector sticky = SharedSubscriptionSelector.of("sticky", null);
+        int first = sticky.select(group, members, "p1", "a/b");
+        for (int i = 0; i < 10; i++) {
+            assertEquals(first, sticky.select(group, members, "p1", "a/" + i));
+        }
+    }
+
+    @Test
+    public void refusedWhenClusterDoesNotSupportIt() {
+        // 不支持时不写订阅存储, 订阅存储传null
+        Subscribe subscribe = new Subscribe(null, null, new UnsupportedClusterService(), null, null, new MessageTracer());
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ConnectionContext.of(channel).setClientId("c1");
+        subscribe.processSubscribe(channel, MqttMessageBuilders.subscribe().messageId(1)
+                .addSubscription(MqttQoS.AT_LEAST_ONCE, "$share/g1/a/+").build());
+        MqttSubAckMessage subAck = channel.readOutbound();
+        assertEquals(Collections.singletonList(MqttQoS.FAILURE.value()), subAck.payload().grantedQoSLevels());
+        assertTrue(channel.isActive());
+    }
+
+    private static class UnsupportedClusterService implements GrozaClusterService {
+
+        @Override
+        public void subscribe(String clientId, String topicFilter) {
+        }
+
+        @Override
+        public void unsubscribe(String clientId, String topicFilter) {
+        }
+
+        @Override
+        public void removeClient(String clientId) {
+        }
+
+        @Override
+        public void publish(InternalMessage internalMessage) {
+        }
+
+        @Override
+        public void takeover(String clientId, boolean cleanSession) {
+        }
+
+        @Override
+        public boolean isSharedSubscriptionSupported() {
+            return false;
+        }
+    }
+}
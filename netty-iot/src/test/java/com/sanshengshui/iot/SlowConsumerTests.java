@@ -0,0 +1,76 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.protocol.SlowConsumer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SlowConsumerTests {
+
+    @Test
+    public void dropOldestQueuesWhileUnwritable() {
+        SlowConsumer slowConsumer = new SlowConsumer(SlowConsumer.Policy.of("drop_oldest"), 2);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ByteBuf first = packet(1);
+        assertTrue(slowConsumer.write(channel, "c1", first));
+        ((ByteBuf) channel.readOutbound()).release();
+
+        setWritable(channel, false);
+        ByteBuf second = packet(2);
+        assertTrue(slowConsumer.write(channel, "c1", second));
+        assertTrue(slowConsumer.write(channel, "c1", packet(3)));
+        assertTrue(slowConsumer.write(channel, "c1", packet(4)));
+        assertNull(channel.readOutbound());
+        assertEquals(2, slowConsumer.queuedCount(channel));
+        // 队列满时丢弃最早的消息
+        assertEquals(0, second.refCnt());
+        assertEquals(1L, slowConsumer.snapshot().get("qos0Dropped"));
+
+        setWritable(channel, true);
+        slowConsumer.writable(channel);
+        ByteBuf third = channel.readOutbound();
+        ByteBuf fourth = channel.readOutbound();
+        assertEquals(3, third.readByte());
+        assertEquals(4, fourth.readByte());
+        third.release();
+        fourth.release();
+        assertEquals(0, slowConsumer.queuedCount(channel));
+
+        setWritable(channel, false);
+        ByteBuf queued = packet(5);
+        slowConsumer.write(channel, "c1", queued);
+        channel.close();
+        slowConsumer.closed(channel);
+        assertEquals(0, queued.refCnt());
+    }
+
+    @Test
+    public void dropNewestAndDisconnect() {
+        SlowConsumer dropNewest = new SlowConsumer(SlowConsumer.Policy.DROP_NEWEST, 100);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        setWritable(channel, false);
+        ByteBuf packet = packet(1);
+        assertFalse(dropNewest.write(channel, "c1", packet));
+        assertEquals(0, packet.refCnt());
+        assertTrue(channel.isOpen());
+
+        SlowConsumer disconnect = new SlowConsumer(SlowConsumer.Policy.DISCONNECT, 100);
+        assertFalse(disconnect.write(channel, "c1", packet(2)));
+        assertFalse(channel.isOpen());
+        assertEquals(1L, disconnect.snapshot().get("disconnected"));
+    }
+
+    private static ByteBuf packet(int marker) {
+        return Unpooled.buffer(1).writeByte(marker);
+    }
+
+    private static void setWritable(EmbeddedChannel channel, boolean writable) {
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+    }
+}
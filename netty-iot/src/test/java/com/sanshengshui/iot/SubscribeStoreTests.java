@@ -0,0 +1,92 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.common.subscribe.SubscribeStore;
+import com.sanshengshui.iot.store.cache.GrozaSubscribeNotWildcardCache;
+import com.sanshengshui.iot.store.cache.GrozaSubscribeWildcardCache;
+import com.sanshengshui.iot.store.subscribe.SubscribeStoreServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubscribeStoreTests {
+
+    private final Map<String, SubscribeStore> redis = new TreeMap<>();
+
+    private SubscribeStoreServiceImpl subscribeStoreService;
+
+    @Before
+    public void setUp() {
+        subscribeStoreService = new SubscribeStoreServiceImpl();
+        ReflectionTestUtils.setField(subscribeStoreService, "grozaSubscribeWildcardCache", new MapWildcardCache());
+        ReflectionTestUtils.setField(subscribeStoreService, "grozaSubscribeNotWildcardCache", new MapNotWildcardCache());
+        subscribeStoreService.init();
+        subscribeStoreService.put("a/b", new SubscribeStore("c1", "a/b", 1));
+        subscribeStoreService.put("a/+", new SubscribeStore("c1", "a/+", 1));
+        subscribeStoreService.put("$share/g1/a/+", new SubscribeStore("c1", "$share/g1/a/+", 1));
+    }
+
+    @Test
+    public void removeForClientDeletesPersistedRows() {
+        subscribeStoreService.removeForClient("c1");
+        assertTrue(subscribeStoreService.search("a/b").isEmpty());
+        assertTrue(subscribeStoreService.searchShared("a/b").isEmpty());
+        assertTrue(redis.isEmpty());
+    }
+
+    @Test
+    public void evictForClientKeepsPersistedRows() {
+        subscribeStoreService.evictForClient("c1");
+        assertTrue(subscribeStoreService.search("a/b").isEmpty());
+        assertTrue(subscribeStoreService.searchShared("a/b").isEmpty());
+        assertTrue(subscribeStoreService.searchByClient("c1").isEmpty());
+        // 接管连接的节点仍依赖Redis中的订阅
+        assertEquals(3, redis.size());
+    }
+
+    private static String key(String topic, String clientId) {
+        return topic + "|" + clientId;
+    }
+
+    private class MapWildcardCache extends GrozaSubscribeWildcardCache {
+
+        @Override
+        public SubscribeStore put(String topic, String clientId, SubscribeStore subscribeStore) {
+            redis.put(key(topic, clientId), subscribeStore);
+            return subscribeStore;
+        }
+
+        @Override
+        public void remove(String topic, String clientId) {
+            redis.remove(key(topic, clientId));
+        }
+
+        @Override
+        public void scan(Consumer<SubscribeStore> consumer) {
+        }
+    }
+
+    private class MapNotWildcardCache extends GrozaSubscribeNotWildcardCache {
+
+        @Override
+        public SubscribeStore put(String topic, String clientId, SubscribeStore subscribeStore) {
+            redis.put(key(topic, clientId), subscribeStore);
+            return subscribeStore;
+        }
+
+        @Override
+        public void remove(String topic, String clientId) {
+            redis.remove(key(topic, clientId));
+        }
+
+        @Override
+        public void scan(Consumer<SubscribeStore> consumer) {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.auth.service.CredentialCache;
+import com.sanshengshui.iot.auth.service.TokenAuthServiceImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenAuthTests {
+
+    private TokenAuthServiceImpl authService;
+
+    @Before
+    public void setUp() {
+        authService = new TokenAuthServiceImpl();
+        ReflectionTestUtils.setField(authService, "secret", "test-secret");
+        ReflectionTestUtils.setField(authService, "ttlSeconds", 60L);
+        ReflectionTestUtils.setField(authService, "rsaFallback", false);
+        ReflectionTestUtils.setField(authService, "cacheMaxSize", 2);
+        ReflectionTestUtils.setField(authService, "cacheTtlMillis", 60000L);
+        ReflectionTestUtils.setField(authService, "verifyThreads", 1);
+        ReflectionTestUtils.setField(authService, "verifyQueue", 16);
+        authService.init();
+    }
+
+    @After
+    public void tearDown() {
+        authService.shutdown();
+    }
+
+    @Test
+    public void verifyIssuedToken() {
+        String token = authService.issue("device-1");
+        assertTrue(authService.checkValid("device-1", token));
+        assertTrue(authService.checkValidAsync("device-1", token).isDone());
+        assertEquals(1, authService.getCredentialCache().size());
+        assertFalse(authService.checkValid("device-2", token));
+        char last = token.charAt(token.length() - 1);
+        assertFalse(authService.checkValid("device-1", token.substring(0, token.length() - 1) + (last == 'A' ? 'B' : 'A')));
+        assertFalse(authService.checkValid("device-1", "not-a-token"));
+        assertFalse(authService.checkValid("device-1", null));
+    }
+
+    @Test
+    public void rejectExpiredToken() {
+        ReflectionTestUtils.setField(authService, "ttlSeconds", -1L);
+        String token = authService.issue("device-1");
+        assertFalse(authService.checkValid("device-1", token));
+        assertEquals(0, authService.getCredentialCache().size());
+    }
+
+    @Test
+    public void cacheBoundedAndExpires() {
+        CredentialCache cache = new CredentialCache(2, 1000);
+        cache.put("u1", "p1", Long.MAX_VALUE, 0);
+        cache.put("u2", "p2", Long.MAX_VALUE, 0);
+        assertTrue(cache.contains("u1", "p1", 10));
+        cache.put("u3", "p3", Long.MAX_VALUE, 0);
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains("u1", "p1", 10));
+        assertFalse(cache.contains("u2", "p2", 10));
+        assertFalse(cache.contains("u1", "p1", 1000));
+        // 凭证自身的有效期早于缓存TTL
+        cache.put("u4", "p4", 500, 0);
+        assertFalse(cache.contains("u4", "p4", 500));
+    }
+}
@@ -0,0 +1,60 @@
+package com.sanshengshui.iot;
+
+import com.sanshengshui.iot.common.topic.TopicTrie;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TopicTrieTests {
+
+    @Test
+    public void matchFilters() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.put("a/b/c", "c1", "exact");
+        trie.put("a/+/c", "c1", "plus");
+        trie.put("a/#", "c1", "hash");
+        trie.put("#", "c2", "all");
+        trie.put("+/+", "c3", "two");
+        trie.put("a/b", "c4", "other");
+
+        assertEquals(new HashSet<>(Arrays.asList("exact", "plus", "hash", "all")), new HashSet<>(trie.match("a/b/c")));
+        // a/#同样匹配a
+        assertEquals(new HashSet<>(Arrays.asList("hash", "all")), new HashSet<>(trie.match("a")));
+        assertEquals(new HashSet<>(Arrays.asList("hash", "all", "two", "other")), new HashSet<>(trie.match("a/b")));
+        assertEquals(new HashSet<>(Arrays.asList("all", "two")), new HashSet<>(trie.match("x/")));
+        assertTrue(trie.match("$SYS/broker").isEmpty());
+    }
+
+    @Test
+    public void removePrunesAndKeepsOtherKeys() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.put("a/+/c", "c1", "v1");
+        trie.put("a/+/c", "c2", "v2");
+        assertEquals("v1", trie.remove("a/+/c", "c1"));
+        assertNull(trie.remove("a/+/c", "c1"));
+        assertEquals(Arrays.asList("v2"), trie.match("a/b/c"));
+        trie.remove("a/+/c", "c2");
+        assertTrue(trie.match("a/b/c").isEmpty());
+        assertNull(trie.get("a/+/c", "c2"));
+    }
+
+    @Test
+    public void matchFilterOverTopics() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String topic : Arrays.asList("a", "a/b", "a/b/c", "a/x/c", "b/b/c", "$SYS/a")) {
+            trie.put(topic, topic, topic);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("a/b/c", "a/x/c")), new HashSet<>(trie.matchFilter("a/+/c")));
+        assertEquals(new HashSet<>(Arrays.asList("a", "a/b", "a/b/c", "a/x/c")), new HashSet<>(trie.matchFilter("a/#")));
+        List<String> all = trie.matchFilter("#");
+        assertEquals(5, all.size());
+        assertEquals(Arrays.asList("b/b/c"), trie.matchFilter("b/b/c"));
+        assertTrue(trie.matchFilter("c/+").isEmpty());
+    }
+}